@@ -0,0 +1,161 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyService;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Генератор данных для бенчмарков: разрешения коллекции и проверяемые разрешения с заданной долей попаданий.
+ * <br><br>
+ * Все проверки выполняются заглушкой {@link ImplyService} без обращения к DNS: имена проверяемых доменов заранее
+ * внесены в {@link StaticHostResolver}, а обратное разрешение неизвестного адреса отдает сам адрес. Поэтому результаты
+ * измерений не зависят от сети.
+ * <br><br>
+ * Адресные пространства не пересекаются: IP-адреса разрешений - 10.0.0.0/8, подсети разрешений - /24 начиная с
+ * 172.16.0.0, адреса промахов - 192.168.0.0/16, адреса, в которые разрешаются проверяемые домены, - 198.18.0.0/16.
+ * IPv6-адреса разрешений - 2001:db8::/64, IPv6-подсети разрешений - /64 начиная с 2001:db8:1::, адреса промахов -
+ * 2001:db8:ffff::/48.
+ */
+final class BenchmarkData {
+
+    private static final String[] ACTIONS = {"pusher", "puller", "pusher,puller"};
+    private static final int SUBNET_BASE = (172 << 24) | (16 << 16);
+    private static final int MISS_BASE = (192 << 24) | (168 << 16);
+    private static final int RESOLVED_BASE = (198 << 24) | (18 << 16);
+
+    private final ImplyService implyService;
+    private final StaticHostResolver hostResolver = new StaticHostResolver();
+
+
+    BenchmarkData() {
+        this.implyService = new ImplyServiceBean(hostResolver);
+    }
+
+
+    /**
+     * Создать разрешение, проверки которого выполняет заглушка
+     * @param resourceName Имя ресурса
+     * @param actions Действия
+     * @return Разрешение
+     */
+    QueuePermissionBasicImpl permission(String resourceName, String actions) {
+        return new QueuePermissionBasicImpl(resourceName, actions, implyService);
+    }
+
+
+    /**
+     * Сгенерировать разрешения коллекции. Имена ресурсов не повторяются.
+     * @param size Количество разрешений
+     * @param mix Типы ресурсов: IP, SUBNET, DOMAINNAME, IPV6, IPV6_SUBNET или MIXED(IP, SUBNET и DOMAINNAME поровну)
+     * @param random Источник случайных чисел
+     * @return Разрешения
+     */
+    List<QueuePermissionBasicImpl> grants(int size, String mix, Random random) {
+        List<QueuePermissionBasicImpl> grants = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            grants.add(permission(grantName(type(mix, i), i), ACTIONS[random.nextInt(ACTIONS.length)]));
+        }
+        return grants;
+    }
+
+
+    /**
+     * Сгенерировать проверяемые разрешения. Попадание - разрешение, которое подразумевается одним из разрешений
+     * коллекции; промах - разрешение того же типа ресурса, которое не подразумевается ничем.
+     * @param grants Разрешения коллекции
+     * @param count Количество проверяемых разрешений
+     * @param hitRatio Доля попаданий, 0..1
+     * @param random Источник случайных чисел
+     * @return Проверяемые разрешения
+     */
+    QueuePermissionBasicImpl[] requests(List<QueuePermissionBasicImpl> grants, int count, double hitRatio, Random random) {
+        QueuePermissionBasicImpl[] requests = new QueuePermissionBasicImpl[count];
+        for (int i = 0; i < count; i++) {
+            QueuePermissionBasicImpl grant = grants.get(random.nextInt(grants.size()));
+            boolean hit = random.nextDouble() < hitRatio;
+            String name = hit ? hitName(grant, random) : missName(grant.getResourceType(), i);
+            //  Попадание запрашивает первое действие разрешения - оно подразумевается всегда
+            String actions = grant.getActions().split(",")[0];
+            requests[i] = permission(name, actions);
+        }
+        return requests;
+    }
+
+
+    private static ResourceType type(String mix, int i) {
+        switch (mix) {
+            case "IP": return ResourceType.IP;
+            case "SUBNET": return ResourceType.SUBNET;
+            case "DOMAINNAME": return ResourceType.DOMAINNAME;
+            case "IPV6": return ResourceType.IPV6;
+            case "IPV6_SUBNET": return ResourceType.IPV6_SUBNET;
+            case "MIXED": return ResourceType.values()[i % 3];
+            default: throw new IllegalArgumentException("Unknown resource type mix: " + mix);
+        }
+    }
+
+
+    private static String grantName(ResourceType type, int i) {
+        switch (type) {
+            case IP: return ip((10 << 24) | i);
+            case SUBNET: return ip(SUBNET_BASE + (i << 8)) + "/24";
+            case IPV6: return "2001:db8::" + ipv6Groups(i);
+            case IPV6_SUBNET: return "2001:db8:" + Integer.toHexString(1 + (i >>> 16)) + ":" + Integer.toHexString(i & 0xFFFF) + "::/64";
+            default: return "svc" + i + ".bench.test";
+        }
+    }
+
+
+    private String hitName(QueuePermissionBasicImpl grant, Random random) {
+        switch (grant.getResourceType()) {
+            case IP:
+            case IPV6: return grant.getName();
+            //  Любой адрес подсети, кроме номера сети и широковещательного
+            case SUBNET: return ip(grant.getAddress() + 1 + random.nextInt(254));
+            //  Любой адрес подсети: первые 64 бита - из имени подсети
+            case IPV6_SUBNET: return grant.getName().substring(0, grant.getName().length() - "/64".length())
+                    + ipv6Groups(random.nextInt());
+            default: return resolvable("node." + grant.getName(), random.nextInt(1 << 16));
+        }
+    }
+
+
+    private String missName(ResourceType type, int i) {
+        switch (type) {
+            case IP: return ip(MISS_BASE + i);
+            case SUBNET: return ip(MISS_BASE + (i << 8)) + "/24";
+            case IPV6: return "2001:db8:ffff::" + ipv6Groups(i);
+            case IPV6_SUBNET: return "2001:db8:ffff:" + Integer.toHexString(i & 0xFFFF) + "::/64";
+            default: return resolvable("node" + i + ".miss.test", i);
+        }
+    }
+
+
+    //  Внести имя в таблицу заглушки. Адрес имени не входит ни в одно разрешение коллекции, поэтому проверки домена
+    //  против IP-адресов и подсетей всегда отрицательны.
+    private String resolvable(String domainName, int i) {
+        try {
+            hostResolver.add(ip(RESOLVED_BASE + (i & 0xFFFF)), domainName);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        return domainName;
+    }
+
+
+    //  Число как две последние группы IPv6-адреса
+    private static String ipv6Groups(int value) {
+        return Integer.toHexString(value >>> 16) + ":" + Integer.toHexString(value & 0xFFFF);
+    }
+
+
+    private static String ip(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+}
@@ -0,0 +1,109 @@
+package dk.messagebroker.queuepermission;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость implies() коллекции в зависимости от ее размера, состава типов ресурсов и доли попаданий.
+ * <br><br>
+ * Проверяемые разрешения генерируются заранее и перебираются по кругу, поэтому в измерение попадает только implies().
+ * Проверки имен выполняет заглушка без DNS(см. {@link BenchmarkData}). Кэш решений не используется.
+ * <br><br>
+ * Измерение коллекции на 1 000 000 разрешений с доменными именами занимает заметное время: IP-адрес проверяется
+ * перебором против всех ключей-доменов. Набор параметров можно сузить ключом -p, например: -p size=1000,100000
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CollectionImpliesBenchmark {
+
+    //  Степень двойки - чтобы индекс по кругу вычислялся маской
+    private static final int REQUESTS = 1024;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"IP", "SUBNET", "DOMAINNAME", "IPV6", "IPV6_SUBNET", "MIXED"})
+    public String mix;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double hitRatio;
+
+    @Param({"basic", "concurrent"})
+    public String implementation;
+
+    private QueuePermissionCollection collection;
+    private PolicyIndex policyIndex;
+    private QueuePermissionBasicImpl[] requests;
+    private List<QueuePermissionBasicImpl> requestList;
+
+
+    /*
+    Позиция в круге проверяемых разрешений - своя у каждого потока
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(size);
+        BenchmarkData data = new BenchmarkData();
+        List<QueuePermissionBasicImpl> grants = data.grants(size, mix, random);
+        switch (implementation) {
+            case "basic":
+                collection = new QueuePermisionCollectionBasicImpl();
+                grants.forEach(collection::add);
+                break;
+            case "concurrent":
+                QueuePermissionCollectionConcurrentImpl concurrent = new QueuePermissionCollectionConcurrentImpl();
+                concurrent.addAll(grants);
+                collection = concurrent;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+        policyIndex = PolicyIndex.compile(collection);
+        requests = data.requests(grants, REQUESTS, hitRatio, random);
+        requestList = Arrays.asList(requests);
+    }
+
+
+    @Benchmark
+    public boolean implies(Cursor cursor) {
+        QueuePermissionBasicImpl request = requests[cursor.next++ & (REQUESTS - 1)];
+        return collection.implies(request);
+    }
+
+
+    /*
+    Те же проверки по скомпилированному индексу коллекции. Параметр implementation на индекс не влияет.
+     */
+    @Benchmark
+    public boolean policyIndex(Cursor cursor) {
+        QueuePermissionBasicImpl request = requests[cursor.next++ & (REQUESTS - 1)];
+        return policyIndex.implies(request);
+    }
+
+
+    /*
+    Все проверяемые разрешения одним пакетом. Одна операция - REQUESTS проверок; сравнивать с implies() нужно с учетом
+    этого множителя.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public BitSet impliesAll() {
+        return collection.impliesAll(requestList);
+    }
+
+}
@@ -0,0 +1,89 @@
+package dk.messagebroker.queuepermission;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка коллекции из нескольких потоков: threads потоков одновременно добавляют по одному разрешению методом add(),
+ * каждый - свою часть политики. Измеряется время загрузки всей политики в новую коллекцию.
+ * <br><br>
+ * Масштабирование по количеству потоков видно, если сравнить результаты для threads = 1, 2, 4, 8... при одной и той же
+ * реализации коллекции. Количество потоков больше количества процессоров смысла не имеет.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentLoadBenchmark {
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"MIXED"})
+    public String mix;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"basic", "concurrent", "sharded"})
+    public String implementation;
+
+    private ExecutorService executor;
+    private List<List<QueuePermissionBasicImpl>> parts;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<QueuePermissionBasicImpl> grants = new BenchmarkData().grants(size, mix, new Random(size));
+        parts = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            parts.add(grants.subList(grants.size() * t / threads, grants.size() * (t + 1) / threads));
+        }
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+
+    @Benchmark
+    public QueuePermissionCollection load() throws Exception {
+        QueuePermissionCollection collection = newCollection();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (List<QueuePermissionBasicImpl> part : parts) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (QueuePermissionBasicImpl grant : part) collection.add(grant);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) future.get();
+        return collection;
+    }
+
+
+    private QueuePermissionCollection newCollection() {
+        switch (implementation) {
+            case "basic": return new QueuePermisionCollectionBasicImpl();
+            case "concurrent": return new QueuePermissionCollectionConcurrentImpl();
+            case "sharded": return new QueuePermissionCollectionShardedImpl();
+            default: throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package dk.messagebroker.queuepermission;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость операций над одним разрешением: создание(конструктором и через кэш {@link QueuePermissions}),
+ * equals()/hashCode() и implies() против другого разрешения.
+ * <br><br>
+ * Проверяемое разрешение для implies() всегда подразумевается: адрес из подсети, поддомен домена, тот же IP-адрес.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PermissionBenchmark {
+
+    @Param({"172.17.64.10", "172.17.64.0/24", "mq.corp.com"})
+    public String resourceName;
+
+    @Param({"pusher", "pusher, puller"})
+    public String actions;
+
+    private BenchmarkData data;
+    private final QueuePermissions factory = new QueuePermissions(1024);
+    private QueuePermissionBasicImpl permission;
+    private QueuePermissionBasicImpl equalPermission;
+    private QueuePermissionBasicImpl request;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new BenchmarkData();
+        permission = data.permission(resourceName, actions);
+        equalPermission = data.permission(resourceName, actions);
+        String requestName;
+        switch (permission.getResourceType()) {
+            case SUBNET: requestName = "172.17.64.10"; break;
+            case DOMAINNAME: requestName = "node1." + resourceName; break;
+            default: requestName = resourceName; break;
+        }
+        request = data.permission(requestName, "pusher");
+    }
+
+
+    @Benchmark
+    public QueuePermissionBasicImpl construct() {
+        return data.permission(resourceName, actions);
+    }
+
+
+    //  Попадание в кэш фабрики: разрешение уже создано в предыдущих вызовах
+    @Benchmark
+    public QueuePermissionBasicImpl constructCached() {
+        return factory.get(resourceName, actions);
+    }
+
+
+    @Benchmark
+    public int hashCodeValue() {
+        return permission.hashCode();
+    }
+
+
+    @Benchmark
+    public boolean equalsValue() {
+        return permission.equals(equalPermission);
+    }
+
+
+    @Benchmark
+    public boolean implies() {
+        return permission.implies(request);
+    }
+
+}
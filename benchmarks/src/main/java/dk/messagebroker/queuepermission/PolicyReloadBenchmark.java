@@ -0,0 +1,74 @@
+package dk.messagebroker.queuepermission;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость перезагрузки политики: небольшое изменение(delta разрешений удаляется и столько же добавляется) через
+ * applyDelta() против сборки новой коллекции из всей политики.
+ * <br><br>
+ * applyDelta() по очереди применяет изменение и обратное ему, поэтому размер коллекции между вызовами не меняется.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PolicyReloadBenchmark {
+
+    @Param({"500000"})
+    public int size;
+
+    @Param({"10"})
+    public int delta;
+
+    @Param({"MIXED"})
+    public String mix;
+
+    private QueuePermissionCollectionConcurrentImpl collection;
+    private List<QueuePermissionBasicImpl> grants;
+    private List<QueuePermissionBasicImpl> oldLines;
+    private List<QueuePermissionBasicImpl> newLines;
+    private boolean applied;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(size);
+        BenchmarkData data = new BenchmarkData();
+        grants = data.grants(size, mix, random);
+        collection = new QueuePermissionCollectionConcurrentImpl();
+        collection.addAll(grants);
+
+        oldLines = new ArrayList<>(delta);
+        newLines = new ArrayList<>(delta);
+        for (int i = 0; i < delta; i++) {
+            QueuePermissionBasicImpl old = grants.get(random.nextInt(grants.size()));
+            oldLines.add(old);
+            newLines.add(new QueuePermissionBasicImpl(old.getName(), old.getActions().equals("pusher") ? "puller" : "pusher"));
+        }
+    }
+
+
+    @Benchmark
+    public long applyDelta() {
+        if (applied) collection.applyDelta(oldLines, newLines);
+        else collection.applyDelta(newLines, oldLines);
+        applied = applied == false;
+        return collection.version();
+    }
+
+
+    @Benchmark
+    public long rebuild() {
+        QueuePermissionCollectionConcurrentImpl rebuilt = new QueuePermissionCollectionConcurrentImpl();
+        rebuilt.addAll(grants);
+        return rebuilt.version();
+    }
+
+}
@@ -0,0 +1,39 @@
+package dk.messagebroker.queuepermission;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость распознавания типа ресурса: регулярные выражения против {@link ResourceNameScanner}.
+ * <br><br>
+ * Бенчмарк лежит в пакете библиотеки, чтобы обращаться к ее внутренним(package-private) классам.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResourceNameScannerBenchmark {
+
+    @Param({"172.17.64.10", "172.17.64.0/24", "bud02s39-in-f14.1e100.net", "not a resource"})
+    public String resourceName;
+
+
+    @Benchmark
+    public ResourceType regexp() {
+        //  Так тип распознавался до появления ResourceNameScanner
+        if (resourceName.matches(Const.IP_REGEXP)) return ResourceType.IP;
+        if (resourceName.matches(Const.SUBNET_REGEXP)) return ResourceType.SUBNET;
+        if (resourceName.matches(Const.DOMAINNAME_REGEXP)) return ResourceType.DOMAINNAME;
+        return null;
+    }
+
+
+    @Benchmark
+    public long scanner() {
+        return ResourceNameScanner.scan(resourceName);
+    }
+
+}
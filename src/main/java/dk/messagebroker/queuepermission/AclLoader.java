@@ -0,0 +1,408 @@
+package dk.messagebroker.queuepermission;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Загрузка разрешений {@link QueuePermissionBasicImpl} из файла списка доступа.
+ * <br><br>
+ * Формат файла: одна строка - одно разрешение, "имя_ресурса действия", поля разделены пробелами или табуляцией.
+ * Действия записываются через {@link Const#ACTION_DELIMITER} без пробелов, например "pusher,puller"; регистр действий
+ * не важен, как и в конструкторе {@link QueuePermissionBasicImpl}, а пустые действия("pusher,,puller") пропускаются.
+ * Пустые строки и комментарии(от символа # до конца строки) пропускаются. Файл читается в кодировке UTF-8.
+ * <br><br>
+ * Файл отображается в память частями, которые заканчиваются на границе строки, и части разбираются параллельно
+ * в {@link ForkJoinPool}. Строки разбираются по байтам, без регулярных выражений и без разбиения на массив полей;
+ * разрешение собирается из уже разобранных имени ресурса и маски действий, не разбирая строку действий повторно.
+ * Затем все разрешения добавляются в коллекцию одним пакетом: список каждого имени ресурса собирается один раз.
+ * <br><br>
+ * Строки, которые нельзя превратить в работающее разрешение, в коллекцию не попадают и возвращаются в результате
+ * загрузки вместе с номерами строк({@link Result#malformedLines()}):
+ * <ul>
+ *     <li>строка без действий или с лишними полями</li>
+ *     <li>неизвестное действие или пустой набор действий</li>
+ *     <li>нераспознанное имя ресурса - такое разрешение не подразумевало бы ни одного ресурса, кроме самого себя</li>
+ * </ul>
+ */
+public final class AclLoader {
+
+    //  Размер части файла. Части мельче не дают выигрыша от параллельного разбора, крупнее - плохо делятся между потоками.
+    private static final long MIN_CHUNK_SIZE = 1 << 16;
+    private static final long MAX_CHUNK_SIZE = 1 << 26;
+
+    private static final ActionType[] ACTION_TYPES = ActionType.values();
+    private static final byte ACTION_DELIMITER = (byte) Const.ACTION_DELIMITER.charAt(0);
+
+    static {
+        if (Const.ACTION_DELIMITER.length() != 1 || Const.ACTION_DELIMITER.charAt(0) > 0x7F) {
+            throw new IllegalStateException("Action delimiter must be a single ASCII character: " + Const.ACTION_DELIMITER);
+        }
+    }
+
+    private AclLoader() {
+    }
+
+
+    /**
+     * Строка файла, которая не была загружена
+     */
+    public static final class MalformedLine {
+        private final long lineNumber;
+        private final String line;
+        private final String reason;
+
+        MalformedLine(long lineNumber, String line, String reason) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.reason = reason;
+        }
+
+        /**
+         * Номер строки в файле, начиная с 1
+         * @return Номер строки
+         */
+        public long lineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * Содержимое строки без начальных и конечных пробелов
+         * @return Строка
+         */
+        public String line() {
+            return line;
+        }
+
+        /**
+         * Причина, по которой строка не загружена
+         * @return Причина
+         */
+        public String reason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + lineNumber + ": " + reason + ": " + line;
+        }
+    }
+
+
+    /**
+     * Результат загрузки
+     */
+    public static final class Result {
+        private final QueuePermissionCollection collection;
+        private final int loadedCount;
+        private final List<MalformedLine> malformedLines;
+
+        Result(QueuePermissionCollection collection, int loadedCount, List<MalformedLine> malformedLines) {
+            this.collection = collection;
+            this.loadedCount = loadedCount;
+            this.malformedLines = Collections.unmodifiableList(malformedLines);
+        }
+
+        /**
+         * Коллекция, в которую загружены разрешения
+         * @return Коллекция
+         */
+        public QueuePermissionCollection collection() {
+            return collection;
+        }
+
+        /**
+         * Количество загруженных разрешений
+         * @return Количество разрешений
+         */
+        public int loadedCount() {
+            return loadedCount;
+        }
+
+        /**
+         * Строки, которые не были загружены, в порядке их следования в файле
+         * @return Неизменяемый список; пустой, если ошибок нет
+         */
+        public List<MalformedLine> malformedLines() {
+            return malformedLines;
+        }
+
+        @Override
+        public String toString() {
+            return "AclLoader.Result(loaded=" + loadedCount + ", malformed=" + malformedLines.size() + ")";
+        }
+    }
+
+
+    /**
+     * Загрузить файл в новую коллекцию {@link QueuePermissionCollectionConcurrentImpl}. Разбор выполняется в общем
+     * пуле {@link ForkJoinPool#commonPool()}.
+     * @param file Файл
+     * @return Результат загрузки
+     * @throws IOException Ошибка чтения файла
+     */
+    public static Result load(Path file) throws IOException {
+        return load(file, new QueuePermissionCollectionConcurrentImpl(), ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Загрузить файл в коллекцию.
+     * <br><br>
+     * Разрешения добавляются одним вызовом {@link QueuePermissionCollection#addAll(Collection)}: коллекции этой
+     * библиотеки добавляют их одним пакетом.
+     * @param file Файл
+     * @param collection Коллекция
+     * @param pool Пул, в котором разбираются части файла
+     * @return Результат загрузки
+     * @throws IOException Ошибка чтения файла
+     */
+    public static Result load(Path file, QueuePermissionCollection collection, ForkJoinPool pool) throws IOException {
+        List<ChunkResult> chunks;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<ChunkTask> tasks = new ArrayList<>();
+            long[] bounds = chunkBounds(channel, pool.getParallelism());
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                tasks.add(new ChunkTask(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i])));
+            }
+            pool.invoke(new RecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                    return null;
+                }
+            });
+            chunks = new ArrayList<>(tasks.size());
+            for (ChunkTask task : tasks) chunks.add(task.join());
+        }
+
+        //  Номера строк в частях - локальные: сдвигаем их на количество строк в предыдущих частях
+        List<QueuePermission> permissions = new ArrayList<>();
+        List<MalformedLine> malformedLines = new ArrayList<>();
+        long lineOffset = 0;
+        for (ChunkResult chunk : chunks) {
+            permissions.addAll(chunk.permissions);
+            for (MalformedLine malformed : chunk.malformedLines) {
+                malformedLines.add(new MalformedLine(lineOffset + malformed.lineNumber, malformed.line, malformed.reason));
+            }
+            lineOffset += chunk.lineCount;
+        }
+
+        collection.addAll(permissions);
+        return new Result(collection, permissions.size(), malformedLines);
+    }
+
+
+    /*
+    Границы частей файла: каждая часть, кроме последней, заканчивается сразу после символа перевода строки.
+     */
+    private static long[] chunkBounds(FileChannel channel, int parallelism) throws IOException {
+        long size = channel.size();
+        //  По нескольку частей на поток - чтобы потоки, закончившие раньше, забирали оставшиеся части
+        long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (parallelism * 4L) + 1));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long start = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (size - start > chunkSize) {
+            long position = start + chunkSize;
+            long end = -1;
+            while (end < 0 && position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        end = position + i + 1;
+                        break;
+                    }
+                }
+                position += read;
+            }
+            if (end < 0 || end >= size) break;
+            bounds.add(end);
+            start = end;
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+
+    /*
+    Результат разбора части файла. Номера строк в malformedLines - от начала части.
+     */
+    private static final class ChunkResult {
+        final List<QueuePermission> permissions;
+        final List<MalformedLine> malformedLines;
+        final long lineCount;
+
+        ChunkResult(List<QueuePermission> permissions, List<MalformedLine> malformedLines, long lineCount) {
+            this.permissions = permissions;
+            this.malformedLines = malformedLines;
+            this.lineCount = lineCount;
+        }
+    }
+
+
+    /*
+    Разбор одной части файла
+     */
+    private static final class ChunkTask extends RecursiveTask<ChunkResult> {
+        private final MappedByteBuffer buffer;
+
+        //  Байты текущего поля - для построения строки
+        private byte[] scratch = new byte[256];
+        //  Разобранные действия - одни на маску для всех разрешений части
+        private final Map<Integer, QueuePermissionBasicImpl.ParsedActions> parsedActions = new HashMap<>();
+
+        ChunkTask(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected ChunkResult compute() {
+            List<QueuePermission> permissions = new ArrayList<>();
+            List<MalformedLine> malformedLines = new ArrayList<>();
+            int limit = buffer.limit();
+            long lineNumber = 0;
+            int lineStart = 0;
+            while (lineStart < limit) {
+                lineNumber++;
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') lineEnd++;
+                parseLine(lineStart, lineEnd, lineNumber, permissions, malformedLines);
+                lineStart = lineEnd + 1;
+            }
+            return new ChunkResult(permissions, malformedLines, lineNumber);
+        }
+
+        //  Разбор строки buffer[start, end). Символ '\r' перед переводом строки считается пробелом.
+        private void parseLine(int start, int end, long lineNumber, List<QueuePermission> permissions,
+                               List<MalformedLine> malformedLines) {
+            int comment = start;
+            while (comment < end && buffer.get(comment) != '#') comment++;
+
+            int nameStart = skipSpaces(start, comment);
+            if (nameStart == comment) return;
+            int nameEnd = skipField(nameStart, comment);
+            int actionsStart = skipSpaces(nameEnd, comment);
+            if (actionsStart == comment) {
+                malformedLines.add(malformed(nameStart, comment, lineNumber, "missing actions"));
+                return;
+            }
+            int actionsEnd = skipField(actionsStart, comment);
+            if (skipSpaces(actionsEnd, comment) != comment) {
+                malformedLines.add(malformed(nameStart, comment, lineNumber, "unexpected field"));
+                return;
+            }
+
+            int actionMask = actionMask(actionsStart, actionsEnd);
+            if ((actionMask & ActionMask.UNKNOWN) != 0) {
+                malformedLines.add(malformed(nameStart, comment, lineNumber, "unknown action"));
+                return;
+            }
+            if (actionMask == 0) {
+                malformedLines.add(malformed(nameStart, comment, lineNumber, "no actions"));
+                return;
+            }
+
+            String name = string(nameStart, nameEnd);
+            long scan = ResourceNameScanner.scan(name);
+            ResourceType resourceType = ResourceNameScanner.type(scan);
+            if (resourceType == null) {
+                malformedLines.add(malformed(nameStart, comment, lineNumber, "unrecognized resource name"));
+                return;
+            }
+            boolean ipv4 = resourceType == ResourceType.IP || resourceType == ResourceType.SUBNET;
+            boolean ipv6 = resourceType == ResourceType.IPV6 || resourceType == ResourceType.IPV6_SUBNET;
+            permissions.add(new QueuePermissionBasicImpl(name, resourceType,
+                    ipv4 ? ResourceNameScanner.address(scan) : 0, ipv4 ? ResourceNameScanner.prefixLength(scan) : 0,
+                    ipv6 ? Ipv6Address.parse(name) : null,
+                    parsedActions.computeIfAbsent(actionMask, QueuePermissionBasicImpl.ParsedActions::new)));
+        }
+
+        //  Маска действий buffer[start, end). Каждое действие распознается так же, как в ActionMask.find(): без учета
+        //  регистра. Пустые действия пропускаются, неизвестное действие дает бит ActionMask.UNKNOWN.
+        private int actionMask(int start, int end) {
+            int mask = 0;
+            int actionStart = start;
+            while (actionStart < end) {
+                int actionEnd = actionStart;
+                while (actionEnd < end && buffer.get(actionEnd) != ACTION_DELIMITER) actionEnd++;
+                if (actionEnd > actionStart) mask |= actionBit(actionStart, actionEnd);
+                actionStart = actionEnd + 1;
+            }
+            return mask;
+        }
+
+        private int actionBit(int start, int end) {
+            for (ActionType type : ACTION_TYPES) {
+                String name = type.name();
+                if (name.length() != end - start) continue;
+                int i = 0;
+                while (i < name.length()
+                        && Character.toLowerCase((char) buffer.get(start + i)) == Character.toLowerCase(name.charAt(i))) {
+                    i++;
+                }
+                if (i == name.length()) return 1 << type.ordinal();
+            }
+            //  Не-ASCII символ может совпасть с буквой имени действия без учета регистра - как в String.equalsIgnoreCase()
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) < 0) {
+                    ActionType type = ActionMask.find(string(start, end));
+                    return type == null ? ActionMask.UNKNOWN : 1 << type.ordinal();
+                }
+            }
+            return ActionMask.UNKNOWN;
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+
+        private int skipSpaces(int position, int end) {
+            while (position < end && isSpace(buffer.get(position))) position++;
+            return position;
+        }
+
+        private int skipField(int position, int end) {
+            while (position < end && isSpace(buffer.get(position)) == false) position++;
+            return position;
+        }
+
+        //  Строка из байтов buffer[start, end). Строка только из ASCII-символов(обычный случай) строится без декодера.
+        private String string(int start, int end) {
+            int length = end - start;
+            if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(start + i);
+                scratch[i] = b;
+                if (b < 0) ascii = false;
+            }
+            return new String(scratch, 0, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        }
+
+        private MalformedLine malformed(int start, int end, long lineNumber, String reason) {
+            while (end > start && isSpace(buffer.get(end - 1))) end--;
+            return new MalformedLine(lineNumber, string(start, end), reason);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package dk.messagebroker.queuepermission;
+
+/**
+ * Представление набора действий битовой маской.
+ * <br><br>
+ * Действию из {@link ActionType} соответствует бит с номером, равным порядковому номеру действия в перечислении.
+ * Поэтому новые действия, добавленные в перечисление, поддерживаются без изменения этого класса. Старший бит
+ * ({@link #UNKNOWN}) зарезервирован за неизвестными действиями: ни одно разрешение его не содержит, поэтому
+ * запрос неизвестного действия никогда не подразумевается.
+ * <br><br>
+ * Набор действий A подразумевает набор действий B, если (A &amp; B) == B.
+ */
+final class ActionMask {
+
+    /**
+     * Бит, которым в запрашиваемых действиях помечается любое неизвестное действие
+     */
+    static final int UNKNOWN = 1 << 31;
+
+    private static final ActionType[] TYPES = ActionType.values();
+
+    static {
+        if (TYPES.length > 31) throw new IllegalStateException("Too many action types for an int mask: " + TYPES.length);
+    }
+
+
+    private ActionMask() {
+    }
+
+
+    /**
+     * Получить маску нормализованных действий(см. {@link QueuePermission#normalizeAction(String)}).
+     * @param actions Массив действий; каждое действие - имя элемента {@link ActionType}
+     * @return Маска
+     */
+    static int of(String[] actions) {
+        int mask = 0;
+        for (String action : actions) {
+            mask |= bit(action, 0, action.length());
+        }
+        return mask;
+    }
+
+
+    /**
+     * Получить маску запрашиваемых действий - строки, которую отдает {@link java.security.Permission#getActions()}.
+     * <br><br>
+     * Строка разбирается так же, как это делает {@code actions.split(Const.ACTION_DELIMITER)}: действия не
+     * обрезаются и не приводятся к нижнему регистру, пустые действия в конце строки отбрасываются, а строка без
+     * разделителей целиком считается одним действием. Действие, не совпадающее с именем элемента {@link ActionType},
+     * дает бит {@link #UNKNOWN}.
+     * @param actions Строка действий через разделитель. Пример: "pusher,puller"
+     * @return Маска
+     */
+    static int parse(String actions) {
+        //  Без разделителя split() отдает всю строку как одно действие - даже если она пустая
+        if (actions.indexOf(Const.ACTION_DELIMITER) < 0) return bit(actions, 0, actions.length());
+
+        int mask = 0;
+        int emptyTokens = 0;
+        int start = 0;
+        int length = actions.length();
+        while (start <= length) {
+            int end = actions.indexOf(Const.ACTION_DELIMITER, start);
+            if (end < 0) end = length;
+            if (end == start) {
+                //  Пустые действия учитываются, только если за ними есть непустое - как в split()
+                emptyTokens++;
+            } else {
+                if (emptyTokens > 0) mask |= UNKNOWN;
+                emptyTokens = 0;
+                mask |= bit(actions, start, end);
+            }
+            start = end + Const.ACTION_DELIMITER.length();
+        }
+        return mask;
+    }
+
+
+    /**
+     * Подразумевает ли набор действий другой набор
+     * @param mask Маска имеющихся действий
+     * @param otherMask Маска запрашиваемых действий
+     * @return true(подразумевает)/false(не подразумевает)
+     */
+    static boolean implies(int mask, int otherMask) {
+        return (mask & otherMask) == otherMask;
+    }
+
+
+    /**
+     * Получить строку действий в каноническом виде: в порядке элементов {@link ActionType}, через
+     * {@link Const#ACTION_DELIMITER}.
+     * @param mask Маска
+     * @return Строка действий. Пример: "pusher,puller"
+     */
+    static String toActions(int mask) {
+        StringBuilder actions = new StringBuilder();
+        for (ActionType type : TYPES) {
+            if ((mask & (1 << type.ordinal())) != 0) {
+                if (actions.length() > 0) actions.append(Const.ACTION_DELIMITER);
+                actions.append(type.name());
+            }
+        }
+        return actions.toString();
+    }
+
+
+    /**
+     * Получить действие по имени - без учета регистра и пробелов по краям.
+     * @param action Имя действия
+     * @return Действие; или null, если такого действия нет
+     */
+    static ActionType find(String action) {
+        String name = action.trim();
+        for (ActionType type : TYPES) {
+            if (type.name().equalsIgnoreCase(name)) return type;
+        }
+        return null;
+    }
+
+
+    //  Бит действия actions[start, end); UNKNOWN, если такого действия нет
+    private static int bit(String actions, int start, int end) {
+        int length = end - start;
+        for (ActionType type : TYPES) {
+            String name = type.name();
+            if (name.length() == length && actions.startsWith(name, start)) return 1 << type.ordinal();
+        }
+        return UNKNOWN;
+    }
+
+}
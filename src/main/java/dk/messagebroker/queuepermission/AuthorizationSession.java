@@ -0,0 +1,172 @@
+package dk.messagebroker.queuepermission;
+
+/**
+ * Проверка разрешений одного клиента(одного имени ресурса) по одной коллекции - например, на время соединения клиента
+ * с брокером.
+ * <br><br>
+ * Решение по каждому набору действий принимается коллекцией один раз и запоминается вместе с версией коллекции
+ * ({@link QueuePermissionCollection#version()}). Пока версия не изменилась, повторная проверка - это чтение двух
+ * полей: решений сессии и версии коллекции. После любого изменения коллекции все решения сессии принимаются заново
+ * при следующей проверке. Если коллекция версий не поддерживает, решения не запоминаются.
+ * <br><br>
+ * Разрешения для проверки создаются один раз на набор действий: имя ресурса распознается не при каждой проверке.
+ * Запоминаются непустые наборы известных действий(см. {@link ActionType}); остальные проверки передаются коллекции
+ * каждый раз.
+ * <br><br>
+ * Решения, которые могут зависеть от DNS, не запоминаются: если проверка имени ресурса сессии может обратиться к DNS
+ * (IP-адрес против доменных имен коллекции, доменное имя против IP-адресов и подсетей), запоминается только
+ * положительное решение, принятое без DNS. Остальные проверки передаются коллекции каждый раз - так неудачное
+ * обращение к DNS не запрещает клиенту действие до конца сессии, а обновление адресов имен сразу учитывается.
+ * <br><br>
+ * Сессию можно использовать из нескольких потоков.
+ */
+public final class AuthorizationSession {
+
+    //  Маски, решения по которым запоминаются: 1..31 - непустые наборы известных действий. Пустая маска(строка
+    //  действий вроде ",") и маски с битом ActionMask.UNKNOWN проверяются коллекцией каждый раз.
+    private static final int CACHED_MASKS = 32;
+    private static final int PUSHER = 1 << ActionType.pusher.ordinal();
+    private static final int PULLER = 1 << ActionType.puller.ordinal();
+
+    private final QueuePermissionCollection collection;
+    private final String resourceName;
+
+    //  Разрешения для проверки - по маске действий. Создаются при первой проверке; гонка при создании безвредна.
+    private final QueuePermissionBasicImpl[] requests = new QueuePermissionBasicImpl[CACHED_MASKS];
+
+    private volatile Decisions decisions = new Decisions(-1, 0, 0);
+
+
+    /*
+    Решения, принятые по одной версии коллекции. Бит m - решение по маске действий m. Неизменяемый объект: новое решение
+    публикуется заменой всего объекта.
+     */
+    private static final class Decisions {
+        final long version;
+        final int evaluated;
+        final int allowed;
+
+        Decisions(long version, int evaluated, int allowed) {
+            this.version = version;
+            this.evaluated = evaluated;
+            this.allowed = allowed;
+        }
+    }
+
+
+    /**
+     * Конструктор
+     * @param collection Коллекция разрешений
+     * @param resourceName Имя ресурса клиента. Пример: IP-адрес соединения
+     */
+    public AuthorizationSession(QueuePermissionCollection collection, String resourceName) {
+        this.collection = collection;
+        this.resourceName = resourceName;
+    }
+
+
+    /**
+     * Разрешено ли клиенту действие "pusher"
+     * @return разрешено(true)/не разрешено(false)
+     */
+    public boolean canPush() {
+        return implies(PUSHER);
+    }
+
+
+    /**
+     * Разрешено ли клиенту действие "puller"
+     * @return разрешено(true)/не разрешено(false)
+     */
+    public boolean canPull() {
+        return implies(PULLER);
+    }
+
+
+    /**
+     * Разрешены ли клиенту действия - так же, как {@code collection.implies(new QueuePermissionBasicImpl(resourceName, actions))}
+     * @param actions Строка действий. Пример: "pusher,puller"
+     * @return разрешены(true)/не разрешены(false)
+     */
+    public boolean implies(String actions) {
+        int actionMask = ActionMask.parse(actions);
+        if (actionMask > 0 && actionMask < CACHED_MASKS) return implies(actionMask);
+        return collection.implies(new QueuePermissionBasicImpl(resourceName, actions));
+    }
+
+
+    private boolean implies(int actionMask) {
+        int bit = 1 << actionMask;
+        Decisions current = decisions;
+        long version = collection.version();
+        if (version >= 0 && current.version == version && (current.evaluated & bit) != 0) {
+            return (current.allowed & bit) != 0;
+        }
+        return evaluate(actionMask, current, version);
+    }
+
+
+    private boolean evaluate(int actionMask, Decisions current, long version) {
+        QueuePermissionBasicImpl request = requests[actionMask];
+        if (request == null) {
+            request = new QueuePermissionBasicImpl(resourceName, ActionMask.toActions(actionMask));
+            requests[actionMask] = request;
+        }
+        //  Версия прочитана до проверки: если коллекция изменится во время проверки, решение будет помечено старой
+        //  версией и при следующем обращении будет принято заново
+        boolean decision;
+        boolean cacheable = true;
+        if (collection.needsNameResolution(request.getResourceType())) {
+            //  Разрешение без DNS не перестанет подразумевать запрос, пока не изменится коллекция
+            decision = collection.impliesWithoutNameResolution(request);
+            if (decision == false) {
+                decision = collection.implies(request);
+                cacheable = false;
+            }
+        } else {
+            decision = collection.implies(request);
+        }
+        if (version >= 0 && cacheable) {
+            int bit = 1 << actionMask;
+            Decisions base = current.version == version ? current : new Decisions(version, 0, 0);
+            decisions = new Decisions(version, base.evaluated | bit, decision ? base.allowed | bit : base.allowed & ~bit);
+        }
+        return decision;
+    }
+
+
+    /**
+     * Забыть все решения: при следующих проверках они будут приняты коллекцией заново
+     */
+    public void invalidate() {
+        decisions = new Decisions(-1, 0, 0);
+    }
+
+
+    /**
+     * Получить имя ресурса клиента
+     * @return Имя ресурса
+     */
+    public String resourceName() {
+        return resourceName;
+    }
+
+
+    /**
+     * Получить коллекцию, по которой проверяются разрешения
+     * @return Коллекция
+     */
+    public QueuePermissionCollection collection() {
+        return collection;
+    }
+
+
+    @Override
+    public String toString() {
+        Decisions current = decisions;
+        return "AuthorizationSession(resourceName=" + resourceName + ", version=" + current.version
+                + ", evaluated=" + Integer.toBinaryString(current.evaluated)
+                + ", allowed=" + Integer.toBinaryString(current.allowed) + ")";
+    }
+
+}
@@ -0,0 +1,101 @@
+package dk.messagebroker.queuepermission;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Вытеснение по алгоритму "второго шанса"(CLOCK) для кэша на {@link ConcurrentHashMap}: запись, к которой обращались
+ * после предыдущего прохода стрелки, пропускается один раз; иначе - вытесняется.
+ * <br><br>
+ * Попадание в кэш только помечает запись({@link Entry#markReferenced()}) и не захватывает блокировок; блокировка нужна
+ * только для вытеснения. Используется {@link DecisionCache} и {@link QueuePermissions}.
+ * @param <K> Тип ключа
+ * @param <V> Тип записи
+ */
+final class ClockEviction<K, V extends ClockEviction.Entry> {
+
+    /*
+    Запись кэша с признаком обращения
+     */
+    abstract static class Entry {
+        //  Было ли обращение к записи после предыдущего прохода стрелки. Гонка при записи допустима.
+        volatile boolean referenced;
+
+        final void markReferenced() {
+            if (referenced == false) referenced = true;
+        }
+    }
+
+
+    private final ConcurrentHashMap<K, V> entries;
+    private final int maxSize;
+    private final LongAdder evictions = new LongAdder();
+
+    //  Стрелка. Используется только под блокировкой this.
+    private Iterator<Map.Entry<K, V>> hand;
+
+
+    /**
+     * Конструктор
+     * @param entries Записи кэша
+     * @param maxSize Максимальное количество записей
+     */
+    ClockEviction(ConcurrentHashMap<K, V> entries, int maxSize) {
+        this.entries = entries;
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Вытеснить записи, пока их количество не уложится в предел
+     */
+    void evictOverflow() {
+        if (entries.size() <= maxSize) return;
+        synchronized (this) {
+            while (entries.size() > maxSize && evictOne()) {
+                //  Вытесняем, пока размер не уложится в предел
+            }
+        }
+    }
+
+
+    /**
+     * Удалить все записи. Удаленные записи учитываются как вытесненные.
+     */
+    synchronized void clear() {
+        evictions.add(entries.size());
+        entries.clear();
+        hand = null;
+    }
+
+
+    /**
+     * Количество вытесненных записей
+     * @return Количество вытесненных записей
+     */
+    long evictionCount() {
+        return evictions.sum();
+    }
+
+
+    //  Вызывается только под блокировкой this. false - вытеснить ничего не удалось(записи одновременно меняются другими потоками)
+    private boolean evictOne() {
+        //  Каждая запись может быть пропущена не больше одного раза, поэтому двух полных оборотов стрелки хватает
+        for (int step = 0; step < 2 * (maxSize + 1); step++) {
+            if (hand == null || hand.hasNext() == false) hand = entries.entrySet().iterator();
+            if (hand.hasNext() == false) return false;
+            Map.Entry<K, V> candidate = hand.next();
+            V entry = candidate.getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entries.remove(candidate.getKey(), entry)) {
+                evictions.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
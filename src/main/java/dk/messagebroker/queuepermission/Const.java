@@ -3,6 +3,13 @@ package dk.messagebroker.queuepermission;
 class Const {
     static final String ACTION_DELIMITER = ",";
 
+    /*
+    Регулярные выражения ниже описывают, какие имена ресурсов считаются IP-адресом, подсетью и доменным именем.
+    Само распознавание выполняет ResourceNameScanner, без регулярных выражений, но принимая ровно те же строки.
+    Выражения остаются эталоном для его проверки.
+    IPv6-адреса и IPv6-подсети регулярными выражениями не описываются - их разбирает Ipv6Address.
+     */
+
     /**
      * Регулярное выражение, описыввающее IP-адрес
      */
@@ -0,0 +1,197 @@
+package dk.messagebroker.queuepermission;
+
+import java.security.Permission;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш решений implies() коллекции разрешений.
+ * <br><br>
+ * Кэшируются как положительные, так и отрицательные решения. Ключ - имя ресурса и маска запрашиваемых действий.
+ * Каждое решение помечено эпохой снимка коллекции({@link PermissionIndex#epoch()}), по которому оно принято. Любое
+ * изменение коллекции дает снимок с новой эпохой, и решения старых эпох больше не отдаются.
+ * <br><br>
+ * Размер кэша ограничен. Вытеснение - по алгоритму "второго шанса"({@link ClockEviction}): запись, к которой обращались
+ * после предыдущего прохода стрелки, пропускается один раз; иначе - вытесняется. Попадание в кэш не захватывает
+ * блокировок; блокировка нужна только для вытеснения при добавлении новой записи.
+ * <br><br>
+ * Кэшируются только запросы {@link QueuePermissionBasicImpl}, у которых есть хотя бы одно известное действие. Остальные
+ * запросы проходят мимо кэша и в счетчиках не учитываются.
+ * <br><br>
+ * Решение определяется снимком, именем ресурса и маской действий, только пока для него не нужен DNS. Если в снимке есть
+ * ключи, проверка по которым разрешает имена({@link PermissionIndex#needsNameResolution(ResourceType)}: IP-адрес
+ * против доменного имени, доменное имя против адреса или подсети, ключи других реализаций), то в кэш попадает только
+ * положительное решение, принятое без DNS. Решение, зависящее от ответа DNS, каждый раз вычисляется заново: ответ
+ * может измениться без изменения коллекции, а сколько его хранить, решает HostResolver(например, CachingHostResolver).
+ */
+public final class DecisionCache {
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Key, Entry> entries;
+
+    private final ClockEviction<Key, Entry> eviction;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final Object epochLock = new Object();
+    //  Самая новая эпоха, решение по которой попадало в кэш. Записи более старых эпох вытесняются все сразу.
+    private volatile long latestEpoch;
+
+
+    /**
+     * Конструктор
+     * @param maxSize Максимальное количество решений в кэше
+     */
+    DecisionCache(int maxSize) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        this.maxSize = maxSize;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1 << 16) * 4 / 3 + 1);
+        this.eviction = new ClockEviction<>(entries, maxSize);
+    }
+
+
+    /*
+    Ключ кэша. Хэш-код вычисляется один раз.
+     */
+    private static final class Key {
+        final String name;
+        final int actionMask;
+        final int hash;
+
+        Key(String name, int actionMask) {
+            this.name = name;
+            this.actionMask = actionMask;
+            this.hash = 31 * name.hashCode() + actionMask;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj instanceof Key == false) return false;
+            Key other = (Key) obj;
+            return actionMask == other.actionMask && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+
+    private static final class Entry extends ClockEviction.Entry {
+        final long epoch;
+        final boolean decision;
+
+        Entry(long epoch, boolean decision) {
+            this.epoch = epoch;
+            this.decision = decision;
+        }
+    }
+
+
+    /**
+     * Решение implies() по снимку - из кэша, либо вычисленное и сохраненное в кэше.
+     * @param index Снимок коллекции
+     * @param permission Проверяемое разрешение
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    boolean implies(PermissionIndex index, Permission permission) {
+        if (permission instanceof QueuePermissionBasicImpl == false) return index.implies(permission);
+        int actionMask = ((QueuePermissionBasicImpl) permission).getRequestedActionMask();
+        if ((actionMask & ActionMask.UNKNOWN) != 0) return index.implies(permission);
+
+        Key key = new Key(permission.getName(), actionMask);
+        long epoch = index.epoch();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.epoch == epoch) {
+            hits.increment();
+            entry.markReferenced();
+            return entry.decision;
+        }
+
+        misses.increment();
+        if (index.needsNameResolution(((QueuePermissionBasicImpl) permission).getResourceType())) {
+            //  Разрешение без DNS не перестанет подразумевать запрос, пока не изменится коллекция
+            if (index.impliesWithoutNameResolution(permission)) {
+                put(key, new Entry(epoch, true));
+                return true;
+            }
+            return index.implies(permission);
+        }
+        boolean decision = index.implies(permission);
+        put(key, new Entry(epoch, decision));
+        return decision;
+    }
+
+
+    private void put(Key key, Entry entry) {
+        long epoch = entry.epoch;
+        //  Решение, принятое по снимку, который уже заменен новым, сохранять бесполезно
+        if (epoch < latestEpoch) return;
+        if (epoch > latestEpoch) {
+            synchronized (epochLock) {
+                if (epoch > latestEpoch) {
+                    //  Коллекция изменилась - все решения предыдущих эпох устарели
+                    eviction.clear();
+                    latestEpoch = epoch;
+                }
+            }
+        }
+        if (entries.put(key, entry) == null) eviction.evictOverflow();
+    }
+
+
+    /**
+     * Количество попаданий в кэш
+     * @return Количество попаданий
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+
+    /**
+     * Количество промахов - решений, которые пришлось вычислить
+     * @return Количество промахов
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+
+    /**
+     * Количество вытесненных решений - как при переполнении, так и из-за изменения коллекции
+     * @return Количество вытесненных решений
+     */
+    public long evictionCount() {
+        return eviction.evictionCount();
+    }
+
+
+    /**
+     * Текущее количество решений в кэше
+     * @return Количество решений
+     */
+    public int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Максимальное количество решений в кэше
+     * @return Максимальное количество решений
+     */
+    public int maxSize() {
+        return maxSize;
+    }
+
+
+    @Override
+    public String toString() {
+        return "DecisionCache(size=" + size() + ", maxSize=" + maxSize + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + ")";
+    }
+
+}
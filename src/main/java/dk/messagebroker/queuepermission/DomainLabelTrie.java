@@ -0,0 +1,188 @@
+package dk.messagebroker.queuepermission;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Префиксное дерево доменных имен по меткам, взятым в обратном порядке.
+ * <br><br>
+ * Доменное имя "mq.corp.com" хранится в узле, к которому ведет путь "com" → "corp" → "mq". Метки сравниваются без
+ * учета регистра, как это принято в DNS. Все домены, поддоменом которых(или которым) является имя, лежат на пути спуска
+ * по меткам этого имени. Поэтому их поиск стоит столько шагов, сколько в имени меток, и совпадение возможно только
+ * по границе метки: "evilcorp.com" не попадет под "corp.com".
+ * <br><br>
+ * Дерево неизменяемое: {@link #with(String, String)} и {@link #without(String, String)} возвращают новое дерево,
+ * копируя только узлы на пути к месту изменения. Дочерние узлы хранятся в {@link PersistentMap}, поэтому копирование
+ * узла с большим количеством дочерних узлов(например, "com") не требует копирования всех его потомков.
+ */
+final class DomainLabelTrie {
+
+    private static final String[] NO_KEYS = new String[0];
+
+    static final DomainLabelTrie EMPTY = new DomainLabelTrie(Node.EMPTY);
+
+    private final Node root;
+
+
+    /*
+    Узел дерева. keys - имена ресурсов(ключи коллекции), которые после приведения к нижнему регистру ведут ровно в этот узел.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(PersistentMap.empty(), NO_KEYS);
+
+        final PersistentMap<String, Node> children;
+        final String[] keys;
+
+        Node(PersistentMap<String, Node> children, String[] keys) {
+            this.children = children;
+            this.keys = keys;
+        }
+    }
+
+
+    private DomainLabelTrie(Node root) {
+        this.root = root;
+    }
+
+
+    /**
+     * Получить дерево, в которое дополнительно добавлено доменное имя.
+     * @param domainName Доменное имя
+     * @param key Имя ресурса, под которым доменное имя хранится в коллекции
+     * @return Новое дерево
+     */
+    DomainLabelTrie with(String domainName, String key) {
+        return new DomainLabelTrie(insert(root, domainName.toLowerCase(Locale.ROOT), domainName.length(), key));
+    }
+
+
+    //  end - позиция за последним символом еще не пройденной части имени
+    private static Node insert(Node node, String domainName, int end, String key) {
+        if (end <= 0) {
+            String[] newKeys = Arrays.copyOf(node.keys, node.keys.length + 1);
+            newKeys[node.keys.length] = key;
+            return new Node(node.children, newKeys);
+        }
+        int dot = domainName.lastIndexOf('.', end - 1);
+        String label = domainName.substring(dot + 1, end);
+        Node child = node.children.get(label);
+        Node newChild = insert(child == null ? Node.EMPTY : child, domainName, dot, key);
+        return new Node(node.children.with(label, newChild), node.keys);
+    }
+
+
+    /**
+     * Получить дерево, из которого удалено доменное имя. Если имени с таким ключом в дереве нет, возвращается это же
+     * дерево. Узлы, в которых после удаления не осталось ни ключей, ни потомков, удаляются.
+     * @param domainName Доменное имя
+     * @param key Имя ресурса, под которым доменное имя хранится в коллекции
+     * @return Новое дерево
+     */
+    DomainLabelTrie without(String domainName, String key) {
+        Node newRoot = remove(root, domainName.toLowerCase(Locale.ROOT), domainName.length(), key);
+        if (newRoot == root) return this;
+        return new DomainLabelTrie(newRoot == null ? Node.EMPTY : newRoot);
+    }
+
+
+    //  Возвращает тот же узел, если ключ не найден; null - если узел стал пустым
+    private static Node remove(Node node, String domainName, int end, String key) {
+        if (end <= 0) {
+            String[] newKeys = Ipv4CidrTrie.withoutKey(node.keys, key);
+            if (newKeys == node.keys) return node;
+            return newKeys.length == 0 && node.children.isEmpty() ? null : new Node(node.children, newKeys);
+        }
+        int dot = domainName.lastIndexOf('.', end - 1);
+        String label = domainName.substring(dot + 1, end);
+        Node child = node.children.get(label);
+        if (child == null) return node;
+        Node newChild = remove(child, domainName, dot, key);
+        if (newChild == child) return node;
+        PersistentMap<String, Node> children = newChild == null
+                ? node.children.without(label)
+                : node.children.with(label, newChild);
+        return node.keys.length == 0 && children.isEmpty() ? null : new Node(children, node.keys);
+    }
+
+
+    /**
+     * Получить дерево, в которое дополнительно добавлены доменные имена - для многих имен за один вызов.
+     * <br><br>
+     * Результат тот же, что и у последовательных вызовов {@link #with(String, String)}, но каждый затронутый узел
+     * копируется один раз, а дочерние узлы узла добавляются в его карту одним вызовом {@link PersistentMap#withAll}.
+     * @param domainNames Доменные имена
+     * @param keys Имена ресурсов - в порядке доменных имен
+     * @return Новое дерево
+     */
+    DomainLabelTrie withAll(List<String> domainNames, List<String> keys) {
+        if (domainNames.isEmpty()) return this;
+        String[] names = new String[domainNames.size()];
+        int[] ends = new int[names.length];
+        List<Integer> all = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            names[i] = domainNames.get(i).toLowerCase(Locale.ROOT);
+            ends[i] = names[i].length();
+            all.add(i);
+        }
+        return new DomainLabelTrie(insertAll(root, names, ends, keys, all));
+    }
+
+
+    //  entries - номера имен, путь которых проходит через узел; ends[i] - конец еще не пройденной части имени i
+    private static Node insertAll(Node node, String[] names, int[] ends, List<String> keys, List<Integer> entries) {
+        List<String> ownKeys = null;
+        Map<String, List<Integer>> byLabel = new LinkedHashMap<>();
+        for (int entry : entries) {
+            int end = ends[entry];
+            if (end <= 0) {
+                if (ownKeys == null) ownKeys = new ArrayList<>();
+                ownKeys.add(keys.get(entry));
+                continue;
+            }
+            int dot = names[entry].lastIndexOf('.', end - 1);
+            ends[entry] = dot;
+            byLabel.computeIfAbsent(names[entry].substring(dot + 1, end), label -> new ArrayList<>()).add(entry);
+        }
+
+        String[] newKeys = node.keys;
+        if (ownKeys != null) {
+            newKeys = Arrays.copyOf(node.keys, node.keys.length + ownKeys.size());
+            for (int i = 0; i < ownKeys.size(); i++) newKeys[node.keys.length + i] = ownKeys.get(i);
+        }
+        if (byLabel.isEmpty()) return new Node(node.children, newKeys);
+
+        List<String> labels = new ArrayList<>(byLabel.size());
+        List<Node> children = new ArrayList<>(byLabel.size());
+        for (Map.Entry<String, List<Integer>> group : byLabel.entrySet()) {
+            Node child = node.children.get(group.getKey());
+            labels.add(group.getKey());
+            children.add(insertAll(child == null ? Node.EMPTY : child, names, ends, keys, group.getValue()));
+        }
+        return new Node(node.children.withAll(labels, children), newKeys);
+    }
+
+
+    /**
+     * Есть ли среди доменов, которые совпадают с именем или поддоменом которых является имя, хотя бы один,
+     * удовлетворяющий условию.
+     * @param domainName Доменное имя
+     * @param predicate Условие, которое проверяется для имени каждого найденного домена, начиная с самого общего
+     * @return true(найден)/false(не найден)
+     */
+    boolean anyCovering(String domainName, Predicate<String> predicate) {
+        String name = domainName.toLowerCase(Locale.ROOT);
+        Node node = root;
+        int end = name.length();
+        while (end > 0) {
+            int dot = name.lastIndexOf('.', end - 1);
+            node = node.children.get(name.substring(dot + 1, end));
+            if (node == null) return false;
+            for (String key : node.keys) {
+                if (predicate.test(key)) return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+}
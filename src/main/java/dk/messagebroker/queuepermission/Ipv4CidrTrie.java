@@ -0,0 +1,261 @@
+package dk.messagebroker.queuepermission;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Двоичное (radix-2) префиксное дерево IPv4-подсетей.
+ * <br><br>
+ * Каждый уровень дерева соответствует одному биту адреса, начиная со старшего. Подсеть a.b.c.d/n хранится в узле на
+ * глубине n, к которому ведут первые n бит номера сети. Все подсети, в которые может входить адрес, лежат на пути от
+ * корня к листу этого адреса. Поэтому их поиск - это один спуск по дереву не длиннее 32 шагов, независимо от того,
+ * сколько подсетей хранится в дереве.
+ * <br><br>
+ * Дерево неизменяемое: {@link #with(int, int, String)} и {@link #without(int, int, String)} возвращают новое дерево,
+ * копируя только узлы на пути к месту изменения. Поток, получивший ссылку на дерево, всегда видит его целостным, даже
+ * если в это время идет изменение.
+ */
+final class Ipv4CidrTrie {
+
+    static final Ipv4CidrTrie EMPTY = new Ipv4CidrTrie(null);
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private final Node root;
+
+
+    /*
+    Узел дерева. keys - имена ресурсов(ключи коллекции), номер сети и длина префикса которых ведут ровно в этот узел.
+    Разные строки могут давать одну и ту же сеть. Например, "172.17.64.0/24" и "172.17.64.10/24".
+     */
+    private static final class Node {
+        final Node zero;
+        final Node one;
+        final String[] keys;
+
+        Node(Node zero, Node one, String[] keys) {
+            this.zero = zero;
+            this.one = one;
+            this.keys = keys;
+        }
+    }
+
+
+    private Ipv4CidrTrie(Node root) {
+        this.root = root;
+    }
+
+
+    /**
+     * Получить дерево, в которое дополнительно добавлена подсеть.
+     * @param address Любой адрес подсети; биты за пределами префикса игнорируются
+     * @param prefixLength Длина префикса, 0..32
+     * @param key Имя ресурса, под которым подсеть хранится в коллекции
+     * @return Новое дерево
+     */
+    Ipv4CidrTrie with(int address, int prefixLength, String key) {
+        return new Ipv4CidrTrie(insert(root, address, prefixLength, 0, key));
+    }
+
+
+    private static Node insert(Node node, int address, int prefixLength, int depth, String key) {
+        Node zero = node == null ? null : node.zero;
+        Node one = node == null ? null : node.one;
+        String[] keys = node == null ? NO_KEYS : node.keys;
+
+        if (depth == prefixLength) {
+            String[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            newKeys[keys.length] = key;
+            return new Node(zero, one, newKeys);
+        }
+
+        if (bit(address, depth) == 0) {
+            return new Node(insert(zero, address, prefixLength, depth + 1, key), one, keys);
+        } else {
+            return new Node(zero, insert(one, address, prefixLength, depth + 1, key), keys);
+        }
+    }
+
+
+    /**
+     * Получить дерево, из которого удалена подсеть. Если подсети с таким ключом в дереве нет, возвращается это же дерево.
+     * Узлы, в которых после удаления не осталось ни ключей, ни потомков, удаляются.
+     * @param address Любой адрес подсети; биты за пределами префикса игнорируются
+     * @param prefixLength Длина префикса, 0..32
+     * @param key Имя ресурса, под которым подсеть хранится в коллекции
+     * @return Новое дерево
+     */
+    Ipv4CidrTrie without(int address, int prefixLength, String key) {
+        Node newRoot = remove(root, address, prefixLength, 0, key);
+        return newRoot == root ? this : new Ipv4CidrTrie(newRoot);
+    }
+
+
+    //  Возвращает тот же узел, если ключ не найден; null - если узел стал пустым
+    private static Node remove(Node node, int address, int prefixLength, int depth, String key) {
+        if (node == null) return null;
+        if (depth == prefixLength) {
+            String[] newKeys = withoutKey(node.keys, key);
+            if (newKeys == node.keys) return node;
+            return compact(node.zero, node.one, newKeys);
+        }
+        if (bit(address, depth) == 0) {
+            Node zero = remove(node.zero, address, prefixLength, depth + 1, key);
+            return zero == node.zero ? node : compact(zero, node.one, node.keys);
+        } else {
+            Node one = remove(node.one, address, prefixLength, depth + 1, key);
+            return one == node.one ? node : compact(node.zero, one, node.keys);
+        }
+    }
+
+
+    private static Node compact(Node zero, Node one, String[] keys) {
+        return zero == null && one == null && keys.length == 0 ? null : new Node(zero, one, keys);
+    }
+
+
+    //  Массив без первого вхождения ключа; тот же массив, если ключа в нем нет
+    static String[] withoutKey(String[] keys, String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                if (keys.length == 1) return NO_KEYS;
+                String[] newKeys = new String[keys.length - 1];
+                System.arraycopy(keys, 0, newKeys, 0, i);
+                System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+                return newKeys;
+            }
+        }
+        return keys;
+    }
+
+
+    /**
+     * Получить дерево, в которое дополнительно добавлены подсети - для многих подсетей за один вызов.
+     * <br><br>
+     * Результат тот же, что и у последовательных вызовов {@link #with(int, int, String)}, но каждый затронутый узел
+     * копируется один раз.
+     * @param addresses Адреса подсетей
+     * @param prefixLengths Длины префиксов
+     * @param keys Имена ресурсов
+     * @return Новое дерево
+     */
+    Ipv4CidrTrie withAll(int[] addresses, int[] prefixLengths, String[] keys) {
+        if (keys.length == 0) return this;
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        return new Ipv4CidrTrie(insertAll(root, addresses, prefixLengths, keys, order, new int[order.length],
+                0, order.length, 0));
+    }
+
+
+    /*
+    order[from, to) - номера подсетей, которые проходят через этот узел, в порядке добавления. Подсети узла добавляются
+    в его ключи, остальные делятся(с сохранением порядка) на идущие в нулевое и в единичное поддерево.
+     */
+    private static Node insertAll(Node node, int[] addresses, int[] prefixLengths, String[] keys, int[] order,
+                                  int[] scratch, int from, int to, int depth) {
+        String[] nodeKeys = node == null ? NO_KEYS : node.keys;
+        int own = 0;
+        int zeros = 0;
+        for (int i = from; i < to; i++) {
+            int subnet = order[i];
+            if (prefixLengths[subnet] == depth) own++;
+            else if (bit(addresses[subnet], depth) == 0) zeros++;
+        }
+        String[] newKeys = nodeKeys;
+        if (own > 0) {
+            newKeys = Arrays.copyOf(nodeKeys, nodeKeys.length + own);
+            int k = nodeKeys.length;
+            for (int i = from; i < to; i++) {
+                if (prefixLengths[order[i]] == depth) newKeys[k++] = keys[order[i]];
+            }
+        }
+
+        int zeroFrom = from;
+        int oneFrom = from + zeros;
+        int oneTo = to - own;
+        int z = zeroFrom;
+        int o = oneFrom;
+        for (int i = from; i < to; i++) {
+            int subnet = order[i];
+            if (prefixLengths[subnet] == depth) continue;
+            if (bit(addresses[subnet], depth) == 0) scratch[z++] = subnet;
+            else scratch[o++] = subnet;
+        }
+        System.arraycopy(scratch, from, order, from, oneTo - from);
+
+        Node zero = node == null ? null : node.zero;
+        Node one = node == null ? null : node.one;
+        if (oneFrom > zeroFrom) zero = insertAll(zero, addresses, prefixLengths, keys, order, scratch, zeroFrom, oneFrom, depth + 1);
+        if (oneTo > oneFrom) one = insertAll(one, addresses, prefixLengths, keys, order, scratch, oneFrom, oneTo, depth + 1);
+        return new Node(zero, one, newKeys);
+    }
+
+
+    /**
+     * Есть ли среди подсетей, префикс которых покрывает адрес, хотя бы одна, удовлетворяющая условию.
+     * <br><br>
+     * Дерево сравнивает только биты префикса. Исключение номера сети и широковещательного адреса, а также любые другие
+     * уточнения, остаются на стороне условия.
+     * @param address Адрес
+     * @param predicate Условие, которое проверяется для имени каждой подсети на пути спуска
+     * @return true(найдена)/false(не найдена)
+     */
+    boolean anyCovering(int address, Predicate<String> predicate) {
+        Node node = root;
+        int depth = 0;
+        while (node != null) {
+            for (String key : node.keys) {
+                if (predicate.test(key)) return true;
+            }
+            if (depth == 32) break;
+            node = bit(address, depth) == 0 ? node.zero : node.one;
+            depth++;
+        }
+        return false;
+    }
+
+
+    /**
+     * Условие для {@link #anyCovering(int, Object, Object, long, KeyTest)}: кроме имени подсети получает контекст
+     * проверки. Условие без захваченных переменных(ссылка на статический метод) создается один раз, поэтому такой обход
+     * не создает объектов.
+     * @param <A> Тип первого элемента контекста
+     * @param <B> Тип второго элемента контекста
+     */
+    @FunctionalInterface
+    interface KeyTest<A, B> {
+        boolean test(A a, B b, long value, String key);
+    }
+
+
+    /**
+     * То же, что и {@link #anyCovering(int, Predicate)}, но контекст условия передается параметрами, а не захватывается
+     * лямбдой - для проверок, которые не должны создавать объектов.
+     * @param address Адрес
+     * @param a Первый элемент контекста
+     * @param b Второй элемент контекста
+     * @param value Числовой элемент контекста
+     * @param test Условие, которое проверяется для имени каждой подсети на пути спуска
+     * @return true(найдена)/false(не найдена)
+     */
+    <A, B> boolean anyCovering(int address, A a, B b, long value, KeyTest<A, B> test) {
+        Node node = root;
+        int depth = 0;
+        while (node != null) {
+            for (String key : node.keys) {
+                if (test.test(a, b, value, key)) return true;
+            }
+            if (depth == 32) break;
+            node = bit(address, depth) == 0 ? node.zero : node.one;
+            depth++;
+        }
+        return false;
+    }
+
+
+    private static int bit(int address, int depth) {
+        return (address >>> (31 - depth)) & 1;
+    }
+
+}
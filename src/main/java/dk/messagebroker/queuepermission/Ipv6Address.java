@@ -0,0 +1,214 @@
+package dk.messagebroker.queuepermission;
+
+/**
+ * IPv6-адрес или IPv6-подсеть, разобранные в два числа типа long и длину префикса.
+ * <br><br>
+ * Принимается текстовая запись адреса по RFC 4291: восемь групп по 1..4 шестнадцатеричные цифры через двоеточие,
+ * сокращение "::" не больше одного раза, последние две группы могут быть записаны как IPv4-адрес(например,
+ * "::ffff:10.0.0.1"). Подсеть - адрес, "/" и длина префикса 0..128 без ведущих нулей. Идентификатор зоны("%eth0")
+ * не принимается.
+ * <br><br>
+ * Адрес хранится как старшие(high) и младшие(low) 64 бита. Для подсети хранится номер сети - биты за пределами
+ * префикса обнулены.
+ */
+final class Ipv6Address {
+
+    static final int BITS = 128;
+
+    private static final int GROUPS = 8;
+    private static final int MAX_GROUP_DIGITS = 4;
+
+    final long high;
+    final long low;
+    final int prefixLength;
+    //  true - подсеть(в имени есть длина префикса), false - адрес
+    final boolean subnet;
+
+
+    Ipv6Address(long high, long low, int prefixLength, boolean subnet) {
+        this.high = high;
+        this.low = low;
+        this.prefixLength = prefixLength;
+        this.subnet = subnet;
+    }
+
+
+    /**
+     * Разобрать IPv6-адрес или IPv6-подсеть.
+     * @param name Имя ресурса
+     * @return Разобранный адрес; или null, если имя не является IPv6-адресом или IPv6-подсетью
+     */
+    static Ipv6Address parse(String name) {
+        int length = name.length();
+        int slash = name.indexOf('/');
+        int end = slash < 0 ? length : slash;
+
+        int prefixLength = BITS;
+        if (slash >= 0) {
+            prefixLength = parsePrefixLength(name, slash + 1, length);
+            if (prefixLength < 0) return null;
+        }
+
+        //  Группы до "::" накапливаются в head, после - в tail. Каждая пара - 128-битный регистр со сдвигом на группу.
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+
+        int pos = 0;
+        if (end >= 2 && name.charAt(0) == ':' && name.charAt(1) == ':') {
+            compressed = true;
+            pos = 2;
+        } else if (end == 0 || name.charAt(0) == ':') {
+            return null;
+        }
+
+        while (pos < end) {
+            if (headGroups + tailGroups >= GROUPS) return null;
+            int groupStart = pos;
+            int value = 0;
+            while (pos < end && pos - groupStart <= MAX_GROUP_DIGITS) {
+                int digit = hexDigit(name.charAt(pos));
+                if (digit < 0) break;
+                value = (value << 4) | digit;
+                pos++;
+            }
+
+            long groupLow;
+            int groupCount;
+            if (pos < end && name.charAt(pos) == '.') {
+                //  Последние 32 бита записаны как IPv4-адрес. После него ничего быть не может.
+                long ipv4 = parseIpv4(name, groupStart, end);
+                if (ipv4 < 0) return null;
+                groupLow = ipv4;
+                groupCount = 2;
+                pos = end;
+            } else {
+                int digits = pos - groupStart;
+                if (digits == 0 || digits > MAX_GROUP_DIGITS) return null;
+                groupLow = value;
+                groupCount = 1;
+            }
+
+            if (compressed) {
+                tailHigh = (tailHigh << (16 * groupCount)) | (tailLow >>> (64 - 16 * groupCount));
+                tailLow = (tailLow << (16 * groupCount)) | groupLow;
+                tailGroups += groupCount;
+            } else {
+                headHigh = (headHigh << (16 * groupCount)) | (headLow >>> (64 - 16 * groupCount));
+                headLow = (headLow << (16 * groupCount)) | groupLow;
+                headGroups += groupCount;
+            }
+            if (headGroups + tailGroups > GROUPS) return null;
+
+            if (pos == end) break;
+            if (name.charAt(pos) != ':') return null;
+            pos++;
+            if (pos < end && name.charAt(pos) == ':') {
+                if (compressed) return null;
+                compressed = true;
+                pos++;
+            } else if (pos == end) {
+                //  Одиночное двоеточие в конце
+                return null;
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        //  Без сокращения групп ровно восемь; сокращение "::" заменяет хотя бы одну группу
+        if (compressed ? groups >= GROUPS : groups != GROUPS) return null;
+
+        //  Группы до "::" занимают старшие биты адреса, после - младшие
+        int shift = 16 * (GROUPS - headGroups);
+        long high = shiftLeftHigh(headHigh, headLow, shift) | tailHigh;
+        long low = shiftLeftLow(headLow, shift) | tailLow;
+
+        long maskHigh = maskHigh(prefixLength);
+        long maskLow = maskLow(prefixLength);
+        return new Ipv6Address(high & maskHigh, low & maskLow, prefixLength, slash >= 0);
+    }
+
+
+    /**
+     * Старшие 64 бита маски подсети
+     * @param prefixLength Длина префикса, 0..128
+     * @return Маска
+     */
+    static long maskHigh(int prefixLength) {
+        if (prefixLength >= 64) return -1L;
+        return prefixLength == 0 ? 0 : -1L << (64 - prefixLength);
+    }
+
+
+    /**
+     * Младшие 64 бита маски подсети
+     * @param prefixLength Длина префикса, 0..128
+     * @return Маска
+     */
+    static long maskLow(int prefixLength) {
+        if (prefixLength <= 64) return 0;
+        return prefixLength == BITS ? -1L : -1L << (BITS - prefixLength);
+    }
+
+
+    private static long shiftLeftHigh(long high, long low, int shift) {
+        if (shift == 0) return high;
+        if (shift >= BITS) return 0;
+        if (shift >= 64) return low << (shift - 64);
+        return (high << shift) | (low >>> (64 - shift));
+    }
+
+
+    private static long shiftLeftLow(long low, int shift) {
+        return shift >= 64 ? 0 : low << shift;
+    }
+
+
+    //  Значение шестнадцатеричной цифры(только латиница); -1 - не цифра
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+
+    //  Длина префикса - число 0..128 без ведущих нулей; -1 - ошибка
+    private static int parsePrefixLength(String name, int start, int end) {
+        int digits = end - start;
+        if (digits < 1 || digits > 3) return -1;
+        if (digits > 1 && name.charAt(start) == '0') return -1;
+        int value = 0;
+        for (int pos = start; pos < end; pos++) {
+            char c = name.charAt(pos);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value <= BITS ? value : -1;
+    }
+
+
+    //  IPv4-адрес в конце IPv6-адреса: четыре октета 0..255 без ведущих нулей; -1 - ошибка
+    private static long parseIpv4(String name, int start, int end) {
+        long address = 0;
+        int pos = start;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (pos == end || name.charAt(pos) != '.') return -1;
+                pos++;
+            }
+            int octetStart = pos;
+            int value = 0;
+            while (pos < end && pos - octetStart < 3) {
+                char c = name.charAt(pos);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                pos++;
+            }
+            int digits = pos - octetStart;
+            if (digits == 0 || (digits > 1 && name.charAt(octetStart) == '0') || value > 255) return -1;
+            address = (address << 8) | value;
+        }
+        return pos == end ? address : -1;
+    }
+
+}
@@ -0,0 +1,208 @@
+package dk.messagebroker.queuepermission;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Двоичное (radix-2) префиксное дерево IPv6-адресов и IPv6-подсетей.
+ * <br><br>
+ * Устроено так же, как {@link Ipv4CidrTrie}, но адрес - 128 бит, заданные двумя числами типа long: сначала старшие
+ * 64 бита(high), затем младшие(low). Подсеть с префиксом n хранится в узле на глубине n; адрес - как подсеть /128.
+ * Поиск подсетей, покрывающих адрес, - один спуск по дереву не длиннее 128 шагов.
+ * <br><br>
+ * Дерево неизменяемое: {@link #with(long, long, int, String)} и {@link #without(long, long, int, String)} возвращают
+ * новое дерево, копируя только узлы на пути к месту изменения.
+ */
+final class Ipv6CidrTrie {
+
+    static final Ipv6CidrTrie EMPTY = new Ipv6CidrTrie(null);
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private final Node root;
+
+
+    /*
+    Узел дерева. keys - имена ресурсов(ключи коллекции), номер сети и длина префикса которых ведут ровно в этот узел.
+    Разные строки могут давать одну и ту же сеть. Например, "2001:db8::/32" и "2001:0db8::/32".
+     */
+    private static final class Node {
+        final Node zero;
+        final Node one;
+        final String[] keys;
+
+        Node(Node zero, Node one, String[] keys) {
+            this.zero = zero;
+            this.one = one;
+            this.keys = keys;
+        }
+    }
+
+
+    private Ipv6CidrTrie(Node root) {
+        this.root = root;
+    }
+
+
+    /**
+     * Получить дерево, в которое дополнительно добавлена подсеть(или адрес - как подсеть с префиксом 128).
+     * @param high Старшие 64 бита номера сети
+     * @param low Младшие 64 бита номера сети
+     * @param prefixLength Длина префикса, 0..128
+     * @param key Имя ресурса, под которым подсеть хранится в коллекции
+     * @return Новое дерево
+     */
+    Ipv6CidrTrie with(long high, long low, int prefixLength, String key) {
+        return new Ipv6CidrTrie(insert(root, high, low, prefixLength, 0, key));
+    }
+
+
+    private static Node insert(Node node, long high, long low, int prefixLength, int depth, String key) {
+        Node zero = node == null ? null : node.zero;
+        Node one = node == null ? null : node.one;
+        String[] keys = node == null ? NO_KEYS : node.keys;
+
+        if (depth == prefixLength) {
+            String[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            newKeys[keys.length] = key;
+            return new Node(zero, one, newKeys);
+        }
+
+        if (bit(high, low, depth) == 0) {
+            return new Node(insert(zero, high, low, prefixLength, depth + 1, key), one, keys);
+        } else {
+            return new Node(zero, insert(one, high, low, prefixLength, depth + 1, key), keys);
+        }
+    }
+
+
+    /**
+     * Получить дерево, из которого удалена подсеть. Если подсети с таким ключом в дереве нет, возвращается это же дерево.
+     * Узлы, в которых после удаления не осталось ни ключей, ни потомков, удаляются.
+     * @param high Старшие 64 бита номера сети
+     * @param low Младшие 64 бита номера сети
+     * @param prefixLength Длина префикса, 0..128
+     * @param key Имя ресурса, под которым подсеть хранится в коллекции
+     * @return Новое дерево
+     */
+    Ipv6CidrTrie without(long high, long low, int prefixLength, String key) {
+        Node newRoot = remove(root, high, low, prefixLength, 0, key);
+        return newRoot == root ? this : new Ipv6CidrTrie(newRoot);
+    }
+
+
+    //  Так же, как Ipv4CidrTrie.remove()
+    private static Node remove(Node node, long high, long low, int prefixLength, int depth, String key) {
+        if (node == null) return null;
+        if (depth == prefixLength) {
+            String[] newKeys = Ipv4CidrTrie.withoutKey(node.keys, key);
+            if (newKeys == node.keys) return node;
+            return compact(node.zero, node.one, newKeys);
+        }
+        if (bit(high, low, depth) == 0) {
+            Node zero = remove(node.zero, high, low, prefixLength, depth + 1, key);
+            return zero == node.zero ? node : compact(zero, node.one, node.keys);
+        } else {
+            Node one = remove(node.one, high, low, prefixLength, depth + 1, key);
+            return one == node.one ? node : compact(node.zero, one, node.keys);
+        }
+    }
+
+
+    private static Node compact(Node zero, Node one, String[] keys) {
+        return zero == null && one == null && keys.length == 0 ? null : new Node(zero, one, keys);
+    }
+
+
+    /**
+     * Получить дерево, в которое дополнительно добавлены подсети - для многих подсетей за один вызов.
+     * <br><br>
+     * Результат тот же, что и у последовательных вызовов {@link #with(long, long, int, String)}, но каждый затронутый
+     * узел копируется один раз.
+     * @param highs Старшие 64 бита номеров сетей
+     * @param lows Младшие 64 бита номеров сетей
+     * @param prefixLengths Длины префиксов
+     * @param keys Имена ресурсов
+     * @return Новое дерево
+     */
+    Ipv6CidrTrie withAll(long[] highs, long[] lows, int[] prefixLengths, String[] keys) {
+        if (keys.length == 0) return this;
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        return new Ipv6CidrTrie(insertAll(root, highs, lows, prefixLengths, keys, order, new int[order.length],
+                0, order.length, 0));
+    }
+
+
+    //  Так же, как Ipv4CidrTrie.insertAll()
+    private static Node insertAll(Node node, long[] highs, long[] lows, int[] prefixLengths, String[] keys, int[] order,
+                                  int[] scratch, int from, int to, int depth) {
+        String[] nodeKeys = node == null ? NO_KEYS : node.keys;
+        int own = 0;
+        int zeros = 0;
+        for (int i = from; i < to; i++) {
+            int subnet = order[i];
+            if (prefixLengths[subnet] == depth) own++;
+            else if (bit(highs[subnet], lows[subnet], depth) == 0) zeros++;
+        }
+        String[] newKeys = nodeKeys;
+        if (own > 0) {
+            newKeys = Arrays.copyOf(nodeKeys, nodeKeys.length + own);
+            int k = nodeKeys.length;
+            for (int i = from; i < to; i++) {
+                if (prefixLengths[order[i]] == depth) newKeys[k++] = keys[order[i]];
+            }
+        }
+
+        int zeroFrom = from;
+        int oneFrom = from + zeros;
+        int oneTo = to - own;
+        int z = zeroFrom;
+        int o = oneFrom;
+        for (int i = from; i < to; i++) {
+            int subnet = order[i];
+            if (prefixLengths[subnet] == depth) continue;
+            if (bit(highs[subnet], lows[subnet], depth) == 0) scratch[z++] = subnet;
+            else scratch[o++] = subnet;
+        }
+        System.arraycopy(scratch, from, order, from, oneTo - from);
+
+        Node zero = node == null ? null : node.zero;
+        Node one = node == null ? null : node.one;
+        if (oneFrom > zeroFrom) zero = insertAll(zero, highs, lows, prefixLengths, keys, order, scratch, zeroFrom, oneFrom, depth + 1);
+        if (oneTo > oneFrom) one = insertAll(one, highs, lows, prefixLengths, keys, order, scratch, oneFrom, oneTo, depth + 1);
+        return new Node(zero, one, newKeys);
+    }
+
+
+    /**
+     * Есть ли среди подсетей, префикс которых покрывает адрес(или подсеть), хотя бы одна, удовлетворяющая условию.
+     * <br><br>
+     * Проверяются узлы на глубине 0..maxDepth пути спуска. Для адреса maxDepth = 128; для подсети - длина ее префикса,
+     * тогда проверяются подсети, которые включают проверяемую или совпадают с ней.
+     * @param high Старшие 64 бита адреса
+     * @param low Младшие 64 бита адреса
+     * @param maxDepth Наибольшая проверяемая глубина, 0..128
+     * @param predicate Условие, которое проверяется для имени каждой подсети на пути спуска
+     * @return true(найдена)/false(не найдена)
+     */
+    boolean anyCovering(long high, long low, int maxDepth, Predicate<String> predicate) {
+        Node node = root;
+        int depth = 0;
+        while (node != null) {
+            for (String key : node.keys) {
+                if (predicate.test(key)) return true;
+            }
+            if (depth == maxDepth) break;
+            node = bit(high, low, depth) == 0 ? node.zero : node.one;
+            depth++;
+        }
+        return false;
+    }
+
+
+    private static int bit(long high, long low, int depth) {
+        return depth < 64 ? (int) (high >>> (63 - depth)) & 1 : (int) (low >>> (127 - depth)) & 1;
+    }
+
+}
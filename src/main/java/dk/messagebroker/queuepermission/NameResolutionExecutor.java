@@ -0,0 +1,216 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.VirtualThreads;
+
+import java.security.Permission;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Исполнитель проверок, которые могут ждать DNS, для {@link QueuePermissionCollection#impliesAsync(Permission, NameResolutionExecutor)}.
+ * <br><br>
+ * Исполнитель ограничен: одновременно выполняется не больше maxConcurrency проверок, а ожидает выполнения не больше
+ * maxPending. Проверка, которой не хватило места, сразу завершается решением false. Проверка, не успевшая за timeout,
+ * тоже завершается решением false(запрет при сбое): ее результат, полученный позже, отбрасывается.
+ * Исключение внутри проверки также дает false.
+ * <br><br>
+ * Проверки выполняются в виртуальных потоках, если JVM их поддерживает(Java 21 и новее), иначе - в maxConcurrency
+ * потоках-демонах.
+ */
+public final class NameResolutionExecutor implements AutoCloseable {
+
+    /**
+     * Время на одну проверку по умолчанию
+     */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(2);
+
+    /**
+     * Количество одновременно выполняемых проверок по умолчанию
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+    /**
+     * Количество проверок, ожидающих выполнения, по умолчанию
+     */
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+
+    //  Общий исполнитель создается при первом обращении
+    private static final class SharedHolder {
+        static final NameResolutionExecutor INSTANCE =
+                new NameResolutionExecutor(DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_PENDING, DEFAULT_TIMEOUT);
+    }
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final long timeoutNanos;
+
+    //  Места для проверок, принятых и еще не выполненных
+    private final Semaphore pending;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+
+    /**
+     * Получить общий исполнитель с параметрами по умолчанию. Его использует
+     * {@link QueuePermissionCollection#impliesAsync(Permission)}.
+     * @return Общий исполнитель
+     */
+    public static NameResolutionExecutor shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+
+    /**
+     * Конструктор. Потоки останавливаются методом {@link #close()}.
+     * @param maxConcurrency Количество одновременно выполняемых проверок
+     * @param maxPending Количество проверок, ожидающих выполнения
+     * @param timeout Время на одну проверку
+     */
+    public NameResolutionExecutor(int maxConcurrency, int maxPending, Duration timeout) {
+        if (maxConcurrency <= 0) throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        ExecutorService virtualThreads = VirtualThreads.newPerTaskExecutor();
+        if (virtualThreads != null) {
+            //  Виртуальных потоков не жалко: ограничение числа одновременных проверок держит семафор
+            Semaphore concurrency = new Semaphore(maxConcurrency);
+            this.executor = task -> virtualThreads.execute(() -> {
+                concurrency.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    concurrency.release();
+                }
+            });
+            this.ownedExecutor = virtualThreads;
+        } else {
+            this.ownedExecutor = Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+                Thread thread = new Thread(runnable, "name-resolution");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor = ownedExecutor;
+        }
+        this.pending = pending(maxConcurrency, maxPending);
+        this.timeoutNanos = timeoutNanos(timeout);
+    }
+
+
+    /**
+     * Конструктор с внешним исполнителем. Количество одновременно выполняемых проверок определяет сам исполнитель;
+     * {@link #close()} его не останавливает.
+     * @param executor Исполнитель
+     * @param maxPending Количество принятых и еще не выполненных проверок
+     * @param timeout Время на одну проверку
+     */
+    public NameResolutionExecutor(Executor executor, int maxPending, Duration timeout) {
+        this.executor = executor;
+        this.ownedExecutor = null;
+        this.pending = pending(0, maxPending);
+        this.timeoutNanos = timeoutNanos(timeout);
+    }
+
+
+    /**
+     * Выполнить проверку асинхронно.
+     * @param check Проверка
+     * @return Решение; false - если проверка не уложилась во время, не была принята или завершилась исключением
+     */
+    public CompletableFuture<Boolean> submit(BooleanSupplier check) {
+        submitted.increment();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (pending.tryAcquire() == false) {
+            rejections.increment();
+            future.complete(false);
+            return future;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    //  Проверку, время которой уже вышло, выполнять незачем
+                    if (future.isDone() == false) future.complete(check.getAsBoolean());
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    pending.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            rejections.increment();
+            future.complete(false);
+            return future;
+        }
+        return future.orTimeout(timeoutNanos, TimeUnit.NANOSECONDS).exceptionally(e -> {
+            if (e instanceof TimeoutException) timeouts.increment();
+            return false;
+        });
+    }
+
+
+    /**
+     * Время на одну проверку
+     * @return Время
+     */
+    public Duration timeout() {
+        return Duration.ofNanos(timeoutNanos);
+    }
+
+
+    /**
+     * Количество переданных проверок - включая отклоненные
+     * @return Количество
+     */
+    public long submittedCount() {
+        return submitted.sum();
+    }
+
+
+    /**
+     * Количество проверок, не уложившихся во время
+     * @return Количество
+     */
+    public long timeoutCount() {
+        return timeouts.sum();
+    }
+
+
+    /**
+     * Количество проверок, которые не были приняты из-за переполнения или остановки исполнителя
+     * @return Количество
+     */
+    public long rejectionCount() {
+        return rejections.sum();
+    }
+
+
+    /**
+     * Остановить потоки, созданные исполнителем. Внешний исполнитель не останавливается.
+     */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) ownedExecutor.shutdownNow();
+    }
+
+
+    private static Semaphore pending(int maxConcurrency, int maxPending) {
+        if (maxPending <= 0) throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        return new Semaphore(maxConcurrency + maxPending);
+    }
+
+
+    private static long timeoutNanos(Duration timeout) {
+        if (timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        return timeout.toNanos();
+    }
+
+}
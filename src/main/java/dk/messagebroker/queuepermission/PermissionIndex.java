@@ -0,0 +1,908 @@
+package dk.messagebroker.queuepermission;
+
+import java.security.Permission;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Неизменяемый снимок содержимого коллекции разрешений вместе с индексами, по которым выполняется implies().
+ * <br><br>
+ * Все структуры снимка - неизменяемые и разделяют общие части между версиями({@link PersistentMap},
+ * {@link Ipv4CidrTrie}, {@link Ipv6CidrTrie}, {@link DomainLabelTrie}). Добавление разрешения({@link #with(QueuePermission)})
+ * и удаление({@link #without(QueuePermission)}) возвращают новый снимок, а старый остается целым. Поэтому поток,
+ * получивший ссылку на снимок, может читать его без блокировок: он никогда не увидит снимок наполовину измененным.
+ * <br><br>
+ * Каждый снимок имеет номер версии(эпоху): снимок, полученный изменением, имеет эпоху больше исходного. По эпохе
+ * кэш решений({@link DecisionCache}) отличает решения, принятые по актуальному содержимому, от устаревших.
+ */
+final class PermissionIndex {
+
+    static final PermissionIndex EMPTY = new PermissionIndex(0, PersistentMap.empty(), 0, Ipv4CidrTrie.EMPTY,
+            Ipv6CidrTrie.EMPTY, DomainLabelTrie.EMPTY, PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(),
+            PersistentMap.empty(), PersistentMap.empty());
+
+    private final long epoch;
+
+    //  Разрешения по именам ресурсов. Списки неизменяемые: добавление разрешения заменяет список целиком.
+    private final PersistentMap<String, List<QueuePermission>> permissions;
+    private final int size;
+
+    //  Индекс ключей, используемый в implies() при поиске по чужим ключам.
+    //  Ключ попадает в одну из групп по первому разрешению, добавленному под этим ключом. Именно первое разрешение списка
+    //  используется в implies() для проверки impliesResourceName().
+    //  Ключи-подсети, у которых первое разрешение QueuePermissionBasicImpl, хранятся в дереве subnetIndex и дополнительно
+    //  в группе subnetKeys - для проверок, которым дерево не помогает(например, доменное имя против подсети).
+    //  Так же устроены ключи-доменные имена: дерево меток domainNameIndex и группа domainNameKeys.
+    //  IPv6-адреса и IPv6-подсети хранятся вместе: в дереве ipv6Index(адрес - как подсеть /128) и в группе ipv6Keys.
+    //  Группа - карта, в которой ключ сопоставлен сам себе.
+    private final Ipv4CidrTrie subnetIndex;
+    private final Ipv6CidrTrie ipv6Index;
+    private final DomainLabelTrie domainNameIndex;
+    private final PersistentMap<String, String> subnetKeys;
+    private final PersistentMap<String, String> ipKeys;
+    private final PersistentMap<String, String> domainNameKeys;
+    private final PersistentMap<String, String> ipv6Keys;
+    //  Ключи, первое разрешение которых реализовано не классом QueuePermissionBasicImpl. Как такие разрешения
+    //  подразумевают имена ресурсов - неизвестно, поэтому они всегда проверяются перебором.
+    private final PersistentMap<String, String> otherKeys;
+
+
+    private PermissionIndex(long epoch, PersistentMap<String, List<QueuePermission>> permissions, int size,
+                            Ipv4CidrTrie subnetIndex, Ipv6CidrTrie ipv6Index, DomainLabelTrie domainNameIndex,
+                            PersistentMap<String, String> subnetKeys, PersistentMap<String, String> ipKeys,
+                            PersistentMap<String, String> domainNameKeys, PersistentMap<String, String> ipv6Keys,
+                            PersistentMap<String, String> otherKeys) {
+        this.epoch = epoch;
+        this.permissions = permissions;
+        this.size = size;
+        this.subnetIndex = subnetIndex;
+        this.ipv6Index = ipv6Index;
+        this.domainNameIndex = domainNameIndex;
+        this.subnetKeys = subnetKeys;
+        this.ipKeys = ipKeys;
+        this.domainNameKeys = domainNameKeys;
+        this.ipv6Keys = ipv6Keys;
+        this.otherKeys = otherKeys;
+    }
+
+
+    /**
+     * Получить снимок, в который дополнительно добавлено разрешение.
+     * @param permission Разрешение
+     * @return Новый снимок
+     */
+    PermissionIndex with(QueuePermission permission) {
+        return withList(permission.getName(), Collections.singletonList(permission));
+    }
+
+
+    /**
+     * Получить снимок, в который дополнительно добавлены разрешения.
+     * <br><br>
+     * Результат тот же, что и у последовательных вызовов {@link #with(QueuePermission)}, но разрешения сначала
+     * группируются по имени ресурса, и затем каждая структура снимка строится одним пакетным вызовом: список каждого
+     * ключа собирается один раз, а каждый узел карт и деревьев копируется один раз.
+     * @param permissions Разрешения
+     * @return Новый снимок
+     */
+    PermissionIndex withAll(Iterable<? extends QueuePermission> permissions) {
+        Map<String, List<QueuePermission>> lists = new LinkedHashMap<>();
+        int added = 0;
+        for (QueuePermission permission : permissions) {
+            lists.computeIfAbsent(permission.getName(), name -> new ArrayList<>(1)).add(permission);
+            added++;
+        }
+        if (added == 0) return this;
+        if (lists.size() == 1) {
+            Map.Entry<String, List<QueuePermission>> entry = lists.entrySet().iterator().next();
+            return withList(entry.getKey(), entry.getValue());
+        }
+
+        List<String> keys = new ArrayList<>(lists.size());
+        List<List<QueuePermission>> newLists = new ArrayList<>(lists.size());
+        //  Новые ключи - по группам индекса
+        List<String> newIpKeys = new ArrayList<>();
+        List<String> newSubnetKeys = new ArrayList<>();
+        List<String> newDomainNameKeys = new ArrayList<>();
+        List<String> newIpv6Keys = new ArrayList<>();
+        List<String> newOtherKeys = new ArrayList<>();
+        for (Map.Entry<String, List<QueuePermission>> entry : lists.entrySet()) {
+            String key = entry.getKey();
+            List<QueuePermission> addedList = entry.getValue();
+            List<QueuePermission> permissionList = this.permissions.get(key);
+            keys.add(key);
+            if (permissionList != null) {
+                List<QueuePermission> newList = new ArrayList<>(permissionList.size() + addedList.size());
+                newList.addAll(permissionList);
+                newList.addAll(addedList);
+                newLists.add(Collections.unmodifiableList(newList));
+                continue;
+            }
+            QueuePermission first = addedList.get(0);
+            newLists.add(addedList.size() == 1 ? Collections.singletonList(first) : Collections.unmodifiableList(addedList));
+            if (first instanceof QueuePermissionBasicImpl == false) {
+                newOtherKeys.add(key);
+            } else {
+                ResourceType resourceType = ((QueuePermissionBasicImpl) first).getResourceType();
+                if (resourceType == ResourceType.IP) newIpKeys.add(key);
+                else if (resourceType == ResourceType.SUBNET) newSubnetKeys.add(key);
+                else if (resourceType == ResourceType.DOMAINNAME) newDomainNameKeys.add(key);
+                else if (resourceType == ResourceType.IPV6 || resourceType == ResourceType.IPV6_SUBNET) newIpv6Keys.add(key);
+            }
+        }
+
+        int[] addresses = new int[newSubnetKeys.size()];
+        int[] prefixLengths = new int[newSubnetKeys.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            QueuePermissionBasicImpl basic = (QueuePermissionBasicImpl) lists.get(newSubnetKeys.get(i)).get(0);
+            addresses[i] = basic.getAddress();
+            prefixLengths[i] = basic.getPrefixLength();
+        }
+        long[] highs = new long[newIpv6Keys.size()];
+        long[] lows = new long[newIpv6Keys.size()];
+        int[] ipv6PrefixLengths = new int[newIpv6Keys.size()];
+        for (int i = 0; i < highs.length; i++) {
+            Ipv6Address ipv6 = ((QueuePermissionBasicImpl) lists.get(newIpv6Keys.get(i)).get(0)).getIpv6();
+            highs[i] = ipv6.high;
+            lows[i] = ipv6.low;
+            ipv6PrefixLengths[i] = ipv6.prefixLength;
+        }
+
+        return new PermissionIndex(epoch + 1, this.permissions.withAll(keys, newLists), size + added,
+                subnetIndex.withAll(addresses, prefixLengths, newSubnetKeys.toArray(new String[0])),
+                ipv6Index.withAll(highs, lows, ipv6PrefixLengths, newIpv6Keys.toArray(new String[0])),
+                domainNameIndex.withAll(newDomainNameKeys, newDomainNameKeys),
+                subnetKeys.withAll(newSubnetKeys, newSubnetKeys), ipKeys.withAll(newIpKeys, newIpKeys),
+                domainNameKeys.withAll(newDomainNameKeys, newDomainNameKeys), ipv6Keys.withAll(newIpv6Keys, newIpv6Keys),
+                otherKeys.withAll(newOtherKeys, newOtherKeys));
+    }
+
+
+    //  Добавить разрешения одного ключа. added - не пустой список, который дальше не меняется.
+    private PermissionIndex withList(String key, List<QueuePermission> added) {
+        List<QueuePermission> permissionList = permissions.get(key);
+        if (permissionList != null) {
+            List<QueuePermission> newList = new ArrayList<>(permissionList.size() + added.size());
+            newList.addAll(permissionList);
+            newList.addAll(added);
+            return new PermissionIndex(epoch + 1, permissions.with(key, Collections.unmodifiableList(newList)),
+                    size + added.size(), subnetIndex, ipv6Index, domainNameIndex, subnetKeys, ipKeys, domainNameKeys,
+                    ipv6Keys, otherKeys);
+        }
+
+        //  Новый ключ относится к одной из групп индекса - по первому разрешению
+        QueuePermission permission = added.get(0);
+        KeyGroups groups = new KeyGroups(this);
+        groups.add(key, permission);
+        List<QueuePermission> newList = added.size() == 1
+                ? Collections.singletonList(permission)
+                : Collections.unmodifiableList(added);
+        return groups.build(epoch + 1, permissions.with(key, newList), size + added.size());
+    }
+
+
+    /**
+     * Получить снимок, из которого удалено разрешение: первое разрешение под его именем ресурса, равное ему по equals().
+     * @param permission Разрешение
+     * @return Новый снимок; этот же снимок, если такого разрешения в нем нет
+     */
+    PermissionIndex without(QueuePermission permission) {
+        return withoutAll(Collections.singletonList(permission));
+    }
+
+
+    /**
+     * Получить снимок, из которого удалены разрешения - так же, как последовательными вызовами
+     * {@link #without(QueuePermission)}, но одной новой эпохой.
+     * <br><br>
+     * Копируются только списки затронутых ключей и пути к ним в картах и деревьях: стоимость удаления зависит от
+     * количества удаляемых разрешений, а не от размера снимка. Ключ, список которого опустел, удаляется из всех групп
+     * индекса.
+     * @param permissions Разрешения
+     * @return Новый снимок; этот же снимок, если ни одного из разрешений в нем нет
+     */
+    PermissionIndex withoutAll(Iterable<? extends QueuePermission> permissions) {
+        Map<String, List<QueuePermission>> lists = new LinkedHashMap<>();
+        for (QueuePermission permission : permissions) {
+            lists.computeIfAbsent(permission.getName(), name -> new ArrayList<>(1)).add(permission);
+        }
+
+        KeyGroups groups = new KeyGroups(this);
+        PersistentMap<String, List<QueuePermission>> newPermissions = this.permissions;
+        int removed = 0;
+        for (Map.Entry<String, List<QueuePermission>> entry : lists.entrySet()) {
+            String key = entry.getKey();
+            List<QueuePermission> permissionList = newPermissions.get(key);
+            if (permissionList == null) continue;
+            List<QueuePermission> newList = new ArrayList<>(permissionList);
+            for (QueuePermission permission : entry.getValue()) newList.remove(permission);
+            if (newList.size() == permissionList.size()) continue;
+            removed += permissionList.size() - newList.size();
+
+            QueuePermission first = permissionList.get(0);
+            if (newList.isEmpty()) {
+                newPermissions = newPermissions.without(key);
+                groups.remove(key, first);
+                continue;
+            }
+            newPermissions = newPermissions.with(key, newList.size() == 1
+                    ? Collections.singletonList(newList.get(0))
+                    : Collections.unmodifiableList(newList));
+            //  Группа ключа определяется первым разрешением списка. У разрешений QueuePermissionBasicImpl с одним именем
+            //  группа одна и та же; меняется она, только если первым стало разрешение другой реализации или наоборот.
+            QueuePermission newFirst = newList.get(0);
+            if (first instanceof QueuePermissionBasicImpl != newFirst instanceof QueuePermissionBasicImpl) {
+                groups.remove(key, first);
+                groups.add(key, newFirst);
+            }
+        }
+        if (removed == 0) return this;
+        return groups.build(epoch + 1, newPermissions, size - removed);
+    }
+
+
+    /**
+     * Получить снимок, из которого удалены разрешения removed и в который добавлены разрешения added - одной новой
+     * эпохой. Удаление выполняется первым, поэтому разрешение можно заменить, передав старое в removed, а новое в added.
+     * @param added Добавляемые разрешения
+     * @param removed Удаляемые разрешения
+     * @return Новый снимок; этот же снимок, если ничего не изменилось
+     */
+    PermissionIndex withDelta(Iterable<? extends QueuePermission> added, Iterable<? extends QueuePermission> removed) {
+        PermissionIndex result = withoutAll(removed).withAll(added);
+        if (result.epoch <= epoch + 1) return result;
+        return new PermissionIndex(epoch + 1, result.permissions, result.size, result.subnetIndex, result.ipv6Index,
+                result.domainNameIndex, result.subnetKeys, result.ipKeys, result.domainNameKeys, result.ipv6Keys,
+                result.otherKeys);
+    }
+
+
+    /**
+     * Отобрать разрешения, тип которых порожден от QueuePermission. Остальные коллекции игнорируют.
+     * @param permissions Разрешения
+     * @return Список разрешений QueuePermission
+     */
+    static List<QueuePermission> queuePermissions(Collection<? extends Permission> permissions) {
+        List<QueuePermission> result = new ArrayList<>(permissions.size());
+        for (Permission permission : permissions) {
+            if (permission.getClass().getSuperclass().equals(QueuePermission.class)) result.add((QueuePermission) permission);
+        }
+        return result;
+    }
+
+
+    /**
+     * Сообщить реализациям проверок о добавленных в коллекцию разрешениях с доменными именами
+     * ({@link dk.messagebroker.queuepermission.service.ImplyService#domainNameAdded(String)}). Вызывается коллекцией
+     * под блокировкой изменения, вместе с добавлением разрешений в снимок.
+     * @param permissions Добавленные разрешения
+     */
+    static void domainNamesAdded(Iterable<? extends QueuePermission> permissions) {
+        for (QueuePermission permission : permissions) domainNameAdded(permission);
+    }
+
+
+    static void domainNameAdded(QueuePermission permission) {
+        if (isDomainName(permission)) {
+            ((QueuePermissionBasicImpl) permission).getImplyService().domainNameAdded(permission.getName());
+        }
+    }
+
+
+    /**
+     * Сообщить реализациям проверок о доменных именах удаленных разрешений, ключей которых в этом снимке больше нет
+     * ({@link dk.messagebroker.queuepermission.service.ImplyService#domainNameRemoved(String)}). Вызывается коллекцией
+     * под блокировкой изменения у снимка, из которого разрешения удалены.
+     * @param permissions Удаленные разрешения
+     */
+    void domainNamesRemoved(Iterable<? extends QueuePermission> permissions) {
+        for (QueuePermission permission : permissions) domainNameRemoved(permission);
+    }
+
+
+    void domainNameRemoved(QueuePermission permission) {
+        if (isDomainName(permission) && permissions.get(permission.getName()) == null) {
+            ((QueuePermissionBasicImpl) permission).getImplyService().domainNameRemoved(permission.getName());
+        }
+    }
+
+
+    private static boolean isDomainName(QueuePermission permission) {
+        return permission instanceof QueuePermissionBasicImpl
+                && ((QueuePermissionBasicImpl) permission).getResourceType() == ResourceType.DOMAINNAME;
+    }
+
+
+    /*
+    Группы ключей снимка, которые меняются при построении следующего снимка
+     */
+    private static final class KeyGroups {
+        Ipv4CidrTrie subnetIndex;
+        Ipv6CidrTrie ipv6Index;
+        DomainLabelTrie domainNameIndex;
+        PersistentMap<String, String> subnetKeys;
+        PersistentMap<String, String> ipKeys;
+        PersistentMap<String, String> domainNameKeys;
+        PersistentMap<String, String> ipv6Keys;
+        PersistentMap<String, String> otherKeys;
+
+        KeyGroups(PermissionIndex index) {
+            this.subnetIndex = index.subnetIndex;
+            this.ipv6Index = index.ipv6Index;
+            this.domainNameIndex = index.domainNameIndex;
+            this.subnetKeys = index.subnetKeys;
+            this.ipKeys = index.ipKeys;
+            this.domainNameKeys = index.domainNameKeys;
+            this.ipv6Keys = index.ipv6Keys;
+            this.otherKeys = index.otherKeys;
+        }
+
+        //  Добавить ключ в группу, которую определяет первое разрешение его списка
+        void add(String key, QueuePermission first) {
+            if (first instanceof QueuePermissionBasicImpl == false) {
+                otherKeys = otherKeys.with(key, key);
+                return;
+            }
+            QueuePermissionBasicImpl basic = (QueuePermissionBasicImpl) first;
+            ResourceType resourceType = basic.getResourceType();
+            //  Разрешение с нераспознанным именем ресурса(resourceType == null) не подразумевает ничего.
+            //  Проверять такой ключ нет смысла.
+            if (resourceType == ResourceType.IP) {
+                ipKeys = ipKeys.with(key, key);
+            } else if (resourceType == ResourceType.SUBNET) {
+                subnetIndex = subnetIndex.with(basic.getAddress(), basic.getPrefixLength(), key);
+                subnetKeys = subnetKeys.with(key, key);
+            } else if (resourceType == ResourceType.DOMAINNAME) {
+                domainNameIndex = domainNameIndex.with(key, key);
+                domainNameKeys = domainNameKeys.with(key, key);
+            } else if (resourceType == ResourceType.IPV6 || resourceType == ResourceType.IPV6_SUBNET) {
+                Ipv6Address ipv6 = basic.getIpv6();
+                ipv6Index = ipv6Index.with(ipv6.high, ipv6.low, ipv6.prefixLength, key);
+                ipv6Keys = ipv6Keys.with(key, key);
+            }
+        }
+
+        //  Удалить ключ из группы, в которую его поместило первое разрешение списка
+        void remove(String key, QueuePermission first) {
+            if (first instanceof QueuePermissionBasicImpl == false) {
+                otherKeys = otherKeys.without(key);
+                return;
+            }
+            QueuePermissionBasicImpl basic = (QueuePermissionBasicImpl) first;
+            ResourceType resourceType = basic.getResourceType();
+            if (resourceType == ResourceType.IP) {
+                ipKeys = ipKeys.without(key);
+            } else if (resourceType == ResourceType.SUBNET) {
+                subnetIndex = subnetIndex.without(basic.getAddress(), basic.getPrefixLength(), key);
+                subnetKeys = subnetKeys.without(key);
+            } else if (resourceType == ResourceType.DOMAINNAME) {
+                domainNameIndex = domainNameIndex.without(key, key);
+                domainNameKeys = domainNameKeys.without(key);
+            } else if (resourceType == ResourceType.IPV6 || resourceType == ResourceType.IPV6_SUBNET) {
+                Ipv6Address ipv6 = basic.getIpv6();
+                ipv6Index = ipv6Index.without(ipv6.high, ipv6.low, ipv6.prefixLength, key);
+                ipv6Keys = ipv6Keys.without(key);
+            }
+        }
+
+        PermissionIndex build(long epoch, PersistentMap<String, List<QueuePermission>> permissions, int size) {
+            return new PermissionIndex(epoch, permissions, size, subnetIndex, ipv6Index, domainNameIndex, subnetKeys,
+                    ipKeys, domainNameKeys, ipv6Keys, otherKeys);
+        }
+    }
+
+
+    /**
+     * Получить все разрешения для имени ресурса
+     * @param name Имя ресурса
+     * @return Неизменяемый список; или null, если разрешений для этого имени нет
+     */
+    List<QueuePermission> get(String name) {
+        return permissions.get(name);
+    }
+
+
+    /**
+     * Обойти списки разрешений снимка. Порядок обхода не определен.
+     * @param action Действие, которое получает имя ресурса и неизменяемый список разрешений под этим именем
+     */
+    void forEachList(BiConsumer<String, List<QueuePermission>> action) {
+        permissions.forEach(action);
+    }
+
+
+    /**
+     * Есть ли среди ключей, которые могут подразумевать имя name без обращения к DNS, хотя бы один, удовлетворяющий
+     * условию. Для IP-адреса это ключи-подсети, префикс которых покрывает адрес; для IPv6-адреса и IPv6-подсети - IPv6-ключи
+     * на пути спуска по ее битам; для доменного имени - домены, поддоменом которых оно является. Сам ключ name тоже может
+     * попасть в условие.
+     * <br><br>
+     * Подразумевает ли найденный ключ имя на самом деле, проверяет условие: деревья сравнивают только префиксы.
+     * @param name Имя ресурса
+     * @param predicate Условие для имени ключа
+     * @return найден(true)/не найден(false)
+     */
+    boolean anyCoveringKey(String name, Predicate<String> predicate) {
+        Ipv6Address ipv6 = name.indexOf(':') >= 0 ? Ipv6Address.parse(name) : null;
+        long scan = ipv6 != null ? ResourceNameScanner.scan(ipv6) : ResourceNameScanner.scan(name);
+        ResourceType resourceType = ResourceNameScanner.type(scan);
+        if (resourceType == null) return false;
+        switch (resourceType) {
+            case IP: return subnetIndex.anyCovering(ResourceNameScanner.address(scan), predicate);
+            case IPV6:
+            case IPV6_SUBNET: return ipv6Index.anyCovering(ipv6.high, ipv6.low, ipv6.prefixLength, predicate);
+            case DOMAINNAME: return domainNameIndex.anyCovering(name, predicate);
+            default: return false;
+        }
+    }
+
+
+    /**
+     * Эпоха снимка. У пустого снимка - 0; каждое изменение увеличивает ее.
+     * @return Эпоха
+     */
+    long epoch() {
+        return epoch;
+    }
+
+
+    /**
+     * Количество разрешений в снимке
+     * @return Количество разрешений
+     */
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * Получить итератор по всем разрешениям снимка. Порядок обхода не определен.
+     * @return Итератор
+     */
+    Iterator<QueuePermission> iterator() {
+        Iterator<List<QueuePermission>> lists = permissions.valueIterator();
+        return new Iterator<QueuePermission>() {
+            private Iterator<QueuePermission> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (current.hasNext() == false && lists.hasNext()) {
+                    current = lists.next().iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public QueuePermission next() {
+                if (hasNext() == false) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+
+    /**
+     * Получить Spliterator по всем разрешениям снимка - для параллельной обработки. Порядок обхода не определен.
+     * Делится так же, как {@link PersistentMap#valueSpliterator()}: по поддеревьям карты разрешений.
+     * @return Spliterator
+     */
+    Spliterator<QueuePermission> spliterator() {
+        return new PermissionSpliterator(permissions.valueSpliterator(), size);
+    }
+
+
+    /*
+    Spliterator разрешений поверх Spliterator списков. Делятся только списки: начатый список остается у этого объекта.
+    Оценка размера - число оставшихся списков, умноженное на среднее количество разрешений в списке.
+     */
+    private static final class PermissionSpliterator implements Spliterator<QueuePermission> {
+
+        private final Spliterator<List<QueuePermission>> lists;
+        private final double permissionsPerList;
+        //  Точное количество оставшихся разрешений - пока не было разделения; иначе -1
+        private long exactSize;
+        private Iterator<QueuePermission> current = Collections.emptyIterator();
+
+        PermissionSpliterator(Spliterator<List<QueuePermission>> lists, long exactSize) {
+            this.lists = lists;
+            long listCount = lists.estimateSize();
+            this.permissionsPerList = listCount == 0 ? 1 : (double) exactSize / listCount;
+            this.exactSize = exactSize;
+        }
+
+        private PermissionSpliterator(Spliterator<List<QueuePermission>> lists, double permissionsPerList) {
+            this.lists = lists;
+            this.permissionsPerList = permissionsPerList;
+            this.exactSize = -1;
+        }
+
+        @Override
+        public Spliterator<QueuePermission> trySplit() {
+            Spliterator<List<QueuePermission>> prefix = lists.trySplit();
+            if (prefix == null) return null;
+            exactSize = -1;
+            return new PermissionSpliterator(prefix, permissionsPerList);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super QueuePermission> action) {
+            while (current.hasNext() == false) {
+                if (lists.tryAdvance(list -> current = list.iterator()) == false) return false;
+            }
+            if (exactSize > 0) exactSize--;
+            action.accept(current.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super QueuePermission> action) {
+            if (exactSize > 0) exactSize = 0;
+            current.forEachRemaining(action);
+            lists.forEachRemaining(list -> list.forEach(action));
+        }
+
+        @Override
+        public long estimateSize() {
+            return exactSize >= 0 ? exactSize : (long) (lists.estimateSize() * permissionsPerList);
+        }
+
+        @Override
+        public int characteristics() {
+            return exactSize >= 0 ? NONNULL | IMMUTABLE | SIZED : NONNULL | IMMUTABLE;
+        }
+    }
+
+
+    /**
+     * Подразумевается ли разрешение разрешениями снимка.
+     * @param permission Проверяемое разрешение
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    boolean implies(Permission permission) {
+        return implies(permission, true);
+    }
+
+
+    /**
+     * Подразумевается ли разрешение разрешениями снимка без проверок, которым может понадобиться разрешение имен(DNS):
+     * IP-адреса против доменных имен, доменного имени против IP-адресов и подсетей, и любых проверок разрешений других
+     * реализаций. Такой вызов никогда не ждет DNS.
+     * <br><br>
+     * true означает, что разрешение подразумевается. false - что оно не подразумевается без этих проверок; нужны ли
+     * они, показывает {@link #needsNameResolution(String)}.
+     * @param permission Проверяемое разрешение
+     * @return подразумевается(true)/не подразумевается без проверок с DNS(false)
+     */
+    boolean impliesWithoutNameResolution(Permission permission) {
+        return implies(permission, false);
+    }
+
+
+    /**
+     * Есть ли в снимке ключи, проверка имени ресурса name по которым может обратиться к DNS - то есть те, которые
+     * пропускает {@link #impliesWithoutNameResolution(Permission)}
+     * @param name Имя ресурса
+     * @return есть(true)/нет(false)
+     */
+    boolean needsNameResolution(String name) {
+        if (otherKeys.isEmpty() == false) return true;
+        Ipv6Address ipv6 = name.indexOf(':') >= 0 ? Ipv6Address.parse(name) : null;
+        long scan = ipv6 != null ? ResourceNameScanner.scan(ipv6) : ResourceNameScanner.scan(name);
+        return needsNameResolution(ResourceNameScanner.type(scan));
+    }
+
+
+    /**
+     * То же, что и {@link #needsNameResolution(String)}, но тип имени ресурса уже распознан
+     * @param resourceType Тип имени ресурса; null - имя не распознано
+     * @return есть(true)/нет(false)
+     */
+    boolean needsNameResolution(ResourceType resourceType) {
+        if (otherKeys.isEmpty() == false) return true;
+        if (resourceType == null) return false;
+        switch (resourceType) {
+            case IP:
+            case IPV6:
+                return domainNameKeys.isEmpty() == false;
+            case DOMAINNAME:
+                return ipKeys.isEmpty() == false || subnetKeys.isEmpty() == false || ipv6Keys.isEmpty() == false;
+            default:
+                return false;
+        }
+    }
+
+
+    private boolean implies(Permission permission, boolean resolveNames) {
+
+        //  Не имеет смысл проводить какие либо проверки на предмет "подразумавает ли.." для разрешения permission, если
+        //  класс времени выполнения, на который ссылается permission не порожден от абстрактного класса QueuePermission
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+
+        //  Самые частые проверки - IP-адреса и подсети - выполняются без создания объектов
+        if (permission instanceof QueuePermissionBasicImpl) {
+            QueuePermissionBasicImpl request = (QueuePermissionBasicImpl) permission;
+            ResourceType resourceType = request.getResourceType();
+            if (resourceType == ResourceType.IP || resourceType == ResourceType.SUBNET) return impliesIpv4(request, resolveNames);
+        }
+
+        String actions = permission.getActions();
+        //  Запрашиваемые действия разбираются в маску один раз на весь вызов. У QueuePermissionBasicImpl она уже готова.
+        int actionMask = permission instanceof QueuePermissionBasicImpl
+                ? ((QueuePermissionBasicImpl) permission).getRequestedActionMask()
+                : ActionMask.parse(actions);
+
+        //  Если действия хотя бы одного разрешения из списка, имя которого подразумевает имя проверяемого ресурса,
+        //  подразумевают действия проверяемого разрешения, значит можно считать, что содержимое коллекции подразумавает
+        //  проверяемое разрешение
+        return anyImplyingList(permission.getName(), resolveNames, list -> anyImpliesActions(list, actionMask, actions));
+    }
+
+
+    /*
+    То же, что anyImplyingList() с условием на действия, для IP-адреса или подсети QueuePermissionBasicImpl, но без
+    лямбд, итераторов и других временных объектов: ключи-подсети обходятся условием без захваченных переменных, а
+    контекст передается ему параметрами. Объекты создаются, только если нужны проверки по ключам-доменам или по ключам
+    других реализаций.
+     */
+    private boolean impliesIpv4(QueuePermissionBasicImpl request, boolean resolveNames) {
+        String name = request.getName();
+        List<QueuePermission> permissionList = permissions.get(name);
+        if (permissionList != null
+                && anyImpliesActions(permissionList, request.getRequestedActionMask(), request.getActions())) return true;
+
+        //  Подсеть подразумевается только такой же подсетью, которая была проверена выше
+        long scan = ResourceNameScanner.scan(name);
+        if (request.getResourceType() == ResourceType.IP) {
+            if (subnetIndex.anyCovering(ResourceNameScanner.address(scan), this, request, scan,
+                    PermissionIndex::impliedBySubnetKey)) return true;
+            if (resolveNames && domainNameKeys.isEmpty() == false
+                    && anyImpliedByKeys(domainNameKeys, scan, null, name, actionsOf(request))) return true;
+        }
+        return resolveNames && otherKeys.isEmpty() == false
+                && anyImpliedByKeys(otherKeys, scan, null, name, actionsOf(request));
+    }
+
+
+    //  Условие на действия проверяемого разрешения для списков, найденных по ключам
+    private static Predicate<List<QueuePermission>> actionsOf(QueuePermissionBasicImpl request) {
+        int actionMask = request.getRequestedActionMask();
+        String actions = request.getActions();
+        return list -> anyImpliesActions(list, actionMask, actions);
+    }
+
+
+    //  impliedByKey() для ключа-подсети и IP-адреса request. Статический, чтобы ссылка на него не создавала объектов.
+    private static boolean impliedBySubnetKey(PermissionIndex index, QueuePermissionBasicImpl request, long scan, String key) {
+        String name = request.getName();
+        if (key.equals(name)) return false;
+        List<QueuePermission> permissionList = index.permissions.get(key);
+        QueuePermission first = permissionList.get(0);
+        boolean impliesResourceName = first instanceof QueuePermissionBasicImpl
+                ? ((QueuePermissionBasicImpl) first).impliesResourceName(scan, null, name)
+                : first.impliesResourceName(name);
+        return impliesResourceName && anyImpliesActions(permissionList, request.getRequestedActionMask(), request.getActions());
+    }
+
+
+    /**
+     * Подразумеваются ли разрешения разрешениями снимка - для многих разрешений за один вызов.
+     * <br><br>
+     * Разрешения {@link QueuePermissionBasicImpl} группируются по имени ресурса: имя распознается и сопоставляется
+     * с ключами снимка один раз на группу, а действия всех разрешений группы проверяются по одним и тем же найденным
+     * спискам. Внутри группы разрешения с одинаковой маской действий проверяются один раз. Остальные разрешения
+     * проверяются по одному, как в {@link #implies(Permission)}.
+     * @param permissions Проверяемые разрешения
+     * @return Набор номеров разрешений(в порядке списка), которые подразумеваются
+     */
+    BitSet impliesAll(List<? extends Permission> permissions) {
+        BitSet result = new BitSet(permissions.size());
+        Map<String, RequestGroup> groups = new HashMap<>();
+        for (int i = 0; i < permissions.size(); i++) {
+            Permission permission = permissions.get(i);
+            //  Маска без неизвестных действий полностью определяет и строку действий(см. DecisionCache)
+            if (permission instanceof QueuePermissionBasicImpl
+                    && (((QueuePermissionBasicImpl) permission).getRequestedActionMask() & ActionMask.UNKNOWN) == 0) {
+                groups.computeIfAbsent(permission.getName(), name -> new RequestGroup())
+                        .add(i, ((QueuePermissionBasicImpl) permission).getRequestedActionMask());
+            } else if (implies(permission)) {
+                result.set(i);
+            }
+        }
+
+        for (Map.Entry<String, RequestGroup> entry : groups.entrySet()) {
+            RequestGroup group = entry.getValue();
+            anyImplyingList(entry.getKey(), true, group::satisfyBy);
+            for (int i = 0; i < group.size; i++) {
+                if (group.isSatisfied(group.masks[i])) result.set(group.positions[i]);
+            }
+        }
+        return result;
+    }
+
+
+    /*
+    Проверяемые разрешения с одним именем ресурса: их номера в списке и маски действий.
+    Различные маски группы собраны отдельно, и для каждой запоминается, подразумевается ли она уже.
+     */
+    private static final class RequestGroup {
+        int[] positions = new int[1];
+        int[] masks = new int[1];
+        int size;
+        int[] distinctMasks = new int[1];
+        String[] distinctActions = new String[1];
+        boolean[] satisfied = new boolean[1];
+        int distinctSize;
+        int unsatisfied;
+
+        void add(int position, int mask) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                masks = Arrays.copyOf(masks, size * 2);
+            }
+            positions[size] = position;
+            masks[size] = mask;
+            size++;
+            for (int i = 0; i < distinctSize; i++) {
+                if (distinctMasks[i] == mask) return;
+            }
+            if (distinctSize == distinctMasks.length) {
+                distinctMasks = Arrays.copyOf(distinctMasks, distinctSize * 2);
+                distinctActions = Arrays.copyOf(distinctActions, distinctSize * 2);
+                satisfied = Arrays.copyOf(satisfied, distinctSize * 2);
+            }
+            distinctMasks[distinctSize] = mask;
+            //  Строка действий нужна только разрешениям других реализаций
+            distinctActions[distinctSize] = ActionMask.toActions(mask);
+            distinctSize++;
+            unsatisfied++;
+        }
+
+        //  Отметить маски, которые подразумеваются действиями разрешений списка. true - отмечены все маски группы,
+        //  дальше искать не нужно.
+        boolean satisfyBy(List<QueuePermission> permissionList) {
+            for (int i = 0; i < distinctSize; i++) {
+                if (satisfied[i] == false
+                        && anyImpliesActions(permissionList, distinctMasks[i], distinctActions[i])) {
+                    satisfied[i] = true;
+                    unsatisfied--;
+                }
+            }
+            return unsatisfied == 0;
+        }
+
+        boolean isSatisfied(int mask) {
+            for (int i = 0; i < distinctSize; i++) {
+                if (distinctMasks[i] == mask) return satisfied[i];
+            }
+            return false;
+        }
+    }
+
+
+    /*
+    Обход списков разрешений, имя ресурса которых подразумевает имя name. Для каждого такого списка вызывается условие;
+    обход прекращается, как только условие вернет true.
+    resolveNames = false - ключи, проверка по которым может обратиться к DNS, пропускаются(см. needsNameResolution).
+     */
+    private boolean anyImplyingList(String name, boolean resolveNames, Predicate<List<QueuePermission>> predicate) {
+
+        //  Получаем список всех разрешений для имени ресурса
+        List<QueuePermission> permissionList = permissions.get(name);
+        if (permissionList != null) {
+            //  Название ресурса присутствует как ключ в снимке.
+            if (predicate.test(permissionList)) {
+                return true;
+            }
+        }
+
+        //  В это точку выполнение алгоритма дойдет только в двух случаях:
+        //  1.В снимке нет ключа с именем name (permissionList будет null)
+        //  2.В снимке есть ключ с именем name, но список разрешений за этим ключом условию не удовлетворил.
+        //    Именно этот случай(когда permissionList не null) нужно проверять в дальнейшей логике...
+
+        //  Дальше нужно найти ключи, которые подразумевают имя проверяемого ресурса. Какие ключи вообще могут его подразумевать,
+        //  зависит от типа ресурса. Тип распознается так же, как это делает QueuePermissionBasicImpl.impliesResourceName().
+        //  IPv6-адрес разбирается один раз - и для распознавания, и для поиска по дереву
+        Ipv6Address ipv6 = name.indexOf(':') >= 0 ? Ipv6Address.parse(name) : null;
+        long scan = ipv6 != null ? ResourceNameScanner.scan(ipv6) : ResourceNameScanner.scan(name);
+        ResourceType resourceType = ResourceNameScanner.type(scan);
+
+        if (resourceType == ResourceType.IP) {
+            //  IP-адрес может входить только в подсети, префикс которых совпадает с началом адреса.
+            //  Дерево отдает именно их, за один спуск. Ключи-IP адрес не подразумевают никогда: IP подразумевает только
+            //  такой же IP, а он уже был проверен выше.
+            int address = ResourceNameScanner.address(scan);
+            if (subnetIndex.anyCovering(address, key -> impliedByKey(key, scan, null, name, predicate))) return true;
+            if (resolveNames && anyImpliedByKeys(domainNameKeys, scan, null, name, predicate)) return true;
+        }
+
+        if (resourceType == ResourceType.IPV6 || resourceType == ResourceType.IPV6_SUBNET) {
+            //  Так же, как для IPv4: IPv6-адрес подразумевается адресами и подсетями на пути спуска по его битам,
+            //  IPv6-подсеть - только подсетями на глубине не больше ее префикса.
+            if (ipv6Index.anyCovering(ipv6.high, ipv6.low, ipv6.prefixLength,
+                    key -> impliedByKey(key, scan, ipv6, name, predicate))) return true;
+            if (resolveNames && resourceType == ResourceType.IPV6
+                    && anyImpliedByKeys(domainNameKeys, scan, ipv6, name, predicate)) return true;
+        }
+
+        if (resourceType == ResourceType.DOMAINNAME && resolveNames) {
+            if (anyImpliedByKeys(ipKeys, scan, null, name, predicate)) return true;
+            if (anyImpliedByKeys(subnetKeys, scan, null, name, predicate)) return true;
+            if (anyImpliedByKeys(ipv6Keys, scan, null, name, predicate)) return true;
+        }
+
+        if (resourceType == ResourceType.DOMAINNAME) {
+            //  Доменное имя подразумевается только доменами, поддоменом которых оно является. Все они лежат на пути
+            //  спуска по меткам имени.
+            if (domainNameIndex.anyCovering(name, key -> impliedByKey(key, scan, null, name, predicate))) return true;
+        }
+
+        //  Подсеть подразумевается только такой же подсетью, которая была проверена выше.
+        //  Нераспознанное имя не подразумевается ни одним разрешением QueuePermissionBasicImpl.
+        //  Остаются только ключи других реализаций.
+        if (resolveNames && anyImpliedByKeys(otherKeys, scan, null, name, predicate)) return true;
+
+        //  Самый крайний случай...
+        //  Мы проверили абсолютно все разрешения снимка и не нашли ни одного списка, удовлетворяющего условию.
+        return false;
+    }
+
+
+    /*
+    Подразумевает ли ключ key имя name, и удовлетворяет ли условию список разрешений за этим ключом.
+    ipv6 - разобранный адрес, если name - IPv6-адрес или IPv6-подсеть; иначе null.
+    Все разрешения в списке хранят одно и то-же имя ресурса. Поэтому, нет необходимости делать проверку impliesResourceName()
+    для каждого разрешения из списка. Достаточно сделать для первого.
+     */
+    private boolean impliedByKey(String key, long scan, Ipv6Address ipv6, String name,
+                                 Predicate<List<QueuePermission>> predicate) {
+        //  Список разрешений, закрепленный за самим именем name, уже проверен.
+        if (key.equals(name)) return false;
+        List<QueuePermission> permissionList = permissions.get(key);
+        QueuePermission first = permissionList.get(0);
+        //  Имя проверяемого ресурса уже распознано - для QueuePermissionBasicImpl повторно распознавать его не нужно
+        boolean impliesResourceName = first instanceof QueuePermissionBasicImpl
+                ? ((QueuePermissionBasicImpl) first).impliesResourceName(scan, ipv6, name)
+                : first.impliesResourceName(name);
+        //  Имя проверяемого ресурса подразумевается в имени разрешений анализируемого списка.
+        //  Применяем, поэтому, условие(например, функционал "подразумевает ли?" для действий).
+        return impliesResourceName && predicate.test(permissionList);
+    }
+
+
+    private boolean anyImpliedByKeys(PersistentMap<String, String> keys, long scan, Ipv6Address ipv6, String name,
+                                     Predicate<List<QueuePermission>> predicate) {
+        return keys.anyValue(key -> impliedByKey(key, scan, ipv6, name, predicate));
+    }
+
+
+    /*
+    Подразумевают ли действия хотя бы одного разрешения из списка запрашиваемые действия.
+    Для QueuePermissionBasicImpl сравниваются маски; другие реализации проверяют строку действий сами.
+     */
+    static boolean anyImpliesActions(List<QueuePermission> permissionList, int actionMask, String actions) {
+        //  Списки снимка - с произвольным доступом; обход по номеру не создает итератор
+        for (int i = 0; i < permissionList.size(); i++) {
+            QueuePermission permission = permissionList.get(i);
+            boolean impliesActions = permission instanceof QueuePermissionBasicImpl
+                    ? ((QueuePermissionBasicImpl) permission).impliesActions(actionMask)
+                    : permission.impliesActions(actions);
+            if (impliesActions) return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        permissions.forEach((name, permissionList) -> {
+            if (builder.length() > 1) builder.append(", ");
+            builder.append(name).append('=').append(permissionList);
+        });
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,347 @@
+package dk.messagebroker.queuepermission;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Двоичный снимок коллекции разрешений {@link QueuePermissionBasicImpl} - для быстрого старта без разбора строк.
+ * <br><br>
+ * В снимок записываются уже разобранные разрешения: тип ресурса, IP-адрес и длина префикса как числа, IPv6-адрес как
+ * два числа типа long, доменное имя как номера меток в общей таблице меток, действия как номер в общей таблице масок
+ * действий. При чтении файл отображается в память, и разрешения собираются из чисел без распознавания имени и без
+ * разбора строки действий. Прочитанные разрешения добавляются в коллекцию одним пакетом.
+ * <br><br>
+ * Формат(версия 1, порядок байтов big-endian):
+ * <ul>
+ *     <li>заголовок: int {@link #MAGIC}, short версия, short резерв(0), int число разрешений</li>
+ *     <li>таблица масок действий: short число масок, затем маски - по int</li>
+ *     <li>таблица меток доменных имен: int число меток, затем метки - byte длина и символы ASCII</li>
+ *     <li>разрешения: byte тип ресурса(см. ниже), short номер маски действий и данные, зависящие от типа</li>
+ *     <li>int контрольная сумма CRC32C всех предыдущих байтов</li>
+ * </ul>
+ * Данные разрешения по типам:
+ * <ul>
+ *     <li>0, тип не распознан: имя - int длина и байты UTF-8</li>
+ *     <li>1, IP-адрес: int адрес</li>
+ *     <li>2, подсеть: int адрес в том виде, как он записан в имени, byte длина префикса</li>
+ *     <li>3, доменное имя: byte число меток, затем номера меток - по int</li>
+ *     <li>4, IPv6-адрес и 5, IPv6-подсеть: long старшие и long младшие биты номера сети, byte длина префикса и
+ *     имя - int длина и байты UTF-8. Имя хранится, потому что у IPv6-адреса много текстовых записей.</li>
+ * </ul>
+ * Запись IP-адреса и подсети однозначна(ведущие нули не распознаются), поэтому их имя восстанавливается по числам.
+ * <br><br>
+ * Прочитанные разрешения выполняют проверки реализацией по умолчанию, как созданные конструктором
+ * {@link QueuePermissionBasicImpl#QueuePermissionBasicImpl(String, String)}. Порядок разрешений и списки разрешений
+ * по именам сохраняются.
+ */
+public final class PermissionSnapshot {
+
+    /**
+     * Признак файла снимка - "QPS1"
+     */
+    public static final int MAGIC = 0x51505331;
+
+    /**
+     * Версия формата
+     */
+    public static final short VERSION = 1;
+
+    private static final byte TAG_UNRECOGNIZED = 0;
+    private static final byte TAG_IP = 1;
+    private static final byte TAG_SUBNET = 2;
+    private static final byte TAG_DOMAINNAME = 3;
+    private static final byte TAG_IPV6 = 4;
+    private static final byte TAG_IPV6_SUBNET = 5;
+
+    //  Заголовок, смещение числа разрешений в нем и контрольная сумма
+    private static final int HEADER_SIZE = 12;
+    private static final int COUNT_OFFSET = 8;
+    private static final int CHECKSUM_SIZE = 4;
+
+    //  Число меток доменного имени и длина метки записываются одним байтом
+    private static final int MAX_LABEL_COUNT = 0xFF;
+    private static final int MAX_LABEL_LENGTH = 0xFF;
+
+    private PermissionSnapshot() {
+    }
+
+
+    /**
+     * Записать снимок коллекции в файл.
+     * <br><br>
+     * Снимок сначала пишется во временный файл рядом с целевым, а затем подменяет целевой: читатель никогда не увидит
+     * недописанный снимок.
+     * @param collection Коллекция разрешений
+     * @param file Файл снимка
+     * @return Число записанных разрешений
+     * @throws IOException Ошибка записи
+     * @throws IllegalArgumentException В коллекции есть разрешение другого класса, чем {@link QueuePermissionBasicImpl},
+     * или доменное имя, в котором больше 255 меток или метка длиннее 255 символов
+     */
+    public static int write(QueuePermissionCollection collection, Path file) throws IOException {
+        List<QueuePermissionBasicImpl> permissions = new ArrayList<>();
+        Enumeration<Permission> elements = collection.elements();
+        while (elements.hasMoreElements()) {
+            Permission permission = elements.nextElement();
+            if (permission.getClass() != QueuePermissionBasicImpl.class) {
+                throw new IllegalArgumentException("Permission class is not supported by snapshot: " + permission.getClass().getName());
+            }
+            permissions.add((QueuePermissionBasicImpl) permission);
+        }
+
+        //  Таблицы масок и меток
+        Map<Integer, Integer> maskIndexes = new HashMap<>();
+        List<Integer> masks = new ArrayList<>();
+        Map<String, Integer> labelIndexes = new HashMap<>();
+        List<String> labels = new ArrayList<>();
+        for (QueuePermissionBasicImpl permission : permissions) {
+            maskIndexes.computeIfAbsent(permission.getActionMask(), mask -> {
+                masks.add(mask);
+                return masks.size() - 1;
+            });
+            if (permission.getResourceType() == ResourceType.DOMAINNAME) {
+                String[] nameLabels = permission.getName().split("\\.");
+                if (nameLabels.length > MAX_LABEL_COUNT) {
+                    throw new IllegalArgumentException("Domain name has more than " + MAX_LABEL_COUNT + " labels: " + permission.getName());
+                }
+                for (String label : nameLabels) {
+                    if (label.length() > MAX_LABEL_LENGTH) {
+                        throw new IllegalArgumentException("Domain name label is longer than " + MAX_LABEL_LENGTH + " characters: " + permission.getName());
+                    }
+                    labelIndexes.computeIfAbsent(label, key -> {
+                        labels.add(key);
+                        return labels.size() - 1;
+                    });
+                }
+            }
+        }
+
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            CRC32C checksum = new CRC32C();
+            try (OutputStream fileOutput = Files.newOutputStream(temporary);
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOutput, checksum), 1 << 16))) {
+                output.writeInt(MAGIC);
+                output.writeShort(VERSION);
+                output.writeShort(0);
+                output.writeInt(permissions.size());
+
+                output.writeShort(masks.size());
+                for (int mask : masks) output.writeInt(mask);
+
+                output.writeInt(labels.size());
+                for (String label : labels) {
+                    output.writeByte(label.length());
+                    output.writeBytes(label);
+                }
+
+                for (QueuePermissionBasicImpl permission : permissions) {
+                    writePermission(output, permission, maskIndexes.get(permission.getActionMask()), labelIndexes);
+                }
+
+                //  Контрольная сумма пишется в обход CheckedOutputStream, но после сброса буфера
+                output.flush();
+                int value = (int) checksum.getValue();
+                fileOutput.write(new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return permissions.size();
+    }
+
+
+    private static void writePermission(DataOutputStream output, QueuePermissionBasicImpl permission, int maskIndex,
+                                        Map<String, Integer> labelIndexes) throws IOException {
+        String name = permission.getName();
+        ResourceType type = permission.getResourceType();
+        if (type == null) {
+            output.writeByte(TAG_UNRECOGNIZED);
+            output.writeShort(maskIndex);
+            writeString(output, name);
+            return;
+        }
+        switch (type) {
+            case IP:
+            case SUBNET: {
+                //  В разрешении хранится номер сети, а имя восстанавливается по адресу из имени
+                long scan = ResourceNameScanner.scan(name);
+                output.writeByte(type == ResourceType.IP ? TAG_IP : TAG_SUBNET);
+                output.writeShort(maskIndex);
+                output.writeInt(ResourceNameScanner.address(scan));
+                if (type == ResourceType.SUBNET) output.writeByte(ResourceNameScanner.prefixLength(scan));
+                break;
+            }
+            case DOMAINNAME: {
+                String[] labels = name.split("\\.");
+                output.writeByte(TAG_DOMAINNAME);
+                output.writeShort(maskIndex);
+                output.writeByte(labels.length);
+                for (String label : labels) output.writeInt(labelIndexes.get(label));
+                break;
+            }
+            default: {
+                Ipv6Address ipv6 = permission.getIpv6();
+                output.writeByte(type == ResourceType.IPV6 ? TAG_IPV6 : TAG_IPV6_SUBNET);
+                output.writeShort(maskIndex);
+                output.writeLong(ipv6.high);
+                output.writeLong(ipv6.low);
+                output.writeByte(ipv6.prefixLength);
+                writeString(output, name);
+            }
+        }
+    }
+
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+
+    /**
+     * Прочитать снимок в новую коллекцию {@link QueuePermissionCollectionConcurrentImpl}
+     * @param file Файл снимка
+     * @return Коллекция разрешений
+     * @throws IOException Ошибка чтения; файл не является снимком, версия не поддерживается или не совпала контрольная сумма
+     */
+    public static QueuePermissionCollection read(Path file) throws IOException {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        collection.addAll(readPermissions(file));
+        return collection;
+    }
+
+
+    /**
+     * Прочитать снимок и добавить разрешения в коллекцию одним вызовом
+     * {@link QueuePermissionCollection#addAll(Collection)}: коллекции этой библиотеки добавляют их одним пакетом.
+     * @param file Файл снимка
+     * @param collection Коллекция, в которую добавляются разрешения
+     * @return Число прочитанных разрешений
+     * @throws IOException Ошибка чтения; файл не является снимком, версия не поддерживается или не совпала контрольная сумма
+     */
+    public static int read(Path file, QueuePermissionCollection collection) throws IOException {
+        List<QueuePermission> permissions = readPermissions(file);
+        collection.addAll(permissions);
+        return permissions.size();
+    }
+
+
+    private static List<QueuePermission> readPermissions(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Snapshot is too large: " + file);
+            if (size < HEADER_SIZE + CHECKSUM_SIZE) throw new IOException("Not a permission snapshot: " + file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt(0) != MAGIC) throw new IOException("Not a permission snapshot: " + file);
+            short version = buffer.getShort(4);
+            if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            int dataSize = (int) size - CHECKSUM_SIZE;
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.duplicate().limit(dataSize));
+            if ((int) checksum.getValue() != buffer.getInt(dataSize)) {
+                throw new IOException("Snapshot checksum mismatch: " + file);
+            }
+
+            try {
+                return parse(buffer.limit(dataSize).position(COUNT_OFFSET));
+            } catch (RuntimeException e) {
+                //  Сумма совпала, а содержимое не разбирается - файл записан не этим классом
+                throw new IOException("Malformed permission snapshot: " + file, e);
+            }
+        }
+    }
+
+
+    private static List<QueuePermission> parse(ByteBuffer buffer) {
+        int count = buffer.getInt();
+
+        QueuePermissionBasicImpl.ParsedActions[] actions = new QueuePermissionBasicImpl.ParsedActions[buffer.getShort() & 0xFFFF];
+        for (int i = 0; i < actions.length; i++) actions[i] = new QueuePermissionBasicImpl.ParsedActions(buffer.getInt());
+
+        String[] labels = new String[buffer.getInt()];
+        byte[] bytes = new byte[255];
+        for (int i = 0; i < labels.length; i++) {
+            int length = buffer.get() & 0xFF;
+            buffer.get(bytes, 0, length);
+            labels[i] = new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+
+        List<QueuePermission> permissions = new ArrayList<>(count);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            byte tag = buffer.get();
+            QueuePermissionBasicImpl.ParsedActions parsedActions = actions[buffer.getShort() & 0xFFFF];
+            switch (tag) {
+                case TAG_IP: {
+                    int address = buffer.getInt();
+                    permissions.add(new QueuePermissionBasicImpl(ResourceNameScanner.ipv4Name(address, -1), ResourceType.IP,
+                            address, 32, null, parsedActions));
+                    break;
+                }
+                case TAG_SUBNET: {
+                    int address = buffer.getInt();
+                    int prefixLength = buffer.get();
+                    permissions.add(new QueuePermissionBasicImpl(ResourceNameScanner.ipv4Name(address, prefixLength), ResourceType.SUBNET,
+                            address, prefixLength, null, parsedActions));
+                    break;
+                }
+                case TAG_DOMAINNAME: {
+                    name.setLength(0);
+                    for (int labelCount = buffer.get() & 0xFF; labelCount > 0; labelCount--) {
+                        if (name.length() > 0) name.append('.');
+                        name.append(labels[buffer.getInt()]);
+                    }
+                    permissions.add(new QueuePermissionBasicImpl(name.toString(), ResourceType.DOMAINNAME,
+                            0, 0, null, parsedActions));
+                    break;
+                }
+                case TAG_IPV6:
+                case TAG_IPV6_SUBNET: {
+                    boolean subnet = tag == TAG_IPV6_SUBNET;
+                    Ipv6Address ipv6 = new Ipv6Address(buffer.getLong(), buffer.getLong(), buffer.get() & 0xFF, subnet);
+                    permissions.add(new QueuePermissionBasicImpl(readString(buffer),
+                            subnet ? ResourceType.IPV6_SUBNET : ResourceType.IPV6, 0, 0, ipv6, parsedActions));
+                    break;
+                }
+                case TAG_UNRECOGNIZED:
+                    permissions.add(new QueuePermissionBasicImpl(readString(buffer), null, 0, 0, null, parsedActions));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown resource type tag " + tag);
+            }
+        }
+        if (buffer.hasRemaining()) throw new IllegalStateException("Unexpected data after permissions");
+        return permissions;
+    }
+
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,613 @@
+package dk.messagebroker.queuepermission;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Неизменяемая хэш-карта с разделяемой структурой (hash array mapped trie).
+ * <br><br>
+ * Карта - это дерево, на каждом уровне которого узел разветвляется по очередным 5 битам хэш-кода ключа. Изменение
+ * карты({@link #with(Object, Object)}, {@link #without(Object)}) возвращает новую карту, копируя только узлы на пути
+ * к изменяемому ключу - не более 7 небольших массивов. Все остальные узлы разделяются между старой и новой картой.
+ * <br><br>
+ * Ключи и значения не могут быть null.
+ * @param <K> Тип ключа
+ * @param <V> Тип значения
+ */
+final class PersistentMap<K, V> {
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+
+    /**
+     * Получить значение по ключу
+     * @param key Ключ
+     * @return Значение; или null, если ключа в карте нет
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        return root == null ? null : (V) root.get(key.hashCode(), 0, key);
+    }
+
+
+    /**
+     * Получить карту, в которой ключу сопоставлено значение.
+     * @param key Ключ
+     * @param value Значение
+     * @return Новая карта; или эта же, если ключу уже сопоставлено это же значение
+     */
+    PersistentMap<K, V> with(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node start = root == null ? BitmapNode.EMPTY : root;
+        Node newRoot = start.with(key.hashCode(), 0, key, value, added);
+        if (newRoot == root) return this;
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+
+    /**
+     * Получить карту, в которой ключам сопоставлены значения - для многих ключей за один вызов.
+     * <br><br>
+     * Результат тот же, что и у последовательных вызовов {@link #with(Object, Object)}, но ключи раскладываются по
+     * поддеревьям заранее, и каждый затронутый узел копируется один раз, а не при добавлении каждого ключа.
+     * @param keys Ключи; не должны повторяться
+     * @param values Значения - в порядке ключей
+     * @return Новая карта
+     */
+    PersistentMap<K, V> withAll(List<? extends K> keys, List<? extends V> values) {
+        int count = keys.size();
+        if (count == 0) return this;
+        Object[] keyArray = keys.toArray();
+        Object[] valueArray = values.toArray();
+        int[] hashes = new int[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = keyArray[i].hashCode();
+            order[i] = i;
+        }
+        int[] added = new int[1];
+        Node start = root == null ? BitmapNode.EMPTY : root;
+        Node newRoot = start.withAll(new Batch(hashes, keyArray, valueArray, order), 0, count, 0, added);
+        return new PersistentMap<>(newRoot, size + added[0]);
+    }
+
+
+    /**
+     * Получить карту без ключа.
+     * @param key Ключ
+     * @return Новая карта; или эта же, если ключа в карте нет
+     */
+    PersistentMap<K, V> without(Object key) {
+        if (root == null) return this;
+        Node newRoot = root.without(key.hashCode(), 0, key);
+        if (newRoot == root) return this;
+        return new PersistentMap<>(newRoot, size - 1);
+    }
+
+
+    int size() {
+        return size;
+    }
+
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    /**
+     * Выполнить действие для каждой пары ключ-значение. Порядок обхода не определен.
+     * @param action Действие
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+
+    /**
+     * Есть ли в карте значение, удовлетворяющее условию. Перебор прекращается на первом таком значении.
+     * @param predicate Условие
+     * @return true(есть)/false(нет)
+     */
+    @SuppressWarnings("unchecked")
+    boolean anyValue(Predicate<? super V> predicate) {
+        return root != null && root.anyValue((Predicate<Object>) predicate);
+    }
+
+
+    /**
+     * Получить итератор по значениям карты. Порядок обхода не определен.
+     * Итератор обходит именно эту карту: последующие изменения(которые создают новые карты) на него не влияют.
+     * @return Итератор
+     */
+    Iterator<V> valueIterator() {
+        return root == null ? new ValueIterator<>(new Object[0], 0, 0) : new ValueIterator<>(root.array(), 0, root.array().length);
+    }
+
+
+    /**
+     * Получить Spliterator по значениям карты - для параллельной обработки. Порядок обхода не определен.
+     * <br><br>
+     * Разделение идет по поддеревьям: пары корневого узла делятся пополам, а единственное оставшееся поддерево
+     * заменяется его узлом. Поэтому части получаются близкими по размеру - хэш-коды распределяют ключи по поддеревьям
+     * равномерно. Как и итератор, Spliterator обходит именно эту карту.
+     * @return Spliterator
+     */
+    Spliterator<V> valueSpliterator() {
+        return root == null
+                ? new ValueSpliterator<>(new Object[0], 0, 0, 0, true)
+                : new ValueSpliterator<>(root.array(), 0, root.array().length, size, true);
+    }
+
+
+    /*
+    Обход дерева без рекурсии. В стеке - массивы пар узлов на пути от корня и текущие позиции в них.
+    Глубина дерева ограничена: 7 уровней разветвления по 5 битам 32-битного хэша и узел коллизий.
+    На верхнем уровне обходятся только пары с позициями [start, end).
+     */
+    private static final class ValueIterator<V> implements Iterator<V> {
+
+        private static final int MAX_DEPTH = 9;
+
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private final int end;
+        private int depth = -1;
+        private Object next;
+
+        ValueIterator(Object[] array, int start, int end) {
+            this.end = end;
+            if (start < end) {
+                arrays[0] = array;
+                positions[0] = start;
+                depth = 0;
+                advance();
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int position = positions[depth];
+                if (position >= (depth == 0 ? end : array.length)) {
+                    arrays[depth] = null;
+                    positions[depth] = 0;
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+                if (array[position] == null) {
+                    depth++;
+                    arrays[depth] = ((Node) array[position + 1]).array();
+                    positions[depth] = 0;
+                } else {
+                    next = array[position + 1];
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) throw new NoSuchElementException();
+            V value = (V) next;
+            advance();
+            return value;
+        }
+    }
+
+
+    /*
+    Spliterator по парам [start, end) массива узла. Пока обход не начат, делится: сначала по парам массива, а если
+    осталась одна пара с вложенным узлом - спускается в этот узел. Размер точно известен только до первого разделения.
+     */
+    private static final class ValueSpliterator<V> implements Spliterator<V> {
+
+        private Object[] array;
+        private int start;
+        private int end;
+        private long estimate;
+        private boolean exact;
+        //  Создается при первом обходе; после этого Spliterator больше не делится
+        private ValueIterator<V> iterator;
+
+        ValueSpliterator(Object[] array, int start, int end, long estimate, boolean exact) {
+            this.array = array;
+            this.start = start;
+            this.end = end;
+            this.estimate = estimate;
+            this.exact = exact;
+        }
+
+        @Override
+        public Spliterator<V> trySplit() {
+            if (iterator != null) return null;
+            while (end - start == 2 && array[start] == null) {
+                Object[] nested = ((Node) array[start + 1]).array();
+                array = nested;
+                start = 0;
+                end = nested.length;
+            }
+            int pairs = (end - start) / 2;
+            if (pairs < 2) return null;
+            int middle = start + (pairs / 2) * 2;
+            long prefixEstimate = estimate / 2;
+            Spliterator<V> prefix = new ValueSpliterator<>(array, start, middle, prefixEstimate, false);
+            start = middle;
+            estimate -= prefixEstimate;
+            exact = false;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            if (iterator == null) iterator = new ValueIterator<>(array, start, end);
+            if (iterator.hasNext() == false) return false;
+            if (estimate > 0) estimate--;
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super V> action) {
+            if (iterator == null) iterator = new ValueIterator<>(array, start, end);
+            estimate = 0;
+            iterator.forEachRemaining(action);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return exact ? NONNULL | IMMUTABLE | SIZED : NONNULL | IMMUTABLE;
+        }
+    }
+
+
+    /*
+    Добавляемые пары для withAll(). order[from, to) - номера пар, которые относятся к обрабатываемому узлу.
+     */
+    private static final class Batch {
+        final int[] hashes;
+        final Object[] keys;
+        final Object[] values;
+        final int[] order;
+
+        Batch(int[] hashes, Object[] keys, Object[] values, int[] order) {
+            this.hashes = hashes;
+            this.keys = keys;
+            this.values = values;
+            this.order = order;
+        }
+
+        //  Добавить пары order[from, to) по одной. added[0] увеличивается на количество новых ключей.
+        Node withEach(Node node, int from, int to, int shift, int[] added) {
+            boolean[] isAdded = new boolean[1];
+            for (int i = from; i < to; i++) {
+                int pair = order[i];
+                isAdded[0] = false;
+                node = node.with(hashes[pair], shift, keys[pair], values[pair], isAdded);
+                if (isAdded[0]) added[0]++;
+            }
+            return node;
+        }
+    }
+
+
+    private interface Node {
+        //  Пары ключ-значение узла; ключ null - значением является вложенный узел
+        Object[] array();
+        boolean anyValue(Predicate<Object> predicate);
+        Object get(int hash, int shift, Object key);
+        Node with(int hash, int shift, Object key, Object value, boolean[] added);
+        Node withAll(Batch batch, int from, int to, int shift, int[] added);
+        //  null - узел стал пустым
+        Node without(int hash, int shift, Object key);
+        void forEach(BiConsumer<Object, Object> action);
+    }
+
+
+    /*
+    Узел с разветвлением по 5 битам хэша. Для каждого установленного бита bitmap в массиве array хранится пара:
+    ключ и значение, либо null и вложенный узел.
+     */
+    private static final class BitmapNode implements Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Object[] array() {
+            return array;
+        }
+
+        @Override
+        public boolean anyValue(Predicate<Object> predicate) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    if (((Node) array[i + 1]).anyValue(predicate)) return true;
+                } else {
+                    if (predicate.test(array[i + 1])) return true;
+                }
+            }
+            return false;
+        }
+
+        private static int bitpos(int hash, int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object get(int hash, int shift, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return null;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) return ((Node) v).get(hash, shift + 5, key);
+            return key.equals(k) ? v : null;
+        }
+
+        @Override
+        public Node with(int hash, int shift, Object key, Object value, boolean[] added) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, 2 * idx);
+                newArray[2 * idx] = key;
+                newArray[2 * idx + 1] = value;
+                System.arraycopy(array, 2 * idx, newArray, 2 * idx + 2, array.length - 2 * idx);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node node = ((Node) v).with(hash, shift + 5, key, value, added);
+                return node == v ? this : replace(2 * idx + 1, node);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : replace(2 * idx + 1, value);
+            }
+            added[0] = true;
+            Object[] newArray = array.clone();
+            newArray[2 * idx] = null;
+            newArray[2 * idx + 1] = createNode(shift + 5, k, v, hash, key, value);
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        public Node withAll(Batch batch, int from, int to, int shift, int[] added) {
+            //  На последнем уровне разветвления в одну ячейку попадают только ключи с одинаковым хэшем - их проще
+            //  добавить по одному
+            if (shift >= 30 || to - from == 1) return batch.withEach(this, from, to, shift, added);
+
+            //  Устойчивая сортировка пар по ячейкам узла: пары одной ячейки идут подряд и в исходном порядке
+            int[] order = batch.order;
+            int[] starts = new int[33];
+            for (int i = from; i < to; i++) starts[((batch.hashes[order[i]] >>> shift) & 31) + 1]++;
+            for (int c = 0; c < 32; c++) starts[c + 1] += starts[c];
+            int[] sorted = new int[to - from];
+            int[] positions = Arrays.copyOf(starts, 32);
+            for (int i = from; i < to; i++) sorted[positions[(batch.hashes[order[i]] >>> shift) & 31]++] = order[i];
+            System.arraycopy(sorted, 0, order, from, sorted.length);
+
+            int newBitmap = bitmap;
+            for (int c = 0; c < 32; c++) {
+                if (starts[c + 1] > starts[c]) newBitmap |= 1 << c;
+            }
+            Object[] newArray = new Object[2 * Integer.bitCount(newBitmap)];
+            int oldIndex = 0;
+            int newIndex = 0;
+            for (int c = 0; c < 32; c++) {
+                int bit = 1 << c;
+                if ((newBitmap & bit) == 0) continue;
+                boolean hasOld = (bitmap & bit) != 0;
+                Object k = hasOld ? array[2 * oldIndex] : null;
+                Object v = hasOld ? array[2 * oldIndex + 1] : null;
+                int groupFrom = from + starts[c];
+                int groupTo = from + starts[c + 1];
+                if (groupFrom == groupTo) {
+                    newArray[2 * newIndex] = k;
+                    newArray[2 * newIndex + 1] = v;
+                } else if (hasOld == false && groupTo - groupFrom == 1) {
+                    newArray[2 * newIndex] = batch.keys[order[groupFrom]];
+                    newArray[2 * newIndex + 1] = batch.values[order[groupFrom]];
+                    added[0]++;
+                } else if (hasOld && k != null && groupTo - groupFrom == 1 && k.equals(batch.keys[order[groupFrom]])) {
+                    newArray[2 * newIndex] = k;
+                    newArray[2 * newIndex + 1] = batch.values[order[groupFrom]];
+                } else {
+                    //  Ячейка становится(или остается) вложенным узлом. Пара, которая была в ячейке, переходит в него.
+                    Node child;
+                    if (hasOld == false) {
+                        child = EMPTY;
+                    } else if (k == null) {
+                        child = (Node) v;
+                    } else {
+                        child = EMPTY.with(k.hashCode(), shift + 5, k, v, new boolean[1]);
+                    }
+                    newArray[2 * newIndex + 1] = child.withAll(batch, groupFrom, groupTo, shift + 5, added);
+                }
+                if (hasOld) oldIndex++;
+                newIndex++;
+            }
+            return new BitmapNode(newBitmap, newArray);
+        }
+
+        private BitmapNode replace(int i, Object o) {
+            Object[] newArray = array.clone();
+            newArray[i] = o;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2) return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+            boolean[] added = new boolean[1];
+            return EMPTY.with(hash1, shift, key1, value1, added).with(hash2, shift, key2, value2, added);
+        }
+
+        @Override
+        public Node without(int hash, int shift, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node node = ((Node) v).without(hash, shift + 5, key);
+                if (node == v) return this;
+                if (node != null) return replace(2 * idx + 1, node);
+            } else if (key.equals(k) == false) {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            System.arraycopy(array, 2 * idx + 2, newArray, 2 * idx, newArray.length - 2 * idx);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+    }
+
+
+    /*
+    Узел для ключей с полностью совпадающими хэш-кодами. Пары ключ-значение хранятся подряд и перебираются линейно.
+     */
+    private static final class CollisionNode implements Node {
+
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        public Object[] array() {
+            return array;
+        }
+
+        @Override
+        public boolean anyValue(Predicate<Object> predicate) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (predicate.test(array[i + 1])) return true;
+            }
+            return false;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public Object get(int hash, int shift, Object key) {
+            int i = find(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        public Node with(int hash, int shift, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                //  Новый ключ отличается хэшем - этот узел становится вложенным в узел с разветвлением
+                Node node = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[]{null, this});
+                return node.with(hash, shift, key, value, added);
+            }
+            int i = find(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                Object[] newArray = array.clone();
+                newArray[i + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            added[0] = true;
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        public Node withAll(Batch batch, int from, int to, int shift, int[] added) {
+            return batch.withEach(this, from, to, shift, added);
+        }
+
+        @Override
+        public Node without(int hash, int shift, Object key) {
+            int i = find(key);
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package dk.messagebroker.queuepermission;
+
+import java.security.Permission;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Проверка разрешений по скомпилированному индексу({@link PolicyIndex}) коллекции с пересборкой индекса в фоне.
+ * <br><br>
+ * Проверки читают текущий индекс без блокировок. Изменения коллекции в индекс сами не попадают: после них нужно
+ * вызвать {@link #rebuild()}. Новый индекс компилируется в исполнителе и подменяет текущий одной записью, так что
+ * проверка всегда работает с целым индексом - старым или новым. Запросы на пересборку, пришедшие, пока предыдущая
+ * пересборка еще не началась, объединяются в одну.
+ * <br><br>
+ * Поток пересборки, созданный конструктором без исполнителя, останавливается методом {@link #close()}.
+ */
+public class PolicyEngine implements AutoCloseable {
+
+    private final QueuePermissionCollection collection;
+    private final Executor executor;
+    //  Исполнитель, созданный движком; null - исполнителем управляет вызывающий
+    private final ExecutorService ownedExecutor;
+
+    private volatile PolicyIndex index;
+
+    private final Object lock = new Object();
+    //  Запланированная, но еще не начатая пересборка. Используется только под блокировкой lock.
+    private CompletableFuture<PolicyIndex> scheduled;
+
+    //  Блокировка сборки и подмены индекса: пересборки выполняются по одной
+    private final Object rebuildLock = new Object();
+
+
+    /**
+     * Конструктор. Пересборка выполняется в отдельном потоке-демоне; поток останавливается методом {@link #close()}.
+     * @param collection Коллекция разрешений
+     */
+    public PolicyEngine(QueuePermissionCollection collection) {
+        this(collection, defaultExecutor(), true);
+    }
+
+
+    /**
+     * Конструктор. Первый индекс компилируется сразу, в вызывающем потоке. Исполнитель не останавливается методом
+     * {@link #close()} - им управляет вызывающий.
+     * @param collection Коллекция разрешений
+     * @param executor Исполнитель пересборок
+     */
+    public PolicyEngine(QueuePermissionCollection collection, Executor executor) {
+        this(collection, executor, false);
+    }
+
+
+    private PolicyEngine(QueuePermissionCollection collection, Executor executor, boolean ownsExecutor) {
+        this.collection = collection;
+        this.executor = executor;
+        this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.index = PolicyIndex.compile(collection);
+    }
+
+
+    /**
+     * Подразумевается ли разрешение текущим индексом
+     * @param permission Проверяемое разрешение
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    public boolean implies(Permission permission) {
+        return index.implies(permission);
+    }
+
+
+    /**
+     * Получить текущий индекс
+     * @return Индекс
+     */
+    public PolicyIndex index() {
+        return index;
+    }
+
+
+    /**
+     * Запланировать пересборку индекса по текущему содержимому коллекции.
+     * <br><br>
+     * Если пересборка уже запланирована и еще не началась, возвращается ее результат: она прочитает коллекцию позже
+     * и увидит в том числе изменения, сделанные перед этим вызовом.
+     * @return Результат пересборки - новый индекс, уже ставший текущим
+     */
+    public CompletableFuture<PolicyIndex> rebuild() {
+        CompletableFuture<PolicyIndex> future;
+        synchronized (lock) {
+            if (scheduled != null) return scheduled;
+            future = new CompletableFuture<>();
+            scheduled = future;
+        }
+        try {
+            executor.execute(() -> {
+                synchronized (lock) {
+                    //  Изменения коллекции после этой точки требуют новой пересборки
+                    if (scheduled == future) scheduled = null;
+                }
+                try {
+                    PolicyIndex newIndex;
+                    //  Пересборки не пересекаются: более ранняя не подменит индекс, собранный более поздней
+                    synchronized (rebuildLock) {
+                        newIndex = PolicyIndex.compile(collection);
+                        index = newIndex;
+                    }
+                    future.complete(newIndex);
+                } catch (RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            //  Исполнитель отказал(например, остановлен) - пересборка не запланирована
+            synchronized (lock) {
+                if (scheduled == future) scheduled = null;
+            }
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+
+    /**
+     * Остановить поток пересборки, созданный движком. Уже запланированная пересборка выполняется; новые запросы
+     * пересборки завершаются исключением. Внешний исполнитель не останавливается.
+     */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) ownedExecutor.shutdown();
+    }
+
+
+    private static ExecutorService defaultExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "policy-index-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+}
@@ -0,0 +1,472 @@
+package dk.messagebroker.queuepermission;
+
+import java.security.Permission;
+import java.util.*;
+
+/**
+ * Скомпилированная, неизменяемая форма коллекции разрешений. Отвечает на implies() так же, как коллекция, из которой
+ * она построена({@link #compile(QueuePermissionCollection)}), но не интерпретирует разрешения при каждом вызове.
+ * <br><br>
+ * Разрешения {@link QueuePermissionBasicImpl} раскладываются по специализированным структурам:
+ * <ul>
+ *     <li>IP-адреса - хэш-таблица с открытой адресацией по адресу-числу</li>
+ *     <li>подсети - двоичное префиксное дерево; IPv6-адреса и IPv6-подсети - такое же дерево глубиной 128</li>
+ *     <li>доменные имена - дерево меток в обратном порядке</li>
+ *     <li>подсети(для проверки такой же подсети) и нераспознанные имена - хэш-таблица по имени</li>
+ * </ul>
+ * В каждом узле вместо списка разрешений хранится набор масок действий: различные маски разрешений узла, из которых
+ * убраны маски, входящие в другие маски набора. Маски разных разрешений не объединяются в одну: разрешение "pusher"
+ * и разрешение "puller" не подразумевают запрос "pusher,puller".
+ * <br><br>
+ * Проверка выбирает структуры один раз, по типу ресурса проверяемого разрешения. Заранее нельзя вычислить только
+ * сравнения, которым нужен DNS(IP-адрес против доменного имени и наоборот): они, как и в коллекции, выполняются
+ * разрешением коллекции, но только если его маски подходят под запрошенные действия. Ключи, в списках которых есть
+ * разрешения других реализаций, проверяются так же, как это делает коллекция.
+ */
+public final class PolicyIndex {
+
+    private static final int[] NO_MASKS = new int[0];
+
+    private final int size;
+
+    private final IpTable ips;
+    private final Map<String, int[]> exactNames;
+    private final SubnetNode subnetRoot;
+    private final Ipv6Node ipv6Root;
+    private final LabelNode domainNameRoot;
+
+    //  Сравнения через DNS: ключи-доменные имена для проверки IP-адресов и ключи-адреса(IPv4, подсети, IPv6) для
+    //  проверки доменных имен
+    private final DynamicKey[] domainNameKeys;
+    private final DynamicKey[] addressKeys;
+
+    //  Ключи, в списках которых есть разрешения других реализаций
+    private final Map<String, List<QueuePermission>> otherLists;
+
+
+    private PolicyIndex(int size, IpTable ips, Map<String, int[]> exactNames, SubnetNode subnetRoot, Ipv6Node ipv6Root,
+                        LabelNode domainNameRoot, DynamicKey[] domainNameKeys, DynamicKey[] addressKeys,
+                        Map<String, List<QueuePermission>> otherLists) {
+        this.size = size;
+        this.ips = ips;
+        this.exactNames = exactNames;
+        this.subnetRoot = subnetRoot;
+        this.ipv6Root = ipv6Root;
+        this.domainNameRoot = domainNameRoot;
+        this.domainNameKeys = domainNameKeys;
+        this.addressKeys = addressKeys;
+        this.otherLists = otherLists;
+    }
+
+
+    /**
+     * Скомпилировать коллекцию.
+     * <br><br>
+     * Содержимое коллекции читается через {@link QueuePermissionCollection#elements()}. Коллекции этой библиотеки отдают
+     * в нем целостный снимок, поэтому компиляция не мешает одновременным изменениям коллекции: они просто не попадут
+     * в индекс.
+     * @param collection Коллекция
+     * @return Индекс
+     */
+    public static PolicyIndex compile(QueuePermissionCollection collection) {
+        //  Списки разрешений по именам - в порядке перечисления, как в коллекции
+        Map<String, List<QueuePermission>> lists = new LinkedHashMap<>();
+        int size = 0;
+        Enumeration<Permission> elements = collection.elements();
+        while (elements.hasMoreElements()) {
+            QueuePermission permission = (QueuePermission) elements.nextElement();
+            lists.computeIfAbsent(permission.getName(), name -> new ArrayList<>(1)).add(permission);
+            size++;
+        }
+
+        IpTable ips = new IpTable(lists.size());
+        Map<String, int[]> exactNames = new HashMap<>();
+        SubnetNode subnetRoot = new SubnetNode();
+        Ipv6Node ipv6Root = new Ipv6Node();
+        LabelNode domainNameRoot = new LabelNode();
+        List<DynamicKey> domainNameKeys = new ArrayList<>();
+        List<DynamicKey> addressKeys = new ArrayList<>();
+        Map<String, List<QueuePermission>> otherLists = new HashMap<>();
+
+        for (Map.Entry<String, List<QueuePermission>> entry : lists.entrySet()) {
+            String key = entry.getKey();
+            List<QueuePermission> permissionList = entry.getValue();
+            int[] masks = masksOf(permissionList);
+            if (masks == null) {
+                otherLists.put(key, Collections.unmodifiableList(permissionList));
+                continue;
+            }
+
+            QueuePermissionBasicImpl first = (QueuePermissionBasicImpl) permissionList.get(0);
+            ResourceType resourceType = first.getResourceType();
+            if (resourceType == null) {
+                exactNames.put(key, masks);
+                continue;
+            }
+            switch (resourceType) {
+                case IP:
+                    ips.put(first.getAddress(), masks);
+                    addressKeys.add(new DynamicKey(key, first, masks));
+                    break;
+                case SUBNET:
+                    exactNames.put(key, masks);
+                    subnetRoot.insert(first.getAddress(), first.getPrefixLength()).addMasks(masks);
+                    addressKeys.add(new DynamicKey(key, first, masks));
+                    break;
+                case DOMAINNAME:
+                    domainNameRoot.insert(key.toLowerCase(Locale.ROOT)).addMasks(masks);
+                    domainNameKeys.add(new DynamicKey(key, first, masks));
+                    break;
+                case IPV6:
+                case IPV6_SUBNET:
+                    Ipv6Address ipv6 = first.getIpv6();
+                    Ipv6Node node = ipv6Root.insert(ipv6.high, ipv6.low, ipv6.prefixLength);
+                    if (resourceType == ResourceType.IPV6) {
+                        node.addressMasks = addMasks(node.addressMasks, masks);
+                    } else {
+                        node.subnetMasks = addMasks(node.subnetMasks, masks);
+                    }
+                    addressKeys.add(new DynamicKey(key, first, masks));
+                    break;
+            }
+        }
+
+        return new PolicyIndex(size, ips, exactNames, subnetRoot, ipv6Root, domainNameRoot,
+                domainNameKeys.toArray(new DynamicKey[0]), addressKeys.toArray(new DynamicKey[0]), otherLists);
+    }
+
+
+    //  Маски действий списка; null - в списке есть разрешения других реализаций
+    private static int[] masksOf(List<QueuePermission> permissionList) {
+        int[] masks = NO_MASKS;
+        for (QueuePermission permission : permissionList) {
+            if (permission instanceof QueuePermissionBasicImpl == false) return null;
+            masks = addMask(masks, ((QueuePermissionBasicImpl) permission).getActionMask());
+        }
+        return masks;
+    }
+
+
+    /*
+    Добавить маску в набор. Набор остается минимальным: маска, которая входит в одну из масок набора, не добавляется,
+    а маски набора, входящие в добавляемую, удаляются.
+     */
+    private static int[] addMask(int[] masks, int mask) {
+        int kept = 0;
+        for (int existing : masks) {
+            if (ActionMask.implies(existing, mask)) return masks;
+            if (ActionMask.implies(mask, existing) == false) kept++;
+        }
+        int[] newMasks = new int[kept + 1];
+        int i = 0;
+        for (int existing : masks) {
+            if (ActionMask.implies(mask, existing) == false) newMasks[i++] = existing;
+        }
+        newMasks[i] = mask;
+        return newMasks;
+    }
+
+
+    private static int[] addMasks(int[] masks, int[] added) {
+        for (int mask : added) masks = addMask(masks, mask);
+        return masks;
+    }
+
+
+    private static boolean anyImplies(int[] masks, int actionMask) {
+        for (int mask : masks) {
+            if (ActionMask.implies(mask, actionMask)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Подразумевается ли разрешение разрешениями индекса. Результат совпадает с implies() коллекции, из которой
+     * построен индекс, в момент компиляции.
+     * @param permission Проверяемое разрешение
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    public boolean implies(Permission permission) {
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+
+        String actions = permission.getActions();
+        int actionMask = permission instanceof QueuePermissionBasicImpl
+                ? ((QueuePermissionBasicImpl) permission).getRequestedActionMask()
+                : ActionMask.parse(actions);
+        String name = permission.getName();
+
+        Ipv6Address ipv6 = name.indexOf(':') >= 0 ? Ipv6Address.parse(name) : null;
+        long scan = ipv6 != null ? ResourceNameScanner.scan(ipv6) : ResourceNameScanner.scan(name);
+        ResourceType resourceType = ResourceNameScanner.type(scan);
+
+        if (resourceType == null) {
+            if (anyImplies(exactNames.getOrDefault(name, NO_MASKS), actionMask)) return true;
+        } else {
+            boolean implies = false;
+            switch (resourceType) {
+                case IP:
+                    int address = ResourceNameScanner.address(scan);
+                    implies = anyImplies(ips.get(address), actionMask)
+                            || subnetRoot.anyCovering(address, actionMask)
+                            || anyDynamic(domainNameKeys, scan, ipv6, name, actionMask);
+                    break;
+                case SUBNET:
+                    //  Подсеть подразумевается только такой же подсетью
+                    implies = anyImplies(exactNames.getOrDefault(name, NO_MASKS), actionMask);
+                    break;
+                case IPV6:
+                    implies = ipv6Root.anyCovering(ipv6.high, ipv6.low, actionMask)
+                            || anyDynamic(domainNameKeys, scan, ipv6, name, actionMask);
+                    break;
+                case IPV6_SUBNET:
+                    implies = ipv6Root.sameSubnet(ipv6.high, ipv6.low, ipv6.prefixLength, actionMask);
+                    break;
+                case DOMAINNAME:
+                    implies = domainNameRoot.anyCovering(name.toLowerCase(Locale.ROOT), actionMask)
+                            || anyDynamic(addressKeys, scan, ipv6, name, actionMask);
+                    break;
+            }
+            if (implies) return true;
+        }
+
+        return otherLists.isEmpty() == false && anyOther(scan, ipv6, name, actionMask, actions);
+    }
+
+
+    //  Сравнения через DNS. Маски проверяются первыми: до DNS дело доходит, только если действия подходят.
+    private static boolean anyDynamic(DynamicKey[] keys, long scan, Ipv6Address ipv6, String name, int actionMask) {
+        for (DynamicKey key : keys) {
+            if (anyImplies(key.masks, actionMask) && key.permission.impliesResourceName(scan, ipv6, name)) return true;
+        }
+        return false;
+    }
+
+
+    //  Ключи с разрешениями других реализаций - так же, как в PermissionIndex
+    private boolean anyOther(long scan, Ipv6Address ipv6, String name, int actionMask, String actions) {
+        List<QueuePermission> exact = otherLists.get(name);
+        if (exact != null && PermissionIndex.anyImpliesActions(exact, actionMask, actions)) return true;
+        for (Map.Entry<String, List<QueuePermission>> entry : otherLists.entrySet()) {
+            if (entry.getKey().equals(name)) continue;
+            List<QueuePermission> permissionList = entry.getValue();
+            QueuePermission first = permissionList.get(0);
+            boolean impliesResourceName = first instanceof QueuePermissionBasicImpl
+                    ? ((QueuePermissionBasicImpl) first).impliesResourceName(scan, ipv6, name)
+                    : first.impliesResourceName(name);
+            if (impliesResourceName && PermissionIndex.anyImpliesActions(permissionList, actionMask, actions)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Количество разрешений, из которых построен индекс
+     * @return Количество разрешений
+     */
+    public int size() {
+        return size;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PolicyIndex(size=" + size + ", ips=" + ips.size + ", domainNameKeys=" + domainNameKeys.length
+                + ", addressKeys=" + addressKeys.length + ", otherKeys=" + otherLists.size() + ")";
+    }
+
+
+    /*
+    Ключ, сравнение с которым требует DNS: первое разрешение списка и маски действий всего списка.
+     */
+    private static final class DynamicKey {
+        final String key;
+        final QueuePermissionBasicImpl permission;
+        final int[] masks;
+
+        DynamicKey(String key, QueuePermissionBasicImpl permission, int[] masks) {
+            this.key = key;
+            this.permission = permission;
+            this.masks = masks;
+        }
+    }
+
+
+    /*
+    Хэш-таблица IPv4-адресов с открытой адресацией и линейным пробированием. Размер - степень двойки, заполнение не
+    больше половины.
+     */
+    private static final class IpTable {
+        private final int[] addresses;
+        private final int[][] masks;
+        private final int bitmask;
+        private int size;
+
+        IpTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+            this.addresses = new int[capacity];
+            this.masks = new int[capacity][];
+            this.bitmask = capacity - 1;
+        }
+
+        private static int hash(int address) {
+            int h = address * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        void put(int address, int[] addedMasks) {
+            int i = hash(address) & bitmask;
+            while (masks[i] != null && addresses[i] != address) i = (i + 1) & bitmask;
+            if (masks[i] == null) {
+                addresses[i] = address;
+                masks[i] = addedMasks;
+                size++;
+            } else {
+                masks[i] = addMasks(masks[i], addedMasks);
+            }
+        }
+
+        int[] get(int address) {
+            int i = hash(address) & bitmask;
+            while (masks[i] != null) {
+                if (addresses[i] == address) return masks[i];
+                i = (i + 1) & bitmask;
+            }
+            return NO_MASKS;
+        }
+    }
+
+
+    /*
+    Узел дерева IPv4-подсетей. Подсеть с префиксом n - в узле на глубине n.
+     */
+    private static final class SubnetNode {
+        SubnetNode zero;
+        SubnetNode one;
+        int[] masks = NO_MASKS;
+
+        SubnetNode insert(int address, int prefixLength) {
+            SubnetNode node = this;
+            for (int depth = 0; depth < prefixLength; depth++) {
+                if (((address >>> (31 - depth)) & 1) == 0) {
+                    if (node.zero == null) node.zero = new SubnetNode();
+                    node = node.zero;
+                } else {
+                    if (node.one == null) node.one = new SubnetNode();
+                    node = node.one;
+                }
+            }
+            return node;
+        }
+
+        void addMasks(int[] added) {
+            masks = PolicyIndex.addMasks(masks, added);
+        }
+
+        //  Номер сети и широковещательный адрес в подсеть не входят(см. ImplyService.IPSubnet). Поэтому подсети /31 и
+        //  /32 не содержат ни одного адреса, и спуск глубже 30 не нужен.
+        boolean anyCovering(int address, int actionMask) {
+            SubnetNode node = this;
+            for (int depth = 0; node != null && depth <= 30; depth++) {
+                if (node.masks.length > 0 && anyImplies(node.masks, actionMask)) {
+                    int mask = depth == 0 ? 0 : -1 << (32 - depth);
+                    int network = address & mask;
+                    if (address != network && address != (network | ~mask)) return true;
+                }
+                node = ((address >>> (31 - depth)) & 1) == 0 ? node.zero : node.one;
+            }
+            return false;
+        }
+    }
+
+
+    /*
+    Узел дерева IPv6. subnetMasks - подсети с префиксом, равным глубине узла; addressMasks - IPv6-адреса(только на
+    глубине 128).
+     */
+    private static final class Ipv6Node {
+        Ipv6Node zero;
+        Ipv6Node one;
+        int[] subnetMasks = NO_MASKS;
+        int[] addressMasks = NO_MASKS;
+
+        private static int bit(long high, long low, int depth) {
+            return depth < 64 ? (int) (high >>> (63 - depth)) & 1 : (int) (low >>> (127 - depth)) & 1;
+        }
+
+        Ipv6Node insert(long high, long low, int prefixLength) {
+            Ipv6Node node = this;
+            for (int depth = 0; depth < prefixLength; depth++) {
+                if (bit(high, low, depth) == 0) {
+                    if (node.zero == null) node.zero = new Ipv6Node();
+                    node = node.zero;
+                } else {
+                    if (node.one == null) node.one = new Ipv6Node();
+                    node = node.one;
+                }
+            }
+            return node;
+        }
+
+        //  В IPv6-подсеть входят все ее адреса
+        boolean anyCovering(long high, long low, int actionMask) {
+            Ipv6Node node = this;
+            for (int depth = 0; node != null; depth++) {
+                if (anyImplies(node.subnetMasks, actionMask)) return true;
+                if (depth == Ipv6Address.BITS) return anyImplies(node.addressMasks, actionMask);
+                node = bit(high, low, depth) == 0 ? node.zero : node.one;
+            }
+            return false;
+        }
+
+        //  IPv6-подсеть подразумевается только такой же подсетью
+        boolean sameSubnet(long high, long low, int prefixLength, int actionMask) {
+            Ipv6Node node = this;
+            for (int depth = 0; node != null && depth < prefixLength; depth++) {
+                node = bit(high, low, depth) == 0 ? node.zero : node.one;
+            }
+            return node != null && anyImplies(node.subnetMasks, actionMask);
+        }
+    }
+
+
+    /*
+    Узел дерева доменных имен. Метки - в нижнем регистре, от домена верхнего уровня.
+     */
+    private static final class LabelNode {
+        private static final Map<String, LabelNode> NO_CHILDREN = Collections.emptyMap();
+
+        Map<String, LabelNode> children = NO_CHILDREN;
+        int[] masks = NO_MASKS;
+
+        LabelNode insert(String domainName) {
+            LabelNode node = this;
+            int end = domainName.length();
+            while (end > 0) {
+                int dot = domainName.lastIndexOf('.', end - 1);
+                if (node.children == NO_CHILDREN) node.children = new HashMap<>(4);
+                node = node.children.computeIfAbsent(domainName.substring(dot + 1, end), label -> new LabelNode());
+                end = dot;
+            }
+            return node;
+        }
+
+        void addMasks(int[] added) {
+            masks = PolicyIndex.addMasks(masks, added);
+        }
+
+        boolean anyCovering(String domainName, int actionMask) {
+            LabelNode node = this;
+            int end = domainName.length();
+            while (end > 0) {
+                int dot = domainName.lastIndexOf('.', end - 1);
+                node = node.children.get(domainName.substring(dot + 1, end));
+                if (node == null) return false;
+                if (anyImplies(node.masks, actionMask)) return true;
+                end = dot;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,326 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyService;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Минимизация политики: поиск разрешений, без которых решения коллекции не меняются
+ * (см. {@link QueuePermissionCollection#minimize(boolean)}).
+ * <br><br>
+ * Разрешение удаляется, если его подразумевает другое оставшееся разрешение: имя ресурса другого разрешения
+ * подразумевает все, что подразумевает имя удаляемого, а действия - все его действия. Тогда любой запрос, который
+ * подразумевало удаляемое разрешение, подразумевает и оставшееся. Так удаляются:
+ * <ul>
+ *     <li>повторы - разрешения, равные по equals() разрешению раньше в том же списке</li>
+ *     <li>разрешения того же имени ресурса, действия которых входят в действия другого разрешения</li>
+ *     <li>IP-адреса, входящие в подсеть разрешения; IPv6-адреса, входящие в IPv6-подсеть; доменные имена, являющиеся
+ *     поддоменом другого разрешения</li>
+ * </ul>
+ * Подсеть внутри большей подсети не удаляется: запрос подсети подразумевается только той же подсетью, а номер сети
+ * и широковещательный адрес меньшей подсети могут входить в большую. По той же причине подсети не объединяются.
+ * <br><br>
+ * Из сравнения исключаются списки, разрешения которых реализованы не классом {@link QueuePermissionBasicImpl} или
+ * созданы с разными реализациями проверок: первое разрешение списка определяет, как проверяется имя ключа.
+ * Разрешения разных имен сравниваются, только если у них одна и та же реализация проверок класса
+ * {@link ImplyServiceBean} - для наследников(например, {@link dk.messagebroker.queuepermission.service.ForwardResolvingImplyService})
+ * вложенность имен не гарантирует вложенности проверок.
+ * <br><br>
+ * Объединение IP-адресов(coalesceHosts) - необязательный шаг, который решения меняет: IP-адреса с одинаковыми
+ * действиями, которые покрывают все адреса выровненного блока, кроме номера сети и широковещательного адреса,
+ * заменяются подсетью этого блока. Решения для IP-адресов и доменных имен сохраняются, но запрос самой подсети блока
+ * становится подразумеваемым.
+ */
+public final class PolicyMinimizer {
+
+    //  Наибольший блок, в который объединяются IP-адреса. Имена подсетей с однозначной длиной префикса больше 3
+    //  не распознаются(см. ResourceNameScanner), а блоки крупнее /10 в сгенерированных списках не встречаются.
+    private static final int MIN_BLOCK_PREFIX = 10;
+    //  Наименьший блок: в подсетях /31 и /32 нет ни одного адреса, который бы они подразумевали
+    private static final int MAX_BLOCK_PREFIX = 30;
+
+    private PolicyMinimizer() {
+    }
+
+
+    /**
+     * Результат минимизации
+     */
+    public static final class Report {
+        private final int sizeBefore;
+        private final int duplicateCount;
+        private final int subsumedCount;
+        private final int coalescedCount;
+        final List<QueuePermission> removed;
+        final List<QueuePermission> added;
+
+        Report(int sizeBefore, int duplicateCount, int subsumedCount, int coalescedCount,
+               List<QueuePermission> removed, List<QueuePermission> added) {
+            this.sizeBefore = sizeBefore;
+            this.duplicateCount = duplicateCount;
+            this.subsumedCount = subsumedCount;
+            this.coalescedCount = coalescedCount;
+            this.removed = Collections.unmodifiableList(removed);
+            this.added = Collections.unmodifiableList(added);
+        }
+
+        /**
+         * Количество разрешений до минимизации
+         * @return Количество разрешений
+         */
+        public int sizeBefore() {
+            return sizeBefore;
+        }
+
+        /**
+         * Количество разрешений после минимизации
+         * @return Количество разрешений
+         */
+        public int sizeAfter() {
+            return sizeBefore - removed.size() + added.size();
+        }
+
+        /**
+         * Количество удаленных повторов
+         * @return Количество разрешений
+         */
+        public int duplicateCount() {
+            return duplicateCount;
+        }
+
+        /**
+         * Количество удаленных разрешений, которые подразумевались другими разрешениями
+         * @return Количество разрешений
+         */
+        public int subsumedCount() {
+            return subsumedCount;
+        }
+
+        /**
+         * Количество IP-адресов, замененных подсетями
+         * @return Количество разрешений
+         */
+        public int coalescedCount() {
+            return coalescedCount;
+        }
+
+        /**
+         * Количество подсетей, добавленных вместо IP-адресов
+         * @return Количество разрешений
+         */
+        public int blockCount() {
+            return added.size();
+        }
+
+        /**
+         * Изменила ли минимизация коллекцию
+         * @return изменила(true)/не изменила(false)
+         */
+        public boolean changed() {
+            return removed.isEmpty() == false || added.isEmpty() == false;
+        }
+
+        @Override
+        public String toString() {
+            return "PolicyMinimizer.Report(before=" + sizeBefore + ", after=" + sizeAfter() + ", duplicates=" + duplicateCount
+                    + ", subsumed=" + subsumedCount + ", coalesced=" + coalescedCount + ", blocks=" + blockCount() + ")";
+        }
+    }
+
+
+    /**
+     * Найти разрешения снимка, которые можно удалить, и подсети, которые их заменяют
+     * @param index Снимок
+     * @param coalesceHosts Объединять ли IP-адреса в подсети
+     * @return Результат; снимок не меняется
+     */
+    static Report plan(PermissionIndex index, boolean coalesceHosts) {
+        List<QueuePermission> removed = new ArrayList<>();
+        int[] counts = new int[2];
+
+        //  1. Внутри списка: повторы и разрешения, действия которых входят в действия другого разрешения списка.
+        //  Из равных по действиям разрешений остается первое.
+        Map<String, List<QueuePermissionBasicImpl>> survivors = new HashMap<>();
+        index.forEachList((key, permissionList) -> {
+            if (isUniform(permissionList) == false) return;
+            List<QueuePermissionBasicImpl> kept = new ArrayList<>(permissionList.size());
+            for (int i = 0; i < permissionList.size(); i++) {
+                QueuePermissionBasicImpl permission = (QueuePermissionBasicImpl) permissionList.get(i);
+                int covered = coveredInList(permissionList, i);
+                if (covered == 0) {
+                    kept.add(permission);
+                } else {
+                    removed.add(permission);
+                    counts[covered == 1 ? 0 : 1]++;
+                }
+            }
+            survivors.put(key, kept);
+        });
+
+        //  2. Между ключами: разрешение удаляется, если его подразумевает разрешение другого ключа. Если два разрешения
+        //  подразумевают друг друга(например, одно и то же имя в разном регистре), остается разрешение меньшего ключа -
+        //  так ни одно разрешение не удаляется из-за того, которое тоже удалено.
+        Set<QueuePermissionBasicImpl> subsumed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<String, List<QueuePermissionBasicImpl>> entry : survivors.entrySet()) {
+            String key = entry.getKey();
+            for (QueuePermissionBasicImpl permission : entry.getValue()) {
+                if (isComparableAcrossKeys(permission) == false) continue;
+                boolean covered = index.anyCoveringKey(key, otherKey ->
+                        otherKey.equals(key) == false && coversAcrossKeys(survivors.get(otherKey), otherKey, permission, key));
+                if (covered) subsumed.add(permission);
+            }
+        }
+        removed.addAll(subsumed);
+        counts[1] += subsumed.size();
+
+        List<QueuePermission> added = new ArrayList<>();
+        int coalesced = 0;
+        if (coalesceHosts) {
+            int before = removed.size();
+            coalesce(index, survivors, subsumed, removed, added);
+            coalesced = removed.size() - before;
+        }
+        return new Report(index.size(), counts[0], counts[1], coalesced, removed, added);
+    }
+
+
+    //  Все разрешения списка - QueuePermissionBasicImpl с одной и той же реализацией проверок. Только в таком списке
+    //  удаление любого разрешения(в том числе первого) не меняет того, как проверяется имя ключа.
+    private static boolean isUniform(List<QueuePermission> permissionList) {
+        QueuePermission first = permissionList.get(0);
+        if (first instanceof QueuePermissionBasicImpl == false) return false;
+        ImplyService implyService = ((QueuePermissionBasicImpl) first).getImplyService();
+        for (QueuePermission permission : permissionList) {
+            if (permission instanceof QueuePermissionBasicImpl == false) return false;
+            if (((QueuePermissionBasicImpl) permission).getImplyService() != implyService) return false;
+        }
+        return true;
+    }
+
+
+    //  Подразумевается ли i-е разрешение другим разрешением списка: 0 - нет, 1 - есть равное ему раньше в списке,
+    //  2 - есть разрешение с большим набором действий
+    private static int coveredInList(List<QueuePermission> permissionList, int i) {
+        int actionMask = ((QueuePermissionBasicImpl) permissionList.get(i)).getActionMask();
+        int result = 0;
+        for (int j = 0; j < permissionList.size(); j++) {
+            if (j == i) continue;
+            int otherMask = ((QueuePermissionBasicImpl) permissionList.get(j)).getActionMask();
+            if (ActionMask.implies(otherMask, actionMask) == false) continue;
+            if (otherMask != actionMask) result = 2;
+            else if (j < i) return 1;
+        }
+        return result;
+    }
+
+
+    private static boolean isComparableAcrossKeys(QueuePermissionBasicImpl permission) {
+        ResourceType resourceType = permission.getResourceType();
+        return resourceType != null && resourceType != ResourceType.SUBNET
+                && permission.getImplyService().getClass() == ImplyServiceBean.class;
+    }
+
+
+    //  Подразумевает ли какое-нибудь разрешение ключа otherKey разрешение permission ключа key.
+    //  otherPermissions - оставшиеся разрешения ключа otherKey; null - ключ в сравнении не участвует.
+    private static boolean coversAcrossKeys(List<QueuePermissionBasicImpl> otherPermissions, String otherKey,
+                                            QueuePermissionBasicImpl permission, String key) {
+        if (otherPermissions == null) return false;
+        for (QueuePermissionBasicImpl other : otherPermissions) {
+            if (other.getImplyService() != permission.getImplyService()) continue;
+            if (ActionMask.implies(other.getActionMask(), permission.getActionMask()) == false) continue;
+            if (other.impliesResourceName(key) == false) continue;
+            //  Разрешения подразумевают друг друга - остается разрешение меньшего ключа
+            boolean mutual = other.getActionMask() == permission.getActionMask() && permission.impliesResourceName(otherKey);
+            if (mutual == false || otherKey.compareTo(key) < 0) return true;
+        }
+        return false;
+    }
+
+
+    /*
+    Объединить IP-адреса в подсети. Участвуют оставшиеся IP-адреса, записанные в каноническом виде(так их возвращает
+    InetAddress.getHostAddress() - это важно для проверки доменного имени против IP-адреса), группами с одинаковыми
+    действиями и реализацией проверок. Для каждого адреса выбирается наибольший выровненный блок, все адреса которого,
+    кроме номера сети и широковещательного адреса, есть в группе. Блок, имя которого уже есть в снимке, не создается.
+     */
+    private static void coalesce(PermissionIndex index, Map<String, List<QueuePermissionBasicImpl>> survivors,
+                                 Set<QueuePermissionBasicImpl> subsumed, List<QueuePermission> removed,
+                                 List<QueuePermission> added) {
+        Map<ImplyService, Map<Integer, List<QueuePermissionBasicImpl>>> groups = new IdentityHashMap<>();
+        for (Map.Entry<String, List<QueuePermissionBasicImpl>> entry : survivors.entrySet()) {
+            for (QueuePermissionBasicImpl permission : entry.getValue()) {
+                if (permission.getResourceType() != ResourceType.IP || subsumed.contains(permission)) continue;
+                if (permission.getImplyService().getClass() != ImplyServiceBean.class) continue;
+                if (ResourceNameScanner.ipv4Name(permission.getAddress(), -1).equals(entry.getKey()) == false) continue;
+                groups.computeIfAbsent(permission.getImplyService(), implyService -> new HashMap<>())
+                        .computeIfAbsent(permission.getActionMask(), actionMask -> new ArrayList<>())
+                        .add(permission);
+            }
+        }
+
+        Set<String> blockNames = new HashSet<>();
+        for (Map.Entry<ImplyService, Map<Integer, List<QueuePermissionBasicImpl>>> byService : groups.entrySet()) {
+            for (List<QueuePermissionBasicImpl> group : byService.getValue().values()) {
+                //  Адреса как беззнаковые числа, по возрастанию. Каждый адрес в группе один: имя ключа каноническое.
+                QueuePermissionBasicImpl[] hosts = group.toArray(new QueuePermissionBasicImpl[0]);
+                Arrays.sort(hosts, (a, b) -> Integer.compareUnsigned(a.getAddress(), b.getAddress()));
+                long[] addresses = new long[hosts.length];
+                for (int i = 0; i < hosts.length; i++) addresses[i] = hosts[i].getAddress() & 0xFFFFFFFFL;
+
+                int i = 0;
+                while (i < hosts.length) {
+                    int next = coalesceBlock(index, byService.getKey(), hosts, addresses, i, blockNames, removed, added);
+                    i = next > i ? next : i + 1;
+                }
+            }
+        }
+    }
+
+
+    //  Найти наибольший блок, в который входит i-й адрес. Возвращает номер первого адреса после блока; i - блока нет.
+    private static int coalesceBlock(PermissionIndex index, ImplyService implyService, QueuePermissionBasicImpl[] hosts,
+                                     long[] addresses, int i, Set<String> blockNames, List<QueuePermission> removed,
+                                     List<QueuePermission> added) {
+        long address = addresses[i];
+        for (int prefixLength = MIN_BLOCK_PREFIX; prefixLength <= MAX_BLOCK_PREFIX; prefixLength++) {
+            long blockSize = 1L << (32 - prefixLength);
+            long network = address & ~(blockSize - 1);
+            long broadcast = network + blockSize - 1;
+            if (address == network || address == broadcast) continue;
+            int from = lowerBound(addresses, network + 1);
+            int to = lowerBound(addresses, broadcast);
+            if (to - from != blockSize - 2) continue;
+
+            String name = ResourceNameScanner.ipv4Name((int) network, prefixLength);
+            if (index.get(name) != null || blockNames.add(name) == false) continue;
+            added.add(new QueuePermissionBasicImpl(name, hosts[i].getActions(), implyService));
+            removed.addAll(Arrays.asList(hosts).subList(from, to));
+            return to;
+        }
+        return i;
+    }
+
+
+    //  Номер первого элемента, не меньшего value
+    private static int lowerBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+}
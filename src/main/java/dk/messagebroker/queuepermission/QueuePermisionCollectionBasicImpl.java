@@ -4,6 +4,7 @@ import lombok.ToString;
 
 import java.security.Permission;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Одна из возможных реализаций коллекции для хранения объектов, описывающих доступ к очереди.
@@ -11,29 +12,34 @@ import java.util.*;
 @ToString
 public class QueuePermisionCollectionBasicImpl extends QueuePermissionCollection {
 
-    private Map<String, List<QueuePermission>> innerCollection = new HashMap<>();
+    //  Содержимое коллекции вместе с индексами для implies(). Снимок неизменяемый: add() подменяет его целиком, поэтому
+    //  implies(), не захватывая блокировку, всегда работает с целостным снимком.
+    private volatile PermissionIndex index = PermissionIndex.EMPTY;
 
-
-    //  Список, который будет использоваться в реализации интерфейса Enumeration и метода elements().
-    //  Сначала в этот список, при вызове метода elements(), будут записаны все объекты из карты innerCollection.
-    private List<QueuePermission> enumList = new ArrayList<>();
-    //  Номер текущего элемента, который будет отдан методом nextElement() перечисления.
-    private Integer enumPointer = 0;
+    //  Кэш решений implies(); null - кэш не используется
+    private final DecisionCache decisionCache;
 
 
     /*
-    Реализация интерфейса Enumeraion, которая будет отдаваться методом elements()
+    Реализация интерфейса Enumeraion, которая будет отдаваться методом elements().
+    У каждого перечисления - свой итератор по снимку, поэтому перечисления не мешают друг другу.
      */
-    private class InnerCollectionEnumeration implements Enumeration<Permission> {
+    private static class InnerCollectionEnumeration implements Enumeration<Permission> {
+        private final Iterator<QueuePermission> iterator;
+
+        InnerCollectionEnumeration(Iterator<QueuePermission> iterator) {
+            this.iterator = iterator;
+        }
+
         @Override
         public boolean hasMoreElements() {
-            return (enumPointer <= enumList.size() - 1);
+            return iterator.hasNext();
         }
 
         @Override
         public Permission nextElement() {
             if (hasMoreElements()) {
-                return enumList.get(enumPointer++);
+                return iterator.next();
             } else {
                 throw new NoSuchElementException();
             }
@@ -41,6 +47,24 @@ public class QueuePermisionCollectionBasicImpl extends QueuePermissionCollection
     }
 
 
+    /**
+     * Конструктор коллекции без кэша решений
+     */
+    public QueuePermisionCollectionBasicImpl() {
+        this.decisionCache = null;
+    }
+
+
+    /**
+     * Конструктор коллекции с кэшем решений implies(). Кэш хранит как положительные, так и отрицательные решения и
+     * сбрасывается при любом изменении коллекции(см. {@link DecisionCache}).
+     * @param decisionCacheSize Максимальное количество решений в кэше
+     */
+    public QueuePermisionCollectionBasicImpl(int decisionCacheSize) {
+        this.decisionCache = new DecisionCache(decisionCacheSize);
+    }
+
+
     /**
      * Добавление разрешения в коллекцию.
      * <br><br>
@@ -53,17 +77,111 @@ public class QueuePermisionCollectionBasicImpl extends QueuePermissionCollection
     public synchronized void add(Permission permission) {
         //  Пример: входит объект типа QueuePermissionBasicImpl; суперклассом данного класса является QueuePermission
         if (permission.getClass().getSuperclass().equals(QueuePermission.class)) {
-            List<QueuePermission> permissionArray = innerCollection.get(permission.getName());
-            if (permissionArray == null) {
-                permissionArray = new ArrayList<>();
-                innerCollection.put(permission.getName(), permissionArray);
-            }
             //  Нисходящее преобразование типов. Я абсолютно точно знаю, что в этот метод заходит объект, тип которого наследует
             //  абстрактный класс QueuePermission.
-            permissionArray.add((QueuePermission) permission);
+            index = index.with((QueuePermission) permission);
+            PermissionIndex.domainNameAdded((QueuePermission) permission);
+        }
+    }
+
+
+    /**
+     * Добавление нескольких разрешений. Все разрешения становятся видны читателям одновременно, одним снимком.
+     * Разрешения, тип которых не порожден от QueuePermission, игнорируются.
+     * @param permissions Разрешения
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public synchronized void addAll(Collection<? extends Permission> permissions) {
+        if (isReadOnly()) throw new SecurityException("Attempt to add a Permission to a readonly PermissionCollection");
+        List<QueuePermission> batch = new ArrayList<>(permissions.size());
+        for (Permission permission : permissions) {
+            if (permission.getClass().getSuperclass().equals(QueuePermission.class)) batch.add((QueuePermission) permission);
         }
+        if (batch.isEmpty()) return;
+        index = index.withAll(batch);
+        PermissionIndex.domainNamesAdded(batch);
     }
 
+    /**
+     * Удалить разрешение из коллекции: первое разрешение под его именем ресурса, равное ему по equals(). Индексы
+     * обновляются только для ключа этого разрешения.
+     * @param permission Разрешение
+     * @return удалено(true)/такого разрешения в коллекции нет(false)
+     */
+    @Override
+    public synchronized boolean remove(Permission permission) {
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        PermissionIndex current = index;
+        PermissionIndex newIndex = current.without((QueuePermission) permission);
+        if (newIndex == current) return false;
+        index = newIndex;
+        newIndex.domainNameRemoved((QueuePermission) permission);
+        return true;
+    }
+
+
+    /**
+     * Заменить разрешение другим одним снимком: читатели видят либо старое разрешение, либо новое.
+     * Новое разрешение, тип которого не порожден от QueuePermission, игнорируется - старое при этом удаляется.
+     * @param oldPermission Заменяемое разрешение
+     * @param newPermission Новое разрешение
+     * @return заменено(true)/старого разрешения в коллекции нет(false)
+     */
+    @Override
+    public synchronized boolean replace(Permission oldPermission, Permission newPermission) {
+        if (oldPermission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        PermissionIndex current = index;
+        if (current.without((QueuePermission) oldPermission) == current) return false;
+        List<QueuePermission> added = PermissionIndex.queuePermissions(Collections.singletonList(newPermission));
+        PermissionIndex newIndex = current.withDelta(added, Collections.singletonList((QueuePermission) oldPermission));
+        index = newIndex;
+        PermissionIndex.domainNamesAdded(added);
+        newIndex.domainNameRemoved((QueuePermission) oldPermission);
+        return true;
+    }
+
+
+    /**
+     * Применить изменение политики одним снимком: удалить разрешения removed и добавить разрешения added.
+     * Стоимость изменения зависит от количества изменяемых разрешений, а не от размера коллекции: копируются только
+     * затронутые списки и пути к ним в индексах. Разрешения, тип которых не порожден от QueuePermission, игнорируются.
+     * @param added Добавляемые разрешения
+     * @param removed Удаляемые разрешения
+     * @return Количество удаленных разрешений
+     */
+    @Override
+    public synchronized int applyDelta(Collection<? extends Permission> added, Collection<? extends Permission> removed) {
+        List<QueuePermission> addedBatch = PermissionIndex.queuePermissions(added);
+        List<QueuePermission> removedBatch = PermissionIndex.queuePermissions(removed);
+        PermissionIndex current = index;
+        PermissionIndex newIndex = current.withDelta(addedBatch, removedBatch);
+        index = newIndex;
+        PermissionIndex.domainNamesAdded(addedBatch);
+        newIndex.domainNamesRemoved(removedBatch);
+        return current.size() + addedBatch.size() - newIndex.size();
+    }
+
+
+    /**
+     * Минимизировать политику одним снимком(см. {@link PolicyMinimizer}). Удаляются только разрешения, которые
+     * подразумеваются оставшимися.
+     * @param coalesceHosts Заменять ли IP-адреса, покрывающие блок адресов, подсетью этого блока
+     * @return Результат минимизации
+     */
+    @Override
+    public synchronized PolicyMinimizer.Report minimize(boolean coalesceHosts) {
+        PermissionIndex current = index;
+        PolicyMinimizer.Report report = PolicyMinimizer.plan(current, coalesceHosts);
+        if (report.changed()) {
+            PermissionIndex newIndex = current.withDelta(report.added, report.removed);
+            index = newIndex;
+            newIndex.domainNamesRemoved(report.removed);
+        }
+        return report;
+    }
+
+
     /**
      * Реализация функционала "подразумевает ли" для коллекции.
      * @param permission Объект разрешения, для которого выясняется, подразумевается ли это разрешение разрешениями
@@ -72,89 +190,101 @@ public class QueuePermisionCollectionBasicImpl extends QueuePermissionCollection
      */
     @Override
     public boolean implies(Permission permission) {
+        //  Снимок читается один раз: и кэш, и вычисление решения работают с одной и той же версией коллекции
+        PermissionIndex current = index;
+        return decisionCache == null ? current.implies(permission) : decisionCache.implies(current, permission);
+    }
 
-        //  Не имеет смысл проводить какие либо проверки на предмет "подразумавает ли.." для разрешения permission, если
-        //  класс времени выполнения, на который ссылается permission не порожден от абстрактного класса QueuePermission
-        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
-
-        //  Получаем список всех разрешений для имени ресурса из permission
-        List<QueuePermission> permissionList = innerCollection.get(permission.getName());
-        if (permissionList != null) {
-            //  Название ресурса в проверямом разрешении присутствует как ключ во внутренней коллекции.
 
-            //  Если действия хотя бы одного разрешения из полученного списка, подразумевают действия проверяемого разрешения,
-            //  значит можно считать, что содержимое коллекции подразумавает проверяемое разрешение
-            if ( permissionList.stream().anyMatch(e -> e.impliesActions(permission.getActions())) ) {
-                return true;
-            }
-        }
+    /**
+     * Асинхронный вариант {@link #implies(Permission)}. Решение, для которого DNS не нужен(например, IP-адрес входит
+     * в подсеть разрешения), принимается на месте. Исполнителю передаются только проверки IP-адреса против доменных
+     * имен, доменного имени против IP-адресов и подсетей, и проверки разрешений других реализаций.
+     * @param permission Проверяемое разрешение
+     * @param executor Исполнитель проверок, которые могут ждать DNS
+     * @return Решение
+     */
+    @Override
+    public CompletableFuture<Boolean> impliesAsync(Permission permission, NameResolutionExecutor executor) {
+        PermissionIndex current = index;
+        if (current.impliesWithoutNameResolution(permission)) return CompletableFuture.completedFuture(true);
+        if (current.needsNameResolution(permission.getName()) == false) return CompletableFuture.completedFuture(false);
+        return executor.submit(() -> implies(permission));
+    }
 
-        //  В это точку выполнение алгоритма дойдет только в двух случаях:
-        //  1.Во внутренней коллекции нет ключа с именем из проверяемого разрешения (permissionList будет null)
-        //  2.Во внутренней коллекции есть ключ с именем из проверямого разрешения, но ни одно из разрешений, хранящихся в списке
-        //    за этим ключом, не подразумевает проверяемое разрешение. Именно этот случай(когда permissionList не null) нужно проверять
-        //    в дальнейшей логике...
-
-        //  Получаю все ключи внутренней коллекции
-        Set<String> keyList = innerCollection.keySet();
-        for (String key: keyList) {
-            //  Предполагается, что список разрешений из внутренней коллекции, закрепленный за именем из проверяемого разрешения(если он существовал),
-            //  уже проверен на implies.
-            //  Списки же разрешений за другими ключами проверям...
-            if (key.equals(permission.getName())== false) {
-                //  Получаем список разрешений за ключом, рассматриваемым в текущей иттерации цикла
-                permissionList = innerCollection.get(key);
-                //  Все разрешения в полученном списке хранят одно и то-же имя ресурса. Поэтому, нет необходимости делать проверку
-                //  impliesResourceName() для каждого разрешения из списка. Достаточно сделать для одного. Например, для первого элемента списка.
-                //  Перестраховываемся перед извлечением первого элемента списка и проверяем - а не пуст ли список вообще?
-                if (permissionList.size() > 0) {
-                    if (permissionList.get(0).impliesResourceName(permission.getName())) {
-                        //  Итак...Имя проверяемого ресурса подразумевается в имени любого из разрешений анализируемого списка разрешений.
-                        //  Применяем, поэтому, функционал "подразумевает ли?" уже для действий.
-                        if ( permissionList.stream().anyMatch(e -> e.impliesActions(permission.getActions())) ) {
-                            return true;
-                        }
-                    }
-                }
-            }
-        }
 
-        //  Самый крайний случай...
-        //  Мы проверили абсолютно все разрешения из внутренней коллекции и не нашли ни одного, который бы подразумевал
-        //  проверяемое разрешение.
-        return false;
+    /**
+     * Подразумеваются ли разрешения разрешениями коллекции - для многих разрешений за один вызов.
+     * <br><br>
+     * Разрешения с одинаковым именем ресурса проверяются вместе: имя распознается, а ключи коллекции, которые его
+     * подразумевают, находятся один раз на группу. Все разрешения проверяются по одному и тому же состоянию коллекции.
+     * Кэш решений при этом не используется.
+     * @param permissions Проверяемые разрешения
+     * @return Набор номеров разрешений(в порядке списка), которые подразумеваются
+     */
+    @Override
+    public BitSet impliesAll(List<? extends Permission> permissions) {
+        return index.impliesAll(permissions);
     }
 
 
     /**
      * Получить все элементы коллекции в виде объекта перечисления.
+     * <br><br>
+     * Перечисление обходит снимок, актуальный на момент вызова, без копирования и без блокировки; разрешения,
+     * добавленные позже, в него не попадают.
      * @return Элементы коллекции.
      */
     @Override
-    public synchronized Enumeration<Permission> elements() {
+    public Enumeration<Permission> elements() {
+        return new InnerCollectionEnumeration(index.iterator());
+    }
 
-        //  Оочистка списка по которому будет работать объект Enumeration
-        //  и обнуление индекса текущего элемента для вычитки
-        enumList.clear();
-        enumPointer = 0;
 
-        /*
-        Все значения из внутренней карты innerCollection переносим в отдельную коллекцию enumList.
-        Эта отдельная коллекция нужна для моей реализации интерфейса Enumeration.
+    /**
+     * Получить Spliterator по снимку, актуальному на момент вызова. Делится по поддеревьям индекса и подходит для
+     * параллельной обработки больших коллекций.
+     * @return Spliterator
+     */
+    @Override
+    public Spliterator<QueuePermission> spliterator() {
+        return index.spliterator();
+    }
 
-        Взяли все значения из карты. Каждое значение - это список объектов QueuePermission.
-        Превратили весь этот набор списков в стрим.
-        Для каждого элемента стрима(т.е. для каждого списка) добавляем целиком этот список в отдельный список enumList.
-         */
-        innerCollection.values().stream().forEach(list -> enumList.addAll(list));
+    @Override
+    public List<QueuePermission> getPermissionsByName(String name) {
+        return index.get(name);
+    }
 
-        //  Возвращаем объект, реализующий интерфейс Enumeration<Permission>
-        return new InnerCollectionEnumeration();
+
+    /**
+     * Получить версию содержимого коллекции - эпоху текущего снимка. Каждое изменение коллекции увеличивает ее.
+     * @return Версия
+     */
+    @Override
+    public long version() {
+        return index.epoch();
     }
 
+
     @Override
-    public List<QueuePermission> getPermissionsByName(String name) {
-        return innerCollection.get(name);
+    boolean needsNameResolution(ResourceType resourceType) {
+        return index.needsNameResolution(resourceType);
+    }
+
+
+    @Override
+    boolean impliesWithoutNameResolution(Permission permission) {
+        return index.impliesWithoutNameResolution(permission);
+    }
+
+
+    /**
+     * Получить кэш решений implies() - например, чтобы прочитать счетчики попаданий и промахов
+     * @return Кэш решений; или null, если коллекция создана без кэша
+     */
+    public DecisionCache getDecisionCache() {
+        return decisionCache;
     }
 
 
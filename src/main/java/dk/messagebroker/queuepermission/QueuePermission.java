@@ -31,6 +31,16 @@ public abstract class QueuePermission extends Permission {
         actionAsArray = normalizeAction(actionAsString);
     }
 
+    /**
+     * Конструктор для уже нормализованных действий: строка действий не разбирается
+     * @param resourceName Имя ресурса
+     * @param actionAsArray Массив действий - такой, какой вернул бы normalizeAction()
+     */
+    QueuePermission(String resourceName, String[] actionAsArray) {
+        super(resourceName);
+        this.actionAsArray = actionAsArray;
+    }
+
     /**
      * Получить массив со списком действий.
      * @return Массив строк с названиями действий
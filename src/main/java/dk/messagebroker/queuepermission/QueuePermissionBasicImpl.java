@@ -8,14 +8,12 @@ import java.net.UnknownHostException;
 import java.security.Permission;
 import java.security.PermissionCollection;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
 
 
 /**
  * Одна из возможных реализаций доступа к очереди.
  * <br><br>
- * Типы ресурсов, которые распознаются данной реализацией: IP-адрес, Подсеть, Доменное имя.<br>
+ * Типы ресурсов, которые распознаются данной реализацией: IP-адрес, Подсеть, Доменное имя, IPv6-адрес, IPv6-подсеть.<br>
  * Виды действий, которые распознаются данной реализацией: "pusher", "puller".<br>
  */
 @ToString
@@ -26,12 +24,120 @@ public class QueuePermissionBasicImpl extends QueuePermission {
     //  Дефолтное значение - null
     private ResourceType resourceType;
 
-    private ImplyService implyService = new ImplyServiceBean();
+    //  Для IP-адреса и подсети - адрес в виде чисел, разобранный один раз в конструкторе.
+    //  IP-адрес: address - адрес, mask - все единицы. Подсеть: address - номер сети, mask - маска подсети.
+    private int address;
+    private int mask;
+
+    //  Для IPv6-адреса и IPv6-подсети - адрес, разобранный один раз в конструкторе; для других типов - null
+    private Ipv6Address ipv6;
+
+    //  Действия в виде битовой маски(см. ActionMask) и производные от них значения.
+    //  Вычисляются один раз в конструкторе: разрешение неизменяемо.
+    private int actionMask;
+    //  Маска, с которой это разрешение выступает как запрашиваемое: маска разбора строки getActions().
+    //  Отличается от actionMask только для пустого набора действий - пустой запрос не подразумевается ничем.
+    private int requestedActionMask;
+    private String actions;
+    private int hashCode;
+
+    private ImplyService implyService;
+
+    //  Реализация проверок по умолчанию. Она не хранит состояния, поэтому одна на все разрешения.
+    //  Класс-держатель откладывает ее создание до первого обращения.
+    private static final class DefaultImplyServiceHolder {
+        static final ImplyService INSTANCE = new ImplyServiceBean();
+    }
 
 
     public QueuePermissionBasicImpl(String resourceName, String actionAsString) {
+        this(resourceName, actionAsString, DefaultImplyServiceHolder.INSTANCE);
+    }
+
+
+    /**
+     * Конструктор с заданной реализацией проверок имен ресурсов. Позволяет подменить реализацию: например, обойтись
+     * без настоящего DNS или собирать статистику вызовов({@link dk.messagebroker.queuepermission.service.MeteredImplyService}).
+     * @param resourceName Имя ресурса
+     * @param actionAsString Действия через {@link Const#ACTION_DELIMITER}. Пример: "pusher,puller"
+     * @param implyService Реализация проверок
+     */
+    public QueuePermissionBasicImpl(String resourceName, String actionAsString, ImplyService implyService) {
         super(resourceName, actionAsString);
-        this.resourceType = recognizeResourceType(resourceName);
+        this.implyService = implyService;
+        long scan = ResourceNameScanner.scan(resourceName);
+        this.resourceType = ResourceNameScanner.type(scan);
+        if (resourceType == ResourceType.IP || resourceType == ResourceType.SUBNET) {
+            int prefixLength = ResourceNameScanner.prefixLength(scan);
+            this.mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            this.address = ResourceNameScanner.address(scan) & mask;
+        } else if (resourceType == ResourceType.IPV6 || resourceType == ResourceType.IPV6_SUBNET) {
+            this.ipv6 = Ipv6Address.parse(resourceName);
+        }
+        this.actionMask = ActionMask.of(getActionAsArray());
+        this.actions = ActionMask.toActions(actionMask);
+        this.requestedActionMask = ActionMask.parse(actions);
+        this.hashCode = hashCode(resourceName, getActionAsArray());
+    }
+
+
+    //  Конструктор для уже разобранного разрешения(см. PermissionSnapshot): имя ресурса и действия не разбираются.
+    //  address - адрес без наложения маски, как он записан в имени; ipv6 - для IPv6-адреса и IPv6-подсети.
+    QueuePermissionBasicImpl(String resourceName, ResourceType resourceType, int address, int prefixLength,
+                             Ipv6Address ipv6, ParsedActions parsedActions) {
+        this(resourceName, resourceType, address, prefixLength, ipv6, parsedActions, DefaultImplyServiceHolder.INSTANCE);
+    }
+
+
+    QueuePermissionBasicImpl(String resourceName, ResourceType resourceType, int address, int prefixLength,
+                             Ipv6Address ipv6, ParsedActions parsedActions, ImplyService implyService) {
+        super(resourceName, parsedActions.actionAsArray);
+        this.implyService = implyService;
+        this.resourceType = resourceType;
+        if (resourceType == ResourceType.IP || resourceType == ResourceType.SUBNET) {
+            this.mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            this.address = address & mask;
+        }
+        this.ipv6 = ipv6;
+        this.actionMask = parsedActions.actionMask;
+        this.actions = parsedActions.actions;
+        this.requestedActionMask = parsedActions.requestedActionMask;
+        //  Хэш-код строки "имя + действия" складывается из хэш-кода имени и хэш-кода действий без построения строки
+        this.hashCode = resourceName.hashCode() * parsedActions.hashMultiplier + parsedActions.hashCode;
+    }
+
+
+    //  Реализация проверок, которую получают разрешения, созданные без явного указания реализации
+    static ImplyService defaultImplyService() {
+        return DefaultImplyServiceHolder.INSTANCE;
+    }
+
+
+    /*
+    Все, что конструктор вычисляет из строки действий, - для одной маски действий. Вычисляется один раз на маску.
+     */
+    static final class ParsedActions {
+        final int actionMask;
+        final String[] actionAsArray;
+        final String actions;
+        final int requestedActionMask;
+        //  Хэш-код строки s + suffix равен s.hashCode() * 31^suffix.length() + suffix.hashCode()
+        final int hashMultiplier;
+        final int hashCode;
+
+        ParsedActions(int actionMask) {
+            this.actionMask = actionMask;
+            this.actions = ActionMask.toActions(actionMask);
+            this.actionAsArray = actions.isEmpty() ? new String[0] : actions.split(Const.ACTION_DELIMITER);
+            this.requestedActionMask = ActionMask.parse(actions);
+            String[] sorted = actionAsArray.clone();
+            Arrays.sort(sorted);
+            String suffix = String.join("", sorted);
+            int multiplier = 1;
+            for (int i = 0; i < suffix.length(); i++) multiplier *= 31;
+            this.hashMultiplier = multiplier;
+            this.hashCode = suffix.hashCode();
+        }
     }
 
 
@@ -46,12 +152,18 @@ public class QueuePermissionBasicImpl extends QueuePermission {
      */
     @Override
     String[] normalizeAction(String action) {
-        return Arrays.stream(action.split(Const.ACTION_DELIMITER))
-                .map(userAction -> userAction.trim().toLowerCase())
-                .filter( userAction -> Arrays.stream(ActionType.values()).map(e->e.name()).anyMatch(e -> e.equals(userAction)) )
-                .distinct()
-                .collect(Collectors.toList())
-                .toArray(new String[0]);
+        //  Действия собираются в порядке их следования в строке, без повторов
+        String[] userActions = action.split(Const.ACTION_DELIMITER);
+        String[] normalized = new String[userActions.length];
+        int count = 0;
+        int seen = 0;
+        for (String userAction : userActions) {
+            ActionType type = ActionMask.find(userAction);
+            if (type == null || (seen & (1 << type.ordinal())) != 0) continue;
+            seen |= 1 << type.ordinal();
+            normalized[count++] = type.name();
+        }
+        return Arrays.copyOf(normalized, count);
     }
 
 
@@ -72,7 +184,7 @@ public class QueuePermissionBasicImpl extends QueuePermission {
         boolean bImplies = false;
         if (permission.getClass().equals(this.getClass())) {
             if (impliesResourceName(permission.getName())) {
-                return impliesActions(permission.getActions());
+                return impliesActions(((QueuePermissionBasicImpl) permission).requestedActionMask);
             }
         }
         return bImplies;
@@ -84,6 +196,7 @@ public class QueuePermissionBasicImpl extends QueuePermission {
      * <br><br>
      * Объекты типа QueuePermission являются эквивалентными, если эквивалентны имена ресурсов в этих объектах, количество действий
      * идентично и все действия одного объекта присутствуют в другом объекте. Порядок хранения дейсвия может быть разным.
+     * Т.е. действия двух объектов должны быть полностью одинаковы, а значит - одинаковы их битовые маски.
      * @param obj the object we are testing for equality with this object.
      * @return true/false
      */
@@ -92,16 +205,7 @@ public class QueuePermissionBasicImpl extends QueuePermission {
         boolean bEquals = false;
         if (this.getClass().equals(obj.getClass())) {
             QueuePermissionBasicImpl otherObj = (QueuePermissionBasicImpl) obj;
-            if (this.getName().equals(otherObj.getName())) {
-                String[] otherObjAction = otherObj.getActions().split(Const.ACTION_DELIMITER);
-                //  Очень важно! При проверке эквивалентности нужно сначала обязательно сравнить длины массивов.
-                //  И только потом, сами действия.
-                //  Т.е. действия двух объектов должны быть полностью одинаковы. Это и даст эквивалентность, в отличии от проверки "imply", где
-                //  идентичность размеров массивов не важна, а важна только полная включнность действий "другого" объекта в массив действий текущего.
-                if (getActionAsArray().length == otherObjAction.length) {
-                    bEquals = List.of(getActionAsArray()).containsAll( List.of(otherObjAction) );
-                }
-            }
+            bEquals = this.actionMask == otherObj.actionMask && this.getName().equals(otherObj.getName());
         }
         return bEquals;
     }
@@ -110,22 +214,51 @@ public class QueuePermissionBasicImpl extends QueuePermission {
     /**
      * Получить хэш-код объекта.
      * <br><br>
-     * Вычисляется как хэшкод строки, состоящей из имени ресурса + все действия в отсортированном порядке
+     * Вычисляется(один раз, в конструкторе) как хэшкод строки, состоящей из имени ресурса + все действия в отсортированном порядке
      * @return хэш-код
      */
     @Override
     public int hashCode() {
-        return (getName() + Arrays.stream(getActionAsArray()).sorted().reduce("", (s1, s2) -> (s1 + s2))).hashCode();
+        return hashCode;
+    }
+
+
+    //  Хэш-код строки из имени ресурса и всех действий в отсортированном порядке
+    private static int hashCode(String resourceName, String[] actions) {
+        String[] sorted = actions.clone();
+        Arrays.sort(sorted);
+        StringBuilder builder = new StringBuilder(resourceName);
+        for (String action : sorted) builder.append(action);
+        return builder.toString().hashCode();
     }
 
 
     /**
-     * Получить массив действий, хранящийся в объекте
-     * @return
+     * Получить действия, хранящиеся в объекте, в каноническом виде: в порядке элементов {@link ActionType}, через
+     * {@link Const#ACTION_DELIMITER}. Строка вычисляется один раз, в конструкторе.
+     * @return Строка действий. Пример: "pusher,puller"
      */
     @Override
     public String getActions() {
-        return String.join(Const.ACTION_DELIMITER, getActionAsArray());
+        return actions;
+    }
+
+
+    /**
+     * Получить маску действий, хранящихся в объекте
+     * @return Маска(см. {@link ActionMask})
+     */
+    int getActionMask() {
+        return actionMask;
+    }
+
+
+    /**
+     * Получить маску действий, с которой этот объект выступает как проверяемое разрешение - маску строки {@link #getActions()}
+     * @return Маска(см. {@link ActionMask#parse(String)})
+     */
+    int getRequestedActionMask() {
+        return requestedActionMask;
     }
 
 
@@ -141,10 +274,19 @@ public class QueuePermissionBasicImpl extends QueuePermission {
      * @return Или IP или Подсеть или Имя хоста; или null, если тип ресурса не распознан
      */
     ResourceType recognizeResourceType(String resourceName) {
-        if (resourceName.matches(Const.IP_REGEXP)) return ResourceType.IP;
-        if (resourceName.matches(Const.SUBNET_REGEXP)) return ResourceType.SUBNET;
-        if (resourceName.matches(Const.DOMAINNAME_REGEXP)) return ResourceType.DOMAINNAME;
-        return null;
+        return recognize(resourceName);
+    }
+
+
+    /**
+     * Распознать тип ресурса. Логика метода {@link #recognizeResourceType(String)}, доступная без объекта разрешения.
+     * <br><br>
+     * Распознавание выполняет {@link ResourceNameScanner} - за один проход по имени, без регулярных выражений.
+     * @param resourceName Имя ресурса
+     * @return Или IP или Подсеть или Имя хоста; или null, если тип ресурса не распознан
+     */
+    static ResourceType recognize(String resourceName) {
+        return ResourceNameScanner.type(ResourceNameScanner.scan(resourceName));
     }
 
 
@@ -157,27 +299,96 @@ public class QueuePermissionBasicImpl extends QueuePermission {
     }
 
 
+    /**
+     * Получить адрес: для IP-адреса - сам адрес, для подсети - номер сети.
+     * Для других типов ресурсов - 0.
+     * @return Адрес как число
+     */
+    int getAddress() {
+        return this.address;
+    }
+
+
+    /**
+     * Получить длину префикса: для IP-адреса - 32, для подсети - длина ее префикса.
+     * Для других типов ресурсов - 0.
+     * @return Длина префикса
+     */
+    int getPrefixLength() {
+        return Integer.bitCount(this.mask);
+    }
+
+
+    /**
+     * Получить разобранный IPv6-адрес: для IPv6-адреса - сам адрес, для IPv6-подсети - номер сети и длина префикса.
+     * @return Адрес; или null, если тип ресурса - не IPv6
+     */
+    Ipv6Address getIpv6() {
+        return this.ipv6;
+    }
+
+
+    /**
+     * Получить реализацию проверок имен ресурсов, с которой создан объект
+     * @return Реализация проверок
+     */
+    ImplyService getImplyService() {
+        return this.implyService;
+    }
+
+
     /**
      * Подразумевает ли имя ресурса, передаваемое в метод, что речь идет о ресурсе, описанном в текущем объекте.
      * <br><br>
      * Именем ресурса может быть IP.
      * Именем ресурса может быть доменное имя.
      * Именем ресурса может быть подсеть.
+     * Именем ресурса может быть IPv6-адрес или IPv6-подсеть. IPv4 и IPv6 друг друга не подразумевают никогда.
      * @param otherResourceName Имя ресурса для проверки
      * @return true/false (подразумевает/не подразумевает)
      */
     @Override
     boolean impliesResourceName(String otherResourceName) {
+        return impliesResourceName(ResourceNameScanner.scan(otherResourceName), otherResourceName);
+    }
+
+
+    /**
+     * То же, что и {@link #impliesResourceName(String)}, но имя ресурса уже распознано.
+     * Позволяет распознать имя один раз и проверить его против многих разрешений.
+     * @param otherScan Результат {@link ResourceNameScanner#scan(String)} для имени ресурса
+     * @param otherResourceName Имя ресурса для проверки
+     * @return true/false (подразумевает/не подразумевает)
+     */
+    boolean impliesResourceName(long otherScan, String otherResourceName) {
+        ResourceType otherResourceNameType = ResourceNameScanner.type(otherScan);
+        //  128-битный адрес в результат распознавания не помещается - разбираем имя
+        Ipv6Address otherIpv6 = otherResourceNameType == ResourceType.IPV6 || otherResourceNameType == ResourceType.IPV6_SUBNET
+                ? Ipv6Address.parse(otherResourceName)
+                : null;
+        return impliesResourceName(otherScan, otherIpv6, otherResourceName);
+    }
+
+
+    /**
+     * То же, что и {@link #impliesResourceName(long, String)}, но IPv6-адрес в имени ресурса уже разобран.
+     * @param otherScan Результат {@link ResourceNameScanner#scan(String)} для имени ресурса
+     * @param otherIpv6 Разобранный IPv6-адрес, если имя - IPv6-адрес или IPv6-подсеть; иначе null
+     * @param otherResourceName Имя ресурса для проверки
+     * @return true/false (подразумевает/не подразумевает)
+     */
+    boolean impliesResourceName(long otherScan, Ipv6Address otherIpv6, String otherResourceName) {
 
         if (getResourceType() == null) return false;
 
-        ResourceType otherResourceNameType = recognizeResourceType(otherResourceName);
+        ResourceType otherResourceNameType = ResourceNameScanner.type(otherScan);
         if (otherResourceNameType == null) return false;
 
         if (otherResourceNameType == ResourceType.IP) {
+            int otherAddress = ResourceNameScanner.address(otherScan);
             switch (getResourceType()) {
-                case IP: return implyService.IPIP(otherResourceName, this.getName());
-                case SUBNET: return implyService.IPSubnet(otherResourceName, this.getName());
+                case IP: return implyService.IPIP(otherAddress, this.address);
+                case SUBNET: return implyService.IPSubnet(otherAddress, this.address, this.mask);
                 case DOMAINNAME:
                     try {
                         return implyService.IPDomainName(otherResourceName, this.getName());
@@ -205,12 +416,47 @@ public class QueuePermissionBasicImpl extends QueuePermission {
                     }
                 case SUBNET:
                     try {
-                        return implyService.DomainNameSubnet(otherResourceName, this.getName());
+                        return implyService.DomainNameSubnet(otherResourceName, this.address, this.mask);
                     } catch (UnknownHostException e) {
                         return false;
                     }
                 case DOMAINNAME: return implyService.DomainNameDomainName(otherResourceName, this.getName());
+                case IPV6:
+                    try {
+                        return implyService.DomainNameIPv6(otherResourceName, this.ipv6.high, this.ipv6.low);
+                    } catch (UnknownHostException e) {
+                        return false;
+                    }
+                case IPV6_SUBNET:
+                    try {
+                        return implyService.DomainNameIPv6Subnet(otherResourceName, this.ipv6.high, this.ipv6.low, this.ipv6.prefixLength);
+                    } catch (UnknownHostException e) {
+                        return false;
+                    }
+            }
+        }
+
+        if (otherResourceNameType == ResourceType.IPV6) {
+            switch (getResourceType()) {
+                case IPV6: return implyService.IPv6IPv6(otherIpv6.high, otherIpv6.low, this.ipv6.high, this.ipv6.low);
+                case IPV6_SUBNET:
+                    return implyService.IPv6Subnet(otherIpv6.high, otherIpv6.low, this.ipv6.high, this.ipv6.low, this.ipv6.prefixLength);
+                case DOMAINNAME:
+                    try {
+                        return implyService.IPDomainName(otherResourceName, this.getName());
+                    } catch (UnknownHostException e) {
+                        return false;
+                    }
+                default: return false;
+            }
+        }
+
+        if (otherResourceNameType == ResourceType.IPV6_SUBNET) {
+            if (getResourceType() == ResourceType.IPV6_SUBNET) {
+                return implyService.IPv6SubnetSubnet(otherIpv6.high, otherIpv6.low, otherIpv6.prefixLength,
+                        this.ipv6.high, this.ipv6.low, this.ipv6.prefixLength);
             }
+            return false;
         }
 
         //  В эту точку алгоритм никогда не дойдет. Но java этого не знает и требует сделать возврат значения
@@ -226,7 +472,17 @@ public class QueuePermissionBasicImpl extends QueuePermission {
      */
     @Override
     boolean impliesActions(String actions) {
-        return List.of(getActionAsArray()).containsAll( List.of(actions.split(Const.ACTION_DELIMITER)) );
+        return impliesActions(ActionMask.parse(actions));
+    }
+
+
+    /**
+     * Подразумевают ли действия, хранящиеся в объекте, действия, заданные маской.
+     * @param actionMask Маска действий для проверки(см. {@link ActionMask#parse(String)})
+     * @return true(подразумевают)/false(не подразумевают)
+     */
+    boolean impliesActions(int actionMask) {
+        return ActionMask.implies(this.actionMask, actionMask);
     }
 
 
@@ -1,7 +1,16 @@
 package dk.messagebroker.queuepermission;
 
+import java.security.Permission;
 import java.security.PermissionCollection;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Абстрактный класс, который должен использоваться для реализации коллекции, хранящей объекты разрешений к
@@ -14,4 +23,189 @@ public abstract class QueuePermissionCollection extends PermissionCollection {
      * @return Список с объектами разрешений
      */
     public abstract List<QueuePermission> getPermissionsByName(String name);
+
+    /**
+     * Добавление нескольких разрешений.
+     * <br><br>
+     * Эта реализация добавляет разрешения по одному через {@link #add(Permission)}; реализации коллекций
+     * переопределяют метод, чтобы добавлять их одним пакетом.
+     * @param permissions Разрешения
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    public void addAll(Collection<? extends Permission> permissions) {
+        for (Permission permission : permissions) add(permission);
+    }
+
+    /**
+     * Удалить разрешение из коллекции: первое разрешение под его именем ресурса, равное ему по equals().
+     * <br><br>
+     * Эта реализация удаление не поддерживает; реализации коллекций переопределяют метод.
+     * @param permission Разрешение
+     * @return удалено(true)/такого разрешения в коллекции нет(false)
+     * @throws UnsupportedOperationException Коллекция не поддерживает удаление
+     */
+    public boolean remove(Permission permission) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support remove");
+    }
+
+    /**
+     * Заменить разрешение другим за одно изменение: читатели видят либо старое разрешение, либо новое.
+     * Если старого разрешения в коллекции нет, коллекция не меняется.
+     * <br><br>
+     * Эта реализация замену не поддерживает; реализации коллекций переопределяют метод.
+     * @param oldPermission Заменяемое разрешение
+     * @param newPermission Новое разрешение
+     * @return заменено(true)/старого разрешения в коллекции нет(false)
+     * @throws UnsupportedOperationException Коллекция не поддерживает удаление
+     */
+    public boolean replace(Permission oldPermission, Permission newPermission) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support replace");
+    }
+
+    /**
+     * Применить изменение политики за одно изменение коллекции: удалить разрешения removed и добавить разрешения added.
+     * Читатели видят либо коллекцию до изменения, либо после, но не промежуточное состояние; версия коллекции
+     * ({@link #version()}) меняется один раз. Разрешения, которых в коллекции нет, при удалении пропускаются.
+     * <br><br>
+     * Эта реализация изменение не поддерживает; реализации коллекций переопределяют метод.
+     * @param added Добавляемые разрешения
+     * @param removed Удаляемые разрешения
+     * @return Количество удаленных разрешений
+     * @throws UnsupportedOperationException Коллекция не поддерживает удаление
+     */
+    public int applyDelta(Collection<? extends Permission> added, Collection<? extends Permission> removed) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support applyDelta");
+    }
+
+    /**
+     * Минимизировать политику: удалить повторы и разрешения, которые подразумеваются другими разрешениями коллекции
+     * (см. {@link PolicyMinimizer}). Без объединения IP-адресов решения коллекции не меняются. Удобно вызывать после
+     * загрузки сгенерированного списка доступа, в котором много таких разрешений: каждое лишнее разрешение удлиняет
+     * перебор списков в implies().
+     * <br><br>
+     * Эта реализация минимизацию не поддерживает; реализации коллекций переопределяют метод.
+     * @param coalesceHosts Заменять ли IP-адреса, покрывающие блок адресов, подсетью этого блока. Меняет решение для
+     *                      запроса самой подсети блока
+     * @return Результат минимизации
+     * @throws UnsupportedOperationException Коллекция не поддерживает удаление
+     */
+    public PolicyMinimizer.Report minimize(boolean coalesceHosts) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support minimize");
+    }
+
+    /**
+     * Подразумеваются ли разрешения разрешениями коллекции - для многих разрешений за один вызов.
+     * <br><br>
+     * Результат совпадает с вызовом {@link #implies(Permission)} для каждого разрешения по отдельности. Эта реализация
+     * так и делает; реализации коллекций могут переопределить метод, чтобы проверять разрешения пакетом.
+     * @param permissions Проверяемые разрешения
+     * @return Набор номеров разрешений(в порядке списка), которые подразумеваются
+     */
+    public BitSet impliesAll(List<? extends Permission> permissions) {
+        BitSet result = new BitSet(permissions.size());
+        for (int i = 0; i < permissions.size(); i++) {
+            if (implies(permissions.get(i))) result.set(i);
+        }
+        return result;
+    }
+
+    /**
+     * Асинхронный вариант {@link #implies(Permission)}: проверка, которой может понадобиться DNS, не занимает
+     * вызывающий поток. Выполняется общим исполнителем {@link NameResolutionExecutor#shared()}.
+     * @param permission Проверяемое разрешение
+     * @return Решение
+     */
+    public CompletableFuture<Boolean> impliesAsync(Permission permission) {
+        return impliesAsync(permission, NameResolutionExecutor.shared());
+    }
+
+    /**
+     * Асинхронный вариант {@link #implies(Permission)}: проверка, которой может понадобиться DNS, не занимает
+     * вызывающий поток.
+     * <br><br>
+     * Эта реализация не знает, какие проверки обращаются к DNS, и передает исполнителю каждую. Реализации коллекций
+     * переопределяют метод, чтобы решать без DNS на месте: такой вызов возвращает уже завершенный результат.
+     * Если проверка не уложилась во время исполнителя, решение - false.
+     * @param permission Проверяемое разрешение
+     * @param executor Исполнитель проверок, которые могут ждать DNS
+     * @return Решение
+     */
+    public CompletableFuture<Boolean> impliesAsync(Permission permission, NameResolutionExecutor executor) {
+        return executor.submit(() -> implies(permission));
+    }
+
+    /**
+     * Получить версию содержимого коллекции. Версия меняется при каждом изменении коллекции, поэтому по ней можно
+     * узнать, что решения, принятые по коллекции раньше, устарели(см. {@link AuthorizationSession}).
+     * <br><br>
+     * Эта реализация версий не поддерживает и всегда возвращает -1; реализации коллекций переопределяют метод.
+     * @return Версия; отрицательное значение - коллекция версий не поддерживает
+     */
+    public long version() {
+        return -1;
+    }
+
+    /**
+     * Может ли проверка имени ресурса этого типа обратиться к DNS(см. {@link PermissionIndex#needsNameResolution(ResourceType)}).
+     * Решения таких проверок нельзя запоминать до изменения коллекции: они зависят от ответов DNS.
+     * <br><br>
+     * Эта реализация не знает, какие проверки обращаются к DNS, и возвращает true; реализации коллекций переопределяют метод.
+     * @param resourceType Тип имени ресурса; null - имя не распознано
+     * @return может(true)/не может(false)
+     */
+    boolean needsNameResolution(ResourceType resourceType) {
+        return true;
+    }
+
+    /**
+     * Подразумевается ли разрешение без проверок, обращающихся к DNS(см.
+     * {@link PermissionIndex#impliesWithoutNameResolution(Permission)}). Такое решение не меняется, пока не изменится
+     * коллекция.
+     * <br><br>
+     * Эта реализация возвращает false; реализации коллекций переопределяют метод.
+     * @param permission Проверяемое разрешение
+     * @return подразумевается(true)/не подразумевается без проверок с DNS(false)
+     */
+    boolean impliesWithoutNameResolution(Permission permission) {
+        return false;
+    }
+
+    /**
+     * Получить Spliterator по всем разрешениям коллекции.
+     * <br><br>
+     * Эта реализация строится на {@link #elements()} и не делится эффективно. Реализации коллекций могут переопределить
+     * метод, чтобы обходить свое содержимое напрямую и делить его для параллельной обработки.
+     * @return Spliterator
+     */
+    public Spliterator<QueuePermission> spliterator() {
+        Iterator<Permission> elements = elements().asIterator();
+        Iterator<QueuePermission> iterator = new Iterator<QueuePermission>() {
+            @Override
+            public boolean hasNext() {
+                return elements.hasNext();
+            }
+
+            @Override
+            public QueuePermission next() {
+                return (QueuePermission) elements.next();
+            }
+        };
+        return Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL);
+    }
+
+    /**
+     * Получить последовательный поток всех разрешений коллекции
+     * @return Поток разрешений
+     */
+    public Stream<QueuePermission> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Получить параллельный поток всех разрешений коллекции
+     * @return Поток разрешений
+     */
+    public Stream<QueuePermission> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
 }
@@ -0,0 +1,364 @@
+package dk.messagebroker.queuepermission;
+
+import java.security.Permission;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Реализация коллекции для нагрузки, в которой проверок(implies) намного больше, чем изменений.
+ * <br><br>
+ * Содержимое коллекции - неизменяемый снимок({@link PermissionIndex}), опубликованный через volatile-ссылку.
+ * Чтение(implies, elements, getPermissionsByName) берет текущий снимок и работает только с ним: читатели никогда
+ * не блокируются и никогда не видят изменение наполовину выполненным.
+ * <br><br>
+ * Писатели объединяют изменения в пакеты. Добавляемое разрешение сначала попадает в очередь, затем писатель захватывает
+ * блокировку и переносит в новый снимок все разрешения, накопившиеся в очереди к этому моменту, - в том числе
+ * добавленные другими потоками, пока он ждал блокировку. Поэтому при одновременной загрузке из многих потоков
+ * снимок публикуется реже, чем вызывается add(). Когда add() возвращает управление, добавленное разрешение уже видно
+ * всем читателям.
+ */
+public class QueuePermissionCollectionConcurrentImpl extends QueuePermissionCollection {
+
+    private volatile PermissionIndex index = PermissionIndex.EMPTY;
+
+    //  Кэш решений implies(); null - кэш не используется
+    private final DecisionCache decisionCache;
+
+    //  Разрешения, добавленные, но еще не перенесенные в снимок
+    private final Queue<QueuePermission> pending = new ConcurrentLinkedQueue<>();
+    //  Блокировка публикации снимков. Читатели ее не захватывают.
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+
+    /**
+     * Конструктор коллекции без кэша решений
+     */
+    public QueuePermissionCollectionConcurrentImpl() {
+        this.decisionCache = null;
+    }
+
+
+    /**
+     * Конструктор коллекции с кэшем решений implies(). Кэш хранит как положительные, так и отрицательные решения и
+     * сбрасывается при любом изменении коллекции(см. {@link DecisionCache}).
+     * @param decisionCacheSize Максимальное количество решений в кэше
+     */
+    public QueuePermissionCollectionConcurrentImpl(int decisionCacheSize) {
+        this.decisionCache = new DecisionCache(decisionCacheSize);
+    }
+
+
+    /**
+     * Добавление разрешения в коллекцию. Разрешение, тип которого не порожден от QueuePermission, игнорируется.
+     * @param permission the Permission object to add.
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public void add(Permission permission) {
+        if (isReadOnly()) throw new SecurityException("Attempt to add a Permission to a readonly PermissionCollection");
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return;
+        pending.add((QueuePermission) permission);
+        publish();
+    }
+
+
+    /**
+     * Добавление нескольких разрешений. Все разрешения становятся видны читателям одновременно, одним снимком.
+     * Разрешения, тип которых не порожден от QueuePermission, игнорируются.
+     * @param permissions Разрешения
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public void addAll(Collection<? extends Permission> permissions) {
+        if (isReadOnly()) throw new SecurityException("Attempt to add a Permission to a readonly PermissionCollection");
+        List<QueuePermission> batch = new ArrayList<>(permissions.size());
+        for (Permission permission : permissions) {
+            if (permission.getClass().getSuperclass().equals(QueuePermission.class)) batch.add((QueuePermission) permission);
+        }
+        if (batch.isEmpty()) return;
+        publishLock.lock();
+        try {
+            //  Сначала - то, что другие потоки успели поставить в очередь, затем весь пакет
+            PermissionIndex newIndex = drain(index);
+            index = newIndex.withAll(batch);
+            PermissionIndex.domainNamesAdded(batch);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    /**
+     * Удалить разрешение из коллекции: первое разрешение под его именем ресурса, равное ему по equals(). Индексы
+     * обновляются только для ключа этого разрешения.
+     * @param permission Разрешение
+     * @return удалено(true)/такого разрешения в коллекции нет(false)
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public boolean remove(Permission permission) {
+        if (isReadOnly()) throw new SecurityException("Attempt to remove a Permission from a readonly PermissionCollection");
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        publishLock.lock();
+        try {
+            //  Разрешение могло быть добавлено другим потоком и еще стоять в очереди
+            PermissionIndex current = drain(index);
+            PermissionIndex newIndex = current.without((QueuePermission) permission);
+            index = newIndex;
+            if (newIndex == current) return false;
+            newIndex.domainNameRemoved((QueuePermission) permission);
+            return true;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    /**
+     * Заменить разрешение другим одним снимком: читатели видят либо старое разрешение, либо новое.
+     * Новое разрешение, тип которого не порожден от QueuePermission, игнорируется - старое при этом удаляется.
+     * @param oldPermission Заменяемое разрешение
+     * @param newPermission Новое разрешение
+     * @return заменено(true)/старого разрешения в коллекции нет(false)
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public boolean replace(Permission oldPermission, Permission newPermission) {
+        if (isReadOnly()) throw new SecurityException("Attempt to replace a Permission in a readonly PermissionCollection");
+        if (oldPermission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        publishLock.lock();
+        try {
+            PermissionIndex current = drain(index);
+            if (current.without((QueuePermission) oldPermission) == current) {
+                index = current;
+                return false;
+            }
+            List<QueuePermission> added = PermissionIndex.queuePermissions(Collections.singletonList(newPermission));
+            PermissionIndex newIndex = current.withDelta(added, Collections.singletonList((QueuePermission) oldPermission));
+            index = newIndex;
+            PermissionIndex.domainNamesAdded(added);
+            newIndex.domainNameRemoved((QueuePermission) oldPermission);
+            return true;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    /**
+     * Применить изменение политики одним снимком: удалить разрешения removed и добавить разрешения added.
+     * Стоимость изменения зависит от количества изменяемых разрешений, а не от размера коллекции: копируются только
+     * затронутые списки и пути к ним в индексах. Разрешения, тип которых не порожден от QueuePermission, игнорируются.
+     * @param added Добавляемые разрешения
+     * @param removed Удаляемые разрешения
+     * @return Количество удаленных разрешений
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public int applyDelta(Collection<? extends Permission> added, Collection<? extends Permission> removed) {
+        if (isReadOnly()) throw new SecurityException("Attempt to modify a readonly PermissionCollection");
+        List<QueuePermission> addedBatch = PermissionIndex.queuePermissions(added);
+        List<QueuePermission> removedBatch = PermissionIndex.queuePermissions(removed);
+        publishLock.lock();
+        try {
+            PermissionIndex current = drain(index);
+            PermissionIndex newIndex = current.withDelta(addedBatch, removedBatch);
+            index = newIndex;
+            PermissionIndex.domainNamesAdded(addedBatch);
+            newIndex.domainNamesRemoved(removedBatch);
+            return current.size() + addedBatch.size() - newIndex.size();
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    /**
+     * Минимизировать политику одним снимком(см. {@link PolicyMinimizer}). Удаляются только разрешения, которые
+     * подразумеваются оставшимися. Разрешения, которые еще стоят в очереди добавления, тоже участвуют.
+     * @param coalesceHosts Заменять ли IP-адреса, покрывающие блок адресов, подсетью этого блока
+     * @return Результат минимизации
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public PolicyMinimizer.Report minimize(boolean coalesceHosts) {
+        if (isReadOnly()) throw new SecurityException("Attempt to modify a readonly PermissionCollection");
+        publishLock.lock();
+        try {
+            PermissionIndex current = drain(index);
+            PolicyMinimizer.Report report = PolicyMinimizer.plan(current, coalesceHosts);
+            PermissionIndex newIndex = report.changed() ? current.withDelta(report.added, report.removed) : current;
+            index = newIndex;
+            newIndex.domainNamesRemoved(report.removed);
+            return report;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    /*
+    Перенести очередь в новый снимок и опубликовать его. Если очередь уже перенес другой поток, снимок не меняется.
+     */
+    private void publish() {
+        publishLock.lock();
+        try {
+            PermissionIndex current = index;
+            PermissionIndex newIndex = drain(current);
+            if (newIndex != current) index = newIndex;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+
+    //  Вызывается только под publishLock
+    private PermissionIndex drain(PermissionIndex current) {
+        PermissionIndex newIndex = current;
+        QueuePermission permission;
+        while ((permission = pending.poll()) != null) {
+            newIndex = newIndex.with(permission);
+            PermissionIndex.domainNameAdded(permission);
+        }
+        return newIndex;
+    }
+
+
+    /**
+     * Реализация функционала "подразумевает ли" для коллекции. Не блокируется.
+     * @param permission Объект разрешения, для которого выясняется, подразумевается ли это разрешение разрешениями
+     *                   хранящимися в коллекции.
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    @Override
+    public boolean implies(Permission permission) {
+        //  Снимок читается один раз: и кэш, и вычисление решения работают с одной и той же версией коллекции
+        PermissionIndex current = index;
+        return decisionCache == null ? current.implies(permission) : decisionCache.implies(current, permission);
+    }
+
+
+    /**
+     * Асинхронный вариант {@link #implies(Permission)}. Решение, для которого DNS не нужен(например, IP-адрес входит
+     * в подсеть разрешения), принимается на месте. Исполнителю передаются только проверки IP-адреса против доменных
+     * имен, доменного имени против IP-адресов и подсетей, и проверки разрешений других реализаций.
+     * @param permission Проверяемое разрешение
+     * @param executor Исполнитель проверок, которые могут ждать DNS
+     * @return Решение
+     */
+    @Override
+    public CompletableFuture<Boolean> impliesAsync(Permission permission, NameResolutionExecutor executor) {
+        PermissionIndex current = index;
+        if (current.impliesWithoutNameResolution(permission)) return CompletableFuture.completedFuture(true);
+        if (current.needsNameResolution(permission.getName()) == false) return CompletableFuture.completedFuture(false);
+        return executor.submit(() -> implies(permission));
+    }
+
+
+    /**
+     * Подразумеваются ли разрешения разрешениями коллекции - для многих разрешений за один вызов.
+     * <br><br>
+     * Разрешения с одинаковым именем ресурса проверяются вместе: имя распознается, а ключи коллекции, которые его
+     * подразумевают, находятся один раз на группу. Все разрешения проверяются по одному и тому же состоянию коллекции.
+     * Кэш решений при этом не используется.
+     * @param permissions Проверяемые разрешения
+     * @return Набор номеров разрешений(в порядке списка), которые подразумеваются
+     */
+    @Override
+    public BitSet impliesAll(List<? extends Permission> permissions) {
+        return index.impliesAll(permissions);
+    }
+
+
+    /**
+     * Получить все элементы коллекции в виде объекта перечисления. Перечисление обходит снимок, актуальный на момент
+     * вызова, без копирования; разрешения, добавленные позже, в него не попадают.
+     * @return Элементы коллекции.
+     */
+    @Override
+    public Enumeration<Permission> elements() {
+        Iterator<QueuePermission> iterator = index.iterator();
+        return new Enumeration<Permission>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Permission nextElement() {
+                return iterator.next();
+            }
+        };
+    }
+
+
+    /**
+     * Получить Spliterator по снимку, актуальному на момент вызова. Делится по поддеревьям индекса и подходит для
+     * параллельной обработки больших коллекций.
+     * @return Spliterator
+     */
+    @Override
+    public Spliterator<QueuePermission> spliterator() {
+        return index.spliterator();
+    }
+
+
+    /**
+     * Получить все разрешения из коллекции для заданного имени ресурса
+     * @param name Имя ресурса
+     * @return Неизменяемый список с объектами разрешений; или null, если разрешений для этого имени нет
+     */
+    @Override
+    public List<QueuePermission> getPermissionsByName(String name) {
+        return index.get(name);
+    }
+
+
+    /**
+     * Получить кэш решений implies() - например, чтобы прочитать счетчики попаданий и промахов
+     * @return Кэш решений; или null, если коллекция создана без кэша
+     */
+    public DecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+
+    /**
+     * Получить версию содержимого коллекции - эпоху текущего снимка. Каждое изменение коллекции увеличивает ее.
+     * @return Версия
+     */
+    @Override
+    public long version() {
+        return index.epoch();
+    }
+
+
+    @Override
+    boolean needsNameResolution(ResourceType resourceType) {
+        return index.needsNameResolution(resourceType);
+    }
+
+
+    @Override
+    boolean impliesWithoutNameResolution(Permission permission) {
+        return index.impliesWithoutNameResolution(permission);
+    }
+
+
+    /**
+     * Количество разрешений в коллекции
+     * @return Количество разрешений
+     */
+    public int size() {
+        return index.size();
+    }
+
+
+    @Override
+    public String toString() {
+        return "QueuePermissionCollectionConcurrentImpl(index=" + index + ")";
+    }
+
+}
@@ -0,0 +1,503 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyService;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.Permission;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Реализация коллекции для очень больших таблиц разрешений на IP-адреса и подсети. Данные разрешений хранятся
+ * вне кучи Java.
+ * <br><br>
+ * Коллекция принимает только разрешения {@link QueuePermissionBasicImpl} с типом ресурса IP-адрес или подсеть. От
+ * разрешения сохраняются только адрес, длина префикса и маска действий - в буферах, выделенных
+ * {@link ByteBuffer#allocateDirect(int)}:
+ * <ul>
+ *     <li>журнал разрешений в порядке добавления - по 12 байт на разрешение</li>
+ *     <li>хэш-таблица имен ресурсов: для каждого имени - набор масок действий и цепочка его разрешений в журнале</li>
+ *     <li>хэш-таблица подсетей по номеру сети и длине префикса - для поиска подсетей, в которые входит адрес</li>
+ * </ul>
+ * Маски действий хранятся номерами в небольшой таблице различных масок, а набор масок имени - битами этих номеров.
+ * Поэтому разных наборов действий в коллекции может быть не больше 32.
+ * <br><br>
+ * implies() читает буферы напрямую и не создает объектов разрешений. Адрес проверяется по хэш-таблицам: для IP-адреса -
+ * не больше одного поиска на каждую длину префикса, встречающуюся среди подсетей коллекции. Доменное имя сравнивается
+ * с каждым именем коллекции через DNS(как и в других коллекциях) - такие проверки здесь медленные. Имена для сравнения
+ * копируются под блокировкой, а DNS вызывается уже без нее.
+ * <br><br>
+ * Объекты разрешений создаются только в {@link #elements()} и {@link #getPermissionsByName(String)}, при каждом
+ * вызове заново. Они равны добавленным(equals()), но не совпадают с ними как объекты. Все они, как и проверки через
+ * DNS, используют реализацию проверок коллекции - реализация проверок добавляемых разрешений не сохраняется.
+ * <br><br>
+ * Читатели не мешают друг другу.
+ */
+public class QueuePermissionCollectionOffHeapImpl extends QueuePermissionCollection {
+
+    //  Запись журнала: int адрес(как в имени), byte тип, byte длина префикса, byte номер маски, byte не используется,
+    //  int номер следующего разрешения с тем же именем(-1 - последнее)
+    private static final int ENTRY_SIZE = 12;
+    private static final int ENTRY_TYPE = 4;
+    private static final int ENTRY_PREFIX = 5;
+    private static final int ENTRY_MASK = 6;
+    private static final int ENTRY_NEXT = 8;
+
+    //  Ячейка таблицы имен: long ключ(0 - пустая ячейка), int набор масок, int первое и int последнее разрешение имени
+    private static final int NAME_SLOT_SIZE = 24;
+    private static final int NAME_MASKS = 8;
+    private static final int NAME_FIRST = 12;
+    private static final int NAME_LAST = 16;
+
+    //  Ячейка таблицы подсетей: long ключ(0 - пустая ячейка), int набор масок всех подсетей с этим номером сети
+    private static final int NETWORK_SLOT_SIZE = 16;
+    private static final int NETWORK_MASKS = 8;
+
+    private static final byte TYPE_IP = 1;
+    private static final byte TYPE_SUBNET = 2;
+
+    private static final int MAX_MASKS = 32;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final ImplyService implyService;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //  Все поля ниже меняются только под блокировкой записи
+    private ByteBuffer entries;
+    private int size;
+    private ByteBuffer names;
+    private int nameCount;
+    private ByteBuffer networks;
+    private int networkCount;
+    //  Бит p - в коллекции есть подсети с длиной префикса p
+    private long prefixLengths;
+    //  Различные маски действий и производные от них значения - для создания объектов разрешений
+    private final int[] masks = new int[MAX_MASKS];
+    private final QueuePermissionBasicImpl.ParsedActions[] parsedActions = new QueuePermissionBasicImpl.ParsedActions[MAX_MASKS];
+    private int maskCount;
+    //  Версия содержимого: увеличивается при каждом изменении. Читается без блокировки.
+    private volatile long version;
+
+
+    /**
+     * Конструктор коллекции, проверки которой выполняет реализация по умолчанию
+     */
+    public QueuePermissionCollectionOffHeapImpl() {
+        this(QueuePermissionBasicImpl.defaultImplyService());
+    }
+
+
+    /**
+     * Конструктор коллекции с заданной реализацией проверок. Ее используют проверки через DNS и объекты разрешений,
+     * которые создает коллекция.
+     * @param implyService Реализация проверок
+     */
+    public QueuePermissionCollectionOffHeapImpl(ImplyService implyService) {
+        this.implyService = implyService;
+        this.entries = ByteBuffer.allocateDirect(INITIAL_CAPACITY * ENTRY_SIZE);
+        this.names = ByteBuffer.allocateDirect(INITIAL_CAPACITY * NAME_SLOT_SIZE);
+        this.networks = ByteBuffer.allocateDirect(INITIAL_CAPACITY * NETWORK_SLOT_SIZE);
+    }
+
+
+    /**
+     * Добавление разрешения в коллекцию. Разрешение, тип которого не порожден от QueuePermission, игнорируется.
+     * @param permission the Permission object to add.
+     * @throws SecurityException Коллекция помечена только для чтения
+     * @throws IllegalArgumentException Разрешение - не {@link QueuePermissionBasicImpl} с IP-адресом или подсетью
+     * @throws IllegalStateException В коллекции уже 32 разных набора действий, а у разрешения - новый
+     */
+    @Override
+    public void add(Permission permission) {
+        if (isReadOnly()) throw new SecurityException("Attempt to add a Permission to a readonly PermissionCollection");
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return;
+        if (permission.getClass() != QueuePermissionBasicImpl.class) {
+            throw new IllegalArgumentException("Off-heap collection stores only QueuePermissionBasicImpl: " + permission);
+        }
+        QueuePermissionBasicImpl basic = (QueuePermissionBasicImpl) permission;
+        ResourceType resourceType = basic.getResourceType();
+        if (resourceType != ResourceType.IP && resourceType != ResourceType.SUBNET) {
+            throw new IllegalArgumentException("Off-heap collection stores only IP and SUBNET permissions: " + permission);
+        }
+        //  В разрешении хранится номер сети, а имя однозначно записывается по адресу из имени
+        long scan = ResourceNameScanner.scan(basic.getName());
+        int address = ResourceNameScanner.address(scan);
+        int prefixLength = ResourceNameScanner.prefixLength(scan);
+        byte type = resourceType == ResourceType.IP ? TYPE_IP : TYPE_SUBNET;
+
+        lock.writeLock().lock();
+        try {
+            int maskIndex = maskIndex(basic.getActionMask());
+            if (size == Integer.MAX_VALUE / ENTRY_SIZE) throw new IllegalStateException("Off-heap collection is full");
+            entries = ensureCapacity(entries, (size + 1) * ENTRY_SIZE);
+            int entry = size * ENTRY_SIZE;
+            entries.putInt(entry, address);
+            entries.put(entry + ENTRY_TYPE, type);
+            entries.put(entry + ENTRY_PREFIX, (byte) prefixLength);
+            entries.put(entry + ENTRY_MASK, (byte) maskIndex);
+            entries.putInt(entry + ENTRY_NEXT, -1);
+
+            //  Имя: новое разрешение дописывается в конец цепочки
+            long nameKey = key(type, prefixLength, address);
+            int slot = findSlot(names, NAME_SLOT_SIZE, nameKey);
+            if (names.getLong(slot) == 0) {
+                names.putLong(slot, nameKey);
+                names.putInt(slot + NAME_MASKS, 1 << maskIndex);
+                names.putInt(slot + NAME_FIRST, size);
+                nameCount++;
+            } else {
+                names.putInt(slot + NAME_MASKS, names.getInt(slot + NAME_MASKS) | (1 << maskIndex));
+                entries.putInt(names.getInt(slot + NAME_LAST) * ENTRY_SIZE + ENTRY_NEXT, size);
+            }
+            names.putInt(slot + NAME_LAST, size);
+            size++;
+            if (nameCount * 2 > names.capacity() / NAME_SLOT_SIZE) names = rehash(names, NAME_SLOT_SIZE);
+
+            if (type == TYPE_SUBNET) {
+                long networkKey = key(TYPE_SUBNET, prefixLength, address & mask(prefixLength));
+                slot = findSlot(networks, NETWORK_SLOT_SIZE, networkKey);
+                if (networks.getLong(slot) == 0) {
+                    networks.putLong(slot, networkKey);
+                    networkCount++;
+                }
+                networks.putInt(slot + NETWORK_MASKS, networks.getInt(slot + NETWORK_MASKS) | (1 << maskIndex));
+                if (networkCount * 2 > networks.capacity() / NETWORK_SLOT_SIZE) networks = rehash(networks, NETWORK_SLOT_SIZE);
+                prefixLengths |= 1L << prefixLength;
+            }
+            version++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    //  Вызывается только под блокировкой записи
+    private int maskIndex(int mask) {
+        for (int i = 0; i < maskCount; i++) {
+            if (masks[i] == mask) return i;
+        }
+        if (maskCount == MAX_MASKS) throw new IllegalStateException("Too many distinct action sets for off-heap collection: " + MAX_MASKS);
+        masks[maskCount] = mask;
+        parsedActions[maskCount] = new QueuePermissionBasicImpl.ParsedActions(mask);
+        return maskCount++;
+    }
+
+
+    /**
+     * Реализация функционала "подразумевает ли" для коллекции. Объектов разрешений не создает.
+     * @param permission Объект разрешения, для которого выясняется, подразумевается ли это разрешение разрешениями
+     *                   хранящимися в коллекции.
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    @Override
+    public boolean implies(Permission permission) {
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        int actionMask = permission instanceof QueuePermissionBasicImpl
+                ? ((QueuePermissionBasicImpl) permission).getRequestedActionMask()
+                : ActionMask.parse(permission.getActions());
+        String name = permission.getName();
+        long scan = ResourceNameScanner.scan(name);
+        ResourceType resourceType = ResourceNameScanner.type(scan);
+        if (resourceType != ResourceType.IP && resourceType != ResourceType.SUBNET && resourceType != ResourceType.DOMAINNAME) {
+            return false;
+        }
+
+        long[] candidates;
+        lock.readLock().lock();
+        try {
+            //  Номера масок, каждая из которых подразумевает запрашиваемые действия
+            int impliedMasks = 0;
+            for (int i = 0; i < maskCount; i++) {
+                if (ActionMask.implies(masks[i], actionMask)) impliedMasks |= 1 << i;
+            }
+            if (impliedMasks == 0) return false;
+            if (resourceType != ResourceType.DOMAINNAME) return impliesAddress(resourceType, scan, impliedMasks);
+            candidates = namesWithMasks(impliedMasks);
+        } finally {
+            lock.readLock().unlock();
+        }
+        //  DNS - без блокировки: add() и проверки IP-адресов не ждут ответа DNS
+        return impliesDomainName(name, candidates);
+    }
+
+
+    //  Вызывается только под блокировкой чтения
+    private boolean impliesAddress(ResourceType resourceType, long scan, int impliedMasks) {
+        int address = ResourceNameScanner.address(scan);
+        int prefixLength = ResourceNameScanner.prefixLength(scan);
+        switch (resourceType) {
+            case IP:
+                //  Такой же IP-адрес и подсети, в которые он входит(кроме номера сети и широковещательного адреса)
+                if ((nameMasks(key(TYPE_IP, 32, address)) & impliedMasks) != 0) return true;
+                for (long prefixes = prefixLengths; prefixes != 0; prefixes &= prefixes - 1) {
+                    int length = Long.numberOfTrailingZeros(prefixes);
+                    int mask = mask(length);
+                    int network = address & mask;
+                    if (address == network || address == (network | ~mask)) continue;
+                    if ((networkMasks(key(TYPE_SUBNET, length, network)) & impliedMasks) != 0) return true;
+                }
+                return false;
+            case SUBNET:
+                //  Подсеть подразумевается только такой же подсетью
+                return (nameMasks(key(TYPE_SUBNET, prefixLength, address)) & impliedMasks) != 0;
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Асинхронный вариант {@link #implies(Permission)}. IP-адреса и подсети проверяются на месте; исполнителю
+     * передаются только доменные имена - их проверка обращается к DNS.
+     * @param permission Проверяемое разрешение
+     * @param executor Исполнитель проверок, которые могут ждать DNS
+     * @return Решение
+     */
+    @Override
+    public CompletableFuture<Boolean> impliesAsync(Permission permission, NameResolutionExecutor executor) {
+        if (ResourceNameScanner.type(ResourceNameScanner.scan(permission.getName())) != ResourceType.DOMAINNAME) {
+            return CompletableFuture.completedFuture(implies(permission));
+        }
+        return executor.submit(() -> implies(permission));
+    }
+
+
+    //  Ключи имен, у которых есть одна из масок impliedMasks. Вызывается только под блокировкой чтения.
+    private long[] namesWithMasks(int impliedMasks) {
+        long[] keys = new long[nameCount];
+        int count = 0;
+        for (int slot = 0; slot < names.capacity(); slot += NAME_SLOT_SIZE) {
+            long key = names.getLong(slot);
+            if (key != 0 && (names.getInt(slot + NAME_MASKS) & impliedMasks) != 0) keys[count++] = key;
+        }
+        return count == keys.length ? keys : Arrays.copyOf(keys, count);
+    }
+
+
+    //  Доменное имя сравнивается через DNS с каждым из имен коллекции. Вызывается без блокировки.
+    private boolean impliesDomainName(String domainName, long[] keys) {
+        for (long key : keys) {
+            int address = (int) key;
+            int prefixLength = (int) (key >>> 32) & 0xFF;
+            try {
+                boolean implies = (key >>> 40) == TYPE_IP
+                        ? implyService.DomainNameIP(domainName, ResourceNameScanner.ipv4Name(address, -1))
+                        : implyService.DomainNameSubnet(domainName, address & mask(prefixLength), mask(prefixLength));
+                if (implies) return true;
+            } catch (UnknownHostException e) {
+                //  Имя не разрешается - сравнение с остальными именами коллекции тоже обращалось бы к DNS напрасно
+                return false;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Получить все элементы коллекции в виде объекта перечисления. Объекты разрешений создаются по мере перечисления;
+     * разрешения, добавленные после вызова, в перечисление не попадают.
+     * @return Элементы коллекции.
+     */
+    @Override
+    public Enumeration<Permission> elements() {
+        int count;
+        lock.readLock().lock();
+        try {
+            count = size;
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Enumeration<Permission>() {
+            private int next;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < count;
+            }
+
+            @Override
+            public Permission nextElement() {
+                if (next >= count) throw new NoSuchElementException();
+                lock.readLock().lock();
+                try {
+                    return permission(next++);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Получить все разрешения из коллекции для заданного имени ресурса. Объекты разрешений создаются при каждом вызове.
+     * @param name Имя ресурса
+     * @return Неизменяемый список с объектами разрешений; или null, если разрешений для этого имени нет
+     */
+    @Override
+    public List<QueuePermission> getPermissionsByName(String name) {
+        long scan = ResourceNameScanner.scan(name);
+        ResourceType resourceType = ResourceNameScanner.type(scan);
+        if (resourceType != ResourceType.IP && resourceType != ResourceType.SUBNET) return null;
+        long key = key(resourceType == ResourceType.IP ? TYPE_IP : TYPE_SUBNET,
+                ResourceNameScanner.prefixLength(scan), ResourceNameScanner.address(scan));
+
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(names, NAME_SLOT_SIZE, key);
+            if (names.getLong(slot) == 0) return null;
+            List<QueuePermission> permissions = new ArrayList<>();
+            for (int entry = names.getInt(slot + NAME_FIRST); entry >= 0; entry = entries.getInt(entry * ENTRY_SIZE + ENTRY_NEXT)) {
+                permissions.add(permission(entry));
+            }
+            return Collections.unmodifiableList(permissions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    //  Создать объект разрешения по записи журнала. Вызывается только под блокировкой.
+    private QueuePermission permission(int entry) {
+        int position = entry * ENTRY_SIZE;
+        int address = entries.getInt(position);
+        boolean ip = entries.get(position + ENTRY_TYPE) == TYPE_IP;
+        int prefixLength = entries.get(position + ENTRY_PREFIX);
+        QueuePermissionBasicImpl.ParsedActions actions = parsedActions[entries.get(position + ENTRY_MASK)];
+        return new QueuePermissionBasicImpl(ResourceNameScanner.ipv4Name(address, ip ? -1 : prefixLength),
+                ip ? ResourceType.IP : ResourceType.SUBNET, address, prefixLength, null, actions, implyService);
+    }
+
+
+    /**
+     * Количество разрешений в коллекции
+     * @return Количество разрешений
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Получить версию содержимого коллекции. Каждое изменение коллекции увеличивает ее.
+     * @return Версия
+     */
+    @Override
+    public long version() {
+        return version;
+    }
+
+
+    //  К DNS обращаются только проверки доменных имен - если в коллекции есть с чем их сравнивать
+    @Override
+    boolean needsNameResolution(ResourceType resourceType) {
+        return resourceType == ResourceType.DOMAINNAME && size() > 0;
+    }
+
+
+    @Override
+    boolean impliesWithoutNameResolution(Permission permission) {
+        if (ResourceNameScanner.type(ResourceNameScanner.scan(permission.getName())) == ResourceType.DOMAINNAME) return false;
+        return implies(permission);
+    }
+
+
+    /**
+     * Объем памяти вне кучи, занятый буферами коллекции
+     * @return Объем в байтах
+     */
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) entries.capacity() + names.capacity() + networks.capacity();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "QueuePermissionCollectionOffHeapImpl(size=" + size + ", names=" + nameCount
+                    + ", offHeapBytes=" + ((long) entries.capacity() + names.capacity() + networks.capacity()) + ")";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    //  Ключ хэш-таблиц: тип, длина префикса и адрес. Тип не равен 0, поэтому ключ тоже.
+    private static long key(byte type, int prefixLength, int address) {
+        return ((long) type << 40) | ((long) prefixLength << 32) | (address & 0xFFFFFFFFL);
+    }
+
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+
+    private int nameMasks(long key) {
+        int slot = findSlot(names, NAME_SLOT_SIZE, key);
+        return names.getLong(slot) == 0 ? 0 : names.getInt(slot + NAME_MASKS);
+    }
+
+
+    private int networkMasks(long key) {
+        int slot = findSlot(networks, NETWORK_SLOT_SIZE, key);
+        return networks.getLong(slot) == 0 ? 0 : networks.getInt(slot + NETWORK_MASKS);
+    }
+
+
+    //  Открытая адресация с линейным пробированием. Возвращает смещение ячейки с ключом или первой пустой ячейки.
+    private static int findSlot(ByteBuffer table, int slotSize, long key) {
+        int slotMask = table.capacity() / slotSize - 1;
+        int index = hash(key) & slotMask;
+        while (true) {
+            long slotKey = table.getLong(index * slotSize);
+            if (slotKey == key || slotKey == 0) return index * slotSize;
+            index = (index + 1) & slotMask;
+        }
+    }
+
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+
+    //  Таблица вдвое большего размера с теми же ячейками
+    private static ByteBuffer rehash(ByteBuffer table, int slotSize) {
+        if (table.capacity() > Integer.MAX_VALUE / 2) throw new IllegalStateException("Off-heap collection is full");
+        ByteBuffer newTable = ByteBuffer.allocateDirect(table.capacity() * 2);
+        for (int slot = 0; slot < table.capacity(); slot += slotSize) {
+            long key = table.getLong(slot);
+            if (key == 0) continue;
+            int newSlot = findSlot(newTable, slotSize, key);
+            for (int offset = 0; offset < slotSize; offset += 4) newTable.putInt(newSlot + offset, table.getInt(slot + offset));
+        }
+        return newTable;
+    }
+
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (capacity <= buffer.capacity()) return buffer;
+        int newCapacity = (int) Math.min((long) buffer.capacity() * 2, Integer.MAX_VALUE - Integer.MAX_VALUE % ENTRY_SIZE);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(newCapacity, capacity));
+        newBuffer.put(buffer.duplicate().clear());
+        return newBuffer;
+    }
+
+}
@@ -0,0 +1,388 @@
+package dk.messagebroker.queuepermission;
+
+import java.security.Permission;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Реализация коллекции для одновременной загрузки из многих потоков.
+ * <br><br>
+ * Разрешения разложены по сегментам по имени ресурса. У каждого сегмента - свой неизменяемый снимок({@link PermissionIndex})
+ * и своя блокировка, поэтому потоки, добавляющие разрешения с разными именами, почти никогда не ждут друг друга.
+ * Сегмент выбирается так, чтобы разрешения, которые могут подразумевать имя ресурса без обращения к DNS, лежали
+ * в немногих известных сегментах:
+ * <ul>
+ *     <li>IP-адрес и IPv6-адрес - по хэшу адреса</li>
+ *     <li>подсеть /16 и уже - по хэшу первых 16 бит; IPv6-подсеть /32 и уже - по хэшу первых 32 бит</li>
+ *     <li>доменное имя - по хэшу имени без учета регистра</li>
+ *     <li>более широкие подсети и нераспознанные имена - в общий сегмент</li>
+ * </ul>
+ * Поэтому implies() для IP-адреса проверяет сегмент адреса, сегмент его /16 и общий сегмент, а для доменного имени -
+ * сегменты самого имени и всех доменов, поддоменом которых оно является. Сегменты, проверка по которым может обратиться
+ * к DNS(IP-адрес против доменных имен, доменное имя против адресов и подсетей), и сегменты с разрешениями других
+ * реализаций проверяются только если в них есть такие ключи.
+ * <br><br>
+ * Все разрешения одного имени ресурса лежат в одном сегменте, поэтому решение совпадает с решением
+ * {@link QueuePermisionCollectionBasicImpl} с тем же содержимым. Но единого снимка всей коллекции нет: addAll()
+ * публикует разрешения каждого сегмента отдельно, и implies(), выполняемый одновременно с ним, может увидеть часть пакета.
+ * Удаление поддерживается; замена и изменение политики(replace, applyDelta) - нет, так как они затрагивают несколько
+ * сегментов.
+ */
+public class QueuePermissionCollectionShardedImpl extends QueuePermissionCollection {
+
+    /**
+     * Наибольшее количество сегментов: множество проверенных сегментов хранится в одном long
+     */
+    public static final int MAX_SHARD_COUNT = 64;
+
+    //  Длины префиксов, начиная с которых подсети раскладываются по сегментам. Более широкие подсети могут подразумевать
+    //  адреса из разных сегментов и хранятся в общем сегменте.
+    private static final int IPV4_SHARDED_PREFIX = 16;
+    private static final int IPV6_SHARDED_PREFIX = 32;
+
+    //  Разные типы ресурсов хэшируются с разными начальными значениями, чтобы не попадать в сегменты одинаково
+    private static final int IP_SEED = 0x1b873593;
+    private static final int SUBNET_SEED = 0x5bd1e995;
+    private static final int IPV6_SEED = 0x27d4eb2d;
+    private static final int IPV6_SUBNET_SEED = 0x165667b1;
+
+    /*
+    Сегмент: снимок разрешений. Изменяется под блокировкой самого сегмента, читается без блокировки.
+     */
+    private static final class Shard {
+        volatile PermissionIndex index = PermissionIndex.EMPTY;
+    }
+
+    private final Shard general = new Shard();
+    private final Shard[] shards;
+    private final int shardMask;
+
+    //  Количество изменений - версия коллекции
+    private final LongAdder modifications = new LongAdder();
+
+
+    /**
+     * Конструктор. Количество сегментов - четыре на процессор, но не больше {@value #MAX_SHARD_COUNT}.
+     */
+    public QueuePermissionCollectionShardedImpl() {
+        this(Math.min(MAX_SHARD_COUNT, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1));
+    }
+
+
+    /**
+     * Конструктор
+     * @param shardCount Количество сегментов, кроме общего: степень двойки от 1 до {@value #MAX_SHARD_COUNT}
+     */
+    public QueuePermissionCollectionShardedImpl(int shardCount) {
+        if (shardCount < 1 || shardCount > MAX_SHARD_COUNT || Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("shardCount must be a power of two between 1 and " + MAX_SHARD_COUNT + ": " + shardCount);
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) shards[i] = new Shard();
+        this.shardMask = shardCount - 1;
+    }
+
+
+    /**
+     * Добавление разрешения в коллекцию. Блокируется только сегмент разрешения.
+     * Разрешение, тип которого не порожден от QueuePermission, игнорируется.
+     * @param permission the Permission object to add.
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public void add(Permission permission) {
+        if (isReadOnly()) throw new SecurityException("Attempt to add a Permission to a readonly PermissionCollection");
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return;
+        Shard shard = shard(permission.getName());
+        synchronized (shard) {
+            shard.index = shard.index.with((QueuePermission) permission);
+            PermissionIndex.domainNameAdded((QueuePermission) permission);
+        }
+        modifications.increment();
+    }
+
+
+    /**
+     * Добавление нескольких разрешений. Разрешения одного сегмента становятся видны читателям одновременно, одним
+     * снимком сегмента. Разрешения, тип которых не порожден от QueuePermission, игнорируются.
+     * @param permissions Разрешения
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public void addAll(Collection<? extends Permission> permissions) {
+        if (isReadOnly()) throw new SecurityException("Attempt to add a Permission to a readonly PermissionCollection");
+        Map<Shard, List<QueuePermission>> batches = new IdentityHashMap<>();
+        for (Permission permission : permissions) {
+            if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) continue;
+            batches.computeIfAbsent(shard(permission.getName()), shard -> new ArrayList<>()).add((QueuePermission) permission);
+        }
+        for (Map.Entry<Shard, List<QueuePermission>> batch : batches.entrySet()) {
+            Shard shard = batch.getKey();
+            synchronized (shard) {
+                shard.index = shard.index.withAll(batch.getValue());
+                PermissionIndex.domainNamesAdded(batch.getValue());
+            }
+        }
+        if (batches.isEmpty() == false) modifications.increment();
+    }
+
+
+    /**
+     * Удалить разрешение из коллекции: первое разрешение под его именем ресурса, равное ему по equals().
+     * @param permission Разрешение
+     * @return удалено(true)/такого разрешения в коллекции нет(false)
+     * @throws SecurityException Коллекция помечена только для чтения
+     */
+    @Override
+    public boolean remove(Permission permission) {
+        if (isReadOnly()) throw new SecurityException("Attempt to remove a Permission from a readonly PermissionCollection");
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        Shard shard = shard(permission.getName());
+        synchronized (shard) {
+            PermissionIndex current = shard.index;
+            PermissionIndex newIndex = current.without((QueuePermission) permission);
+            if (newIndex == current) return false;
+            shard.index = newIndex;
+            newIndex.domainNameRemoved((QueuePermission) permission);
+        }
+        modifications.increment();
+        return true;
+    }
+
+
+    /**
+     * Реализация функционала "подразумевает ли" для коллекции. Не блокируется и проверяет только те сегменты, в которых
+     * может быть разрешение, подразумевающее имя ресурса.
+     * @param permission Объект разрешения, для которого выясняется, подразумевается ли это разрешение разрешениями
+     *                   хранящимися в коллекции.
+     * @return подразумевается(true)/не подразумевается(false)
+     */
+    @Override
+    public boolean implies(Permission permission) {
+        return implies(permission, true);
+    }
+
+
+    /**
+     * Асинхронный вариант {@link #implies(Permission)}. Решение, для которого DNS не нужен, принимается на месте;
+     * исполнителю передаются только проверки, которые могут обратиться к DNS.
+     * @param permission Проверяемое разрешение
+     * @param executor Исполнитель проверок, которые могут ждать DNS
+     * @return Решение
+     */
+    @Override
+    public CompletableFuture<Boolean> impliesAsync(Permission permission, NameResolutionExecutor executor) {
+        if (implies(permission, false)) return CompletableFuture.completedFuture(true);
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false
+                || needsNameResolution(permission.getName()) == false) return CompletableFuture.completedFuture(false);
+        return executor.submit(() -> implies(permission));
+    }
+
+
+    /*
+    resolveNames = false - проверки, которые могут обратиться к DNS, пропускаются(см. PermissionIndex.impliesWithoutNameResolution)
+     */
+    private boolean implies(Permission permission, boolean resolveNames) {
+        if (permission.getClass().getSuperclass().equals(QueuePermission.class) == false) return false;
+        String name = permission.getName();
+        Ipv6Address ipv6 = name.indexOf(':') >= 0 ? Ipv6Address.parse(name) : null;
+        long scan = ipv6 != null ? ResourceNameScanner.scan(ipv6) : ResourceNameScanner.scan(name);
+        ResourceType resourceType = ResourceNameScanner.type(scan);
+
+        //  Сегменты, в которых могут лежать разрешения, подразумевающие имя без DNS: сегмент самого имени, сегмент
+        //  подсетей, которые могут его включать, и для доменного имени - сегменты доменов, поддоменом которых оно является
+        if (impliedBy(general, permission, resolveNames)) return true;
+        long checked = 0;
+        int own = shardNumber(resourceType, scan, ipv6, name);
+        if (own >= 0) {
+            if (impliedBy(shards[own], permission, resolveNames)) return true;
+            checked |= 1L << own;
+        }
+        if (resourceType == ResourceType.IP) {
+            int covering = spread(SUBNET_SEED, ResourceNameScanner.address(scan) >>> (32 - IPV4_SHARDED_PREFIX));
+            if ((checked & 1L << covering) == 0 && impliedBy(shards[covering], permission, resolveNames)) return true;
+            checked |= 1L << covering;
+        } else if (resourceType == ResourceType.IPV6) {
+            int covering = spread(IPV6_SUBNET_SEED, (int) (ipv6.high >>> (64 - IPV6_SHARDED_PREFIX)));
+            if ((checked & 1L << covering) == 0 && impliedBy(shards[covering], permission, resolveNames)) return true;
+            checked |= 1L << covering;
+        } else if (resourceType == ResourceType.DOMAINNAME) {
+            //  Хэш каждого суффикса имени по границе метки считается справа налево за один проход
+            int hash = 0;
+            for (int i = name.length() - 1; i > 0; i--) {
+                char c = name.charAt(i);
+                if (c == '.') {
+                    int parent = spread(hash);
+                    if ((checked & 1L << parent) == 0 && impliedBy(shards[parent], permission, resolveNames)) return true;
+                    checked |= 1L << parent;
+                }
+                hash = 31 * hash + Character.toLowerCase(c);
+            }
+        }
+        if (resolveNames == false) return false;
+
+        //  Остальные сегменты - только если в них есть ключи, проверка по которым обращается к DNS, или ключи других
+        //  реализаций
+        for (int i = 0; i < shards.length; i++) {
+            if ((checked & 1L << i) != 0) continue;
+            PermissionIndex index = shards[i].index;
+            if (index.needsNameResolution(resourceType) && index.implies(permission)) return true;
+        }
+        return false;
+    }
+
+
+    private static boolean impliedBy(Shard shard, Permission permission, boolean resolveNames) {
+        PermissionIndex index = shard.index;
+        return resolveNames ? index.implies(permission) : index.impliesWithoutNameResolution(permission);
+    }
+
+
+    private boolean needsNameResolution(String name) {
+        if (general.index.needsNameResolution(name)) return true;
+        for (Shard shard : shards) {
+            if (shard.index.needsNameResolution(name)) return true;
+        }
+        return false;
+    }
+
+
+    //  Сегмент, в котором хранятся разрешения с именем name
+    private Shard shard(String name) {
+        Ipv6Address ipv6 = name.indexOf(':') >= 0 ? Ipv6Address.parse(name) : null;
+        long scan = ipv6 != null ? ResourceNameScanner.scan(ipv6) : ResourceNameScanner.scan(name);
+        int number = shardNumber(ResourceNameScanner.type(scan), scan, ipv6, name);
+        return number < 0 ? general : shards[number];
+    }
+
+
+    //  Номер сегмента для имени ресурса; -1 - общий сегмент
+    private int shardNumber(ResourceType resourceType, long scan, Ipv6Address ipv6, String name) {
+        if (resourceType == null) return -1;
+        switch (resourceType) {
+            case IP:
+                return spread(IP_SEED, ResourceNameScanner.address(scan));
+            case SUBNET:
+                if (ResourceNameScanner.prefixLength(scan) < IPV4_SHARDED_PREFIX) return -1;
+                return spread(SUBNET_SEED, ResourceNameScanner.address(scan) >>> (32 - IPV4_SHARDED_PREFIX));
+            case IPV6:
+                return spread(IPV6_SEED, Long.hashCode(ipv6.high) * 31 + Long.hashCode(ipv6.low));
+            case IPV6_SUBNET:
+                if (ipv6.prefixLength < IPV6_SHARDED_PREFIX) return -1;
+                return spread(IPV6_SUBNET_SEED, (int) (ipv6.high >>> (64 - IPV6_SHARDED_PREFIX)));
+            case DOMAINNAME:
+                //  Тот же хэш, что и для суффиксов в implies(): справа налево, без учета регистра
+                int hash = 0;
+                for (int i = name.length() - 1; i >= 0; i--) hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+                return spread(hash);
+            default:
+                return -1;
+        }
+    }
+
+
+    private int spread(int seed, int value) {
+        return spread(value * 0x9e3779b9 ^ seed);
+    }
+
+
+    private int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash & shardMask;
+    }
+
+
+    /**
+     * Получить все элементы коллекции в виде объекта перечисления. Сегменты обходятся по очереди: каждый - по снимку,
+     * актуальному на момент перехода к нему.
+     * @return Элементы коллекции.
+     */
+    @Override
+    public Enumeration<Permission> elements() {
+        return new Enumeration<Permission>() {
+            private int next = 0;
+            private Iterator<QueuePermission> current = general.index.iterator();
+
+            @Override
+            public boolean hasMoreElements() {
+                while (current.hasNext() == false && next < shards.length) {
+                    current = shards[next++].index.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Permission nextElement() {
+                if (hasMoreElements() == false) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+
+    /**
+     * Получить все разрешения из коллекции для заданного имени ресурса
+     * @param name Имя ресурса
+     * @return Неизменяемый список с объектами разрешений; или null, если разрешений для этого имени нет
+     */
+    @Override
+    public List<QueuePermission> getPermissionsByName(String name) {
+        return shard(name).index.get(name);
+    }
+
+
+    /**
+     * Получить версию содержимого коллекции - количество изменений. Каждое изменение коллекции увеличивает ее.
+     * @return Версия
+     */
+    @Override
+    public long version() {
+        return modifications.sum();
+    }
+
+
+    @Override
+    boolean needsNameResolution(ResourceType resourceType) {
+        if (general.index.needsNameResolution(resourceType)) return true;
+        for (Shard shard : shards) {
+            if (shard.index.needsNameResolution(resourceType)) return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    boolean impliesWithoutNameResolution(Permission permission) {
+        return implies(permission, false);
+    }
+
+
+    /**
+     * Количество сегментов, кроме общего
+     * @return Количество сегментов
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+
+    /**
+     * Количество разрешений в коллекции
+     * @return Количество разрешений
+     */
+    public int size() {
+        int size = general.index.size();
+        for (Shard shard : shards) size += shard.index.size();
+        return size;
+    }
+
+
+    @Override
+    public String toString() {
+        return "QueuePermissionCollectionShardedImpl(shards=" + shards.length + ", size=" + size() + ")";
+    }
+
+}
@@ -0,0 +1,210 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyService;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Фабрика разрешений {@link QueuePermissionBasicImpl} с кэшем канонических экземпляров.
+ * <br><br>
+ * Разрешение неизменяемо, а его разбор(тип ресурса, адрес, маска действий, хэш-код) выполняется в конструкторе.
+ * Поэтому для одной и той же пары "имя ресурса - строка действий" достаточно одного экземпляра: фабрика создает его
+ * при первом запросе и затем отдает из кэша. Попадание в кэш не создает объектов и не захватывает блокировок.
+ * <br><br>
+ * Размер кэша ограничен количеством имен ресурсов. Вытеснение - по алгоритму "второго шанса"({@link ClockEviction}),
+ * как в {@link DecisionCache}: вытесняется имя, к которому не обращались после предыдущего прохода стрелки. Для одного
+ * имени хранится не больше {@link #MAX_ACTIONS_PER_NAME} строк действий; при переполнении из цепочки уходит самая
+ * старая. Вытесненное разрешение остается корректным; при следующем запросе просто будет создан новый экземпляр.
+ * <br><br>
+ * Все разрешения фабрики используют одну реализацию проверок({@link ImplyService}), заданную при создании фабрики.
+ * <br><br>
+ * Строки действий сравниваются как есть: "pusher,puller" и "puller, pusher" - разные ключи кэша, хотя дают равные
+ * разрешения.
+ */
+public final class QueuePermissions {
+
+    /**
+     * Размер кэша фабрики по умолчанию - количество имен ресурсов
+     */
+    public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+    /**
+     * Максимальное количество разных строк действий, которые кэш хранит для одного имени ресурса
+     */
+    public static final int MAX_ACTIONS_PER_NAME = 8;
+
+    //  Фабрика по умолчанию. Класс-держатель откладывает создание кэша до первого обращения.
+    private static final class DefaultHolder {
+        static final QueuePermissions INSTANCE = new QueuePermissions(DEFAULT_MAX_SIZE);
+    }
+
+    private final int maxSize;
+    private final ImplyService implyService;
+    //  По имени ресурса - цепочка разрешений с разными строками действий. Обычно в цепочке одно-два разрешения.
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final ClockEviction<String, Entry> eviction;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+
+    /**
+     * Конструктор фабрики с собственным кэшем
+     * @param maxSize Максимальное количество имен ресурсов в кэше
+     */
+    public QueuePermissions(int maxSize) {
+        this(maxSize, QueuePermissionBasicImpl.defaultImplyService());
+    }
+
+
+    /**
+     * Конструктор фабрики с собственным кэшем и заданной реализацией проверок разрешений
+     * @param maxSize Максимальное количество имен ресурсов в кэше
+     * @param implyService Реализация проверок, которую получат все разрешения фабрики
+     */
+    public QueuePermissions(int maxSize, ImplyService implyService) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        this.maxSize = maxSize;
+        this.implyService = implyService;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1 << 16) * 4 / 3 + 1);
+        this.eviction = new ClockEviction<>(entries, maxSize);
+    }
+
+
+    /*
+    Элемент цепочки. Цепочка неизменяемая: новое разрешение добавляется в ее начало заменой всей цепочки в карте.
+    Признак обращения для вытеснения используется только у первого элемента.
+     */
+    private static final class Entry extends ClockEviction.Entry {
+        final String actions;
+        final QueuePermissionBasicImpl permission;
+        final Entry next;
+
+        Entry(String actions, QueuePermissionBasicImpl permission, Entry next) {
+            this.actions = actions;
+            this.permission = permission;
+            this.next = next;
+        }
+
+        QueuePermissionBasicImpl find(String actions) {
+            for (Entry entry = this; entry != null; entry = entry.next) {
+                if (entry.actions.equals(actions)) return entry.permission;
+            }
+            return null;
+        }
+
+        //  Новая цепочка с разрешением в начале; самые старые элементы сверх MAX_ACTIONS_PER_NAME отбрасываются
+        static Entry prepend(String actions, QueuePermissionBasicImpl permission, Entry chain) {
+            return new Entry(actions, permission, copy(chain, MAX_ACTIONS_PER_NAME - 1));
+        }
+
+        private static Entry copy(Entry chain, int length) {
+            if (chain == null || length == 0) return null;
+            Entry tail = copy(chain.next, length - 1);
+            return tail == chain.next ? chain : new Entry(chain.actions, chain.permission, tail);
+        }
+    }
+
+    /**
+     * Получить разрешение из фабрики по умолчанию.
+     * @param resourceName Имя ресурса
+     * @param actions Строка действий. Пример: "pusher,puller"
+     * @return Канонический экземпляр разрешения
+     */
+    public static QueuePermissionBasicImpl of(String resourceName, String actions) {
+        return DefaultHolder.INSTANCE.get(resourceName, actions);
+    }
+
+
+    /**
+     * Получить фабрику по умолчанию, которую использует {@link #of(String, String)} - например, чтобы прочитать счетчики
+     * @return Фабрика по умолчанию
+     */
+    public static QueuePermissions defaultFactory() {
+        return DefaultHolder.INSTANCE;
+    }
+
+
+    /**
+     * Получить разрешение: из кэша, либо созданное и сохраненное в кэше.
+     * <br><br>
+     * Для одной пары "имя ресурса - строка действий" все потоки получают один и тот же экземпляр, пока он не вытеснен.
+     * @param resourceName Имя ресурса
+     * @param actions Строка действий. Пример: "pusher,puller"
+     * @return Канонический экземпляр разрешения
+     */
+    public QueuePermissionBasicImpl get(String resourceName, String actions) {
+        Entry chain = entries.get(resourceName);
+        if (chain != null) {
+            QueuePermissionBasicImpl permission = chain.find(actions);
+            if (permission != null) {
+                hits.increment();
+                chain.markReferenced();
+                return permission;
+            }
+        }
+
+        misses.increment();
+        //  Разрешение создается внутри compute(): два потока с одним ключом не получат разные экземпляры
+        Entry newChain = entries.compute(resourceName, (name, current) -> {
+            if (current != null && current.find(actions) != null) return current;
+            return Entry.prepend(actions, new QueuePermissionBasicImpl(name, actions, implyService), current);
+        });
+        eviction.evictOverflow();
+        return newChain.find(actions);
+    }
+
+
+    /**
+     * Количество попаданий в кэш
+     * @return Количество попаданий
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+
+    /**
+     * Количество промахов - разрешений, которые пришлось создать
+     * @return Количество промахов
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+
+    /**
+     * Количество вытесненных имен ресурсов
+     * @return Количество вытесненных имен
+     */
+    public long evictionCount() {
+        return eviction.evictionCount();
+    }
+
+
+    /**
+     * Текущее количество имен ресурсов в кэше
+     * @return Количество имен
+     */
+    public int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Максимальное количество имен ресурсов в кэше
+     * @return Максимальное количество имен
+     */
+    public int maxSize() {
+        return maxSize;
+    }
+
+
+    @Override
+    public String toString() {
+        return "QueuePermissions(size=" + size() + ", maxSize=" + maxSize + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + ")";
+    }
+
+}
@@ -0,0 +1,223 @@
+package dk.messagebroker.queuepermission;
+
+/**
+ * Распознавание типа ресурса по его имени без регулярных выражений.
+ * <br><br>
+ * Имя просматривается один раз, посимвольно. IP-адресом, подсетью и доменным именем считаются ровно те строки,
+ * которые принимают регулярные выражения {@link Const#IP_REGEXP}, {@link Const#SUBNET_REGEXP} и
+ * {@link Const#DOMAINNAME_REGEXP}. Попутно для IP-адреса и подсети вычисляются адрес в виде числа и длина префикса.
+ * <br><br>
+ * Имя, в котором есть двоеточие, может быть только IPv6-адресом или IPv6-подсетью. Его разбирает {@link Ipv6Address};
+ * 128-битный адрес в результат не помещается, поэтому в результате остаются только тип и длина префикса, а сам адрес
+ * нужно получать разбором имени.
+ * <br><br>
+ * Чтобы распознавание не создавало объектов, результат упаковывается в одно число типа long:
+ * <ul>
+ *     <li>биты 0..31 - адрес(для IP-адреса и подсети)</li>
+ *     <li>биты 32..39 - длина префикса(для подсети; для IP-адреса - 32, для IPv6-адреса - 128)</li>
+ *     <li>биты 40..47 - тип ресурса: порядковый номер в {@link ResourceType} плюс один; 0 - тип не распознан</li>
+ * </ul>
+ * Разбирать результат нужно методами {@link #type(long)}, {@link #address(long)}, {@link #prefixLength(long)}.
+ */
+final class ResourceNameScanner {
+
+    /**
+     * Результат для имени, тип которого не распознан
+     */
+    static final long UNRECOGNIZED = 0;
+
+    private static final ResourceType[] TYPES = ResourceType.values();
+
+    private static final int PREFIX_SHIFT = 32;
+    private static final int TYPE_SHIFT = 40;
+
+    //  Ограничения на метки доменного имени, заданные в Const.DOMAINNAME_REGEXP
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MIN_TOP_LEVEL_LABEL_LENGTH = 2;
+    private static final int MAX_TOP_LEVEL_LABEL_LENGTH = 6;
+
+
+    private ResourceNameScanner() {
+    }
+
+
+    /**
+     * Распознать имя ресурса.
+     * @param resourceName Имя ресурса
+     * @return Упакованный результат распознавания; {@link #UNRECOGNIZED}, если тип не распознан
+     */
+    static long scan(String resourceName) {
+        int length = resourceName.length();
+        if (length == 0) return UNRECOGNIZED;
+
+        //  Двоеточие не встречается ни в IPv4-адресе, ни в доменном имени
+        if (resourceName.indexOf(':') >= 0) return scan(Ipv6Address.parse(resourceName));
+
+        char first = resourceName.charAt(0);
+        if (first >= '0' && first <= '9') {
+            long result = scanAddress(resourceName, length);
+            if (result != UNRECOGNIZED) return result;
+            //  Доменное имя тоже может начинаться с цифры. Например, "1e100.net"
+        }
+        return isDomainName(resourceName, length) ? encode(ResourceType.DOMAINNAME, 0, 0) : UNRECOGNIZED;
+    }
+
+
+    /**
+     * Результат распознавания для уже разобранного IPv6-адреса - чтобы не разбирать имя повторно
+     * @param ipv6 Результат {@link Ipv6Address#parse(String)}; null - имя не является IPv6-адресом
+     * @return Упакованный результат распознавания; {@link #UNRECOGNIZED}, если ipv6 - null
+     */
+    static long scan(Ipv6Address ipv6) {
+        if (ipv6 == null) return UNRECOGNIZED;
+        return encode(ipv6.subnet ? ResourceType.IPV6_SUBNET : ResourceType.IPV6, 0, ipv6.prefixLength);
+    }
+
+
+    /**
+     * Получить тип ресурса из результата распознавания
+     * @param scan Результат {@link #scan(String)}
+     * @return Тип ресурса; или null, если тип не распознан
+     */
+    static ResourceType type(long scan) {
+        int code = (int) (scan >>> TYPE_SHIFT) & 0xFF;
+        return code == 0 ? null : TYPES[code - 1];
+    }
+
+
+    /**
+     * Получить адрес из результата распознавания IP-адреса или подсети
+     * @param scan Результат {@link #scan(String)}
+     * @return Адрес как число
+     */
+    static int address(long scan) {
+        return (int) scan;
+    }
+
+
+    /**
+     * Получить длину префикса из результата распознавания IP-адреса или подсети(в том числе IPv6)
+     * @param scan Результат {@link #scan(String)}
+     * @return Длина префикса: 0..32 для IPv4, 0..128 для IPv6
+     */
+    static int prefixLength(long scan) {
+        return (int) (scan >>> PREFIX_SHIFT) & 0xFF;
+    }
+
+
+    /**
+     * Записать IP-адрес или подсеть - обратное преобразование к распознаванию. Распознаются только записи без ведущих
+     * нулей, поэтому для распознанного имени результат совпадает с ним самим.
+     * @param address Адрес как число - в том виде, как он записан в имени(для подсети - без наложения маски)
+     * @param prefixLength Длина префикса подсети; отрицательное значение - IP-адрес
+     * @return Имя ресурса. Пример: "172.17.64.10", "172.17.0.0/16"
+     */
+    static String ipv4Name(int address, int prefixLength) {
+        StringBuilder name = new StringBuilder(18);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            name.append((address >>> shift) & 0xFF);
+            if (shift > 0) name.append('.');
+        }
+        if (prefixLength >= 0) name.append('/').append(prefixLength);
+        return name.toString();
+    }
+
+
+    private static long encode(ResourceType type, int address, int prefixLength) {
+        return ((long) (type.ordinal() + 1) << TYPE_SHIFT) | ((long) prefixLength << PREFIX_SHIFT) | (address & 0xFFFFFFFFL);
+    }
+
+
+    /*
+    IP-адрес: четыре октета через точку. Октет - число 0..255 без ведущих нулей.
+    Подсеть: IP-адрес, "/" и длина префикса - число 0..32 без ведущих нулей.
+    Однозначные длины префикса 4..9 Const.SUBNET_REGEXP не принимает - (0|[1-2]\d?|3[0-2]?), поэтому не принимаются и здесь.
+     */
+    private static long scanAddress(String name, int length) {
+        int address = 0;
+        int pos = 0;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (pos == length || name.charAt(pos) != '.') return UNRECOGNIZED;
+                pos++;
+            }
+            int start = pos;
+            int value = 0;
+            while (pos < length && pos - start < 3) {
+                char c = name.charAt(pos);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                pos++;
+            }
+            if (isValidNumber(name, start, pos, value, 255) == false) return UNRECOGNIZED;
+            address = (address << 8) | value;
+        }
+
+        if (pos == length) return encode(ResourceType.IP, address, 32);
+        if (name.charAt(pos) != '/') return UNRECOGNIZED;
+        pos++;
+
+        int start = pos;
+        int prefixLength = 0;
+        while (pos < length && pos - start < 2) {
+            char c = name.charAt(pos);
+            if (c < '0' || c > '9') return UNRECOGNIZED;
+            prefixLength = prefixLength * 10 + (c - '0');
+            pos++;
+        }
+        if (pos != length) return UNRECOGNIZED;
+        if (isValidNumber(name, start, pos, prefixLength, 32) == false) return UNRECOGNIZED;
+        if (pos - start == 1 && prefixLength > 3) return UNRECOGNIZED;
+        return encode(ResourceType.SUBNET, address, prefixLength);
+    }
+
+
+    //  Число из цифр name[start, end) - не пустое, без ведущих нулей и не больше max
+    private static boolean isValidNumber(String name, int start, int end, int value, int max) {
+        if (end == start) return false;
+        if (end - start > 1 && name.charAt(start) == '0') return false;
+        return value <= max;
+    }
+
+
+    /*
+    Доменное имя: одна или несколько меток, за каждой из которых идет точка, и метка верхнего уровня.
+    Метка - 1..63 символа из латинских букв, цифр и тире; начинается и заканчивается буквой или цифрой.
+    Метка верхнего уровня - 2..6 латинских букв.
+     */
+    private static boolean isDomainName(String name, int length) {
+        int labels = 0;
+        int labelLength = 0;
+        boolean lettersOnly = true;
+        char previous = '.';
+        for (int pos = 0; pos < length; pos++) {
+            char c = name.charAt(pos);
+            if (c == '.') {
+                if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH || previous == '-') return false;
+                labels++;
+                labelLength = 0;
+                lettersOnly = true;
+            } else if (isLetter(c)) {
+                labelLength++;
+            } else if (c >= '0' && c <= '9') {
+                labelLength++;
+                lettersOnly = false;
+            } else if (c == '-') {
+                if (labelLength == 0) return false;
+                labelLength++;
+                lettersOnly = false;
+            } else {
+                return false;
+            }
+            previous = c;
+        }
+        return labels > 0 && lettersOnly
+                && labelLength >= MIN_TOP_LEVEL_LABEL_LENGTH && labelLength <= MAX_TOP_LEVEL_LABEL_LENGTH;
+    }
+
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+}
@@ -5,4 +5,6 @@ package dk.messagebroker.queuepermission;
  */
 enum ResourceType { /** IP-адрес */ IP,
                     /** Подсеть. <br>Пример формата, который должен быть использован: 172.17.64.0/24 */ SUBNET,
-                    /** Доменное имя */ DOMAINNAME}
+                    /** Доменное имя */ DOMAINNAME,
+                    /** IPv6-адрес. <br>Пример: 2001:db8::1 */ IPV6,
+                    /** IPv6-подсеть. <br>Пример: 2001:db8::/32 */ IPV6_SUBNET}
@@ -0,0 +1,243 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+
+/**
+ * Кэширующая обертка над другим {@link HostResolver}.
+ * <br><br>
+ * Кэшируются как успешные ответы, так и неудачные({@link UnknownHostException}) - каждые со своим временем жизни.
+ * Прямое и обратное разрешение кэшируются раздельно. Размер каждого из кэшей ограничен; при переполнении вытесняется
+ * запись, к которой дольше всего не обращались(LRU).
+ * <br><br>
+ * Упреждающее обновление: если к успешной записи обращаются, когда прошло больше {@value #REFRESH_AHEAD_PERCENT}%
+ * ее времени жизни, запись обновляется в фоне, а обратившийся сразу получает текущее значение. Поэтому запись, к которой
+ * обращаются постоянно, не устаревает и не заставляет вызывающий поток ждать DNS.
+ */
+public class CachingHostResolver implements HostResolver {
+
+    /**
+     * Доля времени жизни записи(в процентах), после которой обращение к записи запускает ее фоновое обновление
+     */
+    public static final int REFRESH_AHEAD_PERCENT = 75;
+
+    /**
+     * Время жизни успешного ответа по умолчанию
+     */
+    public static final Duration DEFAULT_POSITIVE_TTL = Duration.ofSeconds(60);
+
+    /**
+     * Время жизни неудачного ответа по умолчанию
+     */
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofSeconds(10);
+
+    /**
+     * Максимальное количество записей в каждом из кэшей по умолчанию
+     */
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    private final Executor refreshExecutor;
+    private final LongSupplier clock;
+
+    private final Cache<InetAddress[]> forwardCache;
+    private final Cache<String> reverseCache;
+
+
+    /**
+     * Конструктор с параметрами по умолчанию. Фоновое обновление выполняется в отдельном потоке-демоне.
+     * @param delegate Источник ответов
+     */
+    public CachingHostResolver(HostResolver delegate) {
+        this(delegate, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_SIZE, defaultRefreshExecutor());
+    }
+
+
+    /**
+     * Конструктор
+     * @param delegate Источник ответов
+     * @param positiveTtl Время жизни успешного ответа
+     * @param negativeTtl Время жизни неудачного ответа
+     * @param maxSize Максимальное количество записей в каждом из кэшей(прямого и обратного разрешения)
+     * @param refreshExecutor Исполнитель фоновых обновлений
+     */
+    public CachingHostResolver(HostResolver delegate, Duration positiveTtl, Duration negativeTtl, int maxSize,
+                               Executor refreshExecutor) {
+        this(delegate, positiveTtl, negativeTtl, maxSize, refreshExecutor, System::nanoTime);
+    }
+
+
+    //  Конструктор с подменяемыми часами - для тестов
+    CachingHostResolver(HostResolver delegate, Duration positiveTtl, Duration negativeTtl, int maxSize,
+                        Executor refreshExecutor, LongSupplier clock) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        this.positiveTtlNanos = positiveTtl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.refreshExecutor = refreshExecutor;
+        this.clock = clock;
+        this.forwardCache = new Cache<>(maxSize, delegate::resolve);
+        this.reverseCache = new Cache<>(maxSize, delegate::canonicalHostName);
+    }
+
+
+    @Override
+    public InetAddress[] resolve(String domainName) throws UnknownHostException {
+        //  Массив отдается наружу - отдаем копию, чтобы содержимое кэша нельзя было испортить
+        return forwardCache.get(domainName).clone();
+    }
+
+
+    @Override
+    public String canonicalHostName(String ip) throws UnknownHostException {
+        return reverseCache.get(ip);
+    }
+
+
+    /**
+     * Количество записей в кэше прямого разрешения
+     * @return Количество записей
+     */
+    public int forwardCacheSize() {
+        return forwardCache.size();
+    }
+
+
+    /**
+     * Количество записей в кэше обратного разрешения
+     * @return Количество записей
+     */
+    public int reverseCacheSize() {
+        return reverseCache.size();
+    }
+
+
+    private static Executor defaultRefreshExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "host-resolver-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    private interface Loader<V> {
+        V load(String key) throws UnknownHostException;
+    }
+
+
+    /*
+    Запись кэша. Хранит либо значение, либо исключение неудачного ответа.
+     */
+    private static final class CachedLookup<V> {
+        final V value;
+        final UnknownHostException failure;
+        final long expiresAt;
+        final long refreshAt;
+        volatile boolean refreshing;
+
+        CachedLookup(V value, UnknownHostException failure, long expiresAt, long refreshAt) {
+            this.value = value;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+
+    /*
+    Кэш одного вида разрешения. LinkedHashMap в режиме порядка доступа дает LRU-вытеснение; он не потокобезопасен,
+    поэтому все обращения к нему синхронизированы. Разрешение имени выполняется вне блокировки.
+     */
+    private final class Cache<V> {
+
+        private final Loader<V> loader;
+        private final Map<String, CachedLookup<V>> entries;
+
+        Cache(int maxSize, Loader<V> loader) {
+            this.loader = loader;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedLookup<V>> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        V get(String key) throws UnknownHostException {
+            long now = clock.getAsLong();
+            CachedLookup<V> entry;
+            synchronized (entries) {
+                entry = entries.get(key);
+            }
+            if (entry == null || now - entry.expiresAt >= 0) {
+                entry = load(key);
+            } else if (entry.failure == null && now - entry.refreshAt >= 0 && entry.refreshing == false) {
+                refreshAhead(key, entry);
+            }
+            if (entry.failure != null) throw new UnknownHostException(entry.failure.getMessage());
+            return entry.value;
+        }
+
+        int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        private CachedLookup<V> load(String key) {
+            CachedLookup<V> entry;
+            long now;
+            try {
+                V value = loader.load(key);
+                now = clock.getAsLong();
+                entry = positive(value, now);
+            } catch (UnknownHostException e) {
+                now = clock.getAsLong();
+                entry = new CachedLookup<>(null, e, now + negativeTtlNanos, now + negativeTtlNanos);
+            }
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+            return entry;
+        }
+
+        private CachedLookup<V> positive(V value, long now) {
+            return new CachedLookup<>(value, null, now + positiveTtlNanos, now + positiveTtlNanos / 100 * REFRESH_AHEAD_PERCENT);
+        }
+
+        private void refresh(String key, CachedLookup<V> entry) {
+            try {
+                V value = loader.load(key);
+                long now = clock.getAsLong();
+                synchronized (entries) {
+                    entries.put(key, positive(value, now));
+                }
+            } catch (UnknownHostException e) {
+                //  Сбой фонового обновления не должен отменять еще действующий успешный ответ.
+                //  Запись доживет свое время, а затем будет разрешена заново обычным образом.
+                entry.refreshing = false;
+            }
+        }
+
+        private void refreshAhead(String key, CachedLookup<V> entry) {
+            //  Флаг не дает запустить несколько обновлений одной записи. Гонка двух потоков здесь допустима:
+            //  в худшем случае имя будет разрешено дважды.
+            entry.refreshing = true;
+            try {
+                refreshExecutor.execute(() -> refresh(key, entry));
+            } catch (RejectedExecutionException e) {
+                //  Обновить заранее не удалось - запись будет обновлена обычным образом, когда устареет
+                entry.refreshing = false;
+            }
+        }
+    }
+
+}
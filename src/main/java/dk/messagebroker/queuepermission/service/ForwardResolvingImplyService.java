@@ -0,0 +1,407 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Сервис "подразумевает ли", который сравнивает IP-адрес с доменным именем по прямому разрешению имени.
+ * <br><br>
+ * {@link ImplyServiceBean#IPDomainName(String, String)} при каждой проверке выполняет обратное разрешение адреса(PTR),
+ * которое бывает медленным, а запись PTR часто отсутствует. Этот сервис вместо этого разрешает доменное имя разрешения
+ * в его адреса(A и AAAA) один раз - при регистрации имени({@link #register(String)}) - и хранит адреса в массивах
+ * примитивов. Проверка IP-адреса против доменного имени - это поиск адреса в таком массиве, без обращения к DNS.
+ * <br><br>
+ * Смысл проверки меняется: адрес подразумевается доменным именем, если имя разрешается в этот адрес. Поддомены
+ * имени при этом не учитываются - адрес хоста mq.corp.com не подразумевается разрешением на corp.com, если corp.com
+ * в этот адрес не разрешается.
+ * <br><br>
+ * Коллекции разрешений сообщают сервису о добавленных и удаленных доменных именах({@link #domainNameAdded(String)},
+ * {@link #domainNameRemoved(String)}): добавленное имя разрешается в фоне, удаленное - забывается. Если сервис общий
+ * для нескольких коллекций, имя, удаленное из одной из них, регистрируется заново при первой проверке в другой.
+ * <br><br>
+ * Адреса зарегистрированных имен обновляются в фоне раз в refreshInterval. Неудачное обновление не отменяет адреса,
+ * полученные ранее. Имя, которое не было зарегистрировано, регистрируется при первой проверке - эта проверка ждет DNS.
+ * Остальные методы работают так же, как в {@link ImplyServiceBean}.
+ */
+public class ForwardResolvingImplyService extends ImplyServiceBean implements AutoCloseable {
+
+    /**
+     * Интервал обновления адресов по умолчанию
+     */
+    public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofSeconds(60);
+
+    /**
+     * Количество потоков разрешения имен по умолчанию, если JVM не поддерживает виртуальные потоки
+     */
+    public static final int DEFAULT_LOOKUP_THREADS = 2;
+
+    private static final int[] NO_IPV4 = new int[0];
+    private static final long[] NO_IPV6 = new long[0];
+
+    private final HostResolver hostResolver;
+    private final long refreshIntervalNanos;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService lookupExecutor;
+    private final boolean ownsExecutors;
+
+    //  Регистрации по имени в нижнем регистре
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    //  Регистрации по написанию имени в проверках - чтобы проверка не приводила имя к нижнему регистру
+    private final Map<String, Registration> bySpelling = new ConcurrentHashMap<>();
+
+
+    /*
+    Адреса одного имени: IPv4 - по одному int, IPv6 - парами long(старшие, младшие 64 бита).
+    failure - исключение, если имя не разрешилось и адресов нет. Неизменяемый объект.
+     */
+    private static final class Addresses {
+        final int[] ipv4;
+        final long[] ipv6;
+        final UnknownHostException failure;
+
+        Addresses(int[] ipv4, long[] ipv6, UnknownHostException failure) {
+            this.ipv4 = ipv4;
+            this.ipv6 = ipv6;
+            this.failure = failure;
+        }
+    }
+
+
+    /*
+    Зарегистрированное имя: текущие адреса, задача их обновления, написания имени, под которыми оно проверялось,
+    и написания, под которыми оно есть в коллекциях. addresses == null - имя еще не разрешено. removed - регистрация отменена.
+     */
+    private static final class Registration {
+        final String domainName;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        final Set<String> spellings = ConcurrentHashMap.newKeySet();
+        final Set<String> granted = ConcurrentHashMap.newKeySet();
+        volatile Addresses addresses;
+        volatile ScheduledFuture<?> refresh;
+        volatile boolean removed;
+
+        Registration(String domainName) {
+            this.domainName = domainName;
+        }
+    }
+
+
+    /**
+     * Конструктор с параметрами по умолчанию. Обновление планируется потоком-демоном; имена разрешаются в виртуальных
+     * потоках, если JVM их поддерживает, иначе - в {@value #DEFAULT_LOOKUP_THREADS} потоках-демонах.
+     * Потоки останавливаются методом {@link #close()}.
+     * @param hostResolver Разрешение имен
+     */
+    public ForwardResolvingImplyService(HostResolver hostResolver) {
+        this(hostResolver, DEFAULT_REFRESH_INTERVAL, defaultScheduler(), defaultLookupExecutor(), true);
+    }
+
+
+    /**
+     * Конструктор. Исполнители не останавливаются методом {@link #close()} - ими управляет вызывающий.
+     * @param hostResolver Разрешение имен
+     * @param refreshInterval Интервал обновления адресов
+     * @param scheduler Планировщик обновлений
+     * @param lookupExecutor Исполнитель фоновых разрешений имен
+     */
+    public ForwardResolvingImplyService(HostResolver hostResolver, Duration refreshInterval,
+                                        ScheduledExecutorService scheduler, ExecutorService lookupExecutor) {
+        this(hostResolver, refreshInterval, scheduler, lookupExecutor, false);
+    }
+
+
+    private ForwardResolvingImplyService(HostResolver hostResolver, Duration refreshInterval,
+                                         ScheduledExecutorService scheduler, ExecutorService lookupExecutor,
+                                         boolean ownsExecutors) {
+        super(hostResolver);
+        if (refreshInterval.isNegative() || refreshInterval.isZero()) {
+            throw new IllegalArgumentException("refreshInterval must be positive: " + refreshInterval);
+        }
+        this.hostResolver = hostResolver;
+        this.refreshIntervalNanos = refreshInterval.toNanos();
+        this.scheduler = scheduler;
+        this.lookupExecutor = lookupExecutor;
+        this.ownsExecutors = ownsExecutors;
+    }
+
+
+    /**
+     * Зарегистрировать доменное имя разрешения: разрешить его в адреса и запланировать их обновление.
+     * Вызывается при добавлении разрешения с доменным именем, чтобы проверки не ждали DNS.
+     * Повторная регистрация имени ничего не делает.
+     * @param domainName Доменное имя. Регистр букв не учитывается
+     */
+    public void register(String domainName) {
+        registration(domainName);
+    }
+
+
+    /**
+     * Отменить регистрацию доменного имени: забыть его адреса и прекратить их обновление
+     * @param domainName Доменное имя
+     */
+    public void unregister(String domainName) {
+        Registration registration = registrations.remove(key(domainName));
+        if (registration == null) return;
+        registration.removed = true;
+        for (String spelling : registration.spellings) bySpelling.remove(spelling, registration);
+        if (registration.refresh != null) registration.refresh.cancel(false);
+    }
+
+
+    /**
+     * Зарегистрировать имя добавленного в коллекцию разрешения. Имя разрешается в фоне, в исполнителе разрешений имен,
+     * - метод не ждет DNS. Проверка, начатая до окончания разрешения, ждет его.
+     * @param domainName Доменное имя
+     */
+    @Override
+    public void domainNameAdded(String domainName) {
+        Registration registration = registrations.computeIfAbsent(key(domainName), Registration::new);
+        registration.granted.add(domainName);
+        if (registration.addresses != null) return;
+        try {
+            lookupExecutor.execute(() -> initialize(registration));
+        } catch (RejectedExecutionException e) {
+            //  Исполнитель остановлен - имя разрешится при первой проверке
+        }
+    }
+
+
+    /**
+     * Отменить регистрацию имени, разрешений с которым в коллекции больше нет(см. {@link #unregister(String)}).
+     * Регистрация отменяется, когда удалены все написания имени, добавленные {@link #domainNameAdded(String)}.
+     * @param domainName Доменное имя
+     */
+    @Override
+    public void domainNameRemoved(String domainName) {
+        Registration registration = registrations.get(key(domainName));
+        if (registration == null) return;
+        registration.granted.remove(domainName);
+        if (registration.granted.isEmpty()) unregister(domainName);
+    }
+
+
+    /**
+     * Количество зарегистрированных доменных имен
+     * @return Количество имен
+     */
+    public int size() {
+        return registrations.size();
+    }
+
+
+    @Override
+    public boolean IPDomainName(String ip, String domainName) throws UnknownHostException {
+        Registration registration = bySpelling.get(domainName);
+        if (registration == null || registration.removed || registration.addresses == null) {
+            registration = registrationBySpelling(domainName);
+        }
+        Addresses addresses = registration.addresses;
+        if (addresses.failure != null) throw new UnknownHostException(addresses.failure.getMessage());
+        if (ip.indexOf(':') < 0) {
+            long address = parseIpv4(ip);
+            if (address >= 0) return contains(addresses.ipv4, (int) address);
+        }
+        byte[] bytes = StaticHostResolver.parseLiteral(ip);
+        if (bytes.length == 4) return contains(addresses.ipv4, toInt(bytes));
+        return contains(addresses.ipv6, toLong(bytes, 0), toLong(bytes, 8));
+    }
+
+
+    /**
+     * Отменить обновление всех имен. Исполнители, созданные конструктором по умолчанию, останавливаются.
+     */
+    @Override
+    public void close() {
+        for (Registration registration : registrations.values()) {
+            if (registration.refresh != null) registration.refresh.cancel(false);
+        }
+        if (ownsExecutors) {
+            scheduler.shutdownNow();
+            lookupExecutor.shutdownNow();
+        }
+    }
+
+
+    private Registration registration(String domainName) {
+        String key = key(domainName);
+        while (true) {
+            Registration registration = registrations.get(key);
+            if (registration != null && registration.addresses != null) return registration;
+
+            //  Первое разрешение выполняется в вызывающем потоке под блокировкой регистрации - одновременные проверки
+            //  нового имени ждут одного обращения к DNS
+            registration = registrations.computeIfAbsent(key, Registration::new);
+            initialize(registration);
+            //  Регистрация отменена до разрешения - повторяем с новой
+            if (registration.addresses != null) return registration;
+        }
+    }
+
+
+    private Registration registrationBySpelling(String domainName) {
+        Registration registration = registration(domainName);
+        registration.spellings.add(domainName);
+        bySpelling.put(domainName, registration);
+        //  Регистрация могла быть отменена одновременно - ее написание не должно остаться в словаре
+        if (registration.removed) bySpelling.remove(domainName, registration);
+        return registration;
+    }
+
+
+    //  Разрешить имя, если оно еще не разрешено. Регистрация, отмененная до фонового разрешения, не разрешается.
+    private void initialize(Registration registration) {
+        synchronized (registration) {
+            if (registration.addresses == null && registration.removed == false) {
+                registration.addresses = resolve(registration.domainName, null);
+                schedule(registration);
+            }
+        }
+    }
+
+
+    private void schedule(Registration registration) {
+        try {
+            registration.refresh = scheduler.scheduleWithFixedDelay(() -> refreshInBackground(registration),
+                    refreshIntervalNanos, refreshIntervalNanos, TimeUnit.NANOSECONDS);
+            //  unregister() мог не увидеть задачу: он сначала помечает регистрацию, затем читает refresh
+            if (registration.removed) registration.refresh.cancel(false);
+        } catch (RejectedExecutionException e) {
+            //  Планировщик остановлен - адреса остаются такими, какими были получены при регистрации
+        }
+    }
+
+
+    private void refreshInBackground(Registration registration) {
+        //  Флаг не дает накопиться обновлениям одного имени, если DNS отвечает дольше интервала обновления
+        if (registration.refreshing.compareAndSet(false, true) == false) return;
+        try {
+            lookupExecutor.execute(() -> {
+                try {
+                    refresh(registration);
+                } finally {
+                    registration.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            registration.refreshing.set(false);
+        }
+    }
+
+
+    private void refresh(Registration registration) {
+        registration.addresses = resolve(registration.domainName, registration.addresses);
+    }
+
+
+    //  Разрешить имя. При неудаче сохраняются адреса, полученные ранее, если они есть.
+    private Addresses resolve(String domainName, Addresses previous) {
+        InetAddress[] resolved;
+        try {
+            resolved = hostResolver.resolve(domainName);
+        } catch (UnknownHostException e) {
+            if (previous != null && previous.failure == null) return previous;
+            return new Addresses(NO_IPV4, NO_IPV6, e);
+        }
+        int ipv4Count = 0;
+        for (InetAddress address : resolved) {
+            if (address.getAddress().length == 4) ipv4Count++;
+        }
+        int[] ipv4 = ipv4Count == 0 ? NO_IPV4 : new int[ipv4Count];
+        long[] ipv6 = ipv4Count == resolved.length ? NO_IPV6 : new long[(resolved.length - ipv4Count) * 2];
+        int i4 = 0;
+        int i6 = 0;
+        for (InetAddress address : resolved) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length == 4) {
+                ipv4[i4++] = toInt(bytes);
+            } else {
+                ipv6[i6++] = toLong(bytes, 0);
+                ipv6[i6++] = toLong(bytes, 8);
+            }
+        }
+        return new Addresses(ipv4, ipv6, null);
+    }
+
+
+    private static String key(String domainName) {
+        return domainName.toLowerCase(Locale.ROOT);
+    }
+
+
+    private static boolean contains(int[] addresses, int address) {
+        for (int candidate : addresses) {
+            if (candidate == address) return true;
+        }
+        return false;
+    }
+
+
+    private static boolean contains(long[] addresses, long high, long low) {
+        for (int i = 0; i < addresses.length; i += 2) {
+            if (addresses[i] == high && addresses[i + 1] == low) return true;
+        }
+        return false;
+    }
+
+
+    private static int toInt(byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+
+    //  Разбор десятичного IPv4-адреса без создания объектов. -1 - строка не является таким адресом
+    private static long parseIpv4(String ip) {
+        long address = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                if (octet < 0 || ++dots > 3) return -1;
+                address = address << 8 | octet;
+                octet = -1;
+            } else if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) return -1;
+            } else {
+                return -1;
+            }
+        }
+        if (octet < 0 || dots != 3) return -1;
+        return address << 8 | octet;
+    }
+
+
+    private static ScheduledExecutorService defaultScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "forward-resolve-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    private static ExecutorService defaultLookupExecutor() {
+        ExecutorService virtualThreads = VirtualThreads.newPerTaskExecutor();
+        if (virtualThreads != null) return virtualThreads;
+        return Executors.newFixedThreadPool(DEFAULT_LOOKUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "forward-resolve-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+}
@@ -0,0 +1,31 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Интерфейс для разрешения имен, которое нужно сервису "подразумевает ли" при сравнении IP-адресов с доменными именами.
+ * <br><br>
+ * Реализация по умолчанию обращается к DNS через {@link InetAddress}. Подменив реализацию, можно добавить кэширование
+ * или, например, в тестах, обойтись без настоящего DNS.
+ */
+public interface HostResolver {
+
+    /**
+     * Получить IP-адреса доменного имени(прямое разрешение)
+     * @param domainName Доменное имя
+     * @return Адреса; первый из них - тот, который отдал бы {@link InetAddress#getByName(String)}
+     * @throws UnknownHostException Имя не разрешается
+     */
+    InetAddress[] resolve(String domainName) throws UnknownHostException;
+
+    /**
+     * Получить доменное имя IP-адреса(обратное разрешение)
+     * @param ip IP-адрес
+     * @return Доменное имя; или сам IP-адрес, если имя получить не удалось - так же, как это делает
+     * {@link InetAddress#getCanonicalHostName()}
+     * @throws UnknownHostException Адрес некорректен
+     */
+    String canonicalHostName(String ip) throws UnknownHostException;
+
+}
@@ -22,6 +22,25 @@ public interface ImplyService {
      */
     boolean IPSubnet(String ip, String subnet);
 
+    /**
+     * Сравнить два IP-адреса, заданных числами
+     * @param ipA
+     * @param ipB
+     * @return true(адреса совпадают)/false(адреса не сопадают)
+     */
+    boolean IPIP(int ipA, int ipB);
+
+    /**
+     * Входит ли IP-адрес в подсеть; адрес и подсеть заданы числами.
+     * <br><br>
+     * Результат тот же, что и у {@link #IPSubnet(String, String)}: номер сети и широковещательный адрес в подсеть не входят.
+     * @param ip Адрес
+     * @param network Номер сети(адрес подсети с обнуленными битами за пределами префикса)
+     * @param mask Маска подсети
+     * @return true(входит)/false(не входит)
+     */
+    boolean IPSubnet(int ip, int network, int mask);
+
     /**
      * Сравнить два доменных имени, после преобразования IP в доменное имя
      * @param ip
@@ -55,11 +74,96 @@ public interface ImplyService {
     boolean DomainNameSubnet(String domainName, String subnet) throws UnknownHostException;
 
     /**
-     * Проверить, входит(или полностью соответствует) ли один домен в другой
+     * Проверить, входит ли IP, полученное после разрешения доменного имени в подсеть; подсеть задана числами
+     * @param domainName
+     * @param network Номер сети
+     * @param mask Маска подсети
+     * @return true(входит)/false(не входит)
+     */
+    boolean DomainNameSubnet(String domainName, int network, int mask) throws UnknownHostException;
+
+    /**
+     * Проверить, входит(или полностью соответствует) ли один домен в другой.
+     * Домены сравниваются по меткам, без учета регистра.
      * @param domainNameA
      * @param domainNameB
      * @return true(domainNameA является поддоменом или полностью соответствует domainNameB)/false(domainNameA никаким образом не связан с domainNameB)
      */
     boolean DomainNameDomainName(String domainNameA, String domainNameB);
 
+    /**
+     * Сравнить два IPv6-адреса, заданных числами(старшие и младшие 64 бита)
+     * @param highA
+     * @param lowA
+     * @param highB
+     * @param lowB
+     * @return true(адреса совпадают)/false(адреса не сопадают)
+     */
+    boolean IPv6IPv6(long highA, long lowA, long highB, long lowB);
+
+    /**
+     * Входит ли IPv6-адрес в IPv6-подсеть; адрес и подсеть заданы числами.
+     * <br><br>
+     * В IPv6 нет широковещательного адреса, поэтому в подсеть входят все ее адреса, включая номер сети.
+     * @param high Старшие 64 бита адреса
+     * @param low Младшие 64 бита адреса
+     * @param networkHigh Старшие 64 бита номера сети
+     * @param networkLow Младшие 64 бита номера сети
+     * @param prefixLength Длина префикса, 0..128
+     * @return true(входит)/false(не входит)
+     */
+    boolean IPv6Subnet(long high, long low, long networkHigh, long networkLow, int prefixLength);
+
+    /**
+     * Сравнить две IPv6-подсети, заданные числами. Подсети совпадают, если совпадают номера сетей и длины префикса -
+     * независимо от того, как записаны их имена.
+     * @param networkHighA
+     * @param networkLowA
+     * @param prefixLengthA
+     * @param networkHighB
+     * @param networkLowB
+     * @param prefixLengthB
+     * @return true(подсети совпадают)/false(подсети не совпадают)
+     */
+    boolean IPv6SubnetSubnet(long networkHighA, long networkLowA, int prefixLengthA,
+                             long networkHighB, long networkLowB, int prefixLengthB);
+
+    /**
+     * Сравнить IPv6-адрес, полученный после разрешения доменного имени, с IPv6-адресом. Используется первый IPv6-адрес
+     * из разрешенных.
+     * @param domainName
+     * @param high Старшие 64 бита адреса
+     * @param low Младшие 64 бита адреса
+     * @return true(адреса совпадают)/false(адреса не совпадают или у имени нет IPv6-адреса)
+     */
+    boolean DomainNameIPv6(String domainName, long high, long low) throws UnknownHostException;
+
+    /**
+     * Проверить, входит ли IPv6-адрес, полученный после разрешения доменного имени, в IPv6-подсеть. Используется первый
+     * IPv6-адрес из разрешенных.
+     * @param domainName
+     * @param networkHigh Старшие 64 бита номера сети
+     * @param networkLow Младшие 64 бита номера сети
+     * @param prefixLength Длина префикса, 0..128
+     * @return true(входит)/false(не входит или у имени нет IPv6-адреса)
+     */
+    boolean DomainNameIPv6Subnet(String domainName, long networkHigh, long networkLow, int prefixLength) throws UnknownHostException;
+
+    /**
+     * Коллекция получила разрешение с доменным именем, проверки которого выполняет эта реализация. Реализация может
+     * заранее подготовить то, что понадобится для проверок по этому имени. Вызывается под блокировкой коллекции,
+     * поэтому не должен ждать DNS. По умолчанию ничего не делает.
+     * @param domainName Доменное имя разрешения
+     */
+    default void domainNameAdded(String domainName) {
+    }
+
+    /**
+     * В коллекции не осталось разрешений с этим доменным именем. Вызывается под блокировкой коллекции.
+     * По умолчанию ничего не делает.
+     * @param domainName Доменное имя разрешения
+     */
+    default void domainNameRemoved(String domainName) {
+    }
+
 }
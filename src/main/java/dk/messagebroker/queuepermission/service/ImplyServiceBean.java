@@ -2,13 +2,43 @@ package dk.messagebroker.queuepermission.service;
 
 import org.apache.commons.net.util.SubnetUtils;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 /**
  * Одна из возможных реализаций сервисного класса для функционала "подразумевает ли"
+ * <br><br>
+ * Сравнения IP-адресов с доменными именами требуют разрешения имен. Оно выполняется через {@link HostResolver}.
+ * По умолчанию используется общий для всех объектов {@link CachingHostResolver} поверх системного DNS, чтобы
+ * проверки не ждали DNS при каждом вызове.
  */
 public class ImplyServiceBean implements ImplyService {
+
+    //  Общий кэш разрешения имен для объектов, созданных конструктором по умолчанию.
+    //  Класс-держатель откладывает создание кэша(и потока фонового обновления) до первого обращения.
+    private static final class DefaultResolverHolder {
+        static final HostResolver INSTANCE = new CachingHostResolver(new SystemHostResolver());
+    }
+
+    private final HostResolver hostResolver;
+
+
+    public ImplyServiceBean() {
+        this(DefaultResolverHolder.INSTANCE);
+    }
+
+
+    /**
+     * Конструктор
+     * @param hostResolver Разрешение имен, используемое при сравнении IP-адресов с доменными именами
+     */
+    public ImplyServiceBean(HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+    }
+
+
     @Override
     public boolean IPIP(String ipA, String ipB) {
         return ipB.equals(ipA);
@@ -19,10 +49,21 @@ public class ImplyServiceBean implements ImplyService {
         return new SubnetUtils(subnet).getInfo().isInRange(ip);
     }
 
+    @Override
+    public boolean IPIP(int ipA, int ipB) {
+        return ipA == ipB;
+    }
+
+    @Override
+    public boolean IPSubnet(int ip, int network, int mask) {
+        //  Так же, как в SubnetUtils, номер сети и широковещательный адрес в подсеть не входят.
+        //  Для подсетей /31 и /32 это означает, что в них не входит ни один адрес.
+        return (ip & mask) == network && ip != network && ip != (network | ~mask);
+    }
+
     @Override
     public boolean IPDomainName(String ip, String domainName) throws UnknownHostException {
-        return DomainNameDomainName(InetAddress.getByName(ip).getCanonicalHostName(), domainName);
-        //return domainName.equals(InetAddress.getByName(ip).getCanonicalHostName());
+        return DomainNameDomainName(hostResolver.canonicalHostName(ip), domainName);
     }
 
     @Override
@@ -32,16 +73,79 @@ public class ImplyServiceBean implements ImplyService {
 
     @Override
     public boolean DomainNameIP(String domainName, String ip) throws UnknownHostException {
-        return ip.equals(InetAddress.getByName(domainName).getHostAddress());
+        return ip.equals(hostResolver.resolve(domainName)[0].getHostAddress());
     }
 
     @Override
     public boolean DomainNameSubnet(String domainName, String subnet) throws UnknownHostException {
-        return IPSubnet( InetAddress.getByName(domainName).getHostAddress(), subnet );
+        return IPSubnet( hostResolver.resolve(domainName)[0].getHostAddress(), subnet );
+    }
+
+    @Override
+    public boolean DomainNameSubnet(String domainName, int network, int mask) throws UnknownHostException {
+        InetAddress address = hostResolver.resolve(domainName)[0];
+        //  IPv4-подсеть может содержать только IPv4-адрес
+        if (address instanceof Inet4Address == false) return false;
+        byte[] bytes = address.getAddress();
+        int ip = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        return IPSubnet(ip, network, mask);
     }
 
     @Override
     public boolean DomainNameDomainName(String domainNameA, String domainNameB) {
-        return domainNameA.endsWith(domainNameB);
+        //  Доменные имена сравниваются без учета регистра и только по границе метки:
+        //  "mq.corp.com" входит в "corp.com", а "evilcorp.com" - нет.
+        int offset = domainNameA.length() - domainNameB.length();
+        if (offset < 0) return false;
+        if (offset > 0 && domainNameA.charAt(offset - 1) != '.') return false;
+        return domainNameA.regionMatches(true, offset, domainNameB, 0, domainNameB.length());
+    }
+
+    @Override
+    public boolean IPv6IPv6(long highA, long lowA, long highB, long lowB) {
+        return highA == highB && lowA == lowB;
+    }
+
+    @Override
+    public boolean IPv6Subnet(long high, long low, long networkHigh, long networkLow, int prefixLength) {
+        long maskHigh = prefixLength >= 64 ? -1L : (prefixLength == 0 ? 0 : -1L << (64 - prefixLength));
+        long maskLow = prefixLength <= 64 ? 0 : (prefixLength == 128 ? -1L : -1L << (128 - prefixLength));
+        return (high & maskHigh) == networkHigh && (low & maskLow) == networkLow;
+    }
+
+    @Override
+    public boolean IPv6SubnetSubnet(long networkHighA, long networkLowA, int prefixLengthA,
+                                    long networkHighB, long networkLowB, int prefixLengthB) {
+        return prefixLengthA == prefixLengthB && networkHighA == networkHighB && networkLowA == networkLowB;
+    }
+
+    @Override
+    public boolean DomainNameIPv6(String domainName, long high, long low) throws UnknownHostException {
+        byte[] bytes = firstIpv6Address(domainName);
+        if (bytes == null) return false;
+        return IPv6IPv6(toLong(bytes, 0), toLong(bytes, 8), high, low);
+    }
+
+    @Override
+    public boolean DomainNameIPv6Subnet(String domainName, long networkHigh, long networkLow, int prefixLength) throws UnknownHostException {
+        byte[] bytes = firstIpv6Address(domainName);
+        if (bytes == null) return false;
+        return IPv6Subnet(toLong(bytes, 0), toLong(bytes, 8), networkHigh, networkLow, prefixLength);
+    }
+
+    //  Первый IPv6-адрес, в который разрешается имя; null - у имени нет IPv6-адресов
+    private byte[] firstIpv6Address(String domainName) throws UnknownHostException {
+        for (InetAddress address : hostResolver.resolve(domainName)) {
+            if (address instanceof Inet6Address) return address.getAddress();
+        }
+        return null;
+    }
+
+    static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
     }
 }
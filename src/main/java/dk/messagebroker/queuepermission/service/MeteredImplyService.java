@@ -0,0 +1,531 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Обертка над другим {@link ImplyService}, которая собирает статистику вызовов: по каждому методу - количество
+ * вызовов, ошибок, исключений {@link UnknownHostException}, суммарное время и гистограмму времени вызова.
+ * <br><br>
+ * Перегруженные методы учитываются раздельно, под именем с типами параметров: "IPSubnet(String,String)" и
+ * "IPSubnet(int,int,int)". Методы, которым нужно разрешение имен(IPDomainName, DomainNameIP, DomainNameSubnet,
+ * DomainNameIPv6, DomainNameIPv6Subnet), дополнительно считаются обращениями к DNS. Это обращения к
+ * {@link HostResolver} - кэширующая реализация может ответить на них без DNS.
+ * <br><br>
+ * Счетчики - {@link LongAdder}: запись не блокируется и не мешает другим потокам. Гистограмма логарифмическая: интервал
+ * i содержит вызовы длительностью от 2^(i-1) до 2^i - 1 наносекунд. Прочитать статистику можно методом
+ * {@link #snapshot()}; снимок собирается без блокировок, поэтому вызовы, которые выполняются в это же время, могут
+ * попасть в одни счетчики снимка и не попасть в другие.
+ */
+public class MeteredImplyService implements ImplyService {
+
+    private static final int BUCKETS = 64;
+
+    private static final String[] METHOD_NAMES = {
+            "IPIP(String,String)",
+            "IPSubnet(String,String)",
+            "IPIP(int,int)",
+            "IPSubnet(int,int,int)",
+            "IPDomainName",
+            "SubnetSubnet",
+            "DomainNameIP",
+            "DomainNameSubnet(String,String)",
+            "DomainNameSubnet(String,int,int)",
+            "DomainNameDomainName",
+            "IPv6IPv6",
+            "IPv6Subnet",
+            "IPv6SubnetSubnet",
+            "DomainNameIPv6",
+            "DomainNameIPv6Subnet"
+    };
+    private static final int IPIP = 0;
+    private static final int IP_SUBNET = 1;
+    private static final int IPIP_NUMERIC = 2;
+    private static final int IP_SUBNET_NUMERIC = 3;
+    private static final int IP_DOMAIN_NAME = 4;
+    private static final int SUBNET_SUBNET = 5;
+    private static final int DOMAIN_NAME_IP = 6;
+    private static final int DOMAIN_NAME_SUBNET = 7;
+    private static final int DOMAIN_NAME_SUBNET_NUMERIC = 8;
+    private static final int DOMAIN_NAME_DOMAIN_NAME = 9;
+    private static final int IPV6_IPV6 = 10;
+    private static final int IPV6_SUBNET = 11;
+    private static final int IPV6_SUBNET_SUBNET = 12;
+    private static final int DOMAIN_NAME_IPV6 = 13;
+    private static final int DOMAIN_NAME_IPV6_SUBNET = 14;
+
+    //  Методы, которым нужно разрешение имен
+    private static final Set<Integer> DNS_METHODS = new HashSet<>(Arrays.asList(IP_DOMAIN_NAME, DOMAIN_NAME_IP,
+            DOMAIN_NAME_SUBNET, DOMAIN_NAME_SUBNET_NUMERIC, DOMAIN_NAME_IPV6, DOMAIN_NAME_IPV6_SUBNET));
+
+    private final ImplyService delegate;
+    private final Counters[] counters = new Counters[METHOD_NAMES.length];
+
+
+    /*
+    Счетчики одного метода
+     */
+    private static final class Counters {
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder unknownHostExceptions = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+        Counters() {
+            for (int i = 0; i < BUCKETS; i++) histogram[i] = new LongAdder();
+        }
+
+        void record(long start, boolean failed) {
+            long nanos = Math.max(0, System.nanoTime() - start);
+            calls.increment();
+            if (failed) failures.increment();
+            totalNanos.add(nanos);
+            histogram[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        }
+    }
+
+
+    /**
+     * Конструктор
+     * @param delegate Реализация, вызовы которой учитываются. Пример: new ImplyServiceBean()
+     */
+    public MeteredImplyService(ImplyService delegate) {
+        this.delegate = delegate;
+        for (int i = 0; i < counters.length; i++) counters[i] = new Counters();
+    }
+
+
+    @Override
+    public boolean IPIP(String ipA, String ipB) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPIP(ipA, ipB);
+            failed = false;
+            return result;
+        } finally {
+            counters[IPIP].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPSubnet(String ip, String subnet) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPSubnet(ip, subnet);
+            failed = false;
+            return result;
+        } finally {
+            counters[IP_SUBNET].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPIP(int ipA, int ipB) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPIP(ipA, ipB);
+            failed = false;
+            return result;
+        } finally {
+            counters[IPIP_NUMERIC].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPSubnet(int ip, int network, int mask) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPSubnet(ip, network, mask);
+            failed = false;
+            return result;
+        } finally {
+            counters[IP_SUBNET_NUMERIC].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPDomainName(String ip, String domainName) throws UnknownHostException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPDomainName(ip, domainName);
+            failed = false;
+            return result;
+        } catch (UnknownHostException e) {
+            counters[IP_DOMAIN_NAME].unknownHostExceptions.increment();
+            throw e;
+        } finally {
+            counters[IP_DOMAIN_NAME].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean SubnetSubnet(String subnetA, String subnetB) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.SubnetSubnet(subnetA, subnetB);
+            failed = false;
+            return result;
+        } finally {
+            counters[SUBNET_SUBNET].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean DomainNameIP(String domainName, String ip) throws UnknownHostException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.DomainNameIP(domainName, ip);
+            failed = false;
+            return result;
+        } catch (UnknownHostException e) {
+            counters[DOMAIN_NAME_IP].unknownHostExceptions.increment();
+            throw e;
+        } finally {
+            counters[DOMAIN_NAME_IP].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean DomainNameSubnet(String domainName, String subnet) throws UnknownHostException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.DomainNameSubnet(domainName, subnet);
+            failed = false;
+            return result;
+        } catch (UnknownHostException e) {
+            counters[DOMAIN_NAME_SUBNET].unknownHostExceptions.increment();
+            throw e;
+        } finally {
+            counters[DOMAIN_NAME_SUBNET].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean DomainNameSubnet(String domainName, int network, int mask) throws UnknownHostException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.DomainNameSubnet(domainName, network, mask);
+            failed = false;
+            return result;
+        } catch (UnknownHostException e) {
+            counters[DOMAIN_NAME_SUBNET_NUMERIC].unknownHostExceptions.increment();
+            throw e;
+        } finally {
+            counters[DOMAIN_NAME_SUBNET_NUMERIC].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean DomainNameDomainName(String domainNameA, String domainNameB) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.DomainNameDomainName(domainNameA, domainNameB);
+            failed = false;
+            return result;
+        } finally {
+            counters[DOMAIN_NAME_DOMAIN_NAME].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPv6IPv6(long highA, long lowA, long highB, long lowB) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPv6IPv6(highA, lowA, highB, lowB);
+            failed = false;
+            return result;
+        } finally {
+            counters[IPV6_IPV6].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPv6Subnet(long high, long low, long networkHigh, long networkLow, int prefixLength) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPv6Subnet(high, low, networkHigh, networkLow, prefixLength);
+            failed = false;
+            return result;
+        } finally {
+            counters[IPV6_SUBNET].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean IPv6SubnetSubnet(long networkHighA, long networkLowA, int prefixLengthA,
+                                    long networkHighB, long networkLowB, int prefixLengthB) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.IPv6SubnetSubnet(networkHighA, networkLowA, prefixLengthA,
+                    networkHighB, networkLowB, prefixLengthB);
+            failed = false;
+            return result;
+        } finally {
+            counters[IPV6_SUBNET_SUBNET].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean DomainNameIPv6(String domainName, long high, long low) throws UnknownHostException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.DomainNameIPv6(domainName, high, low);
+            failed = false;
+            return result;
+        } catch (UnknownHostException e) {
+            counters[DOMAIN_NAME_IPV6].unknownHostExceptions.increment();
+            throw e;
+        } finally {
+            counters[DOMAIN_NAME_IPV6].record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean DomainNameIPv6Subnet(String domainName, long networkHigh, long networkLow, int prefixLength) throws UnknownHostException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = delegate.DomainNameIPv6Subnet(domainName, networkHigh, networkLow, prefixLength);
+            failed = false;
+            return result;
+        } catch (UnknownHostException e) {
+            counters[DOMAIN_NAME_IPV6_SUBNET].unknownHostExceptions.increment();
+            throw e;
+        } finally {
+            counters[DOMAIN_NAME_IPV6_SUBNET].record(start, failed);
+        }
+    }
+
+    @Override
+    public void domainNameAdded(String domainName) {
+        delegate.domainNameAdded(domainName);
+    }
+
+    @Override
+    public void domainNameRemoved(String domainName) {
+        delegate.domainNameRemoved(domainName);
+    }
+
+
+    /**
+     * Получить текущие значения счетчиков
+     * @return Снимок статистики
+     */
+    public Snapshot snapshot() {
+        Map<String, MethodMetrics> methods = new LinkedHashMap<>();
+        long dnsLookups = 0;
+        for (int i = 0; i < counters.length; i++) {
+            Counters method = counters[i];
+            long[] histogram = new long[BUCKETS];
+            for (int bucket = 0; bucket < BUCKETS; bucket++) histogram[bucket] = method.histogram[bucket].sum();
+            MethodMetrics metrics = new MethodMetrics(METHOD_NAMES[i], method.calls.sum(), method.failures.sum(),
+                    method.unknownHostExceptions.sum(), method.totalNanos.sum(), histogram);
+            methods.put(METHOD_NAMES[i], metrics);
+            if (DNS_METHODS.contains(i)) dnsLookups += metrics.calls;
+        }
+        return new Snapshot(Collections.unmodifiableMap(methods), dnsLookups);
+    }
+
+
+    /**
+     * Статистика одного метода на момент снимка
+     */
+    public static final class MethodMetrics {
+        private final String method;
+        private final long calls;
+        private final long failures;
+        private final long unknownHostExceptions;
+        private final long totalNanos;
+        private final long[] histogram;
+
+        MethodMetrics(String method, long calls, long failures, long unknownHostExceptions, long totalNanos, long[] histogram) {
+            this.method = method;
+            this.calls = calls;
+            this.failures = failures;
+            this.unknownHostExceptions = unknownHostExceptions;
+            this.totalNanos = totalNanos;
+            this.histogram = histogram;
+        }
+
+        /**
+         * Имя метода; для перегруженных методов - с типами параметров
+         * @return Имя метода. Пример: "IPSubnet(int,int,int)"
+         */
+        public String method() {
+            return method;
+        }
+
+        /**
+         * Количество вызовов
+         * @return Количество вызовов
+         */
+        public long calls() {
+            return calls;
+        }
+
+        /**
+         * Количество вызовов, завершившихся исключением(в том числе {@link UnknownHostException})
+         * @return Количество ошибок
+         */
+        public long failures() {
+            return failures;
+        }
+
+        /**
+         * Количество вызовов, завершившихся {@link UnknownHostException}
+         * @return Количество исключений
+         */
+        public long unknownHostExceptions() {
+            return unknownHostExceptions;
+        }
+
+        /**
+         * Суммарное время всех вызовов
+         * @return Время в наносекундах
+         */
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Среднее время вызова
+         * @return Время в наносекундах; 0, если вызовов не было
+         */
+        public long meanNanos() {
+            return calls == 0 ? 0 : totalNanos / calls;
+        }
+
+        /**
+         * Оценка времени вызова, которое не превышает заданная доля вызовов, - верхняя граница интервала гистограммы
+         * @param quantile Доля вызовов, 0..1. Пример: 0.99
+         * @return Время в наносекундах; 0, если вызовов не было
+         */
+        public long percentileNanos(double quantile) {
+            if (quantile < 0 || quantile > 1) throw new IllegalArgumentException("quantile must be in [0, 1]: " + quantile);
+            long total = 0;
+            for (long count : histogram) total += count;
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += histogram[bucket];
+                if (seen >= rank) return upperBound(bucket);
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Гистограмма времени вызова: элемент i - количество вызовов длительностью от 2^(i-1) до 2^i - 1 наносекунд
+         * (элемент 0 - вызовы короче наносекунды)
+         * @return Копия гистограммы
+         */
+        public long[] histogram() {
+            return histogram.clone();
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : (bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1);
+        }
+
+        @Override
+        public String toString() {
+            return method + "(calls=" + calls + ", failures=" + failures + ", unknownHostExceptions=" + unknownHostExceptions
+                    + ", totalNanos=" + totalNanos + ", p50=" + percentileNanos(0.5) + ", p99=" + percentileNanos(0.99) + ")";
+        }
+    }
+
+
+    /**
+     * Статистика всех методов на момент снимка
+     */
+    public static final class Snapshot {
+        private final Map<String, MethodMetrics> methods;
+        private final long dnsLookups;
+
+        Snapshot(Map<String, MethodMetrics> methods, long dnsLookups) {
+            this.methods = methods;
+            this.dnsLookups = dnsLookups;
+        }
+
+        /**
+         * Статистика по методам - в порядке объявления методов в {@link ImplyService}
+         * @return Неизменяемая карта: имя метода - статистика
+         */
+        public Map<String, MethodMetrics> methods() {
+            return methods;
+        }
+
+        /**
+         * Статистика одного метода
+         * @param method Имя метода(см. {@link MethodMetrics#method()})
+         * @return Статистика; или null, если такого метода нет
+         */
+        public MethodMetrics method(String method) {
+            return methods.get(method);
+        }
+
+        /**
+         * Методы, которые вызывались, - по убыванию суммарного времени вызовов
+         * @return Список статистик
+         */
+        public List<MethodMetrics> byTotalTime() {
+            List<MethodMetrics> sorted = new ArrayList<>();
+            for (MethodMetrics metrics : methods.values()) {
+                if (metrics.calls > 0) sorted.add(metrics);
+            }
+            sorted.sort(Comparator.comparingLong(MethodMetrics::totalNanos).reversed());
+            return sorted;
+        }
+
+        /**
+         * Количество вызовов методов, которым нужно разрешение имен
+         * @return Количество обращений к DNS
+         */
+        public long dnsLookups() {
+            return dnsLookups;
+        }
+
+        /**
+         * Количество вызовов всех методов, завершившихся {@link UnknownHostException}
+         * @return Количество исключений
+         */
+        public long unknownHostExceptions() {
+            long sum = 0;
+            for (MethodMetrics metrics : methods.values()) sum += metrics.unknownHostExceptions;
+            return sum;
+        }
+
+        /**
+         * Количество вызовов всех методов, завершившихся исключением
+         * @return Количество ошибок
+         */
+        public long failures() {
+            long sum = 0;
+            for (MethodMetrics metrics : methods.values()) sum += metrics.failures;
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot(dnsLookups=" + dnsLookups + ", unknownHostExceptions=" + unknownHostExceptions()
+                    + ", failures=" + failures() + ", methods=" + byTotalTime() + ")";
+        }
+    }
+
+}
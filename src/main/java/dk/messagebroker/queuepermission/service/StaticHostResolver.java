@@ -0,0 +1,89 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Разрешение имен по таблице в памяти, без обращения к DNS.
+ * <br><br>
+ * Предназначен для тестов и для окружений, где соответствие имен и адресов известно заранее. Таблицу можно заполнить
+ * методом {@link #add(String, String)} или прочитать из файла в формате hosts: "адрес имя [псевдонимы...]".
+ * Первое имя в строке считается каноническим именем адреса.
+ */
+public class StaticHostResolver implements HostResolver {
+
+    private final Map<String, List<InetAddress>> addressesByName = new ConcurrentHashMap<>();
+    private final Map<String, String> nameByAddress = new ConcurrentHashMap<>();
+
+
+    /**
+     * Прочитать таблицу из файла в формате hosts. Пустые строки и комментарии(от символа #) пропускаются.
+     * @param hostsFile Файл
+     * @return Заполненный объект
+     * @throws IOException Ошибка чтения файла или некорректный адрес в нем
+     */
+    public static StaticHostResolver fromHostsFile(Path hostsFile) throws IOException {
+        StaticHostResolver resolver = new StaticHostResolver();
+        for (String line : Files.readAllLines(hostsFile, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            String[] fields = line.trim().split("\\s+");
+            for (int i = 1; i < fields.length; i++) {
+                resolver.add(fields[0], fields[i]);
+            }
+        }
+        return resolver;
+    }
+
+
+    /**
+     * Добавить соответствие адреса и имени.
+     * @param ip IP-адрес(литерал IPv4 или IPv6)
+     * @param domainName Доменное имя
+     * @return Этот же объект
+     * @throws UnknownHostException Строка ip не является IP-адресом
+     */
+    public StaticHostResolver add(String ip, String domainName) throws UnknownHostException {
+        InetAddress address = InetAddress.getByAddress(domainName, parseLiteral(ip));
+        addressesByName.computeIfAbsent(domainName.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(address);
+        nameByAddress.putIfAbsent(address.getHostAddress(), domainName);
+        return this;
+    }
+
+
+    @Override
+    public InetAddress[] resolve(String domainName) throws UnknownHostException {
+        List<InetAddress> addresses = addressesByName.get(domainName.toLowerCase(Locale.ROOT));
+        if (addresses == null) throw new UnknownHostException(domainName);
+        return addresses.toArray(new InetAddress[0]);
+    }
+
+
+    @Override
+    public String canonicalHostName(String ip) throws UnknownHostException {
+        String hostAddress = InetAddress.getByAddress(parseLiteral(ip)).getHostAddress();
+        return nameByAddress.getOrDefault(hostAddress, hostAddress);
+    }
+
+
+    //  Разбор литерала адреса без обращения к DNS. InetAddress.getByName() не обращается к DNS, если ему передан литерал:
+    //  IPv6 - строка с двоеточием, IPv4 - строка из цифр и точек. Все остальное отбрасывается заранее.
+    static byte[] parseLiteral(String ip) throws UnknownHostException {
+        boolean literal = ip.isEmpty() == false;
+        if (ip.indexOf(':') < 0) {
+            for (int i = 0; i < ip.length() && literal; i++) {
+                char c = ip.charAt(i);
+                literal = c == '.' || (c >= '0' && c <= '9');
+            }
+        }
+        if (literal == false) throw new UnknownHostException(ip + ": not an IP address");
+        return InetAddress.getByName(ip).getAddress();
+    }
+
+}
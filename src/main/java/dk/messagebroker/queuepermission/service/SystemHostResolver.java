@@ -0,0 +1,21 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Разрешение имен средствами {@link InetAddress}, т.е. через системный DNS.
+ */
+public class SystemHostResolver implements HostResolver {
+
+    @Override
+    public InetAddress[] resolve(String domainName) throws UnknownHostException {
+        return InetAddress.getAllByName(domainName);
+    }
+
+    @Override
+    public String canonicalHostName(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip).getCanonicalHostName();
+    }
+
+}
@@ -0,0 +1,30 @@
+package dk.messagebroker.queuepermission.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Виртуальные потоки без зависимости от версии Java при сборке.
+ * <br><br>
+ * Executors.newVirtualThreadPerTaskExecutor() появился в Java 21; проект собирается под Java 11, поэтому метод
+ * ищется во время выполнения.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+
+    /**
+     * Исполнитель, запускающий каждую задачу в новом виртуальном потоке
+     * @return Исполнитель или null, если JVM не поддерживает виртуальные потоки
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AclLoaderTest {
+
+    @TempDir
+    Path directory;
+
+    private Path write(String content) throws IOException {
+        Path file = directory.resolve("acl.txt");
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+
+    @Test
+    void load() throws IOException {
+        Path file = write("# Список доступа\n"
+                + "172.17.64.10  pusher\n"
+                + "\n"
+                + "\t172.17.0.0/16\tpuller   # подсеть стенда\r\n"
+                + "corp.com pusher,puller\n"
+                + "2001:db8::/32 pusher\n"
+                + "172.17.64.10 puller");
+        AclLoader.Result result = AclLoader.load(file);
+        QueuePermissionCollection collection = result.collection();
+
+        assertEquals(5, result.loadedCount());
+        assertTrue(result.malformedLines().isEmpty());
+        assertEquals(2, collection.getPermissionsByName("172.17.64.10").size());
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.1.1", "puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher,puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("2001:db8::1", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+    }
+
+
+    @Test
+    void malformedLines() throws IOException {
+        Path file = write("172.17.64.10 pusher\n"
+                + "172.17.64.11\n"
+                + "172.17.64.12 pusher puller\n"
+                + "172.17.64.13 pusher,reader\n"
+                + "172.17.64.14 ,\n"
+                + "queue-1 pusher\n"
+                + "  10.0.0.0/8 pusher  \n"
+                + "172.17.64.15 pusher\n");
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        AclLoader.Result result = AclLoader.load(file, collection, ForkJoinPool.commonPool());
+
+        assertSame(collection, result.collection());
+        assertEquals(2, result.loadedCount());
+        List<AclLoader.MalformedLine> malformedLines = result.malformedLines();
+        assertEquals(6, malformedLines.size());
+        assertEquals(2, malformedLines.get(0).lineNumber());
+        assertEquals("missing actions", malformedLines.get(0).reason());
+        assertEquals("unexpected field", malformedLines.get(1).reason());
+        assertEquals("unknown action", malformedLines.get(2).reason());
+        assertEquals("no actions", malformedLines.get(3).reason());
+        assertEquals(6, malformedLines.get(4).lineNumber());
+        assertEquals("unrecognized resource name", malformedLines.get(4).reason());
+        //  Однозначная запись префикса длиннее 3 подсетью не распознается
+        assertEquals(7, malformedLines.get(5).lineNumber());
+        assertEquals("10.0.0.0/8 pusher", malformedLines.get(5).line());
+        assertEquals("line 7: unrecognized resource name: 10.0.0.0/8 pusher", malformedLines.get(5).toString());
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.15", "pusher")));
+    }
+
+
+    @Test
+    void actionsLikeConstructor() throws IOException {
+        Path file = write("10.0.0.1 Pusher\n"
+                + "10.0.0.2 PULLER,pusher\n"
+                + "172.17.0.0/16 pusher,,puller,\n"
+                + "corp.com puller,Puller\n"
+                + "2001:db8::1 pusher\n");
+        AclLoader.Result result = AclLoader.load(file);
+
+        assertTrue(result.malformedLines().isEmpty(), result.malformedLines()::toString);
+        //  Разрешение из файла равно разрешению, созданному конструктором из тех же строк
+        String[][] lines = {{"10.0.0.1", "Pusher"}, {"10.0.0.2", "PULLER,pusher"}, {"172.17.0.0/16", "pusher,,puller,"},
+                {"corp.com", "puller,Puller"}, {"2001:db8::1", "pusher"}};
+        for (String[] line : lines) {
+            QueuePermissionBasicImpl expected = new QueuePermissionBasicImpl(line[0], line[1]);
+            QueuePermission loaded = result.collection().getPermissionsByName(line[0]).get(0);
+            assertEquals(expected, loaded);
+            assertEquals(expected.hashCode(), loaded.hashCode());
+            assertEquals(expected.getActions(), loaded.getActions());
+            assertEquals(expected.getResourceType(), ((QueuePermissionBasicImpl) loaded).getResourceType());
+        }
+        assertTrue(result.collection().implies(new QueuePermissionBasicImpl("172.17.1.1", "pusher,puller")));
+    }
+
+
+    @Test
+    void loadIntoShardedCollectionAsOneBatch() throws IOException {
+        Path file = write("10.0.0.1 pusher\n10.0.0.2 puller\n172.17.0.0/16 pusher\ncorp.com puller\n");
+        QueuePermissionCollectionShardedImpl collection = new QueuePermissionCollectionShardedImpl();
+        long version = collection.version();
+        AclLoader.Result result = AclLoader.load(file, collection, ForkJoinPool.commonPool());
+
+        assertEquals(4, result.loadedCount());
+        //  Одно изменение коллекции на весь файл
+        assertEquals(version + 1, collection.version());
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.1.1", "pusher")));
+    }
+
+
+    @Test
+    void emptyFile() throws IOException {
+        AclLoader.Result result = AclLoader.load(write(""));
+        assertEquals(0, result.loadedCount());
+        assertTrue(result.malformedLines().isEmpty());
+        assertEquals(0, result.collection().stream().count());
+    }
+
+
+    @Test
+    void largeFileMatchesAddingOneByOne() throws IOException {
+        //  Файл на несколько частей; ошибочные строки разбросаны по всем частям
+        Random random = new Random(15);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+        StringBuilder content = new StringBuilder();
+        QueuePermisionCollectionBasicImpl expected = new QueuePermisionCollectionBasicImpl();
+        List<Long> malformedLineNumbers = new ArrayList<>();
+        for (int line = 1; line <= 40_000; line++) {
+            if (random.nextInt(500) == 0) {
+                content.append("bad line here\n");
+                malformedLineNumbers.add((long) line);
+                continue;
+            }
+            String name = random.nextBoolean()
+                    ? "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256)
+                    : "10." + random.nextInt(4) + "." + random.nextInt(256) + ".0/24";
+            String action = actions[random.nextInt(actions.length)];
+            content.append(name).append(' ').append(action).append('\n');
+            expected.add(new QueuePermissionBasicImpl(name, action));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AclLoader.Result result = AclLoader.load(write(content.toString()), new QueuePermissionCollectionConcurrentImpl(), pool);
+            assertEquals(40_000 - malformedLineNumbers.size(), result.loadedCount());
+            List<Long> lineNumbers = new ArrayList<>();
+            for (AclLoader.MalformedLine malformed : result.malformedLines()) lineNumbers.add(malformed.lineNumber());
+            assertEquals(malformedLineNumbers, lineNumbers);
+
+            //  Списки разрешений по именам - в том же порядке, что и при добавлении по одному
+            QueuePermissionCollection collection = result.collection();
+            for (int i = 0; i < 1000; i++) {
+                String name = "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256);
+                assertEquals(expected.getPermissionsByName(name), collection.getPermissionsByName(name), name);
+                QueuePermission permission = new QueuePermissionBasicImpl(name, actions[random.nextInt(actions.length)]);
+                assertEquals(expected.implies(permission), collection.implies(permission), permission.toString());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActionMaskTest {
+
+    //  Эталон: проверка действий через списки, как это делалось до появления масок
+    private static boolean impliesByLists(String[] actionAsArray, String actions) {
+        return List.of(actionAsArray).containsAll(List.of(actions.split(Const.ACTION_DELIMITER)));
+    }
+
+    @Test
+    void ofAndToActions() {
+        int pusher = 1 << ActionType.pusher.ordinal();
+        int puller = 1 << ActionType.puller.ordinal();
+
+        assertEquals(pusher | puller, ActionMask.of(new String[]{"puller", "pusher"}));
+        assertEquals(0, ActionMask.of(new String[0]));
+        assertEquals("pusher,puller", ActionMask.toActions(pusher | puller));
+        assertEquals("puller", ActionMask.toActions(puller));
+        assertEquals("", ActionMask.toActions(0));
+    }
+
+    @Test
+    void parse() {
+        int pusher = 1 << ActionType.pusher.ordinal();
+        int puller = 1 << ActionType.puller.ordinal();
+
+        assertEquals(pusher | puller, ActionMask.parse("puller,pusher"));
+        assertEquals(pusher, ActionMask.parse("pusher,"));
+        //  Действия не обрезаются и не приводятся к нижнему регистру - как при split()
+        assertEquals(pusher | ActionMask.UNKNOWN, ActionMask.parse("pusher, puller"));
+        assertEquals(ActionMask.UNKNOWN, ActionMask.parse("Pusher"));
+        assertEquals(ActionMask.UNKNOWN, ActionMask.parse(""));
+        assertEquals(pusher | ActionMask.UNKNOWN, ActionMask.parse(",pusher"));
+        //  split(",") для строки из одних разделителей дает пустой массив - т.е. ничего не запрашивается
+        assertEquals(0, ActionMask.parse(",,"));
+    }
+
+    @Test
+    void impliesMatchesLists() {
+        String[] fragments = {"pusher", "puller", "waiter", "Pusher", " puller", "", ",", ",", ","};
+        String[][] grants = {{}, {"pusher"}, {"puller"}, {"pusher", "puller"}, {"puller", "pusher"}};
+        Random random = new Random(3);
+        for (int i = 0; i < 50_000; i++) {
+            StringBuilder actions = new StringBuilder();
+            int parts = random.nextInt(6);
+            for (int j = 0; j < parts; j++) actions.append(fragments[random.nextInt(fragments.length)]);
+            for (String[] grant : grants) {
+                assertEquals(impliesByLists(grant, actions.toString()),
+                        ActionMask.implies(ActionMask.of(grant), ActionMask.parse(actions.toString())),
+                        List.of(grant) + " implies \"" + actions + "\"");
+            }
+        }
+    }
+
+}
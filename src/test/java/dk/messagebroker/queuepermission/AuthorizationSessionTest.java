@@ -0,0 +1,161 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import org.junit.jupiter.api.Test;
+
+import java.security.Permission;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuthorizationSessionTest {
+
+    /*
+    Коллекция, которая считает вызовы implies() и передает все вызовы другой коллекции
+     */
+    private static class CountingCollection extends QueuePermissionCollection {
+        final QueuePermissionCollection delegate;
+        final boolean versioned;
+        final AtomicInteger impliesCalls = new AtomicInteger();
+
+        CountingCollection(QueuePermissionCollection delegate, boolean versioned) {
+            this.delegate = delegate;
+            this.versioned = versioned;
+        }
+
+        @Override
+        public void add(Permission permission) {
+            delegate.add(permission);
+        }
+
+        @Override
+        public boolean implies(Permission permission) {
+            impliesCalls.incrementAndGet();
+            return delegate.implies(permission);
+        }
+
+        @Override
+        public Enumeration<Permission> elements() {
+            return delegate.elements();
+        }
+
+        @Override
+        public List<QueuePermission> getPermissionsByName(String name) {
+            return delegate.getPermissionsByName(name);
+        }
+
+        @Override
+        public long version() {
+            return versioned ? delegate.version() : super.version();
+        }
+
+        @Override
+        boolean needsNameResolution(ResourceType resourceType) {
+            return delegate.needsNameResolution(resourceType);
+        }
+
+        @Override
+        boolean impliesWithoutNameResolution(Permission permission) {
+            return delegate.impliesWithoutNameResolution(permission);
+        }
+    }
+
+
+    @Test
+    void decisionsAreMemoized() {
+        CountingCollection collection = new CountingCollection(new QueuePermissionCollectionConcurrentImpl(), true);
+        collection.add(new QueuePermissionBasicImpl("172.17.0.0/16", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "puller"));
+        AuthorizationSession session = new AuthorizationSession(collection, "172.17.64.10");
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(session.canPush());
+            assertTrue(session.canPull());
+            //  Маски разных разрешений не объединяются
+            assertFalse(session.implies("pusher,puller"));
+            assertTrue(session.implies("puller"));
+        }
+        assertEquals(3, collection.impliesCalls.get());
+
+        //  Неизвестные действия и пустой набор коллекция проверяет каждый раз
+        boolean expected = collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher,bogus"));
+        assertEquals(expected, session.implies("pusher,bogus"));
+        assertEquals(expected, session.implies("pusher,bogus"));
+        assertEquals(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", ",")), session.implies(","));
+        assertEquals(8, collection.impliesCalls.get());
+    }
+
+
+    @Test
+    void revalidatedWhenCollectionChanges() {
+        for (QueuePermissionCollection delegate : new QueuePermissionCollection[]{new QueuePermisionCollectionBasicImpl(),
+                new QueuePermissionCollectionConcurrentImpl(), new QueuePermissionCollectionOffHeapImpl()}) {
+            CountingCollection collection = new CountingCollection(delegate, true);
+            collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+            AuthorizationSession session = new AuthorizationSession(collection, "172.17.64.10");
+
+            assertTrue(session.canPush());
+            assertFalse(session.canPull());
+            assertFalse(session.canPull());
+            assertEquals(2, collection.impliesCalls.get());
+
+            collection.add(new QueuePermissionBasicImpl("172.17.0.0/16", "puller"));
+            assertTrue(session.canPull());
+            assertTrue(session.canPush());
+            assertEquals(4, collection.impliesCalls.get());
+            assertTrue(session.canPull());
+            assertEquals(4, collection.impliesCalls.get());
+
+            session.invalidate();
+            assertTrue(session.canPush());
+            assertEquals(5, collection.impliesCalls.get());
+        }
+    }
+
+
+    @Test
+    void nameResolutionNotRemembered() {
+        DecisionCacheTest.MutableHostResolver resolver = new DecisionCacheTest.MutableHostResolver();
+        ImplyServiceBean implyService = new ImplyServiceBean(resolver);
+        for (QueuePermissionCollection delegate : new QueuePermissionCollection[]{new QueuePermisionCollectionBasicImpl(),
+                new QueuePermissionCollectionConcurrentImpl(), new QueuePermissionCollectionShardedImpl()}) {
+            resolver.nameByAddress.clear();
+            CountingCollection collection = new CountingCollection(delegate, true);
+            collection.add(new QueuePermissionBasicImpl("mq.corp.com", "pusher", implyService));
+            collection.add(new QueuePermissionBasicImpl("172.17.0.0/16", "puller", implyService));
+            AuthorizationSession session = new AuthorizationSession(collection, "172.17.64.10");
+
+            //  Адрес пока не разрешается в имя - запрет не запоминается
+            assertFalse(session.canPush());
+            resolver.nameByAddress.put("172.17.64.10", "mq.corp.com");
+            assertTrue(session.canPush());
+            //  Ответ DNS больше не совпадает с разрешением - доступ закрывается без invalidate()
+            resolver.nameByAddress.put("172.17.64.10", "other.org");
+            assertFalse(session.canPush());
+            assertEquals(3, collection.impliesCalls.get());
+
+            //  Решение, принятое без DNS, запоминается и при доменных ключах в коллекции
+            assertTrue(session.canPull());
+            assertTrue(session.canPull());
+            assertEquals(3, collection.impliesCalls.get());
+        }
+    }
+
+
+    @Test
+    void unversionedCollection() {
+        CountingCollection collection = new CountingCollection(new QueuePermisionCollectionBasicImpl(), false);
+        collection.add(new QueuePermissionBasicImpl("corp.com", "pusher"));
+        AuthorizationSession session = new AuthorizationSession(collection, "MQ.Corp.com");
+
+        assertTrue(session.canPush());
+        assertTrue(session.canPush());
+        assertFalse(session.canPull());
+        assertEquals(3, collection.impliesCalls.get());
+        assertEquals("MQ.Corp.com", session.resourceName());
+        assertSame(collection, session.collection());
+    }
+
+}
@@ -0,0 +1,158 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.HostResolver;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecisionCacheTest {
+
+    @Test
+    void hitsAndMisses() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl(100);
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        DecisionCache cache = collection.getDecisionCache();
+
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        //  Отрицательные решения тоже кэшируются
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(2, cache.size());
+
+        //  Запрос без единого известного действия проходит мимо кэша
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "bogus")));
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+
+        assertNull(new QueuePermisionCollectionBasicImpl().getDecisionCache());
+    }
+
+
+    @Test
+    void addInvalidatesDecisions() {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl(100);
+        QueuePermission request = new QueuePermissionBasicImpl("172.17.64.10", "puller");
+
+        assertFalse(collection.implies(request));
+        assertFalse(collection.implies(request));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "puller"));
+        //  Устаревшее отрицательное решение не отдается
+        assertTrue(collection.implies(request));
+        assertTrue(collection.implies(request));
+
+        DecisionCache cache = collection.getDecisionCache();
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(1, cache.size());
+    }
+
+
+    @Test
+    void sizeIsBounded() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl(64);
+        collection.add(new QueuePermissionBasicImpl("10.0.0.0/16", "pusher"));
+        //  Часто запрашиваемый адрес переживает вытеснение
+        QueuePermission hot = new QueuePermissionBasicImpl("10.0.0.1", "pusher");
+        for (int i = 0; i < 1000; i++) {
+            collection.implies(hot);
+            collection.implies(new QueuePermissionBasicImpl("10.0." + (i >> 8) + "." + (i & 0xFF), "puller"));
+            assertTrue(collection.getDecisionCache().size() <= 64);
+        }
+        DecisionCache cache = collection.getDecisionCache();
+        assertTrue(cache.evictionCount() > 0);
+        assertTrue(cache.hitCount() >= 990, cache.toString());
+    }
+
+
+    @Test
+    void matchesUncached() {
+        Random random = new Random(3);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+        QueuePermisionCollectionBasicImpl plain = new QueuePermisionCollectionBasicImpl();
+        QueuePermisionCollectionBasicImpl cached = new QueuePermisionCollectionBasicImpl(50);
+        for (int i = 0; i < 5000; i++) {
+            if (i % 10 == 0) {
+                QueuePermission grant = new QueuePermissionBasicImpl(
+                        "10.0." + random.nextInt(8) + ".0/" + (22 + random.nextInt(11)), actions[random.nextInt(3)]);
+                plain.add(grant);
+                cached.add(grant);
+            }
+            QueuePermission request = new QueuePermissionBasicImpl(
+                    "10.0." + random.nextInt(8) + "." + random.nextInt(16), actions[random.nextInt(3)]);
+            assertEquals(plain.implies(request), cached.implies(request), request.toString());
+        }
+        assertTrue(cached.getDecisionCache().hitCount() > 0);
+    }
+
+
+
+    /*
+    Заглушка DNS, ответы которой меняются во время теста
+     */
+    static class MutableHostResolver implements HostResolver {
+        final Map<String, String> nameByAddress = new ConcurrentHashMap<>();
+        final Map<String, String> addressByName = new ConcurrentHashMap<>();
+
+        @Override
+        public InetAddress[] resolve(String domainName) throws UnknownHostException {
+            String ip = addressByName.get(domainName.toLowerCase());
+            if (ip == null) throw new UnknownHostException(domainName);
+            return new InetAddress[]{InetAddress.getByName(ip)};
+        }
+
+        @Override
+        public String canonicalHostName(String ip) {
+            return nameByAddress.getOrDefault(ip, ip);
+        }
+    }
+
+
+    @Test
+    void nameResolutionNotCached() {
+        MutableHostResolver resolver = new MutableHostResolver();
+        ImplyServiceBean implyService = new ImplyServiceBean(resolver);
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl(100);
+        collection.add(new QueuePermissionBasicImpl("mq.corp.com", "pusher", implyService));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher", implyService));
+        collection.add(new QueuePermissionBasicImpl("10.0.0.1", "puller", implyService));
+        QueuePermission ip = new QueuePermissionBasicImpl("172.17.1.1", "pusher", implyService);
+        QueuePermission domainName = new QueuePermissionBasicImpl("db.corp.com", "puller", implyService);
+
+        //  Адрес пока не разрешается в имя, имя - в адрес
+        assertFalse(collection.implies(ip));
+        assertFalse(collection.implies(domainName));
+        //  DNS начал отвечать - коллекция не менялась, но решения другие
+        resolver.nameByAddress.put("172.17.1.1", "mq.corp.com");
+        resolver.addressByName.put("db.corp.com", "10.0.0.1");
+        assertTrue(collection.implies(ip));
+        assertTrue(collection.implies(domainName));
+        //  Ответ DNS больше не совпадает с разрешением - доступ закрывается
+        resolver.nameByAddress.put("172.17.1.1", "other.org");
+        resolver.addressByName.put("db.corp.com", "10.0.0.2");
+        assertFalse(collection.implies(ip));
+        assertFalse(collection.implies(domainName));
+
+        DecisionCache cache = collection.getDecisionCache();
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.size());
+
+        //  Решение, которое не зависит от DNS, кэшируется и при доменных ключах в коллекции
+        QueuePermission inSubnet = new QueuePermissionBasicImpl("172.17.64.10", "pusher", implyService);
+        assertTrue(collection.implies(inSubnet));
+        assertTrue(collection.implies(inSubnet));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.size());
+    }
+
+}
@@ -0,0 +1,85 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DomainLabelTrieTest {
+
+    private List<String> covering(DomainLabelTrie trie, String domainName) {
+        List<String> keys = new ArrayList<>();
+        trie.anyCovering(domainName, key -> { keys.add(key); return false; });
+        return keys;
+    }
+
+    @Test
+    void anyCovering() {
+        DomainLabelTrie trie = DomainLabelTrie.EMPTY
+                .with("com", "com")
+                .with("corp.com", "corp.com")
+                .with("mq.corp.com", "mq.corp.com")
+                .with("evilcorp.com", "evilcorp.com")
+                .with("corp.net", "corp.net");
+
+        //  Найденные домены идут от самого общего к самому частному
+        assertEquals(List.of("com", "corp.com", "mq.corp.com"), covering(trie, "node1.mq.corp.com"));
+        assertEquals(List.of("com", "corp.com", "mq.corp.com"), covering(trie, "mq.corp.com"));
+        assertEquals(List.of("com", "evilcorp.com"), covering(trie, "evilcorp.com"));
+        assertEquals(List.of("com"), covering(trie, "corp1.com"));
+        assertTrue(covering(trie, "corp.org").isEmpty());
+    }
+
+    @Test
+    void caseInsensitive() {
+        DomainLabelTrie trie = DomainLabelTrie.EMPTY.with("Corp.COM", "Corp.COM");
+        //  Отдается исходный ключ, а сравнение идет без учета регистра
+        assertEquals(List.of("Corp.COM"), covering(trie, "mq.corp.com"));
+        assertEquals(List.of("Corp.COM"), covering(trie, "MQ.CORP.com"));
+    }
+
+    @Test
+    void withDoesNotChangeOriginal() {
+        DomainLabelTrie trie = DomainLabelTrie.EMPTY.with("corp.com", "corp.com");
+        DomainLabelTrie other = trie.with("mq.corp.com", "mq.corp.com");
+
+        assertEquals(List.of("corp.com"), covering(trie, "mq.corp.com"));
+        assertEquals(List.of("corp.com", "mq.corp.com"), covering(other, "mq.corp.com"));
+    }
+
+    @Test
+    void withAllMatchesWith() {
+        List<String> names = List.of("com", "corp.com", "mq.corp.com", "MQ.Corp.com", "node1.mq.corp.com", "corp.net");
+        DomainLabelTrie base = DomainLabelTrie.EMPTY.with("corp.com", "base");
+        DomainLabelTrie expected = base;
+        for (String name : names) expected = expected.with(name, name);
+        DomainLabelTrie actual = base.withAll(names, names);
+
+        for (String name : List.of("node1.mq.corp.com", "node2.mq.corp.com", "corp.net", "evilcorp.com", "org")) {
+            assertEquals(covering(expected, name), covering(actual, name), name);
+        }
+        assertEquals(List.of("com", "base", "corp.com", "mq.corp.com", "MQ.Corp.com", "node1.mq.corp.com"),
+                covering(actual, "node1.mq.corp.com"));
+        assertEquals(List.of("base"), covering(base, "node1.mq.corp.com"));
+    }
+
+    @Test
+    void without() {
+        DomainLabelTrie trie = DomainLabelTrie.EMPTY
+                .with("corp.com", "corp.com")
+                .with("mq.corp.com", "mq.corp.com")
+                .with("MQ.Corp.com", "MQ.Corp.com");
+
+        DomainLabelTrie other = trie.without("mq.corp.com", "mq.corp.com");
+        assertEquals(List.of("corp.com", "MQ.Corp.com"), covering(other, "node1.mq.corp.com"));
+        assertEquals(List.of("corp.com", "mq.corp.com", "MQ.Corp.com"), covering(trie, "node1.mq.corp.com"));
+        assertSame(other, other.without("mq.corp.com", "mq.corp.com"));
+        assertSame(other, other.without("corp.net", "corp.net"));
+
+        other = other.without("MQ.Corp.com", "MQ.Corp.com").without("corp.com", "corp.com");
+        assertTrue(covering(other, "node1.mq.corp.com").isEmpty());
+        assertEquals(List.of("corp.com"), covering(other.with("corp.com", "corp.com"), "mq.corp.com"));
+    }
+}
@@ -0,0 +1,130 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Проверки IP-адресов и подсетей не должны создавать объектов. Память, выделенная потоком, измеряется
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} после прогрева.
+ */
+class ImpliesAllocationTest {
+
+    private static final int WARMUP_CALLS = 50_000;
+    private static final int MEASURED_CALLS = 20_000;
+    //  Разовые выделения JVM(компиляция, профилирование), не зависящие от количества вызовов. Объект, создаваемый
+    //  каждым вызовом, добавил бы не меньше 16 * MEASURED_CALLS байт.
+    private static final long ALLOCATION_SLACK = 1024;
+
+    private static com.sun.management.ThreadMXBean threadMXBean;
+
+
+    @BeforeAll
+    static void threadMXBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "com.sun.management.ThreadMXBean is not available");
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported(), "thread allocated memory is not supported");
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+
+    //  Политика из IP-адресов, подсетей и IPv6-ключей: без доменов и других реализаций, проверки по которым ходят в DNS
+    private static List<QueuePermissionBasicImpl> grants() {
+        List<QueuePermissionBasicImpl> grants = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            grants.add(new QueuePermissionBasicImpl("10.0." + i + ".1", "pusher"));
+            grants.add(new QueuePermissionBasicImpl("172.17." + i + ".0/24", i % 2 == 0 ? "pusher" : "pusher,puller"));
+        }
+        grants.add(new QueuePermissionBasicImpl("172.16.0.0/12", "puller"));
+        grants.add(new QueuePermissionBasicImpl("10.0.0.1", "puller"));
+        grants.add(new QueuePermissionBasicImpl("2001:db8::/64", "pusher"));
+        return grants;
+    }
+
+
+    //  Попадания и промахи: точное совпадение ключа, действия из разных разрешений, адрес в подсети, вне подсетей, подсеть
+    private static QueuePermissionBasicImpl[] requests() {
+        return new QueuePermissionBasicImpl[]{
+                new QueuePermissionBasicImpl("10.0.5.1", "pusher"),
+                new QueuePermissionBasicImpl("10.0.0.1", "pusher,puller"),
+                new QueuePermissionBasicImpl("10.0.5.2", "pusher"),
+                new QueuePermissionBasicImpl("172.17.4.10", "pusher"),
+                new QueuePermissionBasicImpl("172.17.5.10", "puller"),
+                new QueuePermissionBasicImpl("172.17.4.10", "puller"),
+                new QueuePermissionBasicImpl("172.17.4.255", "pusher"),
+                new QueuePermissionBasicImpl("192.168.1.1", "pusher"),
+                new QueuePermissionBasicImpl("172.17.4.0/24", "pusher"),
+                new QueuePermissionBasicImpl("172.17.4.0/25", "pusher"),
+                new QueuePermissionBasicImpl("10.0.5.1", "unknown")};
+    }
+
+
+    @Test
+    void basicImpl() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        grants().forEach(collection::add);
+        assertNoAllocation(collection, requests());
+    }
+
+
+    @Test
+    void basicImplAddAll() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        collection.addAll(grants());
+        assertNoAllocation(collection, requests());
+    }
+
+
+    @Test
+    void concurrentImpl() {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        collection.addAll(grants());
+        assertNoAllocation(collection, requests());
+    }
+
+
+    @Test
+    void decisionsUnchanged() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        grants().forEach(collection::add);
+        boolean[] expected = {true, false, false, true, true, true, false, false, true, false, false};
+        QueuePermissionBasicImpl[] requests = requests();
+        for (int i = 0; i < requests.length; i++) assertEquals(expected[i], collection.implies(requests[i]), requests[i].toString());
+    }
+
+
+    private static void assertNoAllocation(QueuePermissionCollection collection, QueuePermissionBasicImpl[] requests) {
+        int[] implied = new int[1];
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            if (collection.implies(requests[i % requests.length])) implied[0]++;
+        }
+
+        //  Память, выделенная самим измерением, одинакова для N и 2N вызовов и при сравнении сокращается. Если вызов
+        //  создает объекты, 2N вызовов выделяют больше на размер этих объектов, умноженный на N.
+        long once = allocated(collection, requests, MEASURED_CALLS, implied);
+        long twice = allocated(collection, requests, 2 * MEASURED_CALLS, implied);
+
+        assertTrue(implied[0] > 0);
+        assertTrue(Math.abs(twice - once) <= ALLOCATION_SLACK, "allocated " + once + " bytes by " + MEASURED_CALLS
+                + " calls and " + twice + " bytes by " + 2 * MEASURED_CALLS + " calls");
+    }
+
+
+    private static long allocated(QueuePermissionCollection collection, QueuePermissionBasicImpl[] requests, int calls,
+                                  int[] implied) {
+        long threadId = Thread.currentThread().getId();
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            if (collection.implies(requests[i % requests.length])) implied[0]++;
+        }
+        return threadMXBean.getThreadAllocatedBytes(threadId) - start;
+    }
+
+}
@@ -0,0 +1,102 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Ipv4CidrTrieTest {
+
+    private static int parseAddress(String ip) {
+        return ResourceNameScanner.address(ResourceNameScanner.scan(ip));
+    }
+
+    private List<String> covering(Ipv4CidrTrie trie, String ip) {
+        List<String> keys = new ArrayList<>();
+        trie.anyCovering(parseAddress(ip), key -> { keys.add(key); return false; });
+        return keys;
+    }
+
+    @Test
+    void anyCovering() {
+        Ipv4CidrTrie trie = Ipv4CidrTrie.EMPTY
+                .with(parseAddress("172.17.64.0"), 24, "172.17.64.0/24")
+                //  Биты за пределами префикса не важны: обе строки описывают одну и ту же сеть
+                .with(parseAddress("172.17.64.10"), 24, "172.17.64.10/24")
+                .with(parseAddress("172.16.0.0"), 12, "172.16.0.0/12")
+                .with(parseAddress("10.0.0.0"), 8, "10.0.0.0/8")
+                .with(0, 0, "0.0.0.0/0");
+
+        assertEquals(List.of("0.0.0.0/0", "172.16.0.0/12", "172.17.64.0/24", "172.17.64.10/24"), covering(trie, "172.17.64.200"));
+        assertEquals(List.of("0.0.0.0/0", "172.16.0.0/12"), covering(trie, "172.17.63.1"));
+        assertEquals(List.of("0.0.0.0/0", "10.0.0.0/8"), covering(trie, "10.255.0.1"));
+        assertEquals(List.of("0.0.0.0/0"), covering(trie, "192.168.0.1"));
+        assertTrue(covering(Ipv4CidrTrie.EMPTY, "192.168.0.1").isEmpty());
+    }
+
+    @Test
+    void withDoesNotChangeOriginal() {
+        Ipv4CidrTrie trie = Ipv4CidrTrie.EMPTY.with(parseAddress("10.0.0.0"), 8, "10.0.0.0/8");
+        Ipv4CidrTrie other = trie.with(parseAddress("10.1.0.0"), 16, "10.1.0.0/16");
+
+        assertEquals(List.of("10.0.0.0/8"), covering(trie, "10.1.0.1"));
+        assertEquals(List.of("10.0.0.0/8", "10.1.0.0/16"), covering(other, "10.1.0.1"));
+    }
+
+    @Test
+    void hostRoute() {
+        Ipv4CidrTrie trie = Ipv4CidrTrie.EMPTY.with(parseAddress("10.0.0.1"), 32, "10.0.0.1/32");
+        assertEquals(List.of("10.0.0.1/32"), covering(trie, "10.0.0.1"));
+        assertTrue(covering(trie, "10.0.0.2").isEmpty());
+    }
+
+    @Test
+    void withAllMatchesWith() {
+        Random random = new Random(15);
+        Ipv4CidrTrie base = Ipv4CidrTrie.EMPTY.with(parseAddress("10.0.0.0"), 8, "10.0.0.0/8");
+        int count = 2000;
+        int[] addresses = new int[count];
+        int[] prefixLengths = new int[count];
+        String[] keys = new String[count];
+        Ipv4CidrTrie expected = base;
+        for (int i = 0; i < count; i++) {
+            addresses[i] = (10 << 24) | random.nextInt(1 << 12) << 12;
+            prefixLengths[i] = random.nextInt(33);
+            keys[i] = "key" + i;
+            expected = expected.with(addresses[i], prefixLengths[i], keys[i]);
+        }
+        Ipv4CidrTrie actual = base.withAll(addresses, prefixLengths, keys);
+
+        //  Те же подсети в том же порядке
+        for (int i = 0; i < 2000; i++) {
+            String ip = "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            assertEquals(covering(expected, ip), covering(actual, ip), ip);
+        }
+        assertEquals(List.of("10.0.0.0/8"), covering(base, "10.0.0.1"));
+    }
+
+    @Test
+    void without() {
+        Ipv4CidrTrie trie = Ipv4CidrTrie.EMPTY
+                .with(parseAddress("172.17.64.0"), 24, "172.17.64.0/24")
+                .with(parseAddress("172.17.64.10"), 24, "172.17.64.10/24")
+                .with(parseAddress("172.16.0.0"), 12, "172.16.0.0/12");
+
+        Ipv4CidrTrie other = trie.without(parseAddress("172.17.64.0"), 24, "172.17.64.0/24");
+        assertEquals(List.of("172.16.0.0/12", "172.17.64.10/24"), covering(other, "172.17.64.1"));
+        //  Исходное дерево не меняется
+        assertEquals(List.of("172.16.0.0/12", "172.17.64.0/24", "172.17.64.10/24"), covering(trie, "172.17.64.1"));
+
+        //  Ключа нет - то же дерево
+        assertSame(other, other.without(parseAddress("172.17.64.0"), 24, "172.17.64.0/24"));
+        assertSame(other, other.without(parseAddress("10.0.0.0"), 8, "10.0.0.0/8"));
+
+        Ipv4CidrTrie empty = other.without(parseAddress("172.17.64.10"), 24, "172.17.64.10/24")
+                .without(parseAddress("172.16.0.0"), 12, "172.16.0.0/12");
+        assertTrue(covering(empty, "172.17.64.1").isEmpty());
+        assertEquals(List.of("10.0.0.0/8"), covering(empty.with(parseAddress("10.0.0.0"), 8, "10.0.0.0/8"), "10.0.0.1"));
+    }
+}
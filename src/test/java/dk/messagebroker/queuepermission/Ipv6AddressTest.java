@@ -0,0 +1,103 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Ipv6AddressTest {
+
+    @Test
+    void parse() {
+        Ipv6Address address = Ipv6Address.parse("2001:db8::1");
+        assertEquals(0x20010DB800000000L, address.high);
+        assertEquals(1, address.low);
+        assertEquals(128, address.prefixLength);
+        assertFalse(address.subnet);
+
+        address = Ipv6Address.parse("::");
+        assertEquals(0, address.high);
+        assertEquals(0, address.low);
+
+        address = Ipv6Address.parse("::ffff:10.0.0.1");
+        assertEquals(0, address.high);
+        assertEquals(0xFFFF0A000001L, address.low);
+
+        address = Ipv6Address.parse("FFFF:ffff:FFFF:ffff:FFFF:ffff:255.255.255.255");
+        assertEquals(-1, address.high);
+        assertEquals(-1, address.low);
+
+        //  Для подсети хранится номер сети
+        address = Ipv6Address.parse("2001:db8:abcd:12::1/48");
+        assertEquals(0x20010DB8ABCD0000L, address.high);
+        assertEquals(0, address.low);
+        assertEquals(48, address.prefixLength);
+        assertTrue(address.subnet);
+
+        address = Ipv6Address.parse("::1/128");
+        assertEquals(1, address.low);
+        assertTrue(address.subnet);
+        assertEquals(0, Ipv6Address.parse("ffff::/0").high);
+    }
+
+    @Test
+    void invalid() {
+        String[] names = {"", ":", ":::", "1::2::3", ":1::", "1::2:", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8",
+                "12345::", "g::", "::1/", "::1/129", "::1/01", "::1/-1", "::1/a", "::1/1/2", "::1%eth0", "::10.0.0.256",
+                "::10.0.0.01", "::10.0.0", "::10.0.0.1:1", "1:2:3:4:5:6:7:10.0.0.1", "::1 ", " ::1", "10.0.0.1", "corp.com"};
+        for (String name : names) {
+            assertNull(Ipv6Address.parse(name), "\"" + name + "\"");
+        }
+    }
+
+    @Test
+    void masks() {
+        assertEquals(0, Ipv6Address.maskHigh(0));
+        assertEquals(0xFFFFFFFF00000000L, Ipv6Address.maskHigh(32));
+        assertEquals(-1, Ipv6Address.maskHigh(64));
+        assertEquals(0, Ipv6Address.maskLow(64));
+        assertEquals(0x8000000000000000L, Ipv6Address.maskLow(65));
+        assertEquals(-1, Ipv6Address.maskLow(128));
+    }
+
+    @Test
+    void randomAddressesMatchInetAddress() throws Exception {
+        //  Эталон - разбор литерала классом InetAddress(литерал с двоеточием не требует обращения к DNS)
+        Random random = new Random(6);
+        for (int i = 0; i < 20_000; i++) {
+            int[] groups = new int[8];
+            for (int g = 0; g < 8; g++) groups[g] = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << (4 * (1 + random.nextInt(4))));
+            StringBuilder name = new StringBuilder();
+            //  Сокращение "::" - на месте случайного непустого отрезка групп
+            int from = random.nextInt(9);
+            int to = random.nextBoolean() ? Math.min(8, from + 1 + random.nextInt(8)) : from;
+            for (int g = 0; g < 8; g++) {
+                if (g >= from && g < to) {
+                    groups[g] = 0;
+                    if (g == from) name.append("::");
+                    continue;
+                }
+                if (name.length() > 0 && name.charAt(name.length() - 1) != ':') name.append(':');
+                String group = Integer.toHexString(groups[g]);
+                name.append(random.nextBoolean() ? group : group.toUpperCase());
+            }
+
+            Ipv6Address address = Ipv6Address.parse(name.toString());
+            assertNotNull(address, name.toString());
+            byte[] bytes = InetAddress.getByName(name.toString()).getAddress();
+            if (bytes.length == 4) {
+                //  Адрес вида ::ffff:a.b.c.d InetAddress отдает как IPv4-адрес
+                assertEquals(0, address.high, name.toString());
+                assertEquals(0xFFFF00000000L | (ByteBuffer.wrap(bytes).getInt() & 0xFFFFFFFFL), address.low, name.toString());
+                continue;
+            }
+            ByteBuffer expected = ByteBuffer.wrap(bytes);
+            assertEquals(expected.getLong(0), address.high, name.toString());
+            assertEquals(expected.getLong(8), address.low, name.toString());
+        }
+    }
+
+}
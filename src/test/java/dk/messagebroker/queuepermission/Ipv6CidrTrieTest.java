@@ -0,0 +1,103 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Ipv6CidrTrieTest {
+
+    private static Ipv6CidrTrie with(Ipv6CidrTrie trie, String name) {
+        Ipv6Address address = Ipv6Address.parse(name);
+        return trie.with(address.high, address.low, address.prefixLength, name);
+    }
+
+    private List<String> covering(Ipv6CidrTrie trie, String name) {
+        Ipv6Address address = Ipv6Address.parse(name);
+        List<String> keys = new ArrayList<>();
+        trie.anyCovering(address.high, address.low, address.prefixLength, key -> { keys.add(key); return false; });
+        return keys;
+    }
+
+    @Test
+    void anyCovering() {
+        Ipv6CidrTrie trie = Ipv6CidrTrie.EMPTY;
+        trie = with(trie, "::/0");
+        trie = with(trie, "2001:db8::/32");
+        //  Разные записи одной и той же сети
+        trie = with(trie, "2001:0DB8:0:0::/32");
+        trie = with(trie, "2001:db8:0:1::/64");
+        trie = with(trie, "2001:db8:0:1::10");
+        trie = with(trie, "fe80::/10");
+
+        assertEquals(List.of("::/0", "2001:db8::/32", "2001:0DB8:0:0::/32", "2001:db8:0:1::/64", "2001:db8:0:1::10"),
+                covering(trie, "2001:db8:0:1:0:0:0:10"));
+        assertEquals(List.of("::/0", "2001:db8::/32", "2001:0DB8:0:0::/32", "2001:db8:0:1::/64"), covering(trie, "2001:db8:0:1::11"));
+        assertEquals(List.of("::/0", "fe80::/10"), covering(trie, "febf::1"));
+        assertEquals(List.of("::/0"), covering(trie, "fec0::1"));
+        //  Для подсети - только подсети не длиннее ее префикса
+        assertEquals(List.of("::/0", "2001:db8::/32", "2001:0DB8:0:0::/32"), covering(trie, "2001:db8::/48"));
+        assertTrue(covering(Ipv6CidrTrie.EMPTY, "::1").isEmpty());
+    }
+
+    @Test
+    void withDoesNotChangeOriginal() {
+        Ipv6CidrTrie trie = with(Ipv6CidrTrie.EMPTY, "2001:db8::/32");
+        Ipv6CidrTrie other = with(trie, "2001:db8:1::/48");
+
+        assertEquals(List.of("2001:db8::/32"), covering(trie, "2001:db8:1::1"));
+        assertEquals(List.of("2001:db8::/32", "2001:db8:1::/48"), covering(other, "2001:db8:1::1"));
+    }
+
+    @Test
+    void lowHalfBits() {
+        //  Префиксы длиннее 64 бит сравнивают и младшую половину адреса
+        Ipv6CidrTrie trie = with(Ipv6CidrTrie.EMPTY, "2001:db8::8000:0:0:0/65");
+        assertEquals(List.of("2001:db8::8000:0:0:0/65"), covering(trie, "2001:db8::ffff:0:0:1"));
+        assertTrue(covering(trie, "2001:db8::7fff:0:0:1").isEmpty());
+    }
+
+    @Test
+    void withAllMatchesWith() {
+        Random random = new Random(15);
+        int count = 1000;
+        long[] highs = new long[count];
+        long[] lows = new long[count];
+        int[] prefixLengths = new int[count];
+        String[] keys = new String[count];
+        Ipv6CidrTrie expected = with(Ipv6CidrTrie.EMPTY, "2001:db8::/32");
+        Ipv6CidrTrie base = expected;
+        for (int i = 0; i < count; i++) {
+            prefixLengths[i] = 32 + random.nextInt(97);
+            highs[i] = 0x20010DB800000000L | (random.nextInt(4) & Ipv6Address.maskHigh(prefixLengths[i]));
+            lows[i] = random.nextInt(16) & Ipv6Address.maskLow(prefixLengths[i]);
+            keys[i] = "key" + i;
+            expected = expected.with(highs[i], lows[i], prefixLengths[i], keys[i]);
+        }
+        Ipv6CidrTrie actual = base.withAll(highs, lows, prefixLengths, keys);
+
+        for (int i = 0; i < 500; i++) {
+            String name = "2001:db8:0:" + random.nextInt(4) + "::" + Integer.toHexString(random.nextInt(16));
+            assertEquals(covering(expected, name), covering(actual, name), name);
+        }
+        assertEquals(List.of("2001:db8::/32"), covering(base, "2001:db8::1"));
+    }
+
+    @Test
+    void without() {
+        Ipv6CidrTrie trie = with(with(with(Ipv6CidrTrie.EMPTY, "2001:db8::/32"), "2001:db8:1::/48"), "2001:db8:1::10");
+
+        Ipv6Address address = Ipv6Address.parse("2001:db8:1::/48");
+        Ipv6CidrTrie other = trie.without(address.high, address.low, address.prefixLength, "2001:db8:1::/48");
+        assertEquals(List.of("2001:db8::/32", "2001:db8:1::10"), covering(other, "2001:db8:1::10"));
+        assertEquals(List.of("2001:db8::/32", "2001:db8:1::/48", "2001:db8:1::10"), covering(trie, "2001:db8:1::10"));
+        assertSame(other, other.without(address.high, address.low, address.prefixLength, "2001:db8:1::/48"));
+
+        address = Ipv6Address.parse("2001:db8:1::10");
+        other = other.without(address.high, address.low, address.prefixLength, "2001:db8:1::10");
+        assertEquals(List.of("2001:db8::/32"), covering(other, "2001:db8:1::10"));
+    }
+}
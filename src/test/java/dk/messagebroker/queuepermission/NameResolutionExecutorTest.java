@@ -0,0 +1,195 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.HostResolver;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Permission;
+import java.time.Duration;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NameResolutionExecutorTest {
+
+    /*
+    Разрешение имен, которое считает обращения и ждет, пока тест не откроет защелку
+     */
+    private static class BlockingResolver implements HostResolver {
+        final HostResolver delegate;
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+
+        BlockingResolver(HostResolver delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InetAddress[] resolve(String domainName) throws UnknownHostException {
+            await();
+            return delegate.resolve(domainName);
+        }
+
+        @Override
+        public String canonicalHostName(String ip) throws UnknownHostException {
+            await();
+            return delegate.canonicalHostName(ip);
+        }
+
+        private void await() {
+            calls.incrementAndGet();
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private static BlockingResolver resolver() throws UnknownHostException {
+        return new BlockingResolver(new StaticHostResolver().add("172.17.64.10", "mq.corp.com"));
+    }
+
+
+    @Test
+    void numericChecksCompleteInline() throws Exception {
+        BlockingResolver resolver = resolver();
+        ImplyServiceBean implyService = new ImplyServiceBean(resolver);
+        Executor failing = task -> fail("executor must not be used");
+        try (NameResolutionExecutor executor = new NameResolutionExecutor(failing, 10, Duration.ofSeconds(1))) {
+            for (QueuePermissionCollection collection : new QueuePermissionCollection[]{new QueuePermisionCollectionBasicImpl(),
+                    new QueuePermissionCollectionConcurrentImpl(), new QueuePermissionCollectionOffHeapImpl(implyService)}) {
+                collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher", implyService));
+                collection.add(new QueuePermissionBasicImpl("172.17.65.10", "puller", implyService));
+                if (collection instanceof QueuePermissionCollectionOffHeapImpl == false) {
+                    collection.add(new QueuePermissionBasicImpl("mq.corp.com", "pusher", implyService));
+                    //  Доменное имя против доменного имени DNS не нужен
+                    assertTrue(collection.impliesAsync(new QueuePermissionBasicImpl("a.mq.corp.com", "pusher"), executor).getNow(false));
+                }
+
+                //  Адрес входит в подсеть - решение принимается на месте, даже если в коллекции есть доменные имена
+                CompletableFuture<Boolean> future = collection.impliesAsync(new QueuePermissionBasicImpl("172.17.64.10", "pusher"), executor);
+                assertTrue(future.isDone());
+                assertTrue(future.getNow(false));
+                assertTrue(collection.impliesAsync(new QueuePermissionBasicImpl("172.17.65.10", "puller"), executor).getNow(false));
+                assertTrue(collection.impliesAsync(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"), executor).getNow(false));
+            }
+            assertEquals(0, resolver.calls.get());
+        }
+    }
+
+
+    @Test
+    void dnsChecksGoToExecutor() throws Exception {
+        BlockingResolver resolver = resolver();
+        ImplyServiceBean implyService = new ImplyServiceBean(resolver);
+        try (NameResolutionExecutor executor = new NameResolutionExecutor(2, 10, Duration.ofSeconds(10))) {
+            QueuePermissionCollection collection = new QueuePermissionCollectionConcurrentImpl();
+            collection.add(new QueuePermissionBasicImpl("corp.com", "pusher", implyService));
+
+            CompletableFuture<Boolean> ip = collection.impliesAsync(new QueuePermissionBasicImpl("172.17.64.10", "pusher"), executor);
+            CompletableFuture<Boolean> other = collection.impliesAsync(new QueuePermissionBasicImpl("172.17.64.11", "pusher"), executor);
+            assertFalse(ip.isDone());
+            resolver.released.countDown();
+            assertTrue(ip.get(10, TimeUnit.SECONDS));
+            assertFalse(other.get(10, TimeUnit.SECONDS));
+            assertEquals(2, executor.submittedCount());
+        }
+    }
+
+
+    @Test
+    void failClosedOnTimeout() throws Exception {
+        BlockingResolver resolver = resolver();
+        ImplyServiceBean implyService = new ImplyServiceBean(resolver);
+        try (NameResolutionExecutor executor = new NameResolutionExecutor(1, 10, Duration.ofMillis(50))) {
+            QueuePermissionCollection collection = new QueuePermissionCollectionOffHeapImpl(implyService);
+            collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher", implyService));
+
+            CompletableFuture<Boolean> future = collection.impliesAsync(new QueuePermissionBasicImpl("mq.corp.com", "pusher"), executor);
+            assertFalse(future.get(10, TimeUnit.SECONDS));
+            assertEquals(1, executor.timeoutCount());
+            resolver.released.countDown();
+        }
+    }
+
+
+    @Test
+    void bounded() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        try (NameResolutionExecutor executor = new NameResolutionExecutor(1, 1, Duration.ofSeconds(10))) {
+            CompletableFuture<Boolean> running = executor.submit(() -> {
+                try {
+                    return released.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            });
+            CompletableFuture<Boolean> queued = executor.submit(() -> true);
+            CompletableFuture<Boolean> rejected = executor.submit(() -> true);
+
+            assertTrue(rejected.isDone());
+            assertFalse(rejected.get());
+            assertEquals(1, executor.rejectionCount());
+            released.countDown();
+            assertTrue(running.get(10, TimeUnit.SECONDS));
+            assertTrue(queued.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+
+    @Test
+    void exceptionIsDenied() throws Exception {
+        try (NameResolutionExecutor executor = new NameResolutionExecutor(1, 1, Duration.ofSeconds(10))) {
+            CompletableFuture<Boolean> future = executor.submit(() -> {
+                throw new IllegalStateException("broken check");
+            });
+            assertFalse(future.get(10, TimeUnit.SECONDS));
+            assertEquals(0, executor.timeoutCount());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new NameResolutionExecutor(0, 1, Duration.ofSeconds(1)));
+        assertThrows(IllegalArgumentException.class, () -> new NameResolutionExecutor(1, 1, Duration.ZERO));
+    }
+
+
+    @Test
+    void defaultImplementationUsesExecutor() throws Exception {
+        QueuePermissionCollection collection = new QueuePermissionCollection() {
+            final QueuePermissionCollection delegate = new QueuePermisionCollectionBasicImpl();
+
+            @Override
+            public List<QueuePermission> getPermissionsByName(String name) {
+                return delegate.getPermissionsByName(name);
+            }
+
+            @Override
+            public void add(Permission permission) {
+                delegate.add(permission);
+            }
+
+            @Override
+            public boolean implies(Permission permission) {
+                return delegate.implies(permission);
+            }
+
+            @Override
+            public Enumeration<Permission> elements() {
+                return delegate.elements();
+            }
+        };
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        assertTrue(collection.impliesAsync(new QueuePermissionBasicImpl("172.17.64.10", "pusher")).get(10, TimeUnit.SECONDS));
+        assertFalse(collection.impliesAsync(new QueuePermissionBasicImpl("172.17.64.10", "puller")).get(10, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,231 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PermissionSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+
+    private static List<String> elements(QueuePermissionCollection collection) {
+        List<String> elements = new ArrayList<>();
+        Enumeration<Permission> enumeration = collection.elements();
+        while (enumeration.hasMoreElements()) {
+            Permission permission = enumeration.nextElement();
+            elements.add(permission.getName() + " " + permission.getActions() + " " + permission.hashCode());
+        }
+        Collections.sort(elements);
+        return elements;
+    }
+
+
+    @Test
+    void roundTrip() throws IOException {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "puller,pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "puller"));
+        collection.add(new QueuePermissionBasicImpl("0.0.0.0/0", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("255.255.255.255", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("MQ.Corp.com", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("node1.mq.corp.com", "puller"));
+        collection.add(new QueuePermissionBasicImpl("2001:0DB8::1", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("2001:db8::/32", "puller"));
+        collection.add(new QueuePermissionBasicImpl("::ffff:10.0.0.1", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("очередь-1", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("queue-2", "bogus"));
+        Path file = directory.resolve("acl.snapshot");
+
+        assertEquals(12, PermissionSnapshot.write(collection, file));
+        QueuePermissionCollection loaded = PermissionSnapshot.read(file);
+
+        assertEquals(elements(collection), elements(loaded));
+        for (String name : new String[]{"172.17.64.10", "172.17.64.0/24", "MQ.Corp.com", "2001:0DB8::1", "очередь-1", "queue-2"}) {
+            assertEquals(collection.getPermissionsByName(name), loaded.getPermissionsByName(name), name);
+        }
+        QueuePermissionBasicImpl original = (QueuePermissionBasicImpl) collection.getPermissionsByName("172.17.64.10").get(1);
+        QueuePermissionBasicImpl copy = (QueuePermissionBasicImpl) loaded.getPermissionsByName("172.17.64.10").get(1);
+        assertEquals(original, copy);
+        assertEquals(original.hashCode(), copy.hashCode());
+        assertEquals("pusher,puller", copy.getActions());
+
+        assertTrue(loaded.implies(new QueuePermissionBasicImpl("172.17.64.20", "puller")));
+        assertFalse(loaded.implies(new QueuePermissionBasicImpl("172.17.64.255", "puller")));
+        assertTrue(loaded.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+        assertTrue(loaded.implies(new QueuePermissionBasicImpl("2001:db8:1::5", "puller")));
+        assertTrue(loaded.implies(new QueuePermissionBasicImpl("::FFFF:a00:1", "pusher")));
+        assertTrue(loaded.implies(new QueuePermissionBasicImpl("очередь-1", "pusher")));
+        assertFalse(loaded.implies(new QueuePermissionBasicImpl("queue-2", "pusher")));
+    }
+
+
+    @Test
+    void roundTripMatchesImplies() throws IOException {
+        Random random = new Random(16);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+        QueuePermissionCollection collection = new QueuePermissionCollectionConcurrentImpl();
+        for (int i = 0; i < 20_000; i++) {
+            String name;
+            switch (random.nextInt(4)) {
+                case 0: name = "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256); break;
+                case 1: name = "10." + random.nextInt(4) + "." + random.nextInt(256) + ".0/" + (24 + random.nextInt(9)); break;
+                case 2: name = "node" + random.nextInt(100) + ".corp.com"; break;
+                default: name = "2001:db8:" + Integer.toHexString(random.nextInt(16)) + "::/" + (48 + random.nextInt(81));
+            }
+            collection.add(new QueuePermissionBasicImpl(name, actions[random.nextInt(actions.length)]));
+        }
+        Path file = directory.resolve("acl.snapshot");
+        PermissionSnapshot.write(collection, file);
+
+        QueuePermisionCollectionBasicImpl loaded = new QueuePermisionCollectionBasicImpl();
+        assertEquals(20_000, PermissionSnapshot.read(file, loaded));
+        assertEquals(elements(collection), elements(loaded));
+
+        //  Доменные имена в сравнение проверок не входят: проверка адреса по доменному имени обращается к DNS
+        QueuePermissionCollection expected = withoutDomainNames(collection);
+        QueuePermissionCollection actual = withoutDomainNames(loaded);
+        for (int i = 0; i < 2000; i++) {
+            String name = random.nextBoolean()
+                    ? "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256)
+                    : "2001:db8:" + Integer.toHexString(random.nextInt(16)) + "::" + Integer.toHexString(random.nextInt(256));
+            QueuePermission permission = new QueuePermissionBasicImpl(name, actions[random.nextInt(actions.length)]);
+            assertEquals(expected.implies(permission), actual.implies(permission), permission.toString());
+        }
+    }
+
+
+    private static QueuePermissionCollection withoutDomainNames(QueuePermissionCollection collection) {
+        QueuePermisionCollectionBasicImpl result = new QueuePermisionCollectionBasicImpl();
+        collection.stream()
+                .filter(permission -> ((QueuePermissionBasicImpl) permission).getResourceType() != ResourceType.DOMAINNAME)
+                .forEach(result::add);
+        return result;
+    }
+
+
+    @Test
+    void readIntoShardedCollectionAsOneBatch() throws IOException {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        for (int i = 0; i < 100; i++) collection.add(new QueuePermissionBasicImpl("10.0.0." + i, "pusher"));
+        Path file = directory.resolve("acl.snapshot");
+        PermissionSnapshot.write(collection, file);
+
+        QueuePermissionCollectionShardedImpl sharded = new QueuePermissionCollectionShardedImpl();
+        long version = sharded.version();
+        assertEquals(100, PermissionSnapshot.read(file, sharded));
+        //  Одно изменение коллекции на весь снимок
+        assertEquals(version + 1, sharded.version());
+        assertEquals(100, sharded.size());
+    }
+
+
+    @Test
+    void emptyCollection() throws IOException {
+        Path file = directory.resolve("acl.snapshot");
+        assertEquals(0, PermissionSnapshot.write(new QueuePermisionCollectionBasicImpl(), file));
+        assertEquals(0, PermissionSnapshot.read(file).stream().count());
+    }
+
+
+    @Test
+    void corruptedSnapshot() throws IOException {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        Path file = directory.resolve("acl.snapshot");
+        PermissionSnapshot.write(collection, file);
+        byte[] bytes = Files.readAllBytes(file);
+
+        bytes[bytes.length - 6] ^= 1;
+        Files.write(file, bytes);
+        IOException e = assertThrows(IOException.class, () -> PermissionSnapshot.read(file));
+        assertTrue(e.getMessage().startsWith("Snapshot checksum mismatch"), e.getMessage());
+
+        bytes[0] = 'X';
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> PermissionSnapshot.read(file));
+
+        Files.write(file, new byte[3]);
+        assertThrows(IOException.class, () -> PermissionSnapshot.read(file));
+    }
+
+
+    @Test
+    void otherImplementationsAreRejected() {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        collection.add(new QueuePermission("queue-1", "pusher") {
+            @Override
+            String[] normalizeAction(String actionAsString) {
+                return new String[]{actionAsString};
+            }
+
+            @Override
+            public boolean implies(Permission permission) {
+                return false;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj == this;
+            }
+
+            @Override
+            public int hashCode() {
+                return 0;
+            }
+
+            @Override
+            public String getActions() {
+                return "pusher";
+            }
+
+            @Override
+            boolean impliesResourceName(String otherResourceName) {
+                return false;
+            }
+
+            @Override
+            boolean impliesActions(String actions) {
+                return false;
+            }
+        });
+        Path file = directory.resolve("acl.snapshot");
+        assertThrows(IllegalArgumentException.class, () -> PermissionSnapshot.write(collection, file));
+        assertFalse(Files.exists(file));
+    }
+
+
+    @Test
+    void tooLongDomainNamesAreRejected() throws IOException {
+        Path file = directory.resolve("acl.snapshot");
+        StringBuilder manyLabels = new StringBuilder("corp.com");
+        for (int i = 0; i < 254; i++) manyLabels.insert(0, "a.");
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl(manyLabels.toString(), "pusher"));
+        assertEquals(ResourceType.DOMAINNAME, ((QueuePermissionBasicImpl) collection.stream().findFirst().get()).getResourceType());
+        //  Число меток пишется одним байтом: 256 меток не записываются молча как 0
+        assertThrows(IllegalArgumentException.class, () -> PermissionSnapshot.write(collection, file));
+        assertFalse(Files.exists(file));
+
+        //  255 меток - предел формата
+        QueuePermissionCollection limit = new QueuePermisionCollectionBasicImpl();
+        limit.add(new QueuePermissionBasicImpl(manyLabels.substring(2), "pusher"));
+        PermissionSnapshot.write(limit, file);
+        assertEquals(elements(limit), elements(PermissionSnapshot.read(file)));
+    }
+
+}
@@ -0,0 +1,211 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentMapTest {
+
+    //  Ключ с управляемым хэш-кодом - для проверки узлов с совпадающими хэшами
+    private static final class Key {
+        final int hash;
+        final String name;
+
+        Key(int hash, String name) {
+            this.hash = hash;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Test
+    void withAndWithout() {
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        PersistentMap<String, Integer> map1 = map.with("a", 1);
+        PersistentMap<String, Integer> map2 = map1.with("b", 2).with("a", 3);
+
+        assertTrue(map.isEmpty());
+        assertEquals(1, map1.get("a"));
+        assertNull(map1.get("b"));
+        assertEquals(3, map2.get("a"));
+        assertEquals(2, map2.get("b"));
+        assertEquals(2, map2.size());
+
+        PersistentMap<String, Integer> map3 = map2.without("a");
+        assertNull(map3.get("a"));
+        assertEquals(1, map3.size());
+        assertSame(map3, map3.without("a"));
+        assertEquals(3, map2.get("a"));
+    }
+
+    @Test
+    void collisions() {
+        PersistentMap<Key, String> map = PersistentMap.empty();
+        map = map.with(new Key(7, "a"), "a").with(new Key(7, "b"), "b").with(new Key(7 + 32, "c"), "c");
+
+        assertEquals("a", map.get(new Key(7, "a")));
+        assertEquals("b", map.get(new Key(7, "b")));
+        assertEquals("c", map.get(new Key(7 + 32, "c")));
+        assertEquals(3, map.size());
+
+        map = map.without(new Key(7, "a"));
+        assertNull(map.get(new Key(7, "a")));
+        assertEquals("b", map.get(new Key(7, "b")));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void matchesHashMap() {
+        Random random = new Random(1);
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            //  Узкий диапазон хэшей дает и обычные узлы, и узлы коллизий
+            Key key = new Key(random.nextInt(512) * 33, "k" + random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            } else {
+                expected.put(key, i);
+                map = map.with(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        Map<Key, Integer> actual = new HashMap<>();
+        map.forEach(actual::put);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void valueIteratorAndAnyValue() {
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        assertFalse(map.valueIterator().hasNext());
+        assertFalse(map.anyValue(value -> true));
+
+        //  Хэши совпадают во всех младших битах, кроме старшего, - дерево максимальной глубины, с узлами коллизий внизу
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            map = map.with(new Key(i % 2 == 0 ? 5 : 5 | (1 << 31), "k" + i), i);
+            expected.add(i);
+        }
+        for (int i = 6; i < 300; i++) {
+            map = map.with(new Key(i, "k" + i), i);
+            expected.add(i);
+        }
+
+        List<Integer> actual = new ArrayList<>();
+        Iterator<Integer> iterator = map.valueIterator();
+        while (iterator.hasNext()) actual.add(iterator.next());
+        assertThrows(NoSuchElementException.class, iterator::next);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+
+        assertTrue(map.anyValue(value -> value == 3));
+        assertTrue(map.anyValue(value -> value == 299));
+        assertFalse(map.anyValue(value -> value < 0));
+
+        //  Итератор старой версии не видит последующих изменений
+        Iterator<Integer> old = map.valueIterator();
+        map = map.with(new Key(1000, "new"), 1000);
+        int count = 0;
+        while (old.hasNext()) {
+            old.next();
+            count++;
+        }
+        assertEquals(300, count);
+    }
+
+
+    @Test
+    void valueSpliterator() {
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        assertEquals(0, map.valueSpliterator().estimateSize());
+        assertFalse(map.valueSpliterator().tryAdvance(value -> fail()));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            map = map.with(new Key(i % 2 == 0 ? 5 : 5 | (1 << 31), "k" + i), i);
+            expected.add(i);
+        }
+        for (int i = 6; i < 10_000; i++) {
+            map = map.with(new Key(i * 0x9E3779B9, "k" + i), i);
+            expected.add(i);
+        }
+
+        Spliterator<Integer> spliterator = map.valueSpliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(map.size(), spliterator.getExactSizeIfKnown());
+
+        //  Делим до упора: каждое значение должно попасть ровно в одну часть, а части - быть близкими по размеру
+        Deque<Spliterator<Integer>> pending = new ArrayDeque<>(List.of(spliterator));
+        List<Spliterator<Integer>> parts = new ArrayList<>();
+        while (pending.isEmpty() == false) {
+            Spliterator<Integer> part = pending.pop();
+            Spliterator<Integer> prefix = part.estimateSize() > 100 ? part.trySplit() : null;
+            if (prefix == null) {
+                parts.add(part);
+            } else {
+                pending.push(part);
+                pending.push(prefix);
+            }
+        }
+        assertTrue(parts.size() >= 64, "parts: " + parts.size());
+
+        List<Integer> actual = new ArrayList<>();
+        int largest = 0;
+        for (Spliterator<Integer> part : parts) {
+            int before = actual.size();
+            assertTrue(part.tryAdvance(actual::add) || part.estimateSize() == 0);
+            //  После начала обхода часть больше не делится
+            assertNull(part.trySplit());
+            part.forEachRemaining(actual::add);
+            largest = Math.max(largest, actual.size() - before);
+        }
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertTrue(largest < map.size() / 16, "largest part: " + largest);
+    }
+
+    @Test
+    void withAllMatchesWith() {
+        Random random = new Random(15);
+        PersistentMap<Key, Integer> base = PersistentMap.empty();
+        for (int i = 0; i < 3000; i++) base = base.with(new Key(random.nextInt(512) * 33, "k" + i), i);
+
+        for (int round = 0; round < 20; round++) {
+            //  Пакет с новыми ключами, ключами, которые уже есть в карте, и ключами с совпадающими хэшами
+            Map<Key, Integer> batch = new LinkedHashMap<>();
+            int batchSize = round == 0 ? 1 : random.nextInt(2000);
+            for (int i = 0; i < batchSize; i++) {
+                int hash = random.nextInt(4) == 0 ? 7 : random.nextInt(512) * 33;
+                batch.put(new Key(hash, "k" + random.nextInt(6000)), -i);
+            }
+            PersistentMap<Key, Integer> start = round % 2 == 0 ? base : PersistentMap.empty();
+            PersistentMap<Key, Integer> expected = start;
+            for (Map.Entry<Key, Integer> entry : batch.entrySet()) expected = expected.with(entry.getKey(), entry.getValue());
+            PersistentMap<Key, Integer> actual = start.withAll(new ArrayList<>(batch.keySet()), new ArrayList<>(batch.values()));
+
+            assertEquals(expected.size(), actual.size());
+            Map<Key, Integer> expectedEntries = new HashMap<>();
+            expected.forEach(expectedEntries::put);
+            Map<Key, Integer> actualEntries = new HashMap<>();
+            actual.forEach(actualEntries::put);
+            assertEquals(expectedEntries, actualEntries);
+            for (Key key : batch.keySet()) assertEquals(batch.get(key), actual.get(key));
+        }
+        //  Исходная карта не меняется
+        assertEquals(3000, base.size());
+    }
+
+}
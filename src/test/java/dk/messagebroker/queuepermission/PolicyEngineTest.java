@@ -0,0 +1,111 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicyEngineTest {
+
+    @Test
+    void rebuild() throws Exception {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        //  Задачи исполнителя копятся и запускаются вручную
+        List<Runnable> tasks = new ArrayList<>();
+        PolicyEngine engine = new PolicyEngine(collection, tasks::add);
+        PolicyIndex first = engine.index();
+
+        assertTrue(engine.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.11", "pusher"));
+        assertFalse(engine.implies(new QueuePermissionBasicImpl("172.17.64.11", "pusher")));
+
+        //  Пока пересборка не началась, запросы объединяются
+        CompletableFuture<PolicyIndex> future = engine.rebuild();
+        assertSame(future, engine.rebuild());
+        assertEquals(1, tasks.size());
+        assertSame(first, engine.index());
+
+        tasks.remove(0).run();
+        assertTrue(future.isDone());
+        assertSame(future.get(), engine.index());
+        assertEquals(2, engine.index().size());
+        assertTrue(engine.implies(new QueuePermissionBasicImpl("172.17.64.11", "pusher")));
+
+        //  После начала пересборки следующий запрос планирует новую
+        assertNotSame(future, engine.rebuild());
+        assertEquals(1, tasks.size());
+    }
+
+
+    @Test
+    void rebuildWithRejectingExecutor() {
+        PolicyEngine engine = new PolicyEngine(new QueuePermisionCollectionBasicImpl(), task -> {
+            throw new IllegalStateException("stopped");
+        });
+        CompletableFuture<PolicyIndex> future = engine.rebuild();
+        assertTrue(future.isCompletedExceptionally());
+        //  Неудачный запрос не мешает следующему
+        assertNotSame(future, engine.rebuild());
+    }
+
+
+    @Test
+    void concurrentImpliesDuringRebuild() throws Exception {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("10.0.0.0/16", "pusher"));
+        PolicyEngine engine = new PolicyEngine(collection);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(readers.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        assertTrue(engine.implies(new QueuePermissionBasicImpl("10.0.0." + (1 + i % 250), "pusher")));
+                    }
+                }));
+            }
+            for (int i = 0; i < 200; i++) {
+                collection.add(new QueuePermissionBasicImpl("queue-" + i, "pusher"));
+                engine.rebuild();
+            }
+            engine.rebuild().get(30, TimeUnit.SECONDS);
+            for (Future<?> future : futures) future.get(30, TimeUnit.SECONDS);
+        } finally {
+            readers.shutdownNow();
+            engine.close();
+        }
+        assertEquals(201, engine.index().size());
+        assertTrue(engine.implies(new QueuePermissionBasicImpl("queue-199", "pusher")));
+    }
+
+
+    @Test
+    void closeStopsOwnedExecutorOnly() throws Exception {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        PolicyEngine engine = new PolicyEngine(collection);
+        CompletableFuture<PolicyIndex> future = engine.rebuild();
+        engine.close();
+        //  Запланированная пересборка выполняется, новые - нет
+        assertEquals(1, future.get(30, TimeUnit.SECONDS).size());
+        assertTrue(engine.rebuild().isCompletedExceptionally());
+        assertTrue(engine.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new PolicyEngine(collection, executor).close();
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyService;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketPermission;
+import java.net.UnknownHostException;
+import java.security.Permission;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicyIndexTest {
+
+    /*
+    Другая реализация QueuePermission: подразумевает только одно имя ресурса и только действие "pusher"
+     */
+    private static class SingleNamePermission extends QueuePermission {
+        private final String impliedName;
+
+        SingleNamePermission(String resourceName, String impliedName) {
+            super(resourceName, "pusher");
+            this.impliedName = impliedName;
+        }
+        @Override
+        String[] normalizeAction(String actionAsString) {
+            return new String[]{actionAsString};
+        }
+
+        @Override
+        public boolean implies(Permission permission) {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this;
+        }
+
+        @Override
+        public int hashCode() {
+            return impliedName.hashCode();
+        }
+
+        @Override
+        public String getActions() {
+            return "pusher";
+        }
+
+        @Override
+        boolean impliesResourceName(String otherResourceName) {
+            return otherResourceName.equals(impliedName);
+        }
+
+        @Override
+        boolean impliesActions(String actions) {
+            return actions.equals("pusher");
+        }
+    }
+
+
+    @Test
+    void implies() {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "puller"));
+        collection.add(new QueuePermissionBasicImpl("172.17.0.0/16", "puller"));
+        collection.add(new QueuePermissionBasicImpl("10.0.0.0/31", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("corp.com", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("2001:db8::/32", "pusher,puller"));
+        collection.add(new QueuePermissionBasicImpl("queue-1", "pusher"));
+        PolicyIndex index = PolicyIndex.compile(collection);
+
+        assertEquals(7, index.size());
+        assertTrue(index.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+        //  Маски разных разрешений не объединяются
+        assertFalse(index.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("172.17.1.1", "puller")));
+        //  Номер сети и широковещательный адрес в подсеть не входят
+        assertFalse(index.implies(new QueuePermissionBasicImpl("172.17.0.0", "puller")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("172.17.255.255", "puller")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        //  Подсеть подразумевается только такой же подсетью
+        assertTrue(index.implies(new QueuePermissionBasicImpl("10.0.0.0/31", "pusher")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("172.17.64.0/24", "puller")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("MQ.Corp.com", "pusher")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("evilcorp.com", "pusher")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("2001:0DB8::1", "pusher,puller")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("2001:db8:0:0::/32", "puller")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("2001:db8::/48", "puller")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("queue-1", "pusher")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("queue-2", "pusher")));
+        assertFalse(index.implies(new SocketPermission("172.17.64.10", "connect")));
+
+        //  Индекс - снимок: изменения коллекции в него не попадают
+        collection.add(new QueuePermissionBasicImpl("queue-2", "pusher"));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("queue-2", "pusher")));
+        assertTrue(PolicyIndex.compile(collection).implies(new QueuePermissionBasicImpl("queue-2", "pusher")));
+    }
+
+
+    @Test
+    void impliesThroughDns() throws UnknownHostException {
+        ImplyService implyService = new ImplyServiceBean(new StaticHostResolver()
+                .add("172.17.64.10", "mq.corp.com")
+                .add("2001:db8::10", "mq6.corp.com"));
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("mq.corp.com", "pusher", implyService));
+        collection.add(new QueuePermissionBasicImpl("mq6.corp.com", "pusher", implyService));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "puller", implyService));
+        PolicyIndex index = PolicyIndex.compile(collection);
+
+        //  IP-адрес против доменного имени - через обратное разрешение
+        assertTrue(index.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher", implyService)));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("2001:db8::10", "pusher", implyService)));
+        //  Доменное имя против подсети - через прямое разрешение
+        assertTrue(index.implies(new QueuePermissionBasicImpl("mq.corp.com", "puller", implyService)));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("mq6.corp.com", "puller", implyService)));
+    }
+
+
+    @Test
+    void otherImplementations() {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("10.0.0.0/16", "puller"));
+        collection.add(new SingleNamePermission("10.0.0.0/16", "10.0.0.1"));
+        collection.add(new SingleNamePermission("queue-1", "queue-2"));
+        PolicyIndex index = PolicyIndex.compile(collection);
+
+        assertTrue(index.implies(new QueuePermissionBasicImpl("10.0.0.2", "puller")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("queue-2", "pusher")));
+        assertTrue(index.implies(new QueuePermissionBasicImpl("queue-1", "pusher")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("queue-3", "pusher")));
+        assertFalse(index.implies(new QueuePermissionBasicImpl("10.1.0.2", "puller")));
+        //  Ключ со смешанным списком проверяется так же, как в коллекции: имя - по первому разрешению, действия - по всем
+        for (String name : new String[]{"10.0.0.1", "10.0.0.2", "10.0.0.0/16", "10.0.0.0/24"}) {
+            for (String actions : new String[]{"pusher", "puller", "pusher,puller"}) {
+                QueuePermission permission = new QueuePermissionBasicImpl(name, actions);
+                assertEquals(collection.implies(permission), index.implies(permission), permission.toString());
+            }
+        }
+    }
+
+
+    private String randomIp(Random random) {
+        return "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+
+    private String randomIpv6(Random random) {
+        int group = random.nextInt(4);
+        int last = random.nextInt(64);
+        return random.nextBoolean()
+                ? "2001:db8:" + group + "::" + Integer.toHexString(last)
+                : "2001:0DB8:" + Integer.toHexString(group) + ":0:0:0:0:" + Integer.toHexString(last);
+    }
+
+
+    private String randomDomainName(Random random) {
+        String[] labels = {"mq", "node1", "node2", "eu"};
+        StringBuilder name = new StringBuilder(random.nextBoolean() ? "corp.com" : "Corp.Com");
+        for (int i = random.nextInt(3); i > 0; i--) name.insert(0, labels[random.nextInt(labels.length)] + ".");
+        return name.toString();
+    }
+
+
+    private String randomName(Random random, boolean request) {
+        switch (random.nextInt(6)) {
+            case 0: return randomIp(random);
+            case 1: return randomIp(random) + "/" + (request ? 24 + random.nextInt(9) : 8 + random.nextInt(25));
+            case 2: return randomIpv6(random);
+            case 3: return randomIpv6(random) + "/" + (40 + random.nextInt(89));
+            case 4: return randomDomainName(random);
+            default: return "queue-" + random.nextInt(20);
+        }
+    }
+
+
+    @Test
+    void impliesMatchesCollection() throws UnknownHostException {
+        Random random = new Random(14);
+        String[] actions = {"pusher", "puller", "pusher,puller", "bogus"};
+        StaticHostResolver hostResolver = new StaticHostResolver();
+        for (int i = 0; i < 200; i++) hostResolver.add(randomIp(random), randomDomainName(random).toLowerCase());
+        ImplyService implyService = new ImplyServiceBean(hostResolver);
+
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        for (int i = 0; i < 1000; i++) {
+            collection.add(new QueuePermissionBasicImpl(randomName(random, false), actions[random.nextInt(3)], implyService));
+        }
+        collection.add(new SingleNamePermission("queue-1", "queue-2"));
+        collection.add(new SingleNamePermission("10.1.0.0/16", "10.1.2.3"));
+        PolicyIndex index = PolicyIndex.compile(collection);
+        assertEquals(1002, index.size());
+
+        for (int i = 0; i < 5000; i++) {
+            QueuePermission permission = new QueuePermissionBasicImpl(randomName(random, true),
+                    actions[random.nextInt(actions.length)], implyService);
+            assertEquals(collection.implies(permission), index.implies(permission), permission.toString());
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ForwardResolvingImplyService;
+import dk.messagebroker.queuepermission.service.ImplyService;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicyMinimizerTest {
+
+    private static final String[] ACTIONS = {"pusher", "puller", "pusher,puller"};
+
+    private static final String[] GRANT_NAMES = {
+            "172.17.1.0", "172.17.1.1", "172.17.1.2", "172.17.1.10", "172.17.1.255", "172.17.2.1",
+            "172.17.1.0/24", "172.17.1.0/30", "172.17.0.0/16", "172.17.1.8/29",
+            "corp.com", "Corp.com", "mq.corp.com", "other.org",
+            "2001:db8::10", "2001:DB8::10", "2001:db8::/64", "2001:db8::/120"};
+
+    private static final String[] REQUEST_NAMES = {
+            "172.17.1.5", "172.17.3.3", "db.corp.com", "a.mq.corp.com", "v6.corp.com", "2001:db8::11", "2001:db8:1::1",
+            "2001:db8:0:0::/64", "172.17.1.0/25"};
+
+
+    private static ImplyServiceBean implyService() throws UnknownHostException {
+        return new ImplyServiceBean(new StaticHostResolver()
+                .add("172.17.1.10", "mq.corp.com")
+                .add("172.17.1.20", "db.corp.com")
+                .add("172.17.2.1", "corp.com")
+                .add("2001:db8::10", "v6.corp.com"));
+    }
+
+
+    @Test
+    void duplicatesAndActions() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller"));
+        collection.add(new QueuePermissionBasicImpl("mq.corp.com", "puller"));
+        collection.add(new QueuePermissionBasicImpl("mq.corp.com", "puller"));
+        long version = collection.version();
+
+        PolicyMinimizer.Report report = collection.minimize(false);
+        assertEquals(5, report.sizeBefore());
+        assertEquals(2, report.sizeAfter());
+        assertEquals(2, report.duplicateCount());
+        assertEquals(1, report.subsumedCount());
+        assertEquals(version + 1, collection.version());
+        assertEquals(1, collection.getPermissionsByName("172.17.64.10").size());
+        assertEquals("pusher,puller", collection.getPermissionsByName("172.17.64.10").get(0).getActions());
+
+        //  Повторная минимизация ничего не находит и коллекцию не меняет
+        report = collection.minimize(false);
+        assertFalse(report.changed());
+        assertEquals(version + 1, collection.version());
+    }
+
+
+    @Test
+    void subsumedAcrossKeys() {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.1.0/24", "pusher,puller"));
+        collection.add(new QueuePermissionBasicImpl("172.17.1.10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("2001:db8::/64", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("2001:db8::10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("corp.com", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("mq.corp.com", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("Corp.com", "pusher"));
+
+        PolicyMinimizer.Report report = collection.minimize(false);
+        assertEquals(4, report.subsumedCount());
+        assertEquals(3, report.sizeAfter());
+        assertNotNull(collection.getPermissionsByName("172.17.1.0/24"));
+        assertNotNull(collection.getPermissionsByName("2001:db8::/64"));
+        //  Из двух одинаковых имен в разном регистре остается одно
+        assertNotNull(collection.getPermissionsByName("Corp.com"));
+        assertNull(collection.getPermissionsByName("corp.com"));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.1.10", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+    }
+
+
+    @Test
+    void notSubsumed() throws Exception {
+        ImplyServiceBean implyService = implyService();
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.1.0/24", "pusher"));
+        //  Действия шире, чем у подсети
+        collection.add(new QueuePermissionBasicImpl("172.17.1.10", "pusher,puller"));
+        //  Номер сети и широковещательный адрес в подсеть не входят
+        collection.add(new QueuePermissionBasicImpl("172.17.1.0", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.1.255", "pusher"));
+        //  Подсеть внутри подсети: запрос подсети подразумевается только той же подсетью
+        collection.add(new QueuePermissionBasicImpl("172.17.1.0/30", "pusher"));
+        //  Другая реализация проверок
+        collection.add(new QueuePermissionBasicImpl("172.17.1.20", "pusher", implyService));
+        try (ForwardResolvingImplyService forwardResolving = new ForwardResolvingImplyService(new StaticHostResolver())) {
+            collection.add(new QueuePermissionBasicImpl("corp.com", "pusher", forwardResolving));
+            collection.add(new QueuePermissionBasicImpl("mq.corp.com", "pusher", forwardResolving));
+            //  Список, разрешения которого созданы с разными реализациями проверок
+            collection.add(new QueuePermissionBasicImpl("172.17.1.30", "pusher"));
+            collection.add(new QueuePermissionBasicImpl("172.17.1.30", "pusher", implyService));
+
+            PolicyMinimizer.Report report = collection.minimize(false);
+            assertFalse(report.changed());
+            assertEquals(10, report.sizeAfter());
+        }
+    }
+
+
+    @Test
+    void coalesceHosts() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        for (int i = 0; i <= 255; i++) collection.add(new QueuePermissionBasicImpl("172.17.1." + i, "pusher"));
+        for (int i = 1; i <= 6; i++) collection.add(new QueuePermissionBasicImpl("172.17.2." + i, "puller"));
+        collection.add(new QueuePermissionBasicImpl("172.17.3.1", "pusher"));
+        List<QueuePermissionBasicImpl> requests = new ArrayList<>();
+        for (int i = 0; i <= 255; i++) {
+            for (String actions : ACTIONS) {
+                for (int subnet = 1; subnet <= 3; subnet++) {
+                    requests.add(new QueuePermissionBasicImpl("172.17." + subnet + "." + i, actions));
+                }
+            }
+        }
+        boolean[] before = decisions(collection, requests);
+
+        //  Без объединения адресов ничего не удаляется
+        assertFalse(collection.minimize(false).changed());
+
+        PolicyMinimizer.Report report = collection.minimize(true);
+        assertEquals(2, report.blockCount());
+        assertEquals(254 + 6, report.coalescedCount());
+        assertEquals(5, report.sizeAfter());
+        assertEquals("pusher", collection.getPermissionsByName("172.17.1.0/24").get(0).getActions());
+        assertEquals("puller", collection.getPermissionsByName("172.17.2.0/29").get(0).getActions());
+        assertNotNull(collection.getPermissionsByName("172.17.1.0"));
+        assertNotNull(collection.getPermissionsByName("172.17.1.255"));
+        assertArrayEquals(before, decisions(collection, requests));
+
+        //  Единственное изменение решений - запрос самой подсети блока
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.1.0/24", "pusher")));
+    }
+
+
+    @Test
+    void decisionsPreserved() throws Exception {
+        ImplyServiceBean implyService = implyService();
+        ImplyServiceBean otherImplyService = implyService();
+        List<QueuePermissionBasicImpl> requests = new ArrayList<>();
+        for (String[] names : new String[][]{GRANT_NAMES, REQUEST_NAMES}) {
+            for (String name : names) {
+                for (String actions : ACTIONS) requests.add(new QueuePermissionBasicImpl(name, actions, implyService));
+            }
+        }
+
+        Random random = new Random(23);
+        int removed = 0;
+        for (int round = 0; round < 300; round++) {
+            List<QueuePermissionBasicImpl> grants = new ArrayList<>();
+            int size = 1 + random.nextInt(30);
+            for (int i = 0; i < size; i++) {
+                ImplyService grantImplyService = random.nextInt(8) == 0 ? otherImplyService : implyService;
+                grants.add(new QueuePermissionBasicImpl(GRANT_NAMES[random.nextInt(GRANT_NAMES.length)],
+                        ACTIONS[random.nextInt(ACTIONS.length)], grantImplyService));
+            }
+            for (QueuePermissionCollection collection : new QueuePermissionCollection[]{
+                    new QueuePermisionCollectionBasicImpl(), new QueuePermissionCollectionConcurrentImpl()}) {
+                for (QueuePermissionBasicImpl grant : grants) collection.add(grant);
+                boolean[] before = decisions(collection, requests);
+                PolicyMinimizer.Report report = collection.minimize(false);
+                assertArrayEquals(before, decisions(collection, requests), grants::toString);
+                assertEquals(report.sizeAfter(), collection.stream().count());
+                removed += report.sizeBefore() - report.sizeAfter();
+            }
+        }
+        assertTrue(removed > 0);
+    }
+
+
+    @Test
+    void offHeapNotSupported() {
+        assertThrows(UnsupportedOperationException.class, () -> new QueuePermissionCollectionOffHeapImpl().minimize(false));
+    }
+
+
+    private static boolean[] decisions(QueuePermissionCollection collection, List<QueuePermissionBasicImpl> requests) {
+        boolean[] decisions = new boolean[requests.size()];
+        for (int i = 0; i < requests.size(); i++) decisions[i] = collection.implies(requests.get(i));
+        return decisions;
+    }
+
+}
@@ -7,8 +7,8 @@ import org.mockito.Mockito;
 import java.net.SocketPermission;
 import java.security.Permission;
 import java.security.PermissionCollection;
-import java.util.Enumeration;
-import java.util.NoSuchElementException;
+import java.util.*;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -55,6 +55,52 @@ class QueuePermisionCollectionBasicImplTest {
         }
     }
 
+    /*
+    Другая реализация QueuePermission: подразумевает только одно имя ресурса и только действие "pusher"
+     */
+    private static class SingleNamePermission extends QueuePermission {
+        private final String impliedName;
+
+        SingleNamePermission(String resourceName, String impliedName) {
+            super(resourceName, "pusher");
+            this.impliedName = impliedName;
+        }
+        @Override
+        String[] normalizeAction(String actionAsString) {
+            return new String[]{actionAsString};
+        }
+
+        @Override
+        public boolean implies(Permission permission) {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this;
+        }
+
+        @Override
+        public int hashCode() {
+            return impliedName.hashCode();
+        }
+
+        @Override
+        public String getActions() {
+            return "pusher";
+        }
+
+        @Override
+        boolean impliesResourceName(String otherResourceName) {
+            return otherResourceName.equals(impliedName);
+        }
+
+        @Override
+        boolean impliesActions(String actions) {
+            return actions.equals("pusher");
+        }
+    }
+
     @Test
     void add() {
         QueuePermissionCollection queuePermissionCollection = new QueuePermisionCollectionBasicImpl();
@@ -143,7 +189,321 @@ class QueuePermisionCollectionBasicImplTest {
         assertFalse(enumQueuePermission.hasMoreElements());
         assertThrows(NoSuchElementException.class, enumQueuePermission::nextElement);
 
+        //  Перечисления независимы: новое перечисление не сбрасывает уже начатое
+        Enumeration<Permission> first = queuePermissionCollection.elements();
+        first.nextElement();
+        Enumeration<Permission> second = queuePermissionCollection.elements();
+        queuePermissionCollection.add(new QueuePermissionBasicImpl("10.0.0.2", "puller"));
+        int firstCount = 1;
+        while (first.hasMoreElements()) { first.nextElement(); firstCount++; }
+        int secondCount = 0;
+        while (second.hasMoreElements()) { second.nextElement(); secondCount++; }
+        assertEquals(3, firstCount);
+        assertEquals(3, secondCount);
+    }
+
+
+    @Test
+    void stream() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        Set<QueuePermission> expected = new HashSet<>();
+        for (int i = 0; i < 20_000; i++) {
+            QueuePermission permission = new QueuePermissionBasicImpl(
+                    "10." + (i >> 16) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF), i % 2 == 0 ? "pusher" : "puller");
+            collection.add(permission);
+            expected.add(permission);
+        }
+        //  Два разрешения под одним именем
+        QueuePermission second = new QueuePermissionBasicImpl("10.0.0.0", "pusher,puller");
+        collection.add(second);
+        expected.add(second);
+
+        assertEquals(expected.size(), collection.spliterator().getExactSizeIfKnown());
+        assertEquals(expected.size(), collection.stream().count());
+        assertEquals(expected, collection.parallelStream().collect(Collectors.toSet()));
+        assertEquals(10_000, collection.parallelStream().filter(p -> p.getActions().equals("pusher")).count());
+        //  Реализация по умолчанию - поверх elements()
+        QueuePermissionCollection elementsOnly = new QueuePermissionCollection() {
+            @Override
+            public List<QueuePermission> getPermissionsByName(String name) {
+                return collection.getPermissionsByName(name);
+            }
+
+            @Override
+            public void add(Permission permission) {
+                collection.add(permission);
+            }
+
+            @Override
+            public boolean implies(Permission permission) {
+                return collection.implies(permission);
+            }
+
+            @Override
+            public Enumeration<Permission> elements() {
+                return collection.elements();
+            }
+        };
+        assertEquals(expected, elementsOnly.parallelStream().collect(Collectors.toSet()));
+    }
+
+
+    /*
+    Эталонная реализация "подразумевает ли" для коллекции: полный перебор всех ключей, так, как это делалось до
+    появления индекса подсетей.
+     */
+    private boolean impliesByLinearScan(QueuePermissionCollection collection, Permission permission) {
+        Set<String> keys = new HashSet<>();
+        Enumeration<Permission> elements = collection.elements();
+        while (elements.hasMoreElements()) keys.add(elements.nextElement().getName());
+
+        List<QueuePermission> permissionList = collection.getPermissionsByName(permission.getName());
+        if (permissionList != null && permissionList.stream().anyMatch(e -> e.impliesActions(permission.getActions()))) return true;
+
+        for (String key : keys) {
+            if (key.equals(permission.getName())) continue;
+            permissionList = collection.getPermissionsByName(key);
+            if (permissionList.get(0).impliesResourceName(permission.getName())
+                    && permissionList.stream().anyMatch(e -> e.impliesActions(permission.getActions()))) return true;
+        }
+        return false;
+    }
+
+
+    private String randomIp(Random random) {
+        //  Адреса берутся из небольшого пространства, чтобы они часто попадали в подсети коллекции
+        return "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+
+    @Test
+    void impliesMatchesLinearScan() {
+        Random random = new Random(20230601);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        for (int i = 0; i < 2000; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            if (random.nextInt(4) == 0) {
+                collection.add(new QueuePermissionBasicImpl(randomIp(random), action));
+            } else {
+                //  Префиксы от /8 до /32, включая вырожденные /31 и /32
+                collection.add(new QueuePermissionBasicImpl(randomIp(random) + "/" + (8 + random.nextInt(25)), action));
+            }
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            String name = random.nextInt(10) == 0 ? randomIp(random) + "/" + (8 + random.nextInt(25)) : randomIp(random);
+            QueuePermission permission = new QueuePermissionBasicImpl(name, action);
+            assertEquals(impliesByLinearScan(collection, permission), collection.implies(permission), permission.toString());
+        }
     }
 
 
-}
\ No newline at end of file
+    @Test
+    void impliesNetworkAndBroadcastAddress() {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.0.0/16", "puller"));
+
+        //  Номер сети и широковещательный адрес в подсеть не входят
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.0", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.255", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.1", "pusher")));
+        //  Для более широкой подсети это обычные адреса
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.0", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.1", "pusher,puller")));
+    }
+
+
+    @Test
+    void impliesDomainName() {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("corp.com", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("mq.corp.com", "puller"));
+
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("node1.mq.corp.com", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("node1.mq.corp.com", "puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("NODE1.Corp.COM", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("node1.corp.com", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("node1.mq.corp.com", "pusher,puller")));
+        //  Совпадение только по границе метки
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("evilcorp.com", "pusher")));
+    }
+
+
+    @Test
+    void impliesIpv6() {
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("2001:db8::/32", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("2001:db8:1::/48", "puller"));
+        collection.add(new QueuePermissionBasicImpl("::1", "pusher,puller"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("2001:db8:1::5", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("2001:db8:1::5", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("2001:db8:2::5", "puller")));
+        //  Ключ записан иначе, чем проверяемое имя
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("0:0:0:0:0:0:0:1", "puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("2001:0DB8::/32", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("2001:db8::/33", "pusher")));
+        //  IPv4-подсеть не подразумевает IPv6-адрес, в последних 32 битах которого записан ее адрес
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("::ffff:172.17.64.1", "pusher")));
+    }
+
+
+    private String randomIpv6(Random random) {
+        //  Адреса из небольшого пространства; группы записываются то полностью, то с сокращением "::"
+        int group = random.nextInt(4);
+        int last = random.nextInt(64);
+        return random.nextBoolean()
+                ? "2001:db8:" + group + "::" + Integer.toHexString(last)
+                : "2001:0DB8:" + Integer.toHexString(group) + ":0:0:0:0:" + Integer.toHexString(last);
+    }
+
+
+    @Test
+    void impliesIpv6MatchesLinearScan() {
+        Random random = new Random(61);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        for (int i = 0; i < 300; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            String name = random.nextInt(3) == 0 ? randomIpv6(random) : randomIpv6(random) + "/" + (40 + random.nextInt(89));
+            collection.add(new QueuePermissionBasicImpl(name, action));
+        }
+
+        for (int i = 0; i < 3000; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            String name = random.nextInt(10) == 0 ? randomIpv6(random) + "/" + (40 + random.nextInt(89)) : randomIpv6(random);
+            QueuePermission permission = new QueuePermissionBasicImpl(name, action);
+            assertEquals(impliesByLinearScan(collection, permission), collection.implies(permission), permission.toString());
+        }
+    }
+
+
+    @Test
+    void impliesAllMatchesImplies() {
+        Random random = new Random(11);
+        String[] actions = {"pusher", "puller", "pusher,puller", "bogus"};
+
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        for (int i = 0; i < 300; i++) {
+            String action = actions[random.nextInt(3)];
+            String name = random.nextInt(3) == 0 ? randomIp(random) : randomIp(random) + "/" + (16 + random.nextInt(17));
+            collection.add(new QueuePermissionBasicImpl(name, action));
+        }
+        collection.add(new SingleNamePermission("10.0.0.0/8", "10.0.0.1"));
+
+        //  Имена повторяются - чтобы в пакете были группы с разными и с одинаковыми масками действий
+        String[] names = new String[50];
+        for (int i = 0; i < names.length; i++) names[i] = i == 0 ? "10.0.0.1" : randomIp(random);
+        List<Permission> requests = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            requests.add(new QueuePermissionBasicImpl(names[random.nextInt(names.length)], actions[random.nextInt(actions.length)]));
+        }
+        requests.add(new SocketPermission("10.0.0.1", "connect"));
+
+        BitSet result = collection.impliesAll(requests);
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(collection.implies(requests.get(i)), result.get(i), requests.get(i).toString());
+        }
+        assertTrue(result.get(requests.indexOf(new QueuePermissionBasicImpl("10.0.0.1", "pusher"))));
+        assertEquals(0, collection.impliesAll(Collections.emptyList()).cardinality());
+    }
+
+
+    @Test
+    void removeAndReplace() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "puller"));
+        collection.add(new QueuePermissionBasicImpl("corp.com", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("2001:db8::/32", "pusher"));
+        long version = collection.version();
+
+        assertTrue(collection.remove(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+        assertEquals(version + 1, collection.version());
+
+        //  Такого разрешения нет - коллекция не меняется
+        assertFalse(collection.remove(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher")));
+        assertFalse(collection.remove(new SocketPermission("172.17.64.0", "connect")));
+        assertEquals(version + 1, collection.version());
+
+        //  Последнее разрешение ключа - ключ удаляется и из деревьев индекса
+        assertTrue(collection.remove(new QueuePermissionBasicImpl("172.17.64.0/24", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+        assertTrue(collection.remove(new QueuePermissionBasicImpl("2001:db8::/32", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("2001:db8::1", "pusher")));
+        assertNull(collection.getPermissionsByName("172.17.64.0/24"));
+
+        assertTrue(collection.replace(new QueuePermissionBasicImpl("corp.com", "pusher"), new QueuePermissionBasicImpl("corp.com", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "puller")));
+        assertFalse(collection.replace(new QueuePermissionBasicImpl("corp.com", "pusher"), new QueuePermissionBasicImpl("corp.net", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("mq.corp.net", "pusher")));
+        assertEquals(1, collection.stream().count());
+    }
+
+
+    @Test
+    void removeFirstPermissionOfAnotherImplementation() {
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        SingleNamePermission other = new SingleNamePermission("172.17.0.0/16", "192.168.0.1");
+        collection.add(other);
+        collection.add(new QueuePermissionBasicImpl("172.17.0.0/16", "pusher"));
+        //  Ключ проверяется по первому разрешению списка - разрешению другой реализации
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("192.168.0.1", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.1.1", "pusher")));
+
+        //  Первым стало разрешение QueuePermissionBasicImpl - ключ переходит в дерево подсетей
+        assertTrue(collection.remove(other));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("192.168.0.1", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.1.1", "pusher")));
+    }
+
+
+    @Test
+    void applyDeltaMatchesRebuild() {
+        Random random = new Random(22);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+        List<QueuePermission> all = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            String name = random.nextInt(3) == 0 ? randomIp(random) : randomIp(random) + "/" + (8 + random.nextInt(25));
+            all.add(new QueuePermissionBasicImpl(name, action));
+        }
+        QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+        collection.addAll(all);
+
+        for (int round = 0; round < 20; round++) {
+            List<QueuePermission> removed = new ArrayList<>();
+            for (int i = 0; i < 10; i++) removed.add(all.remove(random.nextInt(all.size())));
+            //  Разрешение, которого нет в коллекции, пропускается
+            removed.add(new QueuePermissionBasicImpl("10.9.9.9", "pusher"));
+            List<QueuePermission> added = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                String name = random.nextInt(3) == 0 ? randomIp(random) : randomIp(random) + "/" + (8 + random.nextInt(25));
+                added.add(new QueuePermissionBasicImpl(name, actions[random.nextInt(actions.length)]));
+            }
+            all.addAll(added);
+
+            long version = collection.version();
+            assertEquals(10, collection.applyDelta(added, removed));
+            assertEquals(version + 1, collection.version());
+            assertEquals(all.size(), collection.stream().count());
+
+            QueuePermisionCollectionBasicImpl rebuilt = new QueuePermisionCollectionBasicImpl();
+            rebuilt.addAll(all);
+            for (int i = 0; i < 300; i++) {
+                QueuePermission permission = new QueuePermissionBasicImpl(randomIp(random), actions[random.nextInt(actions.length)]);
+                assertEquals(rebuilt.implies(permission), collection.implies(permission), permission.toString());
+            }
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package dk.messagebroker.queuepermission;
 
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
@@ -18,6 +20,8 @@ class QueuePermissionBasicImplTest {
         assertEquals(ResourceType.IP, queuePermission.recognizeResourceType("1.1.1.1"));
         assertEquals(ResourceType.SUBNET, queuePermission.recognizeResourceType("172.17.64.0/24"));
         assertEquals(ResourceType.DOMAINNAME, queuePermission.recognizeResourceType("google.com"));
+        assertEquals(ResourceType.IPV6, queuePermission.recognizeResourceType("2001:db8::1"));
+        assertEquals(ResourceType.IPV6_SUBNET, queuePermission.recognizeResourceType("2001:db8::/32"));
 
     }
 
@@ -59,6 +63,18 @@ class QueuePermissionBasicImplTest {
         queuePermission = new QueuePermissionBasicImpl("172.17.64.0/24", "pusher,puller");
         assertTrue(queuePermission.impliesResourceName("172.17.64.1"));
         assertFalse(queuePermission.impliesResourceName("172.17.63.1"));
+        //  Номер сети и широковещательный адрес в подсеть не входят
+        assertFalse(queuePermission.impliesResourceName("172.17.64.0"));
+        assertFalse(queuePermission.impliesResourceName("172.17.64.255"));
+        assertTrue(queuePermission.impliesResourceName("172.17.64.0/24"));
+        assertFalse(queuePermission.impliesResourceName("172.17.64.10/24"));
+
+        //  Адрес подсети может быть любым адресом из нее - номер сети вычисляется в конструкторе
+        queuePermission = new QueuePermissionBasicImpl("172.17.64.10/24", "pusher,puller");
+        assertEquals(0xAC114000, queuePermission.getAddress());
+        assertEquals(24, queuePermission.getPrefixLength());
+        assertTrue(queuePermission.impliesResourceName("172.17.64.1"));
+        assertFalse(queuePermission.impliesResourceName("172.17.64.0"));
 
         /*
         Подобные проверки могут не проходить на некоторых рабочих станциях. Поэтому, комментирую...
@@ -132,6 +148,25 @@ class QueuePermissionBasicImplTest {
     }
 
 
+    @Test
+    void getActions() {
+        //  Действия отдаются в каноническом порядке - порядке элементов ActionType, независимо от порядка в конструкторе
+        assertEquals("pusher,puller", new QueuePermissionBasicImpl("172.17.64.10", "puller, PUSHER, waiter").getActions());
+        assertEquals("pusher,puller", new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller").getActions());
+        assertEquals("puller", new QueuePermissionBasicImpl("172.17.64.10", "puller,puller").getActions());
+        assertEquals("", new QueuePermissionBasicImpl("172.17.64.10", "waiter").getActions());
+    }
+
+
+    @Test
+    void hashCodeValue() {
+        //  Хэш-код вычисляется по имени ресурса и отсортированным действиям
+        assertEquals("172.17.64.10pullerpusher".hashCode(), new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller").hashCode());
+        assertEquals(new QueuePermissionBasicImpl("172.17.64.10", "puller, pusher").hashCode(),
+                new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller").hashCode());
+    }
+
+
     @Test
     void equals() {
         QueuePermission queuePermission, otherPermission;
@@ -153,4 +188,51 @@ class QueuePermissionBasicImplTest {
         assertFalse(queuePermission.equals(otherPermission));
     }
 
-}
\ No newline at end of file
+
+    @Test
+    void impliesWithImplyService() throws Exception {
+        //  Проверки имен через таблицу в памяти - без DNS
+        ImplyServiceBean implyService = new ImplyServiceBean(new StaticHostResolver().add("172.17.64.10", "mq.corp.com"));
+        QueuePermission subnet = new QueuePermissionBasicImpl("172.17.64.0/24", "pusher", implyService);
+        QueuePermission domainName = new QueuePermissionBasicImpl("corp.com", "pusher", implyService);
+
+        assertTrue(subnet.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+        assertTrue(domainName.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertFalse(domainName.implies(new QueuePermissionBasicImpl("172.17.64.11", "pusher")));
+    }
+
+
+    @Test
+    void impliesIpv6() throws Exception {
+        ImplyServiceBean implyService = new ImplyServiceBean(new StaticHostResolver()
+                .add("2001:db8::10", "mq.corp.com")
+                .add("172.17.64.10", "mq4.corp.com"));
+        QueuePermission ip = new QueuePermissionBasicImpl("2001:db8::10", "pusher", implyService);
+        QueuePermission subnet = new QueuePermissionBasicImpl("2001:db8::/32", "pusher", implyService);
+        QueuePermission domainName = new QueuePermissionBasicImpl("corp.com", "pusher", implyService);
+
+        //  Адреса сравниваются как числа, а не как строки
+        assertTrue(ip.implies(new QueuePermissionBasicImpl("2001:DB8:0:0:0:0:0:10", "pusher")));
+        assertFalse(ip.implies(new QueuePermissionBasicImpl("2001:db8::11", "pusher")));
+        //  В IPv6-подсеть входят все ее адреса, включая номер сети
+        assertTrue(subnet.implies(new QueuePermissionBasicImpl("2001:db8::", "pusher")));
+        assertTrue(subnet.implies(new QueuePermissionBasicImpl("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff", "pusher")));
+        assertFalse(subnet.implies(new QueuePermissionBasicImpl("2001:db9::", "pusher")));
+        assertFalse(subnet.implies(new QueuePermissionBasicImpl("2001:db8::1", "puller")));
+        //  Подсеть подразумевает только такую же подсеть
+        assertTrue(subnet.implies(new QueuePermissionBasicImpl("2001:0db8::/32", "pusher")));
+        assertFalse(subnet.implies(new QueuePermissionBasicImpl("2001:db8:1::/48", "pusher")));
+        assertFalse(ip.implies(new QueuePermissionBasicImpl("2001:db8::10/128", "pusher")));
+
+        assertTrue(domainName.implies(new QueuePermissionBasicImpl("2001:db8::10", "pusher")));
+        assertTrue(ip.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+        assertTrue(subnet.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+        //  У имени нет IPv6-адреса
+        assertFalse(subnet.implies(new QueuePermissionBasicImpl("mq4.corp.com", "pusher")));
+
+        //  IPv4 и IPv6 друг друга не подразумевают
+        assertFalse(new QueuePermissionBasicImpl("::/0", "pusher", implyService).implies(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        assertFalse(new QueuePermissionBasicImpl("0.0.0.0/0", "pusher", implyService).implies(new QueuePermissionBasicImpl("::ffff:10.0.0.1", "pusher")));
+    }
+
+}
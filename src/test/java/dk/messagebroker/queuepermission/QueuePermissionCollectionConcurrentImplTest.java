@@ -0,0 +1,265 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketPermission;
+import java.security.Permission;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueuePermissionCollectionConcurrentImplTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int PAIRS_PER_WRITER = 1500;
+
+
+    @Test
+    void addAndImplies() {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher, puller"));
+        collection.add(new QueuePermissionBasicImpl("corp.com", "puller"));
+        collection.add(new SocketPermission("172.17.64.10", "connect"));
+
+        assertEquals(3, collection.size());
+        assertEquals(2, collection.getPermissionsByName("172.17.64.0/24").size());
+        assertNull(collection.getPermissionsByName("172.17.64.10"));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+
+        collection.addAll(Arrays.asList(new QueuePermissionBasicImpl("10.0.0.1", "pusher"),
+                new SocketPermission("10.0.0.1", "connect")));
+        assertEquals(4, collection.size());
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+
+        collection.setReadOnly();
+        assertThrows(SecurityException.class, () -> collection.add(new QueuePermissionBasicImpl("10.0.0.2", "pusher")));
+    }
+
+
+    @Test
+    void elements() {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher, puller"));
+        collection.add(new QueuePermissionBasicImpl("10.0.0.1", "puller"));
+
+        Enumeration<Permission> elements = collection.elements();
+        //  Добавление после получения перечисления на него не влияет
+        collection.add(new QueuePermissionBasicImpl("10.0.0.2", "puller"));
+
+        int count = 0;
+        while (elements.hasMoreElements()) {
+            assertNotNull(elements.nextElement());
+            count++;
+        }
+        assertEquals(3, count);
+        assertThrows(NoSuchElementException.class, elements::nextElement);
+    }
+
+
+    @Test
+    void impliesMatchesBasicImpl() {
+        Random random = new Random(7);
+        String[] actions = {"pusher", "puller", "pusher,puller"};
+
+        QueuePermissionCollection basic = new QueuePermisionCollectionBasicImpl();
+        QueuePermissionCollectionConcurrentImpl concurrent = new QueuePermissionCollectionConcurrentImpl();
+        for (int i = 0; i < 1000; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            //  Без доменных имен - чтобы проверка не зависела от DNS
+            String name = random.nextInt(3) == 0 ? randomIp(random) : randomIp(random) + "/" + (16 + random.nextInt(17));
+            QueuePermission permission = new QueuePermissionBasicImpl(name, action);
+            basic.add(permission);
+            concurrent.add(permission);
+        }
+
+        for (int i = 0; i < 3000; i++) {
+            String action = actions[random.nextInt(actions.length)];
+            String name = random.nextInt(10) == 0 ? randomIp(random) + "/" + (16 + random.nextInt(17)) : randomIp(random);
+            QueuePermission permission = new QueuePermissionBasicImpl(name, action);
+            assertEquals(basic.implies(permission), concurrent.implies(permission), permission.toString());
+        }
+    }
+
+
+    /*
+    Стресс-тест. Писатели добавляют разрешения парами: сначала по одному(add), затем пакетом(addAll), и после каждой пары
+    увеличивают счетчик опубликованных пар. Читатели одновременно проверяют, что:
+    - пара, о публикации которой сообщил счетчик, видна через implies() - добавление не потеряно и видно сразу;
+    - любой снимок, полученный через elements(), содержит пакеты целиком - чтение не разорвано.
+    По окончании проверяется, что в коллекции ровно все добавленные разрешения.
+     */
+    @Test
+    void concurrentAddsAreNotLostAndReadsAreNotTorn() throws Exception {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        AtomicInteger[] published = new AtomicInteger[WRITERS];
+        for (int w = 0; w < WRITERS; w++) published[w] = new AtomicInteger();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            writers.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < PAIRS_PER_WRITER; i++) {
+                    if (i % 2 == 0) {
+                        collection.add(first(writer, i));
+                        collection.add(second(writer, i));
+                    } else {
+                        collection.addAll(Arrays.asList(first(writer, i), second(writer, i)));
+                    }
+                    published[writer].set(i + 1);
+                }
+                return null;
+            }));
+        }
+
+        List<Future<?>> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            int reader = r;
+            readers.add(executor.submit(() -> {
+                start.await();
+                Random random = new Random(reader);
+                while (writing.get()) {
+                    int writer = random.nextInt(WRITERS);
+                    int count = published[writer].get();
+                    if (count > 0) {
+                        int i = random.nextInt(count);
+                        assertTrue(collection.implies(first(writer, i)), "lost " + first(writer, i));
+                        assertTrue(collection.implies(second(writer, i)), "lost " + second(writer, i));
+                    }
+                    if (random.nextInt(50) == 0) assertSnapshotConsistent(collection);
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : writers) future.get(60, TimeUnit.SECONDS);
+        writing.set(false);
+        for (Future<?> future : readers) future.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(WRITERS * PAIRS_PER_WRITER * 2, collection.size());
+        for (int w = 0; w < WRITERS; w++) {
+            for (int i = 0; i < PAIRS_PER_WRITER; i++) {
+                assertEquals(1, collection.getPermissionsByName(first(w, i).getName()).size());
+                assertEquals(1, collection.getPermissionsByName(second(w, i).getName()).size());
+            }
+        }
+        assertSnapshotConsistent(collection);
+    }
+
+
+    //  Пакет, добавленный через addAll(), виден либо целиком, либо не виден совсем.
+    //  Пара, добавленная через два add(), может быть видна без второго разрешения, но не без первого.
+    private static void assertSnapshotConsistent(QueuePermissionCollectionConcurrentImpl collection) {
+        Set<String> names = new HashSet<>();
+        Enumeration<Permission> elements = collection.elements();
+        while (elements.hasMoreElements()) assertTrue(names.add(elements.nextElement().getName()));
+        for (String name : names) {
+            if (name.startsWith("10.")) continue;
+            //  name - второе разрешение пары: "w<writer>-<i>.corp.com"
+            String[] parts = name.substring(1, name.indexOf('.')).split("-");
+            int writer = Integer.parseInt(parts[0]);
+            int i = Integer.parseInt(parts[1]);
+            assertTrue(names.contains(first(writer, i).getName()), "torn read: " + name);
+        }
+        for (String name : names) {
+            if (name.startsWith("10.") == false) continue;
+            int writer = Integer.parseInt(name.split("\\.")[1]);
+            int i = (Integer.parseInt(name.split("\\.")[2]) << 8) + Integer.parseInt(name.split("\\.")[3]);
+            if (i % 2 == 1) assertTrue(names.contains(second(writer, i).getName()), "torn read: " + name);
+        }
+    }
+
+
+    private static QueuePermission first(int writer, int i) {
+        return new QueuePermissionBasicImpl("10." + writer + "." + (i >> 8) + "." + (i & 0xFF), "pusher");
+    }
+
+
+    private static QueuePermission second(int writer, int i) {
+        return new QueuePermissionBasicImpl("w" + writer + "-" + i + ".corp.com", "puller");
+    }
+
+
+    private static String randomIp(Random random) {
+        return "10." + random.nextInt(2) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+
+    @Test
+    void applyDelta() {
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl(100);
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("corp.com", "pusher"));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        long version = collection.version();
+
+        assertEquals(1, collection.applyDelta(List.of(new QueuePermissionBasicImpl("172.17.65.0/24", "pusher")),
+                List.of(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"), new QueuePermissionBasicImpl("10.0.0.0/8", "pusher"))));
+        assertEquals(version + 1, collection.version());
+        //  Решение из кэша устарело вместе с версией
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.65.10", "pusher")));
+
+        assertTrue(collection.replace(new QueuePermissionBasicImpl("corp.com", "pusher"), new QueuePermissionBasicImpl("corp.com", "puller")));
+        assertFalse(collection.replace(new QueuePermissionBasicImpl("corp.com", "pusher"), new QueuePermissionBasicImpl("corp.com", "puller")));
+        assertTrue(collection.remove(new QueuePermissionBasicImpl("corp.com", "puller")));
+        assertFalse(collection.remove(new QueuePermissionBasicImpl("corp.com", "puller")));
+        assertEquals(1, collection.size());
+
+        collection.setReadOnly();
+        assertThrows(SecurityException.class, () -> collection.remove(new QueuePermissionBasicImpl("172.17.65.0/24", "pusher")));
+        assertThrows(SecurityException.class, () -> collection.applyDelta(List.of(), List.of()));
+    }
+
+
+    @Test
+    void readersSeeOldOrNewPolicy() throws Exception {
+        //  Политика A: клиент может писать; политика B: клиент может читать. Обе проверки пакета выполняются по одному
+        //  снимку, поэтому ровно одна из них всегда успешна.
+        List<Permission> policyA = List.of(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher"));
+        List<Permission> policyB = List.of(new QueuePermissionBasicImpl("172.17.0.0/16", "puller"));
+        List<Permission> requests = List.of(new QueuePermissionBasicImpl("172.17.64.10", "pusher"),
+                new QueuePermissionBasicImpl("172.17.64.10", "puller"));
+        QueuePermissionCollectionConcurrentImpl collection = new QueuePermissionCollectionConcurrentImpl();
+        for (int i = 0; i < 1000; i++) collection.add(new QueuePermissionBasicImpl("10.0." + (i >> 8) + "." + (i & 255), "pusher"));
+        collection.addAll(policyA);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        try {
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                readers.add(executor.submit(() -> {
+                    int torn = 0;
+                    while (stop.get() == false) {
+                        if (collection.impliesAll(requests).cardinality() != 1) torn++;
+                    }
+                    return torn;
+                }));
+            }
+            for (int i = 0; i < 2000; i++) {
+                if (i % 2 == 0) collection.applyDelta(policyB, policyA);
+                else collection.applyDelta(policyA, policyB);
+            }
+            stop.set(true);
+            for (Future<Integer> reader : readers) assertEquals(0, reader.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1001, collection.size());
+    }
+
+}
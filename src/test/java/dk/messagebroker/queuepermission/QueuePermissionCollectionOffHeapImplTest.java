@@ -0,0 +1,211 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.HostResolver;
+import dk.messagebroker.queuepermission.service.ImplyService;
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.SocketPermission;
+import java.net.UnknownHostException;
+import java.security.Permission;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueuePermissionCollectionOffHeapImplTest {
+
+    @Test
+    void implies() {
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "puller"));
+        collection.add(new QueuePermissionBasicImpl("172.17.0.5/16", "puller"));
+        collection.add(new QueuePermissionBasicImpl("10.0.0.0/31", "pusher"));
+        collection.add(new SocketPermission("172.17.64.10", "connect"));
+
+        assertEquals(4, collection.size());
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+        //  Маски разных разрешений не объединяются
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.1.1", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.1.1", "pusher")));
+        //  Номер сети и широковещательный адрес в подсеть не входят
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.0.0", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.255.255", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        //  Подсеть подразумевается только такой же подсетью
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.0.5/16", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.0.0/16", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.0/24", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("2001:db8::1", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("queue-1", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "bogus")));
+        assertFalse(collection.implies(new SocketPermission("172.17.64.10", "connect")));
+    }
+
+
+    @Test
+    void impliesThroughDns() throws UnknownHostException {
+        ImplyService implyService = new ImplyServiceBean(new StaticHostResolver()
+                .add("172.17.64.10", "mq.corp.com")
+                .add("10.1.2.3", "node1.corp.com"));
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl(implyService);
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher", implyService));
+        collection.add(new QueuePermissionBasicImpl("10.1.0.0/16", "puller", implyService));
+
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher", implyService)));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "puller", implyService)));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("node1.corp.com", "puller", implyService)));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("node2.corp.com", "puller", implyService)));
+    }
+
+
+    @Test
+    void dnsIsNotCalledUnderLock() throws Exception {
+        //  DNS отвечает, только когда тест разрешит
+        CountDownLatch lookupStarted = new CountDownLatch(1);
+        CountDownLatch answer = new CountDownLatch(1);
+        StaticHostResolver hostResolver = new StaticHostResolver().add("172.17.64.10", "mq.corp.com");
+        ImplyService implyService = new ImplyServiceBean(new HostResolver() {
+            @Override
+            public InetAddress[] resolve(String domainName) throws UnknownHostException {
+                lookupStarted.countDown();
+                try {
+                    answer.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return hostResolver.resolve(domainName);
+            }
+
+            @Override
+            public String canonicalHostName(String ip) throws UnknownHostException {
+                return hostResolver.canonicalHostName(ip);
+            }
+        });
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl(implyService);
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher", implyService));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> domainName = executor.submit(() ->
+                    collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher", implyService)));
+            assertTrue(lookupStarted.await(10, TimeUnit.SECONDS));
+
+            //  Пока проверка доменного имени ждет DNS, add() и проверки IP-адресов не ждут ее
+            executor.submit(() -> collection.add(new QueuePermissionBasicImpl("10.1.0.0/16", "puller", implyService)))
+                    .get(10, TimeUnit.SECONDS);
+            assertTrue(executor.submit(() -> collection.implies(new QueuePermissionBasicImpl("10.1.1.1", "puller", implyService)))
+                    .get(10, TimeUnit.SECONDS));
+            assertFalse(domainName.isDone());
+
+            answer.countDown();
+            assertTrue(domainName.get(10, TimeUnit.SECONDS));
+        } finally {
+            answer.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    void elementsAndPermissionsByName() {
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl();
+        QueuePermissionBasicImpl first = new QueuePermissionBasicImpl("172.17.64.10", "puller,pusher");
+        QueuePermissionBasicImpl second = new QueuePermissionBasicImpl("0.0.0.0/0", "puller");
+        QueuePermissionBasicImpl third = new QueuePermissionBasicImpl("172.17.64.10", "pusher");
+        collection.add(first);
+        collection.add(second);
+        collection.add(third);
+
+        Enumeration<Permission> elements = collection.elements();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.11", "pusher"));
+        List<Permission> list = Collections.list(elements);
+        assertEquals(Arrays.asList(first, second, third), list);
+        assertNotSame(first, list.get(0));
+        assertEquals(first.hashCode(), list.get(0).hashCode());
+        assertEquals("pusher,puller", list.get(0).getActions());
+        assertThrows(NoSuchElementException.class, elements::nextElement);
+
+        assertEquals(Arrays.asList(first, third), collection.getPermissionsByName("172.17.64.10"));
+        assertEquals(Collections.singletonList(second), collection.getPermissionsByName("0.0.0.0/0"));
+        assertNull(collection.getPermissionsByName("0.0.0.0/1"));
+        assertNull(collection.getPermissionsByName("queue-1"));
+        assertEquals(4, collection.stream().count());
+    }
+
+
+    @Test
+    void otherPermissionsAreRejected() {
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl();
+        assertThrows(IllegalArgumentException.class, () -> collection.add(new QueuePermissionBasicImpl("corp.com", "pusher")));
+        assertThrows(IllegalArgumentException.class, () -> collection.add(new QueuePermissionBasicImpl("2001:db8::/32", "pusher")));
+        assertThrows(IllegalArgumentException.class, () -> collection.add(new QueuePermissionBasicImpl("queue-1", "pusher")));
+        collection.setReadOnly();
+        assertThrows(SecurityException.class, () -> collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertEquals(0, collection.size());
+    }
+
+
+    @Test
+    void impliesMatchesConcurrentImpl() throws UnknownHostException {
+        Random random = new Random(17);
+        String[] actions = {"pusher", "puller", "pusher,puller", "bogus"};
+        StaticHostResolver hostResolver = new StaticHostResolver();
+        for (int i = 0; i < 50; i++) hostResolver.add(randomIp(random), "node" + i + ".corp.com");
+        ImplyService implyService = new ImplyServiceBean(hostResolver);
+
+        //  Больше начального размера буферов - таблицы растут во время заполнения
+        QueuePermissionCollection expected = new QueuePermissionCollectionConcurrentImpl();
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl(implyService);
+        for (int i = 0; i < 3000; i++) {
+            String name = random.nextBoolean() ? randomIp(random) : randomIp(random) + "/" + (16 + random.nextInt(17));
+            QueuePermission permission = new QueuePermissionBasicImpl(name, actions[random.nextInt(3)], implyService);
+            expected.add(permission);
+            collection.add(permission);
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            String name;
+            //  Доменное имя проверяется по каждому адресу и подсети коллекции, поэтому таких запросов немного
+            int kind = random.nextInt(100);
+            if (kind == 0) name = "node" + random.nextInt(60) + ".corp.com";
+            else if (kind <= 25) name = randomIp(random) + "/" + (16 + random.nextInt(17));
+            else name = randomIp(random);
+            QueuePermission permission = new QueuePermissionBasicImpl(name, actions[random.nextInt(actions.length)], implyService);
+            assertEquals(expected.implies(permission), collection.implies(permission), permission.toString());
+            assertEquals(expected.getPermissionsByName(name), collection.getPermissionsByName(name), name);
+        }
+
+        List<String> expectedElements = new ArrayList<>();
+        expected.stream().forEach(permission -> expectedElements.add(permission.getName() + " " + permission.getActions()));
+        List<String> elements = new ArrayList<>();
+        collection.stream().forEach(permission -> elements.add(permission.getName() + " " + permission.getActions()));
+        Collections.sort(expectedElements);
+        Collections.sort(elements);
+        assertEquals(expectedElements, elements);
+    }
+
+
+    private static String randomIp(Random random) {
+        return "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+
+    @Test
+    void removeIsNotSupported() {
+        QueuePermissionCollectionOffHeapImpl collection = new QueuePermissionCollectionOffHeapImpl();
+        collection.add(new QueuePermissionBasicImpl("172.17.64.10", "pusher"));
+        assertThrows(UnsupportedOperationException.class, () -> collection.remove(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+        assertThrows(UnsupportedOperationException.class, () -> collection.applyDelta(List.of(), List.of()));
+    }
+
+}
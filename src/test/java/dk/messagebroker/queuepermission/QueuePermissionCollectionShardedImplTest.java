@@ -0,0 +1,202 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketPermission;
+import java.net.UnknownHostException;
+import java.security.Permission;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueuePermissionCollectionShardedImplTest {
+
+    private static final String[] ACTIONS = {"pusher", "puller", "pusher,puller"};
+
+    private static final String[] GRANT_NAMES = {
+            "172.17.1.1", "172.17.1.10", "172.17.2.1", "10.1.1.1", "172.17.1.0/24", "172.17.0.0/16", "172.16.0.0/12",
+            "128.0.0.0/1", "172.17.1.8/29", "corp.com", "Corp.COM", "mq.corp.com", "com", "other.org",
+            "2001:db8::10", "2001:DB8::10", "2001:db8::/64", "2001:db8::/16", "not a name"};
+
+    private static final String[] REQUEST_NAMES = {
+            "172.17.1.5", "172.17.3.3", "172.18.0.1", "200.1.1.1", "db.corp.com", "a.mq.CORP.com", "v6.corp.com",
+            "2001:db8::11", "2001:db8:1::1", "2001:db8:0:0::/64", "172.17.1.0/25"};
+
+
+    /*
+    Другая реализация QueuePermission: подразумевает только одно имя ресурса и только действие "pusher"
+     */
+    private static class SingleNamePermission extends QueuePermission {
+        private final String impliedName;
+
+        SingleNamePermission(String resourceName, String impliedName) {
+            super(resourceName, "pusher");
+            this.impliedName = impliedName;
+        }
+
+        @Override
+        String[] normalizeAction(String actionAsString) {
+            return new String[]{actionAsString};
+        }
+
+        @Override
+        public boolean implies(Permission permission) {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this;
+        }
+
+        @Override
+        public int hashCode() {
+            return impliedName.hashCode();
+        }
+
+        @Override
+        public String getActions() {
+            return "pusher";
+        }
+
+        @Override
+        boolean impliesResourceName(String otherResourceName) {
+            return otherResourceName.equals(impliedName);
+        }
+
+        @Override
+        boolean impliesActions(String actions) {
+            return actions.equals("pusher");
+        }
+    }
+
+
+    private static ImplyServiceBean implyService() throws UnknownHostException {
+        return new ImplyServiceBean(new StaticHostResolver()
+                .add("172.17.1.10", "mq.corp.com")
+                .add("172.17.1.20", "db.corp.com")
+                .add("172.17.2.1", "corp.com")
+                .add("2001:db8::10", "v6.corp.com"));
+    }
+
+
+    @Test
+    void addAndImplies() throws Exception {
+        ImplyServiceBean implyService = implyService();
+        QueuePermissionCollectionShardedImpl collection = new QueuePermissionCollectionShardedImpl(8);
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher", implyService));
+        collection.add(new QueuePermissionBasicImpl("172.17.64.0/24", "pusher,puller", implyService));
+        collection.add(new QueuePermissionBasicImpl("corp.com", "puller", implyService));
+        collection.add(new SocketPermission("172.17.64.10", "connect"));
+
+        assertEquals(3, collection.size());
+        assertEquals(2, collection.getPermissionsByName("172.17.64.0/24").size());
+        assertNull(collection.getPermissionsByName("172.17.64.10"));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher,puller")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("mq.Corp.com", "puller")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("mq.corp.com", "pusher")));
+        //  IP-адрес против доменного имени - через DNS
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.2.1", "puller")));
+
+        long version = collection.version();
+        collection.addAll(Arrays.asList(new QueuePermissionBasicImpl("10.0.0.1", "pusher"),
+                new QueuePermissionBasicImpl("2001:db8::/64", "pusher"), new SocketPermission("10.0.0.1", "connect")));
+        assertTrue(collection.version() > version);
+        assertEquals(5, collection.size());
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        assertTrue(collection.implies(new QueuePermissionBasicImpl("2001:db8::1", "pusher")));
+
+        assertTrue(collection.remove(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        assertFalse(collection.remove(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        assertFalse(collection.implies(new QueuePermissionBasicImpl("10.0.0.1", "pusher")));
+        assertEquals(4, Collections.list(collection.elements()).size());
+
+        collection.setReadOnly();
+        assertThrows(SecurityException.class, () -> collection.add(new QueuePermissionBasicImpl("10.0.0.2", "pusher")));
+    }
+
+
+    @Test
+    void shardCount() {
+        assertThrows(IllegalArgumentException.class, () -> new QueuePermissionCollectionShardedImpl(0));
+        assertThrows(IllegalArgumentException.class, () -> new QueuePermissionCollectionShardedImpl(6));
+        assertThrows(IllegalArgumentException.class, () -> new QueuePermissionCollectionShardedImpl(128));
+        int shardCount = new QueuePermissionCollectionShardedImpl().shardCount();
+        assertEquals(1, Integer.bitCount(shardCount));
+        assertTrue(shardCount <= QueuePermissionCollectionShardedImpl.MAX_SHARD_COUNT);
+    }
+
+
+    @Test
+    void impliesMatchesBasicImpl() throws Exception {
+        ImplyServiceBean implyService = implyService();
+        List<QueuePermissionBasicImpl> requests = new ArrayList<>();
+        for (String[] names : new String[][]{GRANT_NAMES, REQUEST_NAMES}) {
+            for (String name : names) {
+                for (String actions : ACTIONS) requests.add(new QueuePermissionBasicImpl(name, actions, implyService));
+            }
+        }
+
+        Random random = new Random(24);
+        for (int round = 0; round < 200; round++) {
+            QueuePermissionCollection basic = new QueuePermisionCollectionBasicImpl();
+            QueuePermissionCollectionShardedImpl sharded = new QueuePermissionCollectionShardedImpl(1 << random.nextInt(7));
+            int size = 1 + random.nextInt(20);
+            for (int i = 0; i < size; i++) {
+                QueuePermission grant = random.nextInt(10) == 0
+                        ? new SingleNamePermission(GRANT_NAMES[random.nextInt(GRANT_NAMES.length)],
+                                REQUEST_NAMES[random.nextInt(REQUEST_NAMES.length)])
+                        : new QueuePermissionBasicImpl(GRANT_NAMES[random.nextInt(GRANT_NAMES.length)],
+                                ACTIONS[random.nextInt(ACTIONS.length)], implyService);
+                basic.add(grant);
+                sharded.add(grant);
+            }
+            for (QueuePermissionBasicImpl request : requests) {
+                boolean expected = basic.implies(request);
+                assertEquals(expected, sharded.implies(request), () -> request + " against " + Collections.list(basic.elements()));
+                assertEquals(expected, sharded.impliesAsync(request).get(10, TimeUnit.SECONDS), request::toString);
+                assertEquals(basic.getPermissionsByName(request.getName()), sharded.getPermissionsByName(request.getName()));
+            }
+        }
+    }
+
+
+    @Test
+    void concurrentAdd() throws Exception {
+        int threads = 8;
+        int perThread = 2000;
+        QueuePermissionCollectionShardedImpl collection = new QueuePermissionCollectionShardedImpl(16);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        int n = thread * perThread + i;
+                        collection.add(new QueuePermissionBasicImpl("10." + (n >>> 16) + "." + ((n >>> 8) & 0xFF) + "." + (n & 0xFF), "pusher"));
+                        collection.add(new QueuePermissionBasicImpl("svc" + n + ".bench.test", "puller"));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * perThread * 2, collection.size());
+        assertEquals(threads * perThread * 2, collection.version());
+        for (int n = 0; n < threads * perThread; n += 97) {
+            assertTrue(collection.implies(new QueuePermissionBasicImpl("node.svc" + n + ".bench.test", "puller")));
+            assertNotNull(collection.getPermissionsByName("10." + (n >>> 16) + "." + ((n >>> 8) & 0xFF) + "." + (n & 0xFF)));
+        }
+    }
+
+}
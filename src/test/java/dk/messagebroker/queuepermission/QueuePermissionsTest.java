@@ -0,0 +1,121 @@
+package dk.messagebroker.queuepermission;
+
+import dk.messagebroker.queuepermission.service.ImplyServiceBean;
+import dk.messagebroker.queuepermission.service.MeteredImplyService;
+import dk.messagebroker.queuepermission.service.StaticHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueuePermissionsTest {
+
+    @Test
+    void canonicalInstances() {
+        QueuePermissions factory = new QueuePermissions(100);
+        QueuePermissionBasicImpl permission = factory.get("172.17.64.10", "pusher");
+
+        assertSame(permission, factory.get("172.17.64.10", "pusher"));
+        assertNotSame(permission, factory.get("172.17.64.10", "pusher,puller"));
+        assertSame(factory.get("172.17.64.10", "pusher,puller"), factory.get("172.17.64.10", "pusher,puller"));
+        //  Разбор тот же, что и у конструктора
+        assertEquals(new QueuePermissionBasicImpl("172.17.64.10", "pusher"), permission);
+        assertEquals(ResourceType.IP, permission.getResourceType());
+
+        assertEquals(1, factory.size());
+        assertEquals(3, factory.hitCount());
+        assertEquals(2, factory.missCount());
+
+        assertSame(QueuePermissions.of("mq.corp.com", "puller"), QueuePermissions.of("mq.corp.com", "puller"));
+        assertThrows(IllegalArgumentException.class, () -> new QueuePermissions(0));
+    }
+
+
+    @Test
+    void factoryImplyService() throws UnknownHostException {
+        MeteredImplyService implyService = new MeteredImplyService(
+                new ImplyServiceBean(new StaticHostResolver().add("172.17.64.10", "mq.corp.com")));
+        QueuePermissions factory = new QueuePermissions(100, implyService);
+        QueuePermissionCollection collection = new QueuePermisionCollectionBasicImpl();
+        collection.add(factory.get("corp.com", "pusher"));
+        collection.add(factory.get("172.17.0.0/16", "pusher"));
+
+        assertTrue(collection.implies(factory.get("172.17.64.10", "pusher")));
+        assertTrue(collection.implies(factory.get("mq.corp.com", "pusher")));
+        MeteredImplyService.Snapshot snapshot = implyService.snapshot();
+        assertTrue(snapshot.method("IPSubnet(int,int,int)").calls() > 0);
+        assertTrue(snapshot.dnsLookups() > 0);
+    }
+
+
+    @Test
+    void sizeIsBounded() {
+        QueuePermissions factory = new QueuePermissions(64);
+        //  Часто запрашиваемое имя переживает вытеснение
+        QueuePermissionBasicImpl hot = factory.get("10.0.0.1", "pusher");
+        for (int i = 0; i < 1000; i++) {
+            assertSame(hot, factory.get("10.0.0.1", "pusher"));
+            factory.get("10.0." + (i >> 8) + "." + (i & 0xFF), "puller");
+            assertTrue(factory.size() <= 64);
+        }
+        assertTrue(factory.evictionCount() > 0);
+    }
+
+
+    @Test
+    void actionsPerNameAreBounded() {
+        QueuePermissions factory = new QueuePermissions(64);
+        QueuePermissionBasicImpl first = factory.get("10.0.0.1", "pusher");
+        //  Разные написания одних и тех же действий не копятся под одним именем без предела
+        String[] actions = new String[1000];
+        actions[0] = "pusher";
+        for (int i = 1; i < actions.length; i++) {
+            actions[i] = actions[i - 1] + ",";
+            factory.get("10.0.0.1", actions[i]);
+        }
+        assertEquals(1, factory.size());
+
+        //  В цепочке остались самые новые строки действий
+        long hits = factory.hitCount();
+        for (int i = actions.length - QueuePermissions.MAX_ACTIONS_PER_NAME; i < actions.length; i++) {
+            factory.get("10.0.0.1", actions[i]);
+        }
+        assertEquals(hits + QueuePermissions.MAX_ACTIONS_PER_NAME, factory.hitCount());
+        //  Самая старая вытеснена
+        assertNotSame(first, factory.get("10.0.0.1", "pusher"));
+    }
+
+
+    @Test
+    void concurrentGetReturnsOneInstance() throws Exception {
+        QueuePermissions factory = new QueuePermissions(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<QueuePermissionBasicImpl>>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    List<QueuePermissionBasicImpl> permissions = new ArrayList<>();
+                    for (int i = 0; i < 500; i++) permissions.add(factory.get("10.0.0." + (i % 250), i < 250 ? "pusher" : "puller"));
+                    return permissions;
+                }));
+            }
+            start.countDown();
+            List<QueuePermissionBasicImpl> first = futures.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<List<QueuePermissionBasicImpl>> future : futures) {
+                List<QueuePermissionBasicImpl> permissions = future.get(30, TimeUnit.SECONDS);
+                for (int i = 0; i < permissions.size(); i++) assertSame(first.get(i), permissions.get(i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(250, factory.size());
+    }
+
+}
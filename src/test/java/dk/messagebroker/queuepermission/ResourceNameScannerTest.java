@@ -0,0 +1,124 @@
+package dk.messagebroker.queuepermission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceNameScannerTest {
+
+    //  Эталон: распознавание регулярными выражениями, как это делалось раньше
+    private static ResourceType recognizeByRegexp(String resourceName) {
+        if (resourceName.matches(Const.IP_REGEXP)) return ResourceType.IP;
+        if (resourceName.matches(Const.SUBNET_REGEXP)) return ResourceType.SUBNET;
+        if (resourceName.matches(Const.DOMAINNAME_REGEXP)) return ResourceType.DOMAINNAME;
+        return null;
+    }
+
+    private static void assertSameAsRegexp(String resourceName) {
+        assertEquals(recognizeByRegexp(resourceName), ResourceNameScanner.type(ResourceNameScanner.scan(resourceName)),
+                "\"" + resourceName + "\"");
+    }
+
+    @Test
+    void scan() {
+        long scan = ResourceNameScanner.scan("172.17.64.10");
+        assertEquals(ResourceType.IP, ResourceNameScanner.type(scan));
+        assertEquals(0xAC11400A, ResourceNameScanner.address(scan));
+        assertEquals(32, ResourceNameScanner.prefixLength(scan));
+
+        scan = ResourceNameScanner.scan("255.255.255.255/0");
+        assertEquals(ResourceType.SUBNET, ResourceNameScanner.type(scan));
+        assertEquals(-1, ResourceNameScanner.address(scan));
+        assertEquals(0, ResourceNameScanner.prefixLength(scan));
+
+        assertEquals(ResourceType.DOMAINNAME, ResourceNameScanner.type(ResourceNameScanner.scan("1e100.net")));
+        assertEquals(ResourceType.DOMAINNAME, ResourceNameScanner.type(ResourceNameScanner.scan("1.2.3.4.com")));
+        assertNull(ResourceNameScanner.type(ResourceNameScanner.scan("")));
+        assertNull(ResourceNameScanner.type(ResourceNameScanner.scan("256.1.1.1")));
+        assertEquals(ResourceNameScanner.UNRECOGNIZED, ResourceNameScanner.scan("localhost"));
+    }
+
+    @Test
+    void scanIpv6() {
+        long scan = ResourceNameScanner.scan("2001:db8::1");
+        assertEquals(ResourceType.IPV6, ResourceNameScanner.type(scan));
+        assertEquals(128, ResourceNameScanner.prefixLength(scan));
+
+        scan = ResourceNameScanner.scan("2001:db8::/32");
+        assertEquals(ResourceType.IPV6_SUBNET, ResourceNameScanner.type(scan));
+        assertEquals(32, ResourceNameScanner.prefixLength(scan));
+
+        assertEquals(ResourceType.IPV6_SUBNET, ResourceNameScanner.type(ResourceNameScanner.scan("::/0")));
+        assertEquals(ResourceType.IPV6, ResourceNameScanner.type(ResourceNameScanner.scan("::ffff:10.0.0.1")));
+        assertEquals(ResourceNameScanner.UNRECOGNIZED, ResourceNameScanner.scan("2001:db8::1::2"));
+        assertEquals(ResourceNameScanner.UNRECOGNIZED, ResourceNameScanner.scan("mq.corp.com:5672"));
+        assertEquals(ResourceNameScanner.UNRECOGNIZED, ResourceNameScanner.scan("10.0.0.1:5672"));
+    }
+
+    @Test
+    void allOctetsAndPrefixes() {
+        //  Все строки из 1..4 цифр в каждой позиции октета и все строки из 1..3 цифр после "/"
+        for (int digits = 1; digits <= 4; digits++) {
+            int limit = (int) Math.pow(10, digits);
+            for (int value = 0; value < limit; value++) {
+                String number = String.format("%0" + digits + "d", value);
+                assertSameAsRegexp(number + ".1.1.1");
+                assertSameAsRegexp("1.1." + number + ".1");
+                assertSameAsRegexp("1.1.1." + number);
+                if (digits <= 3) assertSameAsRegexp("10.0.0.0/" + number);
+            }
+        }
+    }
+
+    @Test
+    void labelLengths() {
+        for (int length = 0; length <= 66; length++) {
+            String label = "a".repeat(length);
+            assertSameAsRegexp(label + ".com");
+            assertSameAsRegexp("mq." + label);
+            assertSameAsRegexp("x-" + label + ".com");
+            assertSameAsRegexp(label + "-.com");
+            assertSameAsRegexp("1" + label + "9.com");
+        }
+    }
+
+    @Test
+    void randomNames() {
+        //  Случайные строки из символов, которые встречаются в именах ресурсов, и немного посторонних.
+        //  Строки собираются из фрагментов, похожих на части адресов и доменов, чтобы часто попадать на границы правил.
+        String[] fragments = {"0", "1", "9", "25", "255", "256", "00", "01", "32", "33", ".", ".", ".", "/", "-", "a", "Z",
+                "com", "net", "info", "museum", "ab1", "x-y", "", " ", "\n", "_", "é", "٣"};
+        Random random = new Random(42);
+        for (int i = 0; i < 300_000; i++) {
+            StringBuilder name = new StringBuilder();
+            int parts = 1 + random.nextInt(10);
+            for (int j = 0; j < parts; j++) name.append(fragments[random.nextInt(fragments.length)]);
+            assertSameAsRegexp(name.toString());
+        }
+    }
+
+    @Test
+    void mutatedValidNames() {
+        //  Корректные имена с одной случайной заменой, вставкой или удалением символа
+        String[] names = {"172.17.64.10", "172.17.64.0/24", "0.0.0.0/0", "mq.corp.com", "bud02s39-in-f14.1e100.net", "a.b.c.de"};
+        String alphabet = "0123456789./-abzAZ_ ";
+        Random random = new Random(7);
+        for (String valid : names) {
+            assertSameAsRegexp(valid);
+            for (int i = 0; i < 20_000; i++) {
+                StringBuilder name = new StringBuilder(valid);
+                int pos = random.nextInt(name.length() + 1);
+                char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                switch (random.nextInt(3)) {
+                    case 0: if (pos < name.length()) name.setCharAt(pos, c); break;
+                    case 1: name.insert(pos, c); break;
+                    default: if (pos < name.length()) name.deleteCharAt(pos);
+                }
+                assertSameAsRegexp(name.toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package dk.messagebroker.queuepermission.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingHostResolverTest {
+
+    //  Подменное разрешение имен, считающее обращения к себе
+    private static class CountingResolver implements HostResolver {
+        final StaticHostResolver hosts = new StaticHostResolver();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public InetAddress[] resolve(String domainName) throws UnknownHostException {
+            calls.incrementAndGet();
+            return hosts.resolve(domainName);
+        }
+
+        @Override
+        public String canonicalHostName(String ip) throws UnknownHostException {
+            calls.incrementAndGet();
+            return hosts.canonicalHostName(ip);
+        }
+    }
+
+    private CountingResolver source;
+    private long now;
+    private final List<Runnable> refreshes = new ArrayList<>();
+
+    private CachingHostResolver resolver(int maxSize) {
+        return new CachingHostResolver(source, Duration.ofSeconds(60), Duration.ofSeconds(10), maxSize,
+                refreshes::add, () -> now);
+    }
+
+    private void runRefreshes() {
+        List<Runnable> pending = new ArrayList<>(refreshes);
+        refreshes.clear();
+        pending.forEach(Runnable::run);
+    }
+
+    @BeforeEach
+    void setUp() throws UnknownHostException {
+        source = new CountingResolver();
+        source.hosts.add("10.0.0.1", "mq.corp.com");
+        now = 0;
+    }
+
+    @Test
+    void positiveTtl() throws UnknownHostException {
+        CachingHostResolver resolver = resolver(100);
+
+        assertEquals("10.0.0.1", resolver.resolve("mq.corp.com")[0].getHostAddress());
+        assertEquals("10.0.0.1", resolver.resolve("mq.corp.com")[0].getHostAddress());
+        assertEquals(1, source.calls.get());
+
+        now = Duration.ofSeconds(61).toNanos();
+        resolver.resolve("mq.corp.com");
+        assertEquals(2, source.calls.get());
+    }
+
+    @Test
+    void negativeTtl() throws UnknownHostException {
+        CachingHostResolver resolver = resolver(100);
+
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.corp.com"));
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.corp.com"));
+        assertEquals(1, source.calls.get());
+
+        //  Имя появилось, но неудачный ответ еще действует
+        source.hosts.add("10.0.0.2", "unknown.corp.com");
+        now = Duration.ofSeconds(9).toNanos();
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("unknown.corp.com"));
+
+        now = Duration.ofSeconds(10).toNanos();
+        assertEquals("10.0.0.2", resolver.resolve("unknown.corp.com")[0].getHostAddress());
+        assertEquals(2, source.calls.get());
+    }
+
+    @Test
+    void refreshAhead() throws UnknownHostException {
+        CachingHostResolver resolver = resolver(100);
+        resolver.canonicalHostName("10.0.0.1");
+
+        //  До 75% времени жизни запись не обновляется
+        now = Duration.ofSeconds(44).toNanos();
+        resolver.canonicalHostName("10.0.0.1");
+        assertTrue(refreshes.isEmpty());
+
+        //  После - обновление уходит в фон, а вызывающий сразу получает текущее значение.
+        //  Повторное обращение второе обновление не запускает.
+        now = Duration.ofSeconds(50).toNanos();
+        assertEquals("mq.corp.com", resolver.canonicalHostName("10.0.0.1"));
+        assertEquals("mq.corp.com", resolver.canonicalHostName("10.0.0.1"));
+        assertEquals(1, refreshes.size());
+        assertEquals(1, source.calls.get());
+
+        runRefreshes();
+        assertEquals(2, source.calls.get());
+
+        //  Обновленная запись живет от момента обновления: на 61-й секунде она еще действует
+        now = Duration.ofSeconds(61).toNanos();
+        assertEquals("mq.corp.com", resolver.canonicalHostName("10.0.0.1"));
+        assertEquals(2, source.calls.get());
+    }
+
+    @Test
+    void failedRefreshKeepsEntry() throws UnknownHostException {
+        CachingHostResolver resolver = new CachingHostResolver(new HostResolver() {
+            boolean first = true;
+
+            @Override
+            public InetAddress[] resolve(String domainName) throws UnknownHostException {
+                if (first == false) throw new UnknownHostException(domainName);
+                first = false;
+                return source.hosts.resolve(domainName);
+            }
+
+            @Override
+            public String canonicalHostName(String ip) {
+                return ip;
+            }
+        }, Duration.ofSeconds(60), Duration.ofSeconds(10), 100, refreshes::add, () -> now);
+
+        resolver.resolve("mq.corp.com");
+        now = Duration.ofSeconds(50).toNanos();
+        resolver.resolve("mq.corp.com");
+        runRefreshes();
+        assertEquals("10.0.0.1", resolver.resolve("mq.corp.com")[0].getHostAddress());
+    }
+
+    @Test
+    void lruEviction() throws UnknownHostException {
+        source.hosts.add("10.0.0.2", "a.corp.com").add("10.0.0.3", "b.corp.com");
+        CachingHostResolver resolver = resolver(2);
+
+        resolver.resolve("mq.corp.com");
+        resolver.resolve("a.corp.com");
+        //  Обращение делает mq.corp.com самой свежей записью; вытеснена будет a.corp.com
+        resolver.resolve("mq.corp.com");
+        resolver.resolve("b.corp.com");
+        assertEquals(2, resolver.forwardCacheSize());
+        assertEquals(3, source.calls.get());
+
+        resolver.resolve("mq.corp.com");
+        assertEquals(3, source.calls.get());
+        resolver.resolve("a.corp.com");
+        assertEquals(4, source.calls.get());
+    }
+
+}
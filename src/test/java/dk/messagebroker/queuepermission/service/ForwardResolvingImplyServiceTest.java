@@ -0,0 +1,209 @@
+package dk.messagebroker.queuepermission.service;
+
+import dk.messagebroker.queuepermission.QueuePermisionCollectionBasicImpl;
+import dk.messagebroker.queuepermission.QueuePermissionBasicImpl;
+import dk.messagebroker.queuepermission.QueuePermissionCollection;
+import dk.messagebroker.queuepermission.QueuePermissionCollectionConcurrentImpl;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ForwardResolvingImplyServiceTest {
+
+    /*
+    Заглушка DNS: прямое разрешение по изменяемой таблице, обратное разрешение запрещено
+     */
+    private static class StubResolver implements HostResolver {
+        final Map<String, InetAddress[]> table = new ConcurrentHashMap<>();
+        final AtomicInteger resolveCalls = new AtomicInteger();
+
+        StubResolver put(String domainName, String... ips) throws UnknownHostException {
+            InetAddress[] addresses = new InetAddress[ips.length];
+            for (int i = 0; i < ips.length; i++) {
+                addresses[i] = InetAddress.getByAddress(domainName, StaticHostResolver.parseLiteral(ips[i]));
+            }
+            table.put(domainName, addresses);
+            return this;
+        }
+
+        @Override
+        public InetAddress[] resolve(String domainName) throws UnknownHostException {
+            resolveCalls.incrementAndGet();
+            InetAddress[] addresses = table.get(domainName);
+            if (addresses == null) throw new UnknownHostException(domainName);
+            return addresses;
+        }
+
+        @Override
+        public String canonicalHostName(String ip) {
+            throw new AssertionError("reverse lookup of " + ip);
+        }
+    }
+
+
+    @Test
+    void forwardResolvedAddresses() throws Exception {
+        StubResolver resolver = new StubResolver().put("corp.com", "172.17.64.10", "172.17.64.11", "2001:db8::10");
+        try (ForwardResolvingImplyService service = new ForwardResolvingImplyService(resolver)) {
+            service.register("Corp.com");
+            service.register("corp.com");
+            assertEquals(1, service.size());
+            assertEquals(1, resolver.resolveCalls.get());
+
+            assertTrue(service.IPDomainName("172.17.64.10", "corp.com"));
+            assertTrue(service.IPDomainName("172.17.64.11", "CORP.COM"));
+            assertFalse(service.IPDomainName("172.17.64.12", "corp.com"));
+            assertFalse(service.IPDomainName("255.255.255.255", "corp.com"));
+            assertTrue(service.IPDomainName("2001:db8:0:0:0:0:0:10", "corp.com"));
+            assertFalse(service.IPDomainName("2001:db8::11", "corp.com"));
+            assertThrows(UnknownHostException.class, () -> service.IPDomainName("mq.corp.com", "corp.com"));
+            assertEquals(1, resolver.resolveCalls.get());
+
+            //  Остальные проверки - как в ImplyServiceBean
+            assertTrue(service.DomainNameIP("corp.com", "172.17.64.10"));
+        }
+    }
+
+
+    @Test
+    void unregisteredNameResolvedOnFirstCheck() throws Exception {
+        StubResolver resolver = new StubResolver().put("corp.com", "172.17.64.10");
+        try (ForwardResolvingImplyService service = new ForwardResolvingImplyService(resolver)) {
+            for (int i = 0; i < 10; i++) assertTrue(service.IPDomainName("172.17.64.10", "corp.com"));
+            assertEquals(1, resolver.resolveCalls.get());
+
+            assertThrows(UnknownHostException.class, () -> service.IPDomainName("172.17.64.10", "unknown.corp.com"));
+            assertEquals(2, service.size());
+
+            service.unregister("unknown.corp.com");
+            assertEquals(1, service.size());
+        }
+    }
+
+
+    @Test
+    void refreshedInBackground() throws Exception {
+        StubResolver resolver = new StubResolver().put("corp.com", "172.17.64.10");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService lookupExecutor = Executors.newSingleThreadExecutor();
+        try (ForwardResolvingImplyService service = new ForwardResolvingImplyService(resolver, Duration.ofMillis(10),
+                scheduler, lookupExecutor)) {
+            service.register("corp.com");
+            assertTrue(service.IPDomainName("172.17.64.10", "corp.com"));
+
+            resolver.put("corp.com", "172.17.64.20");
+            awaitImplied(service, "172.17.64.20");
+            assertFalse(service.IPDomainName("172.17.64.10", "corp.com"));
+
+            //  Неудачное обновление не отменяет полученные ранее адреса
+            resolver.table.clear();
+            int calls = resolver.resolveCalls.get();
+            while (resolver.resolveCalls.get() < calls + 3) Thread.sleep(5);
+            assertTrue(service.IPDomainName("172.17.64.20", "corp.com"));
+        } finally {
+            scheduler.shutdownNow();
+            lookupExecutor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    void collectionWithDomainNameGrant() throws Exception {
+        StubResolver resolver = new StubResolver().put("corp.com", "172.17.64.10", "2001:db8::10");
+        try (ForwardResolvingImplyService service = new ForwardResolvingImplyService(resolver)) {
+            QueuePermissionCollection collection = new QueuePermissionCollectionConcurrentImpl();
+            collection.add(new QueuePermissionBasicImpl("corp.com", "pusher", service));
+
+            assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+            assertTrue(collection.implies(new QueuePermissionBasicImpl("2001:db8::10", "pusher")));
+            assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.11", "pusher")));
+            assertFalse(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+            assertEquals(1, resolver.resolveCalls.get());
+        }
+    }
+
+
+    @Test
+    void registeredOnAddUnregisteredOnRemove() throws Exception {
+        StubResolver resolver = new StubResolver().put("corp.com", "172.17.64.10");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService lookupExecutor = Executors.newSingleThreadExecutor();
+        try (ForwardResolvingImplyService service = new ForwardResolvingImplyService(resolver, Duration.ofMinutes(1),
+                scheduler, lookupExecutor)) {
+            //  Исполнитель разрешений занят - добавление разрешения не ждет DNS
+            CountDownLatch release = new CountDownLatch(1);
+            lookupExecutor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            QueuePermisionCollectionBasicImpl collection = new QueuePermisionCollectionBasicImpl();
+            QueuePermissionBasicImpl pusher = new QueuePermissionBasicImpl("corp.com", "pusher", service);
+            QueuePermissionBasicImpl puller = new QueuePermissionBasicImpl("Corp.com", "puller", service);
+            collection.add(pusher);
+            collection.add(puller);
+            assertEquals(1, service.size());
+            assertEquals(0, resolver.resolveCalls.get());
+
+            release.countDown();
+            lookupExecutor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+            assertEquals(1, resolver.resolveCalls.get());
+            assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "pusher")));
+            assertTrue(collection.implies(new QueuePermissionBasicImpl("172.17.64.10", "puller")));
+            assertEquals(1, resolver.resolveCalls.get());
+
+            //  Имя забывается, когда из коллекции удалено последнее разрешение с ним
+            collection.remove(pusher);
+            assertEquals(1, service.size());
+            collection.remove(puller);
+            assertEquals(0, service.size());
+
+            //  Удаленное имя не подразумевается - и при новой проверке разрешается заново
+            resolver.put("corp.com", "172.17.64.20");
+            assertFalse(service.IPDomainName("172.17.64.10", "corp.com"));
+            assertTrue(service.IPDomainName("172.17.64.20", "Corp.com"));
+            assertEquals(2, resolver.resolveCalls.get());
+        } finally {
+            scheduler.shutdownNow();
+            lookupExecutor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    void invalidRefreshInterval() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService lookupExecutor = Executors.newSingleThreadExecutor();
+        try {
+            assertThrows(IllegalArgumentException.class, () -> new ForwardResolvingImplyService(new StaticHostResolver(),
+                    Duration.ZERO, scheduler, lookupExecutor));
+        } finally {
+            scheduler.shutdownNow();
+            lookupExecutor.shutdownNow();
+        }
+    }
+
+
+    private static void awaitImplied(ForwardResolvingImplyService service, String ip) throws Exception {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (service.IPDomainName(ip, "corp.com") == false) {
+            if (System.nanoTime() - deadline > 0) fail(ip + " was not refreshed");
+            Thread.sleep(5);
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -49,6 +50,33 @@ class ImplyServiceBeanTest {
          */
     }
 
+    private static String toDotted(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    @Test
+    void IPSubnetNumeric() {
+        //  Числовой вариант должен давать те же ответы, что и строковый, построенный на SubnetUtils.
+        //  Адреса выбираются рядом с подсетью, чтобы часто попадать на номер сети и широковещательный адрес.
+        Random random = new Random(5);
+        for (int i = 0; i < 100_000; i++) {
+            int prefixLength = random.nextInt(33);
+            int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            int subnetAddress = random.nextInt();
+            int network = subnetAddress & mask;
+            int ip;
+            switch (random.nextInt(4)) {
+                case 0: ip = network; break;
+                case 1: ip = network | ~mask; break;
+                case 2: ip = network + random.nextInt(5) - 2; break;
+                default: ip = random.nextInt();
+            }
+            String subnet = toDotted(subnetAddress) + "/" + prefixLength;
+            assertEquals(implyService.IPSubnet(toDotted(ip), subnet), implyService.IPSubnet(ip, network, mask),
+                    toDotted(ip) + " in " + subnet);
+        }
+    }
+
     @Test
     void IPDomainName() throws UnknownHostException {
         System.out.println(InetAddress.getByName("127.0.0.1").getCanonicalHostName());
@@ -75,6 +103,60 @@ class ImplyServiceBeanTest {
         assertTrue(implyService.DomainNameSubnet("cenzor.net", "64.190.63.0/24"));
     }
 
+    @Test
+    void withStaticHostResolver() throws UnknownHostException {
+        //  Разрешение имен по таблице в памяти: проверки с доменными именами без обращения к DNS
+        ImplyService implyService = new ImplyServiceBean(new StaticHostResolver()
+                .add("172.17.64.10", "node1.mq.corp.com")
+                .add("172.17.64.11", "node2.mq.corp.com"));
+
+        assertTrue(implyService.IPDomainName("172.17.64.10", "mq.corp.com"));
+        assertTrue(implyService.IPDomainName("172.17.64.11", "node2.mq.corp.com"));
+        assertFalse(implyService.IPDomainName("172.17.64.11", "node1.mq.corp.com"));
+        //  У адреса нет имени - каноническим именем считается сам адрес
+        assertFalse(implyService.IPDomainName("172.17.64.12", "mq.corp.com"));
+
+        assertTrue(implyService.DomainNameIP("node1.mq.corp.com", "172.17.64.10"));
+        assertFalse(implyService.DomainNameIP("node1.mq.corp.com", "172.17.64.11"));
+        assertThrows(UnknownHostException.class, () -> implyService.DomainNameIP("unknown.corp.com", "172.17.64.10"));
+
+        assertTrue(implyService.DomainNameSubnet("node2.mq.corp.com", "172.17.64.0/24"));
+        assertFalse(implyService.DomainNameSubnet("node2.mq.corp.com", "172.17.63.0/24"));
+        assertTrue(implyService.DomainNameSubnet("node2.mq.corp.com", 0xAC114000, 0xFFFFFF00));
+        assertFalse(implyService.DomainNameSubnet("node2.mq.corp.com", 0xAC113F00, 0xFFFFFF00));
+    }
+
+    @Test
+    void ipv6() throws UnknownHostException {
+        ImplyService implyService = new ImplyServiceBean(new StaticHostResolver()
+                .add("172.17.64.10", "node1.mq.corp.com")
+                .add("2001:db8::10", "node1.mq.corp.com")
+                .add("172.17.64.11", "node2.mq.corp.com"));
+        long high = 0x20010DB800000000L;
+
+        assertTrue(implyService.IPv6IPv6(high, 0x10, high, 0x10));
+        assertFalse(implyService.IPv6IPv6(high, 0x10, high + 1, 0x10));
+
+        assertTrue(implyService.IPv6Subnet(high, 0, high, 0, 32));
+        assertTrue(implyService.IPv6Subnet(high | 0xFFFFFFFFL, -1, high, 0, 32));
+        assertFalse(implyService.IPv6Subnet(high + (1L << 32), 0, high, 0, 32));
+        assertTrue(implyService.IPv6Subnet(-1, -1, 0, 0, 0));
+        assertTrue(implyService.IPv6Subnet(high, 0x8000000000000001L, high, 0x8000000000000000L, 65));
+        assertFalse(implyService.IPv6Subnet(high, 0x7FFFFFFFFFFFFFFFL, high, 0x8000000000000000L, 65));
+        assertFalse(implyService.IPv6Subnet(high, 0x11, high, 0x10, 128));
+
+        assertTrue(implyService.IPv6SubnetSubnet(high, 0, 32, high, 0, 32));
+        assertFalse(implyService.IPv6SubnetSubnet(high, 0, 48, high, 0, 32));
+
+        //  Используется IPv6-адрес имени, даже если первым разрешается IPv4-адрес
+        assertTrue(implyService.DomainNameIPv6("node1.mq.corp.com", high, 0x10));
+        assertTrue(implyService.DomainNameIPv6Subnet("node1.mq.corp.com", high, 0, 32));
+        assertFalse(implyService.DomainNameIPv6Subnet("node1.mq.corp.com", high, 0x20, 124));
+        assertFalse(implyService.DomainNameIPv6Subnet("node2.mq.corp.com", 0, 0, 0));
+        assertTrue(implyService.IPDomainName("2001:DB8:0::10", "mq.corp.com"));
+        assertThrows(UnknownHostException.class, () -> implyService.DomainNameIPv6("unknown.corp.com", high, 0x10));
+    }
+
     @Test
     void domainNameDomainName() {
         assertTrue(implyService.DomainNameDomainName("google.com","google.com"));
@@ -83,6 +165,11 @@ class ImplyServiceBeanTest {
         assertTrue(implyService.DomainNameDomainName("a.google.com","google.com"));
         //  в данном случае, google.com большее множество, чем a.google.com; большее не может полностью входить в меньшее, поэтому false
         assertFalse(implyService.DomainNameDomainName("google.com","a.google.com"));    // в поддомен a.google.com нико
+        //  совпадение только по границе метки: evilcorp.com не является поддоменом corp.com
+        assertFalse(implyService.DomainNameDomainName("evilcorp.com","corp.com"));
+        assertTrue(implyService.DomainNameDomainName("mq.evilcorp.com","evilcorp.com"));
+        //  регистр в доменных именах не важен
+        assertTrue(implyService.DomainNameDomainName("MQ.Corp.com","corp.COM"));
     }
 
 
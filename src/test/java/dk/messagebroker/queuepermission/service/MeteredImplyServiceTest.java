@@ -0,0 +1,87 @@
+package dk.messagebroker.queuepermission.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeteredImplyServiceTest {
+
+    private static MeteredImplyService service() throws UnknownHostException {
+        return new MeteredImplyService(new ImplyServiceBean(new StaticHostResolver().add("172.17.64.10", "mq.corp.com")));
+    }
+
+
+    @Test
+    void countsCalls() throws UnknownHostException {
+        MeteredImplyService service = service();
+        assertTrue(service.IPSubnet(0xAC114010, 0xAC110000, 0xFFFF0000));
+        assertFalse(service.IPSubnet(0xAC110000, 0xAC110000, 0xFFFF0000));
+        assertTrue(service.DomainNameIP("mq.corp.com", "172.17.64.10"));
+        assertTrue(service.IPDomainName("172.17.64.10", "corp.com"));
+        assertTrue(service.DomainNameDomainName("mq.corp.com", "corp.com"));
+
+        MeteredImplyService.Snapshot snapshot = service.snapshot();
+        assertEquals(15, snapshot.methods().size());
+        assertEquals(2, snapshot.method("IPSubnet(int,int,int)").calls());
+        assertEquals(0, snapshot.method("IPSubnet(String,String)").calls());
+        assertEquals(1, snapshot.method("DomainNameIP").calls());
+        assertEquals(2, snapshot.dnsLookups());
+        assertEquals(0, snapshot.failures());
+        assertEquals(4, snapshot.byTotalTime().size());
+
+        MeteredImplyService.MethodMetrics metrics = snapshot.method("IPSubnet(int,int,int)");
+        long[] histogram = metrics.histogram();
+        long sum = 0;
+        for (long count : histogram) sum += count;
+        assertEquals(2, sum);
+        assertTrue(metrics.percentileNanos(0.5) <= metrics.percentileNanos(1));
+        assertTrue(metrics.totalNanos() <= 2 * metrics.percentileNanos(1));
+        assertEquals(0, snapshot.method("IPv6IPv6").percentileNanos(0.99));
+        assertThrows(IllegalArgumentException.class, () -> metrics.percentileNanos(1.5));
+    }
+
+
+    @Test
+    void countsFailures() throws UnknownHostException {
+        MeteredImplyService service = service();
+        assertThrows(UnknownHostException.class, () -> service.DomainNameIP("unknown.corp.com", "172.17.64.10"));
+        assertThrows(UnknownHostException.class, () -> service.DomainNameSubnet("unknown.corp.com", 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> service.IPSubnet("172.17.64.10", "bad subnet"));
+
+        MeteredImplyService.Snapshot snapshot = service.snapshot();
+        assertEquals(1, snapshot.method("DomainNameIP").unknownHostExceptions());
+        assertEquals(1, snapshot.method("DomainNameSubnet(String,int,int)").failures());
+        assertEquals(1, snapshot.method("IPSubnet(String,String)").failures());
+        assertEquals(0, snapshot.method("IPSubnet(String,String)").unknownHostExceptions());
+        assertEquals(2, snapshot.unknownHostExceptions());
+        assertEquals(3, snapshot.failures());
+        assertEquals(2, snapshot.dnsLookups());
+    }
+
+
+    @Test
+    void concurrentCalls() throws Exception {
+        MeteredImplyService service = service();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) service.IPIP(i, i);
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(40_000, service.snapshot().method("IPIP(int,int)").calls());
+    }
+
+}
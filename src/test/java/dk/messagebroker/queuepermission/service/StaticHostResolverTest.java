@@ -0,0 +1,38 @@
+package dk.messagebroker.queuepermission.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticHostResolverTest {
+
+    @Test
+    void fromHostsFile() throws IOException {
+        Path hostsFile = Files.createTempFile("hosts", "");
+        try {
+            Files.writeString(hostsFile, "# Тестовый файл\n"
+                    + "172.17.64.10   node1.mq.corp.com node1   # комментарий\n"
+                    + "\n"
+                    + "172.17.64.11\tnode2.mq.corp.com\n"
+                    + "::1 localhost6\n");
+            HostResolver resolver = StaticHostResolver.fromHostsFile(hostsFile);
+
+            assertEquals("172.17.64.10", resolver.resolve("node1.mq.corp.com")[0].getHostAddress());
+            assertEquals("172.17.64.10", resolver.resolve("NODE1")[0].getHostAddress());
+            assertEquals("node1.mq.corp.com", resolver.canonicalHostName("172.17.64.10"));
+            assertEquals("node2.mq.corp.com", resolver.canonicalHostName("172.17.64.11"));
+            assertEquals("0:0:0:0:0:0:0:1", resolver.resolve("localhost6")[0].getHostAddress());
+            assertEquals("172.17.64.12", resolver.canonicalHostName("172.17.64.12"));
+            assertThrows(UnknownHostException.class, () -> resolver.resolve("node3.mq.corp.com"));
+            assertThrows(UnknownHostException.class, () -> resolver.canonicalHostName("node1.mq.corp.com"));
+        } finally {
+            Files.delete(hostsFile);
+        }
+    }
+
+}
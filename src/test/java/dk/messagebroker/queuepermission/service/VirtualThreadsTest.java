@@ -0,0 +1,25 @@
+package dk.messagebroker.queuepermission.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualThreadsTest {
+
+    @Test
+    void newPerTaskExecutor() throws Exception {
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor();
+        boolean supported = Runtime.version().feature() >= 21;
+        assertEquals(supported, executor != null);
+        if (executor == null) return;
+        try {
+            assertEquals(Boolean.TRUE, executor.submit(() -> Thread.currentThread().isDaemon()).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}